@@ -27,12 +27,22 @@ import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.minidns.MiniDnsException.UpstreamOverloadedException;
 import org.minidns.MiniDnsFuture;
+import org.minidns.MiniDnsFuture.InternalMiniDnsFuture;
+import org.minidns.UpstreamConcurrencyLimiter;
+import org.minidns.util.ExceptionCallback;
+import org.minidns.util.SuccessCallback;
 import org.minidns.dnsmessage.DnsMessage;
 import org.minidns.dnsqueryresult.DnsQueryResult;
 import org.minidns.source.AbstractDnsDataSource;
@@ -71,6 +81,26 @@ public class AsyncNetworkDataSource extends AbstractDnsDataSource {
         }
     });
 
+    /**
+     * Fails requests which waited longer than the timeout for a permit of the concurrency limiter.
+     */
+    private static final ScheduledThreadPoolExecutor QUEUE_DEADLINE_EXECUTOR;
+
+    static {
+        ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r);
+                thread.setDaemon(true);
+                thread.setName("MiniDNS Queue Deadline Thread");
+                return thread;
+            }
+        };
+        QUEUE_DEADLINE_EXECUTOR = new ScheduledThreadPoolExecutor(1, threadFactory);
+        QUEUE_DEADLINE_EXECUTOR.setKeepAliveTime(60, TimeUnit.SECONDS);
+        QUEUE_DEADLINE_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
     static {
         try {
             SELECTOR = Selector.open();
@@ -87,8 +117,18 @@ public class AsyncNetworkDataSource extends AbstractDnsDataSource {
         }
     }
 
+    private volatile UpstreamConcurrencyLimiter concurrencyLimiter;
+
     @Override
     public MiniDnsFuture<DnsQueryResult, IOException> queryAsync(DnsMessage message, InetAddress address, int port, OnResponseCallback onResponseCallback) {
+        final UpstreamConcurrencyLimiter concurrencyLimiter = this.concurrencyLimiter;
+        if (concurrencyLimiter != null) {
+            return queryAsyncLimited(message, address, port, onResponseCallback, concurrencyLimiter);
+        }
+        return startRequest(message, address, port, onResponseCallback);
+    }
+
+    private MiniDnsFuture<DnsQueryResult, IOException> startRequest(DnsMessage message, InetAddress address, int port, OnResponseCallback onResponseCallback) {
         AsyncDnsRequest asyncDnsRequest = new AsyncDnsRequest(message, address, port, udpPayloadSize, this, onResponseCallback);
         INCOMING_REQUESTS.add(asyncDnsRequest);
         synchronized (DEADLINE_QUEUE) {
@@ -98,6 +138,119 @@ public class AsyncNetworkDataSource extends AbstractDnsDataSource {
         return asyncDnsRequest.getFuture();
     }
 
+    /**
+     * Start the request once the limiter grants a permit. Until then, the request waits in the queue of the limiter
+     * without occupying a thread or a channel, but at most for the timeout of this data source.
+     */
+    private MiniDnsFuture<DnsQueryResult, IOException> queryAsyncLimited(final DnsMessage message,
+                    final InetAddress address, final int port, final OnResponseCallback onResponseCallback,
+                    final UpstreamConcurrencyLimiter concurrencyLimiter) {
+        final AtomicReference<MiniDnsFuture<DnsQueryResult, IOException>> requestFuture = new AtomicReference<>();
+        final AtomicReference<UpstreamConcurrencyLimiter.PermitListener> queuedListener = new AtomicReference<>();
+        final AtomicReference<UpstreamConcurrencyLimiter.Permit> grantedPermit = new AtomicReference<>();
+        final AtomicReference<ScheduledFuture<?>> queueDeadline = new AtomicReference<>();
+        final InternalMiniDnsFuture<DnsQueryResult, IOException> future = new InternalMiniDnsFuture<DnsQueryResult, IOException>() {
+            @Override
+            public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+                boolean res = super.cancel(mayInterruptIfRunning);
+                UpstreamConcurrencyLimiter.PermitListener listener = queuedListener.get();
+                if (listener != null) {
+                    concurrencyLimiter.cancel(address, listener);
+                }
+                ScheduledFuture<?> deadline = queueDeadline.get();
+                if (deadline != null) {
+                    deadline.cancel(false);
+                }
+                MiniDnsFuture<DnsQueryResult, IOException> request = requestFuture.get();
+                if (request != null) {
+                    request.cancel(mayInterruptIfRunning);
+                }
+                // A cancelled request does not report its outcome, hence release its permit here.
+                UpstreamConcurrencyLimiter.Permit permit = grantedPermit.get();
+                if (permit != null) {
+                    permit.release();
+                }
+                return res;
+            }
+        };
+
+        final UpstreamConcurrencyLimiter.PermitListener listener = new UpstreamConcurrencyLimiter.PermitListener() {
+            @Override
+            public void onPermit(final UpstreamConcurrencyLimiter.Permit permit) {
+                grantedPermit.set(permit);
+                ScheduledFuture<?> deadline = queueDeadline.get();
+                if (deadline != null) {
+                    deadline.cancel(false);
+                }
+                if (future.isCancelled()) {
+                    permit.release();
+                    return;
+                }
+                final long start = System.currentTimeMillis();
+                MiniDnsFuture<DnsQueryResult, IOException> request = startRequest(message, address, port, onResponseCallback);
+                requestFuture.set(request);
+                request.onSuccess(new SuccessCallback<DnsQueryResult>() {
+                    @Override
+                    public void onSuccess(DnsQueryResult result) {
+                        permit.success(System.currentTimeMillis() - start);
+                        future.setResult(result);
+                    }
+                }).onError(new ExceptionCallback<IOException>() {
+                    @Override
+                    public void processException(IOException exception) {
+                        permit.failure();
+                        future.setException(exception);
+                    }
+                });
+                if (future.isCancelled()) {
+                    request.cancel(true);
+                    permit.release();
+                }
+            }
+        };
+        queuedListener.set(listener);
+
+        try {
+            concurrencyLimiter.acquire(address, listener);
+        } catch (UpstreamOverloadedException e) {
+            future.setException(e);
+            return future;
+        }
+
+        if (grantedPermit.get() == null) {
+            // The listener was queued. If the permit is granted concurrently, then the deadline finds the listener no
+            // longer queued and does nothing.
+            final int timeout = getTimeout();
+            queueDeadline.set(QUEUE_DEADLINE_EXECUTOR.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        concurrencyLimiter.timeout(address, listener, timeout);
+                    } catch (UpstreamOverloadedException e) {
+                        future.setException(e);
+                    }
+                }
+            }, timeout, TimeUnit.MILLISECONDS));
+        }
+        return future;
+    }
+
+    public UpstreamConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    /**
+     * Set the limiter of the number of concurrent requests to every upstream server. Requests exceeding the limit wait
+     * in the queue of the limiter, without blocking a thread, and fail with an
+     * {@link org.minidns.MiniDnsException.UpstreamOverloadedException} if the queue is full, or if no permit became
+     * available within the timeout. This is disabled by default.
+     *
+     * @param concurrencyLimiter the limiter or <code>null</code> to not limit the number of concurrent requests.
+     */
+    public void setConcurrencyLimiter(UpstreamConcurrencyLimiter concurrencyLimiter) {
+        this.concurrencyLimiter = concurrencyLimiter;
+    }
+
     @Override
     public DnsQueryResult query(DnsMessage message, InetAddress address, int port) throws IOException {
         MiniDnsFuture<DnsQueryResult, IOException> future = queryAsync(message, address, port, null);
@@ -10,7 +10,21 @@
  */
 package org.minidns.source.async;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
 import org.junit.jupiter.api.Test;
+import org.minidns.MiniDnsException.UpstreamOverloadedException;
+import org.minidns.MiniDnsFuture;
+import org.minidns.UpstreamConcurrencyLimiter;
+import org.minidns.UpstreamConcurrencyLimiter.UpstreamLoad;
+import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsmessage.Question;
+import org.minidns.dnsqueryresult.DnsQueryResult;
+import org.minidns.record.Record.TYPE;
 
 public class AsyncNetworkDataSourceTest {
 
@@ -21,4 +35,24 @@ public class AsyncNetworkDataSourceTest {
     public void nopTest() {
     }
 
+    @Test
+    public void queuedRequestTimesOutTest() throws IOException {
+        InetAddress server = InetAddress.getLoopbackAddress();
+        UpstreamConcurrencyLimiter limiter = new UpstreamConcurrencyLimiter(1, 1);
+        // Occupy the only permit, so that the request is queued.
+        UpstreamConcurrencyLimiter.Permit permit = limiter.acquire(server, 1000);
+
+        AsyncNetworkDataSource dataSource = new AsyncNetworkDataSource();
+        dataSource.setConcurrencyLimiter(limiter);
+        dataSource.setTimeout(50);
+        DnsMessage query = DnsMessage.builder().setQuestion(new Question("www.example.com", TYPE.A)).setId(1).build();
+        MiniDnsFuture<DnsQueryResult, IOException> future = dataSource.queryAsync(query, server, 53, null);
+
+        assertThrows(UpstreamOverloadedException.class, () -> future.getOrThrow());
+        UpstreamLoad load = limiter.getUpstreamLoads().get(0);
+        assertEquals(1, load.queueTimeouts);
+        assertEquals(0, load.queued);
+        permit.release();
+    }
+
 }
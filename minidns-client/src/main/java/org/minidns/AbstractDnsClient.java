@@ -23,8 +23,11 @@ import org.minidns.record.NS;
 import org.minidns.record.Record;
 import org.minidns.record.Record.CLASS;
 import org.minidns.record.Record.TYPE;
+import org.minidns.source.AbstractDnsDataSource;
 import org.minidns.source.DnsDataSource;
 import org.minidns.source.NetworkDataSource;
+import org.minidns.util.ExceptionCallback;
+import org.minidns.util.SuccessCallback;
 
 import java.io.IOException;
 import java.net.InetAddress;
@@ -34,6 +37,8 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -75,6 +80,13 @@ public abstract class AbstractDnsClient {
 
     protected DnsDataSource dataSource = new NetworkDataSource();
 
+    /**
+     * The queries currently in flight, keyed by their question.
+     */
+    private final ConcurrentMap<Question, InFlightQuery> inFlightQueries = new ConcurrentHashMap<>();
+
+    private volatile boolean coalesceQueries = true;
+
     public enum IpVersionSetting {
 
         v4only(true, false),
@@ -185,7 +197,38 @@ public abstract class AbstractDnsClient {
 
     public DnsQueryResult query(Question q) throws IOException {
         DnsMessage.Builder query = buildMessage(q);
-        return query(query);
+        if (!coalesceQueries) {
+            return query(query);
+        }
+
+        // Only register the query as in flight on a cache miss, so that cache hits do not contend on the shared map.
+        DnsQueryResult cachedResult = (cache == null) ? null : cache.get(query.build());
+        if (cachedResult != null) {
+            return cachedResult;
+        }
+
+        InFlightQuery inFlightQuery = new InFlightQuery();
+        InFlightQuery existingInFlightQuery = inFlightQueries.putIfAbsent(q, inFlightQuery);
+        if (existingInFlightQuery != null) {
+            LOGGER.finer("Attaching to in-flight query for " + q);
+            return existingInFlightQuery.await();
+        }
+
+        DnsQueryResult result = null;
+        IOException exception = null;
+        try {
+            result = query(query);
+            return result;
+        } catch (IOException e) {
+            exception = e;
+            throw e;
+        } catch (RuntimeException e) {
+            exception = new IOException("Query for " + q + " failed", e);
+            throw e;
+        } finally {
+            inFlightQueries.remove(q, inFlightQuery);
+            inFlightQuery.complete(result, exception);
+        }
     }
 
     /**
@@ -202,9 +245,54 @@ public abstract class AbstractDnsClient {
         return queryAsync(q);
     }
 
-    public final MiniDnsFuture<DnsQueryResult, IOException> queryAsync(Question q) {
+    public final MiniDnsFuture<DnsQueryResult, IOException> queryAsync(final Question q) {
         DnsMessage.Builder query = buildMessage(q);
-        return queryAsync(query);
+        if (!coalesceQueries) {
+            return queryAsync(query);
+        }
+
+        DnsQueryResult cachedResult = (cache == null) ? null : cache.get(query.build());
+        if (cachedResult != null) {
+            return MiniDnsFuture.from(cachedResult);
+        }
+
+        final InFlightQuery inFlightQuery = new InFlightQuery();
+        InFlightQuery existingInFlightQuery = inFlightQueries.putIfAbsent(q, inFlightQuery);
+        if (existingInFlightQuery != null) {
+            LOGGER.finer("Attaching to in-flight query for " + q);
+            return existingInFlightQuery.attach();
+        }
+
+        // The future of the query only supports a single callback, hence the caller gets its own future.
+        MiniDnsFuture<DnsQueryResult, IOException> attachedFuture = inFlightQuery.attach();
+        MiniDnsFuture<DnsQueryResult, IOException> future;
+        try {
+            future = queryAsync(query);
+        } catch (RuntimeException e) {
+            inFlightQueries.remove(q, inFlightQuery);
+            inFlightQuery.complete(null, new IOException("Query for " + q + " failed", e));
+            throw e;
+        }
+        inFlightQuery.setUpstream(future, new Runnable() {
+            @Override
+            public void run() {
+                inFlightQueries.remove(q, inFlightQuery);
+            }
+        });
+        future.onSuccess(new SuccessCallback<DnsQueryResult>() {
+            @Override
+            public void onSuccess(DnsQueryResult result) {
+                inFlightQueries.remove(q, inFlightQuery);
+                inFlightQuery.complete(result, null);
+            }
+        }).onError(new ExceptionCallback<IOException>() {
+            @Override
+            public void processException(IOException exception) {
+                inFlightQueries.remove(q, inFlightQuery);
+                inFlightQuery.complete(null, exception);
+            }
+        });
+        return attachedFuture;
     }
 
     /**
@@ -235,6 +323,21 @@ public abstract class AbstractDnsClient {
     }
 
     public final DnsQueryResult query(DnsMessage requestMessage, InetAddress address, int port) throws IOException {
+        return query(requestMessage, address, port, -1);
+    }
+
+    /**
+     * Query the given server, waiting at most the given timeout for a response. The timeout is only honored if the
+     * data source is an {@link AbstractDnsDataSource} supporting per-query timeouts.
+     *
+     * @param requestMessage the query.
+     * @param address the address of the server.
+     * @param port the port of the server.
+     * @param timeout the timeout in milliseconds, or a negative value to use the timeout of the data source.
+     * @return the result of the query.
+     * @throws IOException if an IO error occurs.
+     */
+    protected final DnsQueryResult query(DnsMessage requestMessage, InetAddress address, int port, int timeout) throws IOException {
         // See if we have the answer to this question already cached
         DnsQueryResult responseMessage = (cache == null) ? null : cache.get(requestMessage);
         if (responseMessage != null) {
@@ -247,7 +350,11 @@ public abstract class AbstractDnsClient {
         LOGGER.log(TRACE_LOG_LEVEL, "Asking {0} on {1} for {2} with:\n{3}", new Object[] { address, port, q, requestMessage });
 
         try {
-            responseMessage = dataSource.query(requestMessage, address, port);
+            if (timeout > 0 && dataSource instanceof AbstractDnsDataSource) {
+                responseMessage = ((AbstractDnsDataSource) dataSource).query(requestMessage, address, port, timeout);
+            } else {
+                responseMessage = dataSource.query(requestMessage, address, port);
+            }
         } catch (IOException e) {
             LOGGER.log(TRACE_LOG_LEVEL, "IOException {0} on {1} while resolving {2}: {3}", new Object[] { address, port, q, e});
             throw e;
@@ -276,7 +383,9 @@ public abstract class AbstractDnsClient {
     }
 
     /**
-     * Whether a response from the DNS system should be cached or not.
+     * Whether a response from the DNS system should be cached or not. Besides responses answering the question, directly
+     * or through a CNAME or DNAME chain, negative responses (NXDOMAIN and NODATA) are cacheable if they carry a SOA record
+     * in their authority section, as specified in RFC 2308 § 5.
      *
      * @param q          The question the response message should answer.
      * @param result The DNS query result.
@@ -289,7 +398,12 @@ public abstract class AbstractDnsClient {
                 return true;
             }
         }
-        return false;
+        if (!dnsMessage.isNegativeResponse()) {
+            // The answer is reached via a CNAME or DNAME chain.
+            return dnsMessage.responseCode == DnsMessage.RESPONSE_CODE.NO_ERROR && !dnsMessage.answerSection.isEmpty();
+        }
+        // RFC 2308 § 5: Negative responses without SOA records SHOULD NOT be cached.
+        return dnsMessage.getNegativeTtl() >= 0;
     }
 
     /**
@@ -401,6 +515,18 @@ public abstract class AbstractDnsClient {
         this.dataSource = dataSource;
     }
 
+    /**
+     * Set whether concurrent queries for the same question are coalesced. If enabled, which is the default, only the
+     * first caller sends a query, and callers asking the same question while this query is in flight attach to it and
+     * receive the same result or exception. This avoids a burst of identical queries once a popular cache entry
+     * expired. An asynchronous query is only cancelled once the futures of all attached callers were cancelled.
+     *
+     * @param coalesceQueries <code>true</code> to coalesce concurrent queries for the same question.
+     */
+    public void setCoalesceQueries(boolean coalesceQueries) {
+        this.coalesceQueries = coalesceQueries;
+    }
+
     /**
      * Get the cache used by this DNS client.
      *
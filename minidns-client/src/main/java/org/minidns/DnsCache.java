@@ -10,10 +10,21 @@
  */
 package org.minidns;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsmessage.Question;
 import org.minidns.dnsname.DnsName;
 import org.minidns.dnsqueryresult.CachedDnsQueryResult;
 import org.minidns.dnsqueryresult.DnsQueryResult;
+import org.minidns.dnsqueryresult.DnsQueryResult.DnssecValidationStatus;
+import org.minidns.dnsqueryresult.SynthesizedCachedDnsQueryResult;
+import org.minidns.edns.Edns;
+import org.minidns.record.Data;
+import org.minidns.record.Record;
+import org.minidns.record.Record.TYPE;
 
 /**
  * Cache for DNS Entries. Implementations must be thread safe.
@@ -22,6 +33,19 @@ public abstract class DnsCache {
 
     public static final int DEFAULT_CACHE_SIZE = 512;
 
+    /**
+     * The default upper bound, in seconds, of the TTL of negative responses. RFC 2308 § 5 suggests a value of one to three
+     * hours.
+     */
+    public static final long DEFAULT_MAX_NEGATIVE_TTL = 3 * 60 * 60;
+
+    /**
+     * The default upper bound of the number of CNAME and DNAME records a cache follows to synthesize a response.
+     */
+    public static final int DEFAULT_MAX_CHAIN_LENGTH = 8;
+
+    private volatile boolean shareDnssecEntries = true;
+
     /**
      * Add an an dns answer/response for a given dns question. Implementations
      * should honor the ttl / receive timestamp.
@@ -42,9 +66,230 @@ public abstract class DnsCache {
      * @return The dns message.
      */
     public final CachedDnsQueryResult get(DnsMessage query) {
-        return getNormalized(query.asNormalizedVersion());
+        DnsMessage normalizedQuery = query.asNormalizedVersion();
+        CachedDnsQueryResult result = getNormalized(normalizedQuery);
+        if (result == null && shareDnssecEntries) {
+            result = getFromDnssecEntry(normalizedQuery);
+        }
+        return result;
+    }
+
+    /**
+     * Request a cached dns response without recording the lookup, that is, without affecting the hit and miss
+     * statistics or the admission and eviction policy of the cache.
+     * @param query The query message containing a question.
+     * @return The dns message.
+     */
+    public final CachedDnsQueryResult peek(DnsMessage query) {
+        DnsMessage normalizedQuery = query.asNormalizedVersion();
+        CachedDnsQueryResult result = peekNormalized(normalizedQuery);
+        if (result == null && shareDnssecEntries) {
+            result = getFromDnssecEntry(normalizedQuery);
+        }
+        return result;
+    }
+
+    /**
+     * Try to answer a query without the DNSSEC OK (DO) flag from the entry cached for the same query with the DO and
+     * the CHECKING DISABLED (CD) flag set, which is how a validating client like the DnssecClient queries. The DNSSEC
+     * records, which were not asked for, are stripped from the response as required by RFC 4035 § 3.2.1.
+     * <p>
+     * As the entry was retrieved with checking disabled, it is only used if its validation status was recorded and is
+     * not {@link DnssecValidationStatus#bogus}. The AD flag is only set if the entry is
+     * {@link DnssecValidationStatus#secure} and the query has the AD flag set.
+     * </p>
+     *
+     * @param query the normalized query.
+     * @return the result synthesized from the DNSSEC entry or <code>null</code>.
+     */
+    private CachedDnsQueryResult getFromDnssecEntry(DnsMessage query) {
+        Edns edns = query.getEdns();
+        Question question = query.getQuestion();
+        if (edns == null || edns.dnssecOk || question == null || isDnssecType(question.type)) {
+            return null;
+        }
+
+        List<Record<? extends Data>> additional = withoutDnssecRecords(query.additionalSection);
+        DnsMessage.Builder dnssecQuery = query.asBuilder()
+                .setAuthenticData(false)
+                .setCheckingDisabled(true)
+                .setAdditionalResourceRecords(additional);
+        dnssecQuery.getEdnsBuilder().setUdpPayloadSize(edns.udpPayloadSize).setDnssecOk();
+
+        // The lookup of the DNSSEC entry is not recorded, so that a miss counts as a single miss.
+        CachedDnsQueryResult dnssecResult = peekNormalized(dnssecQuery.build().asNormalizedVersion());
+        if (dnssecResult == null) {
+            return null;
+        }
+        DnssecValidationStatus status = dnssecResult.getDnssecValidationStatus();
+        if (status == DnssecValidationStatus.unknown || status == DnssecValidationStatus.bogus) {
+            return null;
+        }
+
+        DnsMessage response = dnssecResult.response;
+        DnsMessage.Builder strippedResponse = response.asBuilder()
+                .setAuthenticData(status == DnssecValidationStatus.secure && query.authenticData)
+                .setCheckingDisabled(query.checkingDisabled)
+                .setAnswers(withoutDnssecRecords(response.answerSection))
+                .setNameserverRecords(withoutDnssecRecords(response.authoritySection))
+                .setAdditionalResourceRecords(withoutDnssecRecords(response.additionalSection));
+        Edns responseEdns = response.getEdns();
+        if (responseEdns != null) {
+            strippedResponse.getEdnsBuilder().setUdpPayloadSize(responseEdns.udpPayloadSize);
+        }
+        return new SynthesizedCachedDnsQueryResult(query, strippedResponse.build(), dnssecResult);
+    }
+
+    private static boolean isDnssecType(TYPE type) {
+        switch (type) {
+        case RRSIG:
+        case NSEC:
+        case NSEC3:
+        case OPT:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Remove the RRSIG, NSEC and NSEC3 records, and the OPT record, which carries the DO flag, from the given records.
+     */
+    private static List<Record<? extends Data>> withoutDnssecRecords(List<Record<? extends Data>> records) {
+        List<Record<? extends Data>> res = new ArrayList<>(records.size());
+        for (Record<? extends Data> record : records) {
+            if (!isDnssecType(record.type)) {
+                res.add(record);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Set whether queries without the DNSSEC OK (DO) flag may be answered from entries cached for validating clients,
+     * with the DNSSEC records stripped. This is enabled by default, so that validating and non-validating clients
+     * sharing a cache only cache one copy of a response.
+     *
+     * @param shareDnssecEntries <code>true</code> to share DNSSEC entries with non-DNSSEC queries.
+     */
+    public void setShareDnssecEntries(boolean shareDnssecEntries) {
+        this.shareDnssecEntries = shareDnssecEntries;
     }
 
     protected abstract CachedDnsQueryResult getNormalized(DnsMessage normalizedQuery);
 
+    /**
+     * Look up a normalized query like {@link #getNormalized(DnsMessage)}, but without recording the lookup. Caches
+     * which keep statistics or use the lookups for their admission or eviction policy should override this method. The
+     * default implementation delegates to {@link #getNormalized(DnsMessage)}.
+     *
+     * @param normalizedQuery the normalized query.
+     * @return the cached result or <code>null</code>.
+     */
+    protected CachedDnsQueryResult peekNormalized(DnsMessage normalizedQuery) {
+        return getNormalized(normalizedQuery);
+    }
+
+    /**
+     * Get a copy of the entries currently in this cache, ordered from the least to the most recently used entry if the
+     * cache has a notion of recency. This is used, for example, by {@link org.minidns.cache.DnsCacheSnapshot} to persist
+     * the cache. The default implementation returns an empty list, as not every cache is able to enumerate its entries.
+     *
+     * @return a list of the cached entries, which may include expired entries.
+     */
+    public List<CachedDnsQueryResult> getEntries() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Find the cached NS records of the closest enclosing zone of the given name, that is, of the name itself or of its
+     * nearest ancestor for which NS records are cached. The default implementation probes the name and every ancestor
+     * with {@link #peek(DnsMessage)}, so that the probes do not count as lookups, implementations may use a more
+     * efficient index.
+     *
+     * @param name the name.
+     * @return the cached result answering the NS question of the closest enclosing zone, or <code>null</code>.
+     */
+    public CachedDnsQueryResult findClosestEnclosingNs(DnsName name) {
+        DnsName zone = name;
+        while (true) {
+            Question question = new Question(zone, TYPE.NS);
+            CachedDnsQueryResult result = peek(question.asQueryMessage());
+            if (result != null && !result.response.getAnswersFor(question).isEmpty()) {
+                return result;
+            }
+            if (zone.isRootLabel()) {
+                return null;
+            }
+            zone = zone.getParent();
+        }
+    }
+
+    /**
+     * Get the cached entries whose question name is the given name or a name below it. The default implementation
+     * filters the result of {@link #getEntries()}.
+     *
+     * @param name the name.
+     * @return a list of the cached entries in the subtree of the given name, which may include expired entries.
+     */
+    public List<CachedDnsQueryResult> entriesUnder(DnsName name) {
+        List<CachedDnsQueryResult> res = new ArrayList<>();
+        for (CachedDnsQueryResult entry : getEntries()) {
+            if (isInSubtree(entry.query, name)) {
+                res.add(entry);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Check whether the question name of the given query is the given name or a name below it.
+     *
+     * @param query the query.
+     * @param name the name.
+     * @return <code>true</code> if the query is in the subtree of the name.
+     */
+    protected static boolean isInSubtree(DnsMessage query, DnsName name) {
+        if (query.questions.isEmpty()) {
+            return false;
+        }
+        return query.getQuestion().name.isChildOf(name);
+    }
+
+    /**
+     * Remove all cached entries whose question name is the given name or a name below it, for example, after the
+     * content of a zone changed.
+     *
+     * @param name the name.
+     * @return the number of removed entries.
+     * @throws UnsupportedOperationException if the cache does not support the removal of entries. All caches of
+     * MiniDNS support it, only third-party caches not overriding this method do not.
+     */
+    public int invalidateSubtree(DnsName name) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support invalidating entries");
+    }
+
+    /**
+     * Get the point in time, in milliseconds since the epoch, at which the given response expires. For negative responses,
+     * the TTL is derived from the SOA record as specified in RFC 2308 § 5, otherwise the shortest TTL of the answer section
+     * is used.
+     *
+     * @param response the response.
+     * @param maxTtl the upper bound for the TTL of positive responses, in seconds.
+     * @param maxNegativeTtl the upper bound for the TTL of negative responses, in seconds.
+     * @return the expiration timestamp in milliseconds since the epoch.
+     */
+    public static long getExpirationTimestamp(DnsMessage response, long maxTtl, long maxNegativeTtl) {
+        final long ttl;
+        if (response.isNegativeResponse()) {
+            ttl = Math.min(response.getNegativeTtl(), maxNegativeTtl);
+        } else {
+            // RFC 2181 § 5.2 says that all TTLs in a RRSet should be equal, if this isn't the case, then we assume the
+            // shortest TTL to be the effective one.
+            final long answersMinTtl = response.getAnswersMinTtl();
+            ttl = Math.min(answersMinTtl, maxTtl);
+        }
+        return response.receiveTimestamp + (ttl * 1000);
+    }
+
 }
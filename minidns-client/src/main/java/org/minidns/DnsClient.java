@@ -12,32 +12,51 @@ package org.minidns;
 
 import org.minidns.MiniDnsException.ErrorResponseException;
 import org.minidns.MiniDnsException.NoQueryPossibleException;
+import org.minidns.MiniDnsException.UpstreamOverloadedException;
+import org.minidns.MiniDnsFuture.InternalMiniDnsFuture;
 import org.minidns.dnsmessage.DnsMessage;
 import org.minidns.dnsmessage.Question;
 import org.minidns.dnsname.DnsName;
+import org.minidns.dnsqueryresult.CachedDnsQueryResult;
 import org.minidns.dnsqueryresult.DnsQueryResult;
 import org.minidns.dnsserverlookup.AndroidUsingExec;
 import org.minidns.dnsserverlookup.AndroidUsingReflection;
 import org.minidns.dnsserverlookup.DnsServerLookupMechanism;
+import org.minidns.dnsserverlookup.ResolvConf;
 import org.minidns.dnsserverlookup.UnixUsingEtcResolvConf;
 import org.minidns.record.Record.TYPE;
+import org.minidns.source.AbstractDnsDataSource;
 import org.minidns.util.CollectionsUtil;
+import org.minidns.util.ExceptionCallback;
 import org.minidns.util.InetAddressUtil;
 import org.minidns.util.MultipleIoException;
+import org.minidns.util.SuccessCallback;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 
 /**
@@ -71,6 +90,40 @@ public class DnsClient extends AbstractDnsClient {
         }
     }
 
+    /**
+     * The default percentile of the round-trip times of a server after which a hedged query is sent to the next server.
+     */
+    public static final double DEFAULT_HEDGE_PERCENTILE = 0.95;
+
+    /**
+     * The default lower bound of the hedge delay in milliseconds.
+     */
+    public static final int DEFAULT_MIN_HEDGE_DELAY = 10;
+
+    /**
+     * The maximum number of threads sending hedged queries. If all are busy, then the query is sent from the calling
+     * thread, which means that it is not hedged.
+     */
+    private static final int MAX_HEDGE_THREADS = 32;
+
+    private static final ExecutorService HEDGE_EXECUTOR;
+
+    static {
+        ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r);
+                thread.setDaemon(true);
+                thread.setName("MiniDNS Hedged Query Thread");
+                return thread;
+            }
+        };
+        HEDGE_EXECUTOR = new ThreadPoolExecutor(0, MAX_HEDGE_THREADS, 60L, TimeUnit.SECONDS,
+                        new SynchronousQueue<Runnable>(), threadFactory, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    private static final Object NO_RESULT = new Object();
+
     private static final Set<String> blacklistedDnsServers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>(4));
 
     private final Set<InetAddress> nonRaServers = Collections.newSetFromMap(new ConcurrentHashMap<InetAddress, Boolean>(4));
@@ -80,6 +133,40 @@ public class DnsClient extends AbstractDnsClient {
 
     private boolean useHardcodedDnsServers = true;
 
+    private volatile UpstreamConcurrencyLimiter concurrencyLimiter;
+
+    /**
+     * Tests a server whose circuit is open with a query for the SOA record of the root zone, which every recursive
+     * resolver should answer quickly from its cache, and whose response fits into a single UDP packet.
+     */
+    private final UpstreamCircuitBreaker.Probe probe = new UpstreamCircuitBreaker.Probe() {
+        @Override
+        public void probe(InetAddress server) throws IOException {
+            DnsMessage query = new Question(DnsName.ROOT, TYPE.SOA).asMessageBuilder()
+                    .setRecursionDesired(true)
+                    .setId(random.nextInt())
+                    .build();
+            DnsQueryResult result = dataSource.query(query, server, 53);
+            if (result.response.responseCode == DnsMessage.RESPONSE_CODE.SERVER_FAIL) {
+                throw new ErrorResponseException(query, result);
+            }
+        }
+    };
+
+    private volatile UpstreamCircuitBreaker circuitBreaker = newCircuitBreaker();
+
+    private volatile ServerRttEstimator serverRttEstimator = new ServerRttEstimator();
+
+    private volatile DnsServerDiscovery serverDiscovery = DnsServerDiscovery.DEFAULT;
+
+    private volatile int attempts = 1;
+    private volatile boolean rotateServers = false;
+    private final AtomicInteger rotation = new AtomicInteger();
+
+    private volatile boolean hedgeQueries = false;
+    private volatile double hedgePercentile = DEFAULT_HEDGE_PERCENTILE;
+    private volatile int minHedgeDelay = DEFAULT_MIN_HEDGE_DELAY;
+
     /**
      * Create a new DNS client using the global default cache.
      */
@@ -99,7 +186,7 @@ public class DnsClient extends AbstractDnsClient {
     }
 
     private List<InetAddress> getServerAddresses() {
-        List<InetAddress> dnsServerAddresses = findDnsAddresses();
+        List<InetAddress> dnsServerAddresses = new ArrayList<>(serverDiscovery.getServerAddresses());
 
         if (useHardcodedDnsServers) {
             InetAddress primaryHardcodedDnsServer, secondaryHardcodedDnsServer = null;
@@ -146,59 +233,318 @@ public class DnsClient extends AbstractDnsClient {
 
         List<InetAddress> dnsServerAddresses = getServerAddresses();
 
-        List<IOException> ioExceptions = new ArrayList<>(dnsServerAddresses.size());
-        for (InetAddress dns : dnsServerAddresses) {
+        final ServerRttEstimator serverRttEstimator = this.serverRttEstimator;
+        if (rotateServers) {
+            int size = dnsServerAddresses.size();
+            if (size > 1) {
+                Collections.rotate(dnsServerAddresses, -((rotation.getAndIncrement() & Integer.MAX_VALUE) % size));
+            }
+        } else if (serverRttEstimator != null) {
+            dnsServerAddresses = serverRttEstimator.order(dnsServerAddresses, insecureRandom);
+        }
+
+        // Filter loop.
+        Iterator<InetAddress> it = dnsServerAddresses.iterator();
+        while (it.hasNext()) {
+            InetAddress dns = it.next();
             if (nonRaServers.contains(dns)) {
+                it.remove();
                 LOGGER.finer("Skipping " + dns + " because it was marked as \"recursion not available\"");
-                continue;
             }
+        }
 
-            try {
-                dnsQueryResult = query(q, dns);
-            } catch (IOException ioe) {
-                ioExceptions.add(ioe);
+        final UpstreamCircuitBreaker circuitBreaker = this.circuitBreaker;
+        if (circuitBreaker != null) {
+            dnsServerAddresses = circuitBreaker.filter(dnsServerAddresses);
+        }
+
+        final int attempts = this.attempts;
+        List<IOException> ioExceptions = new ArrayList<>(dnsServerAddresses.size() * attempts);
+        for (int attempt = 0; attempt < attempts; attempt++) {
+            if (hedgeQueries && dnsServerAddresses.size() > 1) {
+                dnsQueryResult = queryHedged(q, dnsServerAddresses, serverRttEstimator, ioExceptions);
+                if (dnsQueryResult != null) {
+                    return dnsQueryResult;
+                }
                 continue;
             }
+            for (int i = 0; i < dnsServerAddresses.size(); i++) {
+                InetAddress dns = dnsServerAddresses.get(i);
+                // The last server is always given the full timeout, as there is no other server left to try.
+                boolean last = attempt == attempts - 1 && i == dnsServerAddresses.size() - 1;
+                try {
+                    dnsQueryResult = queryServer(q, dns, last, serverRttEstimator, null);
+                } catch (IOException ioe) {
+                    ioExceptions.add(ioe);
+                    continue;
+                }
+                if (dnsQueryResult != null) {
+                    return dnsQueryResult;
+                }
+            }
+        }
+        MultipleIoException.throwIfRequired(ioExceptions);
+
+        // TODO: Shall we add the attempted DNS servers to the exception?
+        throw new NoQueryPossibleException(q);
+    }
+
+    /**
+     * Query a single upstream server and check its response. The outcome of a hedged query which was abandoned before
+     * it completed is not reported, as its cancellation may have caused a failure and its late response is not waited
+     * for.
+     *
+     * @param abandoned set once a hedged query is abandoned, or <code>null</code> if the query is not hedged.
+     * @return the result or <code>null</code> if the server turned out to not provide recursion.
+     */
+    private DnsQueryResult queryServer(DnsMessage q, InetAddress dns, boolean last, ServerRttEstimator serverRttEstimator,
+                    AtomicBoolean abandoned) throws IOException {
+        final int maxTimeout = dataSource.getTimeout();
+        int timeout = -1;
+        if (serverRttEstimator != null && !last) {
+            timeout = serverRttEstimator.getTimeout(dns, maxTimeout);
+        }
 
-            DnsMessage responseMessage = dnsQueryResult.response;
-            if (!responseMessage.recursionAvailable) {
-                boolean newRaServer = nonRaServers.add(dns);
-                if (newRaServer) {
-                    LOGGER.warning("The DNS server " + dns
-                            + " returned a response without the \"recursion available\" (RA) flag set. This likely indicates a misconfiguration because the server is not suitable for DNS resolution");
+        final UpstreamCircuitBreaker circuitBreaker = this.circuitBreaker;
+        final UpstreamConcurrencyLimiter concurrencyLimiter = this.concurrencyLimiter;
+        UpstreamConcurrencyLimiter.Permit permit = null;
+        if (concurrencyLimiter != null) {
+            permit = concurrencyLimiter.acquire(dns, timeout > 0 ? timeout : maxTimeout);
+        }
+
+        DnsQueryResult dnsQueryResult;
+        long start = System.nanoTime();
+        try {
+            dnsQueryResult = query(q, dns, 53, timeout);
+        } catch (IOException ioe) {
+            if (abandoned != null && abandoned.get()) {
+                if (permit != null) {
+                    permit.release();
                 }
-                continue;
+                throw ioe;
+            }
+            if (serverRttEstimator != null) {
+                serverRttEstimator.reportFailure(dns, maxTimeout);
+            }
+            if (circuitBreaker != null && isServerFailure(ioe)) {
+                circuitBreaker.reportFailure(dns);
+            }
+            if (permit != null) {
+                permit.failure();
+            }
+            throw ioe;
+        } catch (RuntimeException e) {
+            if (permit != null) {
+                permit.release();
+            }
+            throw e;
+        }
+        long rtt = (System.nanoTime() - start) / 1000000;
+        if (abandoned != null && abandoned.get()) {
+            if (permit != null) {
+                permit.release();
+            }
+            return null;
+        }
+        if (permit != null) {
+            permit.success(rtt);
+        }
+        if (serverRttEstimator != null && !(dnsQueryResult instanceof CachedDnsQueryResult)) {
+            serverRttEstimator.reportSuccess(dns, rtt, maxTimeout);
+        }
+        if (circuitBreaker != null && !(dnsQueryResult instanceof CachedDnsQueryResult)) {
+            reportResponse(circuitBreaker, dns, dnsQueryResult);
+        }
+
+        DnsMessage responseMessage = dnsQueryResult.response;
+        if (!responseMessage.recursionAvailable) {
+            boolean newRaServer = nonRaServers.add(dns);
+            if (newRaServer) {
+                LOGGER.warning("The DNS server " + dns
+                        + " returned a response without the \"recursion available\" (RA) flag set. This likely indicates a misconfiguration because the server is not suitable for DNS resolution");
             }
+            return null;
+        }
 
-            if (disableResultFilter) {
-                return dnsQueryResult;
+        if (disableResultFilter) {
+            return dnsQueryResult;
+        }
+
+        switch (responseMessage.responseCode) {
+        case NO_ERROR:
+        case NX_DOMAIN:
+            break;
+        default:
+            String warning = "Response from " + dns + " asked for " + q.getQuestion() + " with error code: "
+                    + responseMessage.responseCode + '.';
+            if (!LOGGER.isLoggable(Level.FINE)) {
+                // Only append the responseMessage is log level is not fine. If it is fine or higher, the
+                // response has already been logged.
+                warning += "\n" + responseMessage;
             }
+            LOGGER.warning(warning);
 
-            switch (responseMessage.responseCode) {
-            case NO_ERROR:
-            case NX_DOMAIN:
-                break;
-            default:
-                String warning = "Response from " + dns + " asked for " + q.getQuestion() + " with error code: "
-                        + responseMessage.responseCode + '.';
-                if (!LOGGER.isLoggable(Level.FINE)) {
-                    // Only append the responseMessage is log level is not fine. If it is fine or higher, the
-                    // response has already been logged.
-                    warning += "\n" + responseMessage;
+            throw new ErrorResponseException(q, dnsQueryResult);
+        }
+
+        return dnsQueryResult;
+    }
+
+    /**
+     * Query the given servers, starting with the first one, and query the next server whenever the previous one did
+     * not answer within the hedge delay or failed. The first usable result is returned and the remaining queries are
+     * cancelled.
+     *
+     * @return the result or <code>null</code> if no server returned a usable result.
+     */
+    private DnsQueryResult queryHedged(final DnsMessage q, final List<InetAddress> dnsServerAddresses,
+                    final ServerRttEstimator serverRttEstimator, List<IOException> ioExceptions) throws IOException {
+        final BlockingQueue<Object> completions = new LinkedBlockingQueue<>();
+        final AtomicBoolean abandoned = new AtomicBoolean();
+        List<HedgedQuery> hedgedQueries = new ArrayList<>(dnsServerAddresses.size());
+        List<Future<?>> futures = new ArrayList<>(dnsServerAddresses.size());
+        try {
+            int outstanding = 0;
+            int next = 0;
+            while (true) {
+                Object completion;
+                if (outstanding == 0) {
+                    if (next == dnsServerAddresses.size()) {
+                        return null;
+                    }
+                    // Nothing in flight, hence there is no reason to delay the next query.
+                    completion = null;
+                } else if (next < dnsServerAddresses.size()) {
+                    long hedgeDelay = getHedgeDelay(dnsServerAddresses.get(next - 1), serverRttEstimator);
+                    completion = completions.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+                } else {
+                    completion = completions.take();
                 }
-                LOGGER.warning(warning);
 
-                ErrorResponseException exception = new ErrorResponseException(q, dnsQueryResult);
-                ioExceptions.add(exception);
-                continue;
+                if (completion == null) {
+                    final InetAddress dns = dnsServerAddresses.get(next);
+                    final boolean last = next == dnsServerAddresses.size() - 1;
+                    if (next > 0) {
+                        LOGGER.fine("Sending hedged query for " + q.getQuestion() + " to " + dns);
+                    }
+                    HedgedQuery hedgedQuery = new HedgedQuery(q, dns, last, serverRttEstimator, abandoned, completions);
+                    hedgedQueries.add(hedgedQuery);
+                    futures.add(HEDGE_EXECUTOR.submit(hedgedQuery));
+                    outstanding++;
+                    next++;
+                    continue;
+                }
+
+                outstanding--;
+                if (completion instanceof DnsQueryResult) {
+                    return (DnsQueryResult) completion;
+                } else if (completion instanceof IOException) {
+                    ioExceptions.add((IOException) completion);
+                } else if (completion instanceof RuntimeException) {
+                    throw (RuntimeException) completion;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for hedged queries");
+        } finally {
+            abandoned.set(true);
+            for (HedgedQuery hedgedQuery : hedgedQueries) {
+                hedgedQuery.abort();
             }
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
 
-            return dnsQueryResult;
+    /**
+     * A query sent by a thread of the hedge executor. Abandoned queries are aborted, so that they do not occupy the
+     * thread until they time out, which an interrupt alone does not achieve if the thread blocks in
+     * {@link java.net.DatagramSocket#receive(java.net.DatagramPacket)}.
+     */
+    private final class HedgedQuery implements Runnable {
+        private final DnsMessage q;
+        private final InetAddress dns;
+        private final boolean last;
+        private final ServerRttEstimator serverRttEstimator;
+        private final AtomicBoolean abandoned;
+        private final BlockingQueue<Object> completions;
+        private Thread thread;
+
+        private HedgedQuery(DnsMessage q, InetAddress dns, boolean last, ServerRttEstimator serverRttEstimator,
+                        AtomicBoolean abandoned, BlockingQueue<Object> completions) {
+            this.q = q;
+            this.dns = dns;
+            this.last = last;
+            this.serverRttEstimator = serverRttEstimator;
+            this.abandoned = abandoned;
+            this.completions = completions;
         }
-        MultipleIoException.throwIfRequired(ioExceptions);
 
-        // TODO: Shall we add the attempted DNS servers to the exception?
-        throw new NoQueryPossibleException(q);
+        @Override
+        public void run() {
+            synchronized (this) {
+                thread = Thread.currentThread();
+            }
+            Object completion;
+            try {
+                DnsQueryResult result = queryServer(q, dns, last, serverRttEstimator, abandoned);
+                completion = result != null ? result : NO_RESULT;
+            } catch (IOException | RuntimeException e) {
+                completion = e;
+            } finally {
+                synchronized (this) {
+                    thread = null;
+                }
+            }
+            completions.add(completion);
+        }
+
+        private synchronized void abort() {
+            // Holding the lock ensures that the thread still runs this query, and not already the query of another
+            // caller.
+            if (thread != null && dataSource instanceof AbstractDnsDataSource) {
+                ((AbstractDnsDataSource) dataSource).abort(thread);
+            }
+        }
+    }
+
+    /**
+     * Check whether the given exception indicates a problem of the server, as opposed to a local problem like an
+     * interrupted thread or a query rejected by the concurrency limiter.
+     */
+    private static boolean isServerFailure(IOException exception) {
+        if (exception instanceof SocketTimeoutException) {
+            return true;
+        }
+        return !(exception instanceof InterruptedIOException) && !(exception instanceof UpstreamOverloadedException);
+    }
+
+    private static void reportResponse(UpstreamCircuitBreaker circuitBreaker, InetAddress dns, DnsQueryResult result) {
+        if (result.response.responseCode == DnsMessage.RESPONSE_CODE.SERVER_FAIL) {
+            circuitBreaker.reportFailure(dns);
+        } else {
+            circuitBreaker.reportSuccess(dns);
+        }
+    }
+
+    private UpstreamCircuitBreaker newCircuitBreaker() {
+        UpstreamCircuitBreaker circuitBreaker = new UpstreamCircuitBreaker();
+        circuitBreaker.setProbe(probe);
+        return circuitBreaker;
+    }
+
+    private long getHedgeDelay(InetAddress dns, ServerRttEstimator serverRttEstimator) {
+        long hedgeDelay = -1;
+        if (serverRttEstimator != null) {
+            hedgeDelay = serverRttEstimator.getRttPercentile(dns, hedgePercentile);
+        }
+        if (hedgeDelay < 0) {
+            hedgeDelay = serverRttEstimator != null ? serverRttEstimator.getUnknownServerRtt()
+                            : ServerRttEstimator.DEFAULT_UNKNOWN_SERVER_RTT;
+        }
+        return Math.max(hedgeDelay, minHedgeDelay);
     }
 
     @Override
@@ -214,7 +560,7 @@ public class DnsClient extends AbstractDnsClient {
             return MiniDnsFuture.from(responseMessage);
         }
 
-        final List<InetAddress> dnsServerAddresses = getServerAddresses();
+        List<InetAddress> dnsServerAddresses = getServerAddresses();
 
         // Filter loop.
         Iterator<InetAddress> it = dnsServerAddresses.iterator();
@@ -227,16 +573,57 @@ public class DnsClient extends AbstractDnsClient {
             }
         }
 
+        final UpstreamCircuitBreaker circuitBreaker = this.circuitBreaker;
+        if (circuitBreaker != null) {
+            dnsServerAddresses = circuitBreaker.filter(dnsServerAddresses);
+        }
+
         List<MiniDnsFuture<DnsQueryResult, IOException>> futures = new ArrayList<>(dnsServerAddresses.size());
         // "Main" loop.
         for (InetAddress dns : dnsServerAddresses) {
             MiniDnsFuture<DnsQueryResult, IOException> f = queryAsync(q, dns);
+            if (circuitBreaker != null) {
+                f = reportOutcome(f, dns, circuitBreaker);
+            }
             futures.add(f);
         }
 
         return MiniDnsFuture.anySuccessfulOf(futures);
     }
 
+    /**
+     * Report the outcome of the given future to the circuit breaker. As a future has only a single callback of each
+     * kind, which is used by the caller, the outcome is forwarded to a new future.
+     */
+    private static MiniDnsFuture<DnsQueryResult, IOException> reportOutcome(final MiniDnsFuture<DnsQueryResult, IOException> future,
+                    final InetAddress dns, final UpstreamCircuitBreaker circuitBreaker) {
+        final InternalMiniDnsFuture<DnsQueryResult, IOException> res = new InternalMiniDnsFuture<DnsQueryResult, IOException>() {
+            @Override
+            public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+                future.cancel(mayInterruptIfRunning);
+                return super.cancel(mayInterruptIfRunning);
+            }
+        };
+        future.onSuccess(new SuccessCallback<DnsQueryResult>() {
+            @Override
+            public void onSuccess(DnsQueryResult result) {
+                if (!(result instanceof CachedDnsQueryResult)) {
+                    reportResponse(circuitBreaker, dns, result);
+                }
+                res.setResult(result);
+            }
+        }).onError(new ExceptionCallback<IOException>() {
+            @Override
+            public void processException(IOException exception) {
+                if (isServerFailure(exception)) {
+                    circuitBreaker.reportFailure(dns);
+                }
+                res.setException(exception);
+            }
+        });
+        return res;
+    }
+
     /**
      * Retrieve a list of currently configured DNS servers IP addresses. This method does verify that only IP addresses are returned and
      * nothing else (e.g. DNS names).
@@ -320,8 +707,13 @@ public class DnsClient extends AbstractDnsClient {
      *
      * @return A list of DNS server addresses.
      * @see #findDNS()
+     * @see DnsServerDiscovery
      */
     public static List<InetAddress> findDnsAddresses() {
+        return findDnsAddresses(DEFAULT_IP_VERSION_SETTING);
+    }
+
+    static List<InetAddress> findDnsAddresses(IpVersionSetting setting) {
         // The findDNS() method contract guarantees that only IP addresses will be returned.
         List<String> res = findDNS();
 
@@ -329,8 +721,6 @@ public class DnsClient extends AbstractDnsClient {
             return new ArrayList<>();
         }
 
-        final IpVersionSetting setting = DEFAULT_IP_VERSION_SETTING;
-
         List<Inet4Address> ipv4DnsServer = null;
         List<Inet6Address> ipv6DnsServer = null;
         if (setting.v4) {
@@ -414,20 +804,28 @@ public class DnsClient extends AbstractDnsClient {
             LOOKUP_MECHANISMS.clear();
             LOOKUP_MECHANISMS.addAll(tempList);
         }
+        DnsServerDiscovery.DEFAULT.invalidate();
     }
 
     public static boolean removeDNSServerLookupMechanism(DnsServerLookupMechanism dnsServerLookup) {
+        boolean removed;
         synchronized (LOOKUP_MECHANISMS) {
-            return LOOKUP_MECHANISMS.remove(dnsServerLookup);
+            removed = LOOKUP_MECHANISMS.remove(dnsServerLookup);
         }
+        DnsServerDiscovery.DEFAULT.invalidate();
+        return removed;
     }
 
     public static boolean addBlacklistedDnsServer(String dnsServer) {
-        return blacklistedDnsServers.add(dnsServer);
+        boolean added = blacklistedDnsServers.add(dnsServer);
+        DnsServerDiscovery.DEFAULT.invalidate();
+        return added;
     }
 
     public static boolean removeBlacklistedDnsServer(String dnsServer) {
-        return blacklistedDnsServers.remove(dnsServer);
+        boolean removed = blacklistedDnsServers.remove(dnsServer);
+        DnsServerDiscovery.DEFAULT.invalidate();
+        return removed;
     }
 
     public boolean isAskForDnssec() {
@@ -454,6 +852,178 @@ public class DnsClient extends AbstractDnsClient {
         this.useHardcodedDnsServers = useHardcodedDnsServers;
     }
 
+    /**
+     * Get the estimator of the round-trip times of the upstream servers, which can be used to monitor the servers.
+     *
+     * @return the estimator or <code>null</code> if the servers are queried in the configured order.
+     */
+    public ServerRttEstimator getServerRttEstimator() {
+        return serverRttEstimator;
+    }
+
+    /**
+     * Set the estimator of the round-trip times of the upstream servers. The servers are queried ordered by their
+     * smoothed round-trip time, and the timeout of every server but the last one adapts to its round-trip time. The
+     * same estimator may be shared by multiple clients using the same servers. If set to <code>null</code>, the servers
+     * are queried in the order they are configured in, with the timeout of the data source.
+     *
+     * @param serverRttEstimator the estimator or <code>null</code>.
+     */
+    public void setServerRttEstimator(ServerRttEstimator serverRttEstimator) {
+        this.serverRttEstimator = serverRttEstimator;
+    }
+
+    public UpstreamConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    /**
+     * Set the limiter of the number of concurrent queries to every upstream server. Queries exceeding the limit wait
+     * for up to their timeout, and fail fast with an {@link MiniDnsException.UpstreamOverloadedException} if too many
+     * queries are already waiting. This is disabled by default. Note that a data source may apply its own limit, like
+     * the one of the asynchronous data source, in which case the client does not need to limit the queries as well.
+     *
+     * @param concurrencyLimiter the limiter or <code>null</code> to not limit the number of concurrent queries.
+     */
+    public void setConcurrencyLimiter(UpstreamConcurrencyLimiter concurrencyLimiter) {
+        this.concurrencyLimiter = concurrencyLimiter;
+    }
+
+    /**
+     * Get the circuit breaker tracking the health of the upstream servers, which can be used to monitor the servers
+     * and to listen for servers becoming unavailable.
+     *
+     * @return the circuit breaker or <code>null</code> if all servers are always queried.
+     */
+    public UpstreamCircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Set the circuit breaker tracking the health of the upstream servers. Servers which failed repeatedly are skipped
+     * as long as other servers are available, until a background probe finds them answering again. If the circuit
+     * breaker has no probe yet, then it uses a probe querying the servers with the data source of this client.
+     *
+     * @param circuitBreaker the circuit breaker or <code>null</code> to always query all servers.
+     */
+    public void setCircuitBreaker(UpstreamCircuitBreaker circuitBreaker) {
+        if (circuitBreaker != null && circuitBreaker.getProbe() == null) {
+            circuitBreaker.setProbe(probe);
+        }
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    public DnsServerDiscovery getServerDiscovery() {
+        return serverDiscovery;
+    }
+
+    /**
+     * Set the source of the DNS server addresses of this system. Defaults to {@link DnsServerDiscovery#DEFAULT}.
+     *
+     * @param serverDiscovery the DNS server discovery.
+     */
+    public void setServerDiscovery(DnsServerDiscovery serverDiscovery) {
+        if (serverDiscovery == null) {
+            throw new IllegalArgumentException();
+        }
+        this.serverDiscovery = serverDiscovery;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Set how often the blocking query methods try all servers before giving up. Defaults to one.
+     *
+     * @param attempts the number of attempts.
+     */
+    public void setAttempts(int attempts) {
+        if (attempts <= 0) {
+            throw new IllegalArgumentException("The number of attempts must be greater than zero");
+        }
+        this.attempts = attempts;
+    }
+
+    public boolean isRotateServersEnabled() {
+        return rotateServers;
+    }
+
+    /**
+     * Set whether the blocking query methods distribute the queries round-robin over the servers, like the
+     * <code>rotate</code> option of resolv.conf. If enabled, this takes precedence over the order of the
+     * {@link ServerRttEstimator}, which is then only used for the timeouts.
+     *
+     * @param rotateServers <code>true</code> to rotate the servers.
+     */
+    public void setRotateServers(boolean rotateServers) {
+        this.rotateServers = rotateServers;
+    }
+
+    /**
+     * Apply the <code>timeout</code>, <code>attempts</code> and <code>rotate</code> options of the given resolver
+     * configuration to this client and its data source.
+     *
+     * @param resolvConf the resolver configuration.
+     * @see ResolvConf#getSystemResolvConf()
+     * @see SearchListResolver
+     */
+    public void applyResolvConf(ResolvConf resolvConf) {
+        dataSource.setTimeout(resolvConf.timeout * 1000);
+        setAttempts(resolvConf.attempts);
+        setRotateServers(resolvConf.rotate);
+    }
+
+    public boolean isHedgeQueriesEnabled() {
+        return hedgeQueries;
+    }
+
+    /**
+     * Set whether the blocking query methods send hedged queries. If enabled, the query is sent to the best server
+     * first, and if it does not answer within the hedge delay, the same query is additionally sent to the next server,
+     * and so on. The first usable response is returned and the remaining queries are cancelled. The hedge delay is the
+     * configured percentile of the recent round-trip times of the server, so that only the slowest queries cause
+     * additional upstream load. Unlike the asynchronous query methods, which query all servers at once, this protects
+     * the tail latency without multiplying the number of queries. Disabled by default.
+     * <p>
+     * The remaining queries are cancelled by interrupting their threads and by
+     * {@link AbstractDnsDataSource#abort(Thread)}. Custom data sources whose queries ignore interrupts should
+     * implement the latter, as otherwise a cancelled query occupies one of the hedge threads until it times out.
+     * </p>
+     *
+     * @param hedgeQueries <code>true</code> to send hedged queries.
+     * @see #setHedgePercentile(double)
+     */
+    public void setHedgeQueries(boolean hedgeQueries) {
+        this.hedgeQueries = hedgeQueries;
+    }
+
+    /**
+     * Set the percentile of the round-trip times of a server after which a hedged query is sent to the next server.
+     * Defaults to {@value #DEFAULT_HEDGE_PERCENTILE}. If no round-trip time of the server is known, the unknown server
+     * RTT of the {@link ServerRttEstimator} is used as hedge delay.
+     *
+     * @param hedgePercentile the percentile, between 0 and 1.
+     */
+    public void setHedgePercentile(double hedgePercentile) {
+        if (hedgePercentile < 0 || hedgePercentile > 1) {
+            throw new IllegalArgumentException("The hedge percentile must be between 0 and 1");
+        }
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    /**
+     * Set the lower bound of the hedge delay.
+     *
+     * @param minHedgeDelay the lower bound in milliseconds.
+     */
+    public void setMinHedgeDelay(int minHedgeDelay) {
+        if (minHedgeDelay < 0) {
+            throw new IllegalArgumentException("The minimum hedge delay must not be negative");
+        }
+        this.minHedgeDelay = minHedgeDelay;
+    }
+
     public InetAddress getRandomHardcodedIpv4DnsServer() {
         return CollectionsUtil.getRandomFrom(STATIC_IPV4_DNS_SERVERS, insecureRandom);
     }
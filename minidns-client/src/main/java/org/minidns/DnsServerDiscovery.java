@@ -0,0 +1,206 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.minidns.AbstractDnsClient.IpVersionSetting;
+import org.minidns.dnsserverlookup.DnsServerLookupMechanism;
+
+/**
+ * Caches the addresses of the DNS servers configured for this system, so that they are not looked up, which involves
+ * reading files or even executing processes, for every query which is not answered from the cache.
+ * <p>
+ * The addresses are looked up again once they are older than the poll interval, or if the default IP version setting
+ * or the {@link DnsServerLookupMechanism}s changed. Registered {@link Listener}s are notified whenever the looked up
+ * addresses differ from the previous ones. A file system watch service is not used, as it is not available on Android.
+ * </p>
+ */
+public class DnsServerDiscovery {
+
+    private static final Logger LOGGER = Logger.getLogger(DnsServerDiscovery.class.getName());
+
+    /**
+     * The default poll interval in milliseconds.
+     */
+    public static final long DEFAULT_POLL_INTERVAL = 30 * 1000;
+
+    /**
+     * The instance used by {@link DnsClient}s unless configured otherwise.
+     */
+    public static final DnsServerDiscovery DEFAULT = new DnsServerDiscovery();
+
+    /**
+     * The source of the DNS server addresses.
+     */
+    public interface AddressSource {
+        /**
+         * Look up the DNS server addresses.
+         *
+         * @param ipVersionSetting the IP version setting.
+         * @return the DNS server addresses, ordered by preference.
+         */
+        List<InetAddress> lookup(IpVersionSetting ipVersionSetting);
+    }
+
+    /**
+     * A listener which is notified when the DNS server addresses changed.
+     */
+    public interface Listener {
+        /**
+         * Invoked when the DNS server addresses changed.
+         *
+         * @param oldServers the previous addresses.
+         * @param newServers the new addresses.
+         */
+        void onDnsServersChanged(List<InetAddress> oldServers, List<InetAddress> newServers);
+    }
+
+    private static final class Snapshot {
+        private final List<InetAddress> servers;
+        private final IpVersionSetting ipVersionSetting;
+        private final long timestamp;
+        private final boolean invalidated;
+
+        private Snapshot(List<InetAddress> servers, IpVersionSetting ipVersionSetting, long timestamp, boolean invalidated) {
+            this.servers = servers;
+            this.ipVersionSetting = ipVersionSetting;
+            this.timestamp = timestamp;
+            this.invalidated = invalidated;
+        }
+
+        private boolean isFresh(IpVersionSetting ipVersionSetting, long pollInterval) {
+            return !invalidated && this.ipVersionSetting == ipVersionSetting
+                            && System.currentTimeMillis() - timestamp < pollInterval;
+        }
+    }
+
+    private final AddressSource addressSource;
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private volatile long pollInterval = DEFAULT_POLL_INTERVAL;
+
+    private volatile Snapshot snapshot;
+
+    /**
+     * Create a new instance looking up the addresses with {@link DnsClient#findDnsAddresses()}.
+     */
+    public DnsServerDiscovery() {
+        this(new AddressSource() {
+            @Override
+            public List<InetAddress> lookup(IpVersionSetting ipVersionSetting) {
+                return DnsClient.findDnsAddresses(ipVersionSetting);
+            }
+        });
+    }
+
+    public DnsServerDiscovery(AddressSource addressSource) {
+        this.addressSource = addressSource;
+    }
+
+    /**
+     * Get the DNS server addresses for the default IP version setting, looking them up if they were not looked up yet
+     * or are outdated.
+     *
+     * @return an unmodifiable list of the DNS server addresses.
+     */
+    public List<InetAddress> getServerAddresses() {
+        IpVersionSetting ipVersionSetting = AbstractDnsClient.DEFAULT_IP_VERSION_SETTING;
+        Snapshot snapshot = this.snapshot;
+        if (snapshot != null && snapshot.isFresh(ipVersionSetting, pollInterval)) {
+            return snapshot.servers;
+        }
+
+        synchronized (this) {
+            // Another thread may have refreshed the addresses in the meantime.
+            snapshot = this.snapshot;
+            if (snapshot != null && snapshot.isFresh(ipVersionSetting, pollInterval)) {
+                return snapshot.servers;
+            }
+            return refresh(ipVersionSetting);
+        }
+    }
+
+    /**
+     * Look up the DNS server addresses now, notifying the listeners if they changed.
+     *
+     * @return an unmodifiable list of the DNS server addresses.
+     */
+    public List<InetAddress> refresh() {
+        return refresh(AbstractDnsClient.DEFAULT_IP_VERSION_SETTING);
+    }
+
+    private List<InetAddress> refresh(IpVersionSetting ipVersionSetting) {
+        List<InetAddress> servers = Collections.unmodifiableList(new ArrayList<>(addressSource.lookup(ipVersionSetting)));
+
+        Snapshot previous;
+        synchronized (this) {
+            previous = snapshot;
+            snapshot = new Snapshot(servers, ipVersionSetting, System.currentTimeMillis(), false);
+        }
+
+        if (previous != null && !previous.servers.equals(servers)) {
+            LOGGER.fine("DNS servers changed from " + previous.servers + " to " + servers);
+            for (Listener listener : listeners) {
+                try {
+                    listener.onDnsServersChanged(previous.servers, servers);
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Listener " + listener + " threw", e);
+                }
+            }
+        }
+
+        return servers;
+    }
+
+    /**
+     * Discard the cached addresses, so that they are looked up again on the next access.
+     */
+    public synchronized void invalidate() {
+        Snapshot snapshot = this.snapshot;
+        if (snapshot == null) {
+            return;
+        }
+        // Keep the addresses, so that listeners are only notified if they actually changed.
+        this.snapshot = new Snapshot(snapshot.servers, snapshot.ipVersionSetting, snapshot.timestamp, true);
+    }
+
+    /**
+     * Set the interval after which the addresses are looked up again.
+     *
+     * @param pollInterval the poll interval in milliseconds.
+     */
+    public void setPollInterval(long pollInterval) {
+        if (pollInterval < 0) {
+            throw new IllegalArgumentException("The poll interval must not be negative");
+        }
+        this.pollInterval = pollInterval;
+    }
+
+    public long getPollInterval() {
+        return pollInterval;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public boolean removeListener(Listener listener) {
+        return listeners.remove(listener);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.minidns.MiniDnsFuture.InternalMiniDnsFuture;
+import org.minidns.dnsqueryresult.DnsQueryResult;
+
+/**
+ * A query which is currently in flight, and which further callers asking the same question attach to instead of
+ * sending an identical query. Every attached caller receives the same result, or the same exception. If every attached
+ * future is cancelled while no caller is waiting synchronously, the upstream query is cancelled as well.
+ */
+final class InFlightQuery {
+
+    private boolean done;
+
+    private DnsQueryResult result;
+
+    private IOException exception;
+
+    private List<InternalMiniDnsFuture<DnsQueryResult, IOException>> futures;
+
+    private int waiters;
+
+    private MiniDnsFuture<DnsQueryResult, IOException> upstream;
+
+    private Runnable onUpstreamCancelled;
+
+    /**
+     * Set the future of the upstream query, which is cancelled once every attached future was cancelled.
+     *
+     * @param upstream the future of the upstream query.
+     * @param onUpstreamCancelled invoked after the upstream query was cancelled.
+     */
+    synchronized void setUpstream(MiniDnsFuture<DnsQueryResult, IOException> upstream, Runnable onUpstreamCancelled) {
+        this.upstream = upstream;
+        this.onUpstreamCancelled = onUpstreamCancelled;
+    }
+
+    /**
+     * Wait until the query is completed.
+     *
+     * @return the result of the query, which may be <code>null</code>.
+     * @throws IOException the exception the query failed with.
+     */
+    synchronized DnsQueryResult await() throws IOException {
+        waiters++;
+        try {
+            while (!done) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the in-flight query");
+        } finally {
+            waiters--;
+        }
+        if (exception != null) {
+            throw exception;
+        }
+        return result;
+    }
+
+    /**
+     * Get a new future which is completed once the query is completed.
+     *
+     * @return a future for the result of the query.
+     */
+    synchronized MiniDnsFuture<DnsQueryResult, IOException> attach() {
+        InternalMiniDnsFuture<DnsQueryResult, IOException> future = new InternalMiniDnsFuture<DnsQueryResult, IOException>() {
+            @SuppressWarnings("UnsynchronizedOverridesSynchronized")
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                boolean res = super.cancel(mayInterruptIfRunning);
+                if (res) {
+                    detach(this, mayInterruptIfRunning);
+                }
+                return res;
+            }
+        };
+        if (done) {
+            complete(future);
+        } else {
+            if (futures == null) {
+                futures = new ArrayList<>(2);
+            }
+            futures.add(future);
+        }
+        return future;
+    }
+
+    private void detach(InternalMiniDnsFuture<DnsQueryResult, IOException> future, boolean mayInterruptIfRunning) {
+        MiniDnsFuture<DnsQueryResult, IOException> upstream;
+        Runnable onUpstreamCancelled;
+        synchronized (this) {
+            if (done || futures == null || !futures.remove(future)) {
+                return;
+            }
+            if (!futures.isEmpty() || waiters > 0 || this.upstream == null) {
+                return;
+            }
+            upstream = this.upstream;
+            onUpstreamCancelled = this.onUpstreamCancelled;
+        }
+        upstream.cancel(mayInterruptIfRunning);
+        onUpstreamCancelled.run();
+        // A cancelled future does not invoke its callbacks, hence complete this in-flight query here.
+        complete(null, new IOException("The in-flight query was cancelled"));
+    }
+
+    void complete(DnsQueryResult result, IOException exception) {
+        List<InternalMiniDnsFuture<DnsQueryResult, IOException>> futures;
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            done = true;
+            this.result = result;
+            this.exception = exception;
+            futures = this.futures;
+            this.futures = null;
+            notifyAll();
+        }
+        if (futures == null) {
+            return;
+        }
+        for (InternalMiniDnsFuture<DnsQueryResult, IOException> future : futures) {
+            complete(future);
+        }
+    }
+
+    private void complete(InternalMiniDnsFuture<DnsQueryResult, IOException> future) {
+        if (exception != null) {
+            future.setException(exception);
+        } else {
+            future.setResult(result);
+        }
+    }
+}
@@ -11,6 +11,7 @@
 package org.minidns;
 
 import java.io.IOException;
+import java.net.InetAddress;
 
 import org.minidns.dnsmessage.DnsMessage;
 import org.minidns.dnsqueryresult.DnsQueryResult;
@@ -117,4 +118,29 @@ public abstract class MiniDnsException extends IOException {
             return request;
         }
     }
+
+    /**
+     * Thrown if a query is not sent because too many queries to the upstream server are already in flight and waiting.
+     *
+     * @see UpstreamConcurrencyLimiter
+     */
+    public static class UpstreamOverloadedException extends MiniDnsException {
+
+        /**
+         *
+         */
+        private static final long serialVersionUID = 1L;
+
+        private final InetAddress server;
+
+        public UpstreamOverloadedException(InetAddress server, int inFlight, int queued, String reason) {
+            super("Not querying " + server + " with " + inFlight + " queries in flight and " + queued + " queued: "
+                            + reason);
+            this.server = server;
+        }
+
+        public InetAddress getServer() {
+            return server;
+        }
+    }
 }
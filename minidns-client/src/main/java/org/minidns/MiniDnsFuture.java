@@ -189,7 +189,12 @@ public abstract class MiniDnsFuture<V, E extends Exception> implements Future<V>
             return;
         }
 
+        // Reset the callbacks once they are submitted, so that they are invoked only once, even if another callback is
+        // registered after the future completed.
         if (result != null && successCallback != null) {
+            final SuccessCallback<V> successCallback = this.successCallback;
+            final V result = this.result;
+            this.successCallback = null;
             EXECUTOR_SERVICE.submit(new Runnable() {
                 @Override
                 public void run() {
@@ -197,6 +202,9 @@ public abstract class MiniDnsFuture<V, E extends Exception> implements Future<V>
                 }
             });
         } else if (exception != null && exceptionCallback != null) {
+            final ExceptionCallback<E> exceptionCallback = this.exceptionCallback;
+            final E exception = this.exception;
+            this.exceptionCallback = null;
             EXECUTOR_SERVICE.submit(new Runnable() {
                 @Override
                 public void run() {
@@ -247,7 +255,15 @@ public abstract class MiniDnsFuture<V, E extends Exception> implements Future<V>
     public static <V, EI extends Exception, EO extends Exception> MiniDnsFuture<V, EO> anySuccessfulOf(
             Collection<MiniDnsFuture<V, EI>> futures,
             ExceptionsWrapper<EI, EO> exceptionsWrapper) {
-        InternalMiniDnsFuture<V, EO> returnedFuture = new InternalMiniDnsFuture<>();
+        InternalMiniDnsFuture<V, EO> returnedFuture = new InternalMiniDnsFuture<V, EO>() {
+            @Override
+            public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+                for (MiniDnsFuture<V, EI> futureToCancel : futures) {
+                    futureToCancel.cancel(mayInterruptIfRunning);
+                }
+                return super.cancel(mayInterruptIfRunning);
+            }
+        };
 
         final List<EI> exceptions = Collections.synchronizedList(new ArrayList<>(futures.size()));
 
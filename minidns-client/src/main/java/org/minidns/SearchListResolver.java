@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsmessage.DnsMessage.RESPONSE_CODE;
+import org.minidns.dnsmessage.Question;
+import org.minidns.dnsname.DnsName;
+import org.minidns.dnsqueryresult.DnsQueryResult;
+import org.minidns.dnsserverlookup.ResolvConf;
+import org.minidns.record.Record.TYPE;
+import org.minidns.util.MultipleIoException;
+
+/**
+ * Resolves names using the search list of a {@link ResolvConf}. Unlike the stub resolver of the C library, which tries
+ * the candidate names one after another, all candidate names are queried concurrently. The result is still the one a
+ * sequential search would return: the first positive answer in search order.
+ */
+public class SearchListResolver {
+
+    private final AbstractDnsClient client;
+
+    private final ResolvConf resolvConf;
+
+    /**
+     * Create a new search list resolver using the resolver configuration of this system.
+     *
+     * @param client the client used to query the candidate names.
+     */
+    public SearchListResolver(AbstractDnsClient client) {
+        this(client, getSystemResolvConf());
+    }
+
+    public SearchListResolver(AbstractDnsClient client, ResolvConf resolvConf) {
+        this.client = client;
+        this.resolvConf = resolvConf;
+    }
+
+    private static ResolvConf getSystemResolvConf() {
+        ResolvConf resolvConf = ResolvConf.getSystemResolvConf();
+        if (resolvConf == null) {
+            return ResolvConf.DEFAULT;
+        }
+        return resolvConf;
+    }
+
+    /**
+     * Resolve the given name. The result of the first candidate name, in search order, with a positive answer is
+     * returned. If there is no positive answer, then the first negative result in search order is returned.
+     *
+     * @param name the name, which is not subject to the search list if it ends with a dot.
+     * @param type the type of the requested resource records.
+     * @return the result.
+     * @throws IOException if all candidate queries failed.
+     */
+    public DnsQueryResult resolve(CharSequence name, TYPE type) throws IOException {
+        List<DnsName> candidates = resolvConf.getSearchCandidates(name);
+
+        List<MiniDnsFuture<DnsQueryResult, IOException>> futures = new ArrayList<>(candidates.size());
+        for (DnsName candidate : candidates) {
+            futures.add(client.queryAsync(new Question(candidate, type)));
+        }
+
+        DnsQueryResult negativeResult = null;
+        List<IOException> ioExceptions = new ArrayList<>();
+        for (int i = 0; i < futures.size(); i++) {
+            DnsQueryResult result;
+            try {
+                result = futures.get(i).getOrThrow();
+            } catch (IOException e) {
+                ioExceptions.add(e);
+                continue;
+            }
+
+            if (isPositive(result)) {
+                // The answers for the remaining candidates are not required anymore.
+                for (MiniDnsFuture<DnsQueryResult, IOException> future : futures.subList(i + 1, futures.size())) {
+                    future.cancel(true);
+                }
+                return result;
+            }
+
+            if (negativeResult == null) {
+                negativeResult = result;
+            }
+        }
+
+        if (negativeResult != null) {
+            return negativeResult;
+        }
+        MultipleIoException.throwIfRequired(ioExceptions);
+        throw new AssertionError("Neither a result nor an exception for " + name);
+    }
+
+    private static boolean isPositive(DnsQueryResult result) {
+        DnsMessage response = result.response;
+        return response.responseCode == RESPONSE_CODE.NO_ERROR && !response.answerSection.isEmpty();
+    }
+
+    public ResolvConf getResolvConf() {
+        return resolvConf;
+    }
+}
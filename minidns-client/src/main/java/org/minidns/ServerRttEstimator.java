@@ -0,0 +1,399 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Tracks the smoothed round-trip time (SRTT) and the failures of upstream DNS servers, similar to the server selection
+ * of BIND and Unbound, and uses it to order the servers and to derive per-server timeouts.
+ * <p>
+ * The SRTT and the RTT variance are exponentially weighted moving averages as used for the TCP retransmission timer
+ * (RFC 6298). A server which did not answer is penalized by doubling its timeout, which also raises its SRTT. Servers
+ * which have not been queried yet start with an SRTT of {@link #DEFAULT_UNKNOWN_SERVER_RTT}, so that they are tried
+ * before a known slow server. Every time a server is passed over in favor of another one, its SRTT decays, so that a
+ * penalized server is eventually tried again. Additionally, a random server is occasionally moved to the front of the
+ * order, in order to re-evaluate servers whose SRTT is outdated.
+ * </p>
+ * <p>
+ * This class is thread safe.
+ * </p>
+ */
+public class ServerRttEstimator {
+
+    /**
+     * The SRTT, in milliseconds, assumed for a server which was not queried yet. This is the "unknown server niceness"
+     * of Unbound.
+     */
+    public static final int DEFAULT_UNKNOWN_SERVER_RTT = 376;
+
+    /**
+     * The default lower bound, in milliseconds, of the per-server timeouts.
+     */
+    public static final int DEFAULT_MIN_TIMEOUT = 250;
+
+    /**
+     * The default probability with which a random server is moved to the front of the order.
+     */
+    public static final double DEFAULT_EXPLORATION_PROBABILITY = 0.05;
+
+    /**
+     * The factor the SRTT of a server is multiplied with every time it is passed over. This is the value used by BIND.
+     */
+    public static final double DEFAULT_DECAY_FACTOR = 0.98;
+
+    /**
+     * The number of most recent round-trip times per server used to compute percentiles.
+     */
+    public static final int RTT_SAMPLES = 64;
+
+    private final ConcurrentMap<InetAddress, State> states = new ConcurrentHashMap<>();
+
+    private volatile int unknownServerRtt = DEFAULT_UNKNOWN_SERVER_RTT;
+
+    private volatile int minTimeout = DEFAULT_MIN_TIMEOUT;
+
+    private volatile double explorationProbability = DEFAULT_EXPLORATION_PROBABILITY;
+
+    private volatile double decayFactor = DEFAULT_DECAY_FACTOR;
+
+    private static final class State {
+        private double srtt;
+        private double rttvar;
+        private double rto;
+        private int consecutiveFailures;
+        private long successes;
+        private long failures;
+        private long lastUpdate;
+        private final long[] samples = new long[RTT_SAMPLES];
+
+        private synchronized void reportSuccess(long rtt, int minTimeout, int maxTimeout) {
+            samples[(int) (successes % RTT_SAMPLES)] = rtt;
+            if (successes == 0) {
+                srtt = rtt;
+                rttvar = rtt / 2d;
+            } else {
+                rttvar += (Math.abs(srtt - rtt) - rttvar) / 4;
+                srtt += (rtt - srtt) / 8;
+            }
+            rto = clamp(srtt + 4 * rttvar, minTimeout, maxTimeout);
+            consecutiveFailures = 0;
+            successes++;
+            lastUpdate = System.currentTimeMillis();
+        }
+
+        private synchronized void reportFailure(int unknownServerRtt, int minTimeout, int maxTimeout) {
+            if (rto == 0) {
+                rto = maxTimeout;
+            } else {
+                rto = clamp(rto * 2, minTimeout, maxTimeout);
+            }
+            srtt = Math.max(Math.max(srtt, unknownServerRtt), rto);
+            consecutiveFailures++;
+            failures++;
+            lastUpdate = System.currentTimeMillis();
+        }
+
+        private synchronized double getSrtt(int unknownServerRtt) {
+            if (successes == 0 && failures == 0) {
+                return unknownServerRtt;
+            }
+            return srtt;
+        }
+
+        private synchronized long getRttPercentile(double percentile) {
+            int sampleCount = (int) Math.min(successes, RTT_SAMPLES);
+            if (sampleCount == 0) {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(samples, sampleCount);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile * sampleCount) - 1;
+            return sorted[Math.max(0, Math.min(index, sampleCount - 1))];
+        }
+
+        private synchronized void decay(double decayFactor) {
+            srtt *= decayFactor;
+        }
+
+        private synchronized ServerRtt snapshot(InetAddress server) {
+            return new ServerRtt(server, srtt, rttvar, rto, consecutiveFailures, successes, failures, lastUpdate);
+        }
+    }
+
+    /**
+     * Record that the given server answered after the given round-trip time.
+     *
+     * @param server the server.
+     * @param rtt the round-trip time in milliseconds.
+     * @param maxTimeout the upper bound of the timeout of the server in milliseconds, usually the timeout of the data source.
+     */
+    public void reportSuccess(InetAddress server, long rtt, int maxTimeout) {
+        getState(server).reportSuccess(Math.max(rtt, 0), Math.min(minTimeout, maxTimeout), maxTimeout);
+    }
+
+    /**
+     * Record that the given server did not answer, for example, because the query timed out.
+     *
+     * @param server the server.
+     * @param maxTimeout the upper bound of the timeout of the server in milliseconds, usually the timeout of the data source.
+     */
+    public void reportFailure(InetAddress server, int maxTimeout) {
+        getState(server).reportFailure(unknownServerRtt, Math.min(minTimeout, maxTimeout), maxTimeout);
+    }
+
+    private State getState(InetAddress server) {
+        State state = states.get(server);
+        if (state == null) {
+            state = new State();
+            State previous = states.putIfAbsent(server, state);
+            if (previous != null) {
+                state = previous;
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Order the given servers by their SRTT, with the best server first. Servers with an equal SRTT retain their
+     * relative order. With the exploration probability, a random server is moved to the front instead. The SRTT of
+     * every server but the first one decays.
+     *
+     * @param servers the servers.
+     * @param random the source of randomness used for the exploration.
+     * @return a new list with the ordered servers.
+     */
+    public List<InetAddress> order(List<InetAddress> servers, Random random) {
+        List<InetAddress> res = new ArrayList<>(servers);
+        if (res.size() < 2) {
+            return res;
+        }
+
+        final int unknownServerRtt = this.unknownServerRtt;
+        final Map<InetAddress, Double> srtts = new HashMap<>(res.size());
+        for (InetAddress server : res) {
+            State state = states.get(server);
+            srtts.put(server, state == null ? unknownServerRtt : state.getSrtt(unknownServerRtt));
+        }
+        Collections.sort(res, new Comparator<InetAddress>() {
+            @Override
+            public int compare(InetAddress o1, InetAddress o2) {
+                return Double.compare(srtts.get(o1), srtts.get(o2));
+            }
+        });
+
+        if (random.nextDouble() < explorationProbability) {
+            InetAddress explored = res.remove(1 + random.nextInt(res.size() - 1));
+            res.add(0, explored);
+        }
+
+        final double decayFactor = this.decayFactor;
+        for (int i = 1; i < res.size(); i++) {
+            State state = states.get(res.get(i));
+            if (state != null) {
+                state.decay(decayFactor);
+            }
+        }
+
+        return res;
+    }
+
+    /**
+     * Get the timeout for a query to the given server, which is derived from its SRTT and RTT variance as the
+     * retransmission timeout of RFC 6298, and doubled after every failure. For servers which have not been queried yet,
+     * the given maximum timeout is used.
+     *
+     * @param server the server.
+     * @param maxTimeout the upper bound of the timeout in milliseconds, usually the timeout of the data source.
+     * @return the timeout in milliseconds.
+     */
+    public int getTimeout(InetAddress server, int maxTimeout) {
+        State state = states.get(server);
+        if (state == null) {
+            return maxTimeout;
+        }
+        double rto;
+        synchronized (state) {
+            rto = state.rto;
+        }
+        if (rto == 0) {
+            return maxTimeout;
+        }
+        return (int) clamp(Math.ceil(rto), Math.min(minTimeout, maxTimeout), maxTimeout);
+    }
+
+    /**
+     * Get the given percentile of the most recent {@value #RTT_SAMPLES} round-trip times of the given server.
+     *
+     * @param server the server.
+     * @param percentile the percentile, between 0 and 1, for example 0.95 for the 95th percentile.
+     * @return the round-trip time in milliseconds, or -1 if no round-trip time of the server was recorded yet.
+     */
+    public long getRttPercentile(InetAddress server, double percentile) {
+        if (percentile < 0 || percentile > 1) {
+            throw new IllegalArgumentException("The percentile must be between 0 and 1");
+        }
+        State state = states.get(server);
+        if (state == null) {
+            return -1;
+        }
+        return state.getRttPercentile(percentile);
+    }
+
+    /**
+     * Get the current estimation for the given server.
+     *
+     * @param server the server.
+     * @return the estimation or <code>null</code> if the server was not queried yet.
+     */
+    public ServerRtt getServerRtt(InetAddress server) {
+        State state = states.get(server);
+        if (state == null) {
+            return null;
+        }
+        return state.snapshot(server);
+    }
+
+    /**
+     * Get the current estimation of all servers which were queried, for example, for monitoring.
+     *
+     * @return a list of the estimations, ordered by their SRTT.
+     */
+    public List<ServerRtt> getServerRtts() {
+        List<ServerRtt> res = new ArrayList<>(states.size());
+        for (Map.Entry<InetAddress, State> entry : states.entrySet()) {
+            res.add(entry.getValue().snapshot(entry.getKey()));
+        }
+        Collections.sort(res, new Comparator<ServerRtt>() {
+            @Override
+            public int compare(ServerRtt o1, ServerRtt o2) {
+                return Double.compare(o1.srtt, o2.srtt);
+            }
+        });
+        return res;
+    }
+
+    /**
+     * Forget everything learned about the servers.
+     */
+    public void clear() {
+        states.clear();
+    }
+
+    public int getUnknownServerRtt() {
+        return unknownServerRtt;
+    }
+
+    public void setUnknownServerRtt(int unknownServerRtt) {
+        if (unknownServerRtt < 0) {
+            throw new IllegalArgumentException("The unknown server RTT must not be negative");
+        }
+        this.unknownServerRtt = unknownServerRtt;
+    }
+
+    public void setMinTimeout(int minTimeout) {
+        if (minTimeout <= 0) {
+            throw new IllegalArgumentException("The minimum timeout must be greater than zero");
+        }
+        this.minTimeout = minTimeout;
+    }
+
+    /**
+     * Set the probability with which a random server is moved to the front of the order.
+     *
+     * @param explorationProbability the probability, between 0 and 1.
+     */
+    public void setExplorationProbability(double explorationProbability) {
+        if (explorationProbability < 0 || explorationProbability > 1) {
+            throw new IllegalArgumentException("The exploration probability must be between 0 and 1");
+        }
+        this.explorationProbability = explorationProbability;
+    }
+
+    /**
+     * Set the factor the SRTT of a server is multiplied with every time it is passed over.
+     *
+     * @param decayFactor the factor, greater than 0 and at most 1.
+     */
+    public void setDecayFactor(double decayFactor) {
+        if (decayFactor <= 0 || decayFactor > 1) {
+            throw new IllegalArgumentException("The decay factor must be greater than 0 and at most 1");
+        }
+        this.decayFactor = decayFactor;
+    }
+
+    private static double clamp(double value, double min, double max) {
+        return Math.max(min, Math.min(value, max));
+    }
+
+    /**
+     * A snapshot of the estimation for a server.
+     */
+    public static final class ServerRtt {
+
+        public final InetAddress server;
+
+        /**
+         * The smoothed round-trip time in milliseconds.
+         */
+        public final double srtt;
+
+        /**
+         * The round-trip time variance in milliseconds.
+         */
+        public final double rttvar;
+
+        /**
+         * The current timeout in milliseconds, or 0 if the server did not answer or fail yet.
+         */
+        public final double timeout;
+
+        public final int consecutiveFailures;
+
+        public final long successes;
+
+        public final long failures;
+
+        /**
+         * The point in time, in milliseconds since the epoch, of the last success or failure.
+         */
+        public final long lastUpdate;
+
+        private ServerRtt(InetAddress server, double srtt, double rttvar, double timeout, int consecutiveFailures,
+                        long successes, long failures, long lastUpdate) {
+            this.server = server;
+            this.srtt = srtt;
+            this.rttvar = rttvar;
+            this.timeout = timeout;
+            this.consecutiveFailures = consecutiveFailures;
+            this.successes = successes;
+            this.failures = failures;
+            this.lastUpdate = lastUpdate;
+        }
+
+        @Override
+        public String toString() {
+            return server.getHostAddress() + " srtt=" + Math.round(srtt) + "ms rttvar=" + Math.round(rttvar)
+                    + "ms timeout=" + Math.round(timeout) + "ms successes=" + successes + " failures=" + failures
+                    + " consecutiveFailures=" + consecutiveFailures;
+        }
+    }
+}
@@ -0,0 +1,483 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tracks the health of upstream DNS servers with a circuit breaker per server, so that a server which stopped
+ * answering does not cost a full timeout on every query.
+ * <p>
+ * A server starts {@link State#CLOSED closed}. After {@link #DEFAULT_FAILURE_THRESHOLD} consecutive failures, that is
+ * timeouts, other IO errors or SERVFAIL responses, the circuit of the server {@link State#OPEN opens} and the server is
+ * skipped. Once the open duration elapsed, the circuit becomes {@link State#HALF_OPEN half-open} and the server is
+ * tested: by the {@link Probe}, which runs in the background, if one is set, or otherwise by letting a single query
+ * through. If the test succeeds, the circuit closes again. Otherwise it opens again for twice the previous open
+ * duration, up to the maximum open duration.
+ * </p>
+ * <p>
+ * If the circuits of all servers of a query are open, the servers are queried anyway, as there is nothing to lose.
+ * </p>
+ * <p>
+ * This class is thread safe. A circuit breaker may be shared by multiple clients using the same servers.
+ * </p>
+ */
+public class UpstreamCircuitBreaker {
+
+    private static final Logger LOGGER = Logger.getLogger(UpstreamCircuitBreaker.class.getName());
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+    /**
+     * The default time, in milliseconds, a circuit stays open after it opened for the first time.
+     */
+    public static final long DEFAULT_OPEN_DURATION = 10 * 1000;
+
+    /**
+     * The default upper bound, in milliseconds, of the open duration, which doubles every time a test fails.
+     */
+    public static final long DEFAULT_MAX_OPEN_DURATION = 5 * 60 * 1000;
+
+    private static final ScheduledThreadPoolExecutor PROBE_EXECUTOR;
+
+    static {
+        ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r);
+                thread.setDaemon(true);
+                thread.setName("MiniDNS Upstream Probe Thread");
+                return thread;
+            }
+        };
+        PROBE_EXECUTOR = new ScheduledThreadPoolExecutor(1, threadFactory);
+        PROBE_EXECUTOR.setKeepAliveTime(60, TimeUnit.SECONDS);
+        PROBE_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    public enum State {
+        /**
+         * The server is queried.
+         */
+        CLOSED,
+
+        /**
+         * The server failed repeatedly and is skipped.
+         */
+        OPEN,
+
+        /**
+         * The server is being tested, either by the probe or by a single query.
+         */
+        HALF_OPEN,
+    }
+
+    /**
+     * A lightweight test query, which is sent in the background to a server whose circuit is open.
+     */
+    public interface Probe {
+        /**
+         * Test the given server.
+         *
+         * @param server the server.
+         * @throws IOException if the server did not answer or answered with an error.
+         */
+        void probe(InetAddress server) throws IOException;
+    }
+
+    public interface StateListener {
+        /**
+         * Called after the circuit of a server changed its state. This is called by the thread which reported the
+         * outcome of the query, or by the probe thread, hence it should return quickly.
+         *
+         * @param server the server.
+         * @param previous the previous state.
+         * @param current the new state.
+         */
+        void onStateChanged(InetAddress server, State previous, State current);
+    }
+
+    private final ConcurrentMap<InetAddress, Health> healths = new ConcurrentHashMap<>();
+
+    private final CopyOnWriteArraySet<StateListener> listeners = new CopyOnWriteArraySet<>();
+
+    private volatile int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+
+    private volatile long openDuration = DEFAULT_OPEN_DURATION;
+
+    private volatile long maxOpenDuration = DEFAULT_MAX_OPEN_DURATION;
+
+    private volatile Probe probe;
+
+    private final class Health {
+        private final InetAddress server;
+        private State state = State.CLOSED;
+        private int consecutiveFailures;
+        private long currentOpenDuration;
+        private long openedTimestamp;
+        private boolean probeScheduled;
+        private boolean probing;
+        private long successes;
+        private long failures;
+        private long opens;
+        private long skipped;
+
+        private Health(InetAddress server) {
+            this.server = server;
+        }
+
+        private boolean isAvailable() {
+            State previous;
+            synchronized (this) {
+                switch (state) {
+                case CLOSED:
+                    return true;
+                case OPEN:
+                    if (probeScheduled || System.currentTimeMillis() - openedTimestamp < currentOpenDuration) {
+                        skipped++;
+                        return false;
+                    }
+                    // Let this query through as the test of the server.
+                    previous = state;
+                    state = State.HALF_OPEN;
+                    openedTimestamp = System.currentTimeMillis();
+                    break;
+                case HALF_OPEN:
+                    if (!probing && System.currentTimeMillis() - openedTimestamp >= currentOpenDuration) {
+                        // The outcome of the previous test query was never reported, for example, because it was
+                        // cancelled.
+                        openedTimestamp = System.currentTimeMillis();
+                        return true;
+                    }
+                    skipped++;
+                    return false;
+                default:
+                    throw new AssertionError();
+                }
+            }
+            notifyListeners(server, previous, State.HALF_OPEN);
+            return true;
+        }
+
+        private void reportSuccess() {
+            State previous;
+            synchronized (this) {
+                successes++;
+                consecutiveFailures = 0;
+                probing = false;
+                if (state == State.CLOSED) {
+                    return;
+                }
+                previous = state;
+                state = State.CLOSED;
+                currentOpenDuration = 0;
+            }
+            notifyListeners(server, previous, State.CLOSED);
+        }
+
+        private void reportFailure() {
+            State previous;
+            long duration;
+            Probe probe = UpstreamCircuitBreaker.this.probe;
+            synchronized (this) {
+                failures++;
+                consecutiveFailures++;
+                probing = false;
+                switch (state) {
+                case CLOSED:
+                    if (consecutiveFailures < failureThreshold) {
+                        return;
+                    }
+                    duration = openDuration;
+                    break;
+                case HALF_OPEN:
+                    duration = Math.min(Math.max(2 * currentOpenDuration, openDuration), maxOpenDuration);
+                    break;
+                case OPEN:
+                    // A query which was already in flight when the circuit opened.
+                    return;
+                default:
+                    throw new AssertionError();
+                }
+                previous = state;
+                state = State.OPEN;
+                currentOpenDuration = duration;
+                openedTimestamp = System.currentTimeMillis();
+                probeScheduled = probe != null;
+                opens++;
+            }
+            if (previous == State.CLOSED) {
+                LOGGER.info("Skipping the DNS server " + server + " for " + duration + "ms after " + failureThreshold
+                        + " consecutive failures");
+            }
+            notifyListeners(server, previous, State.OPEN);
+            if (probe != null) {
+                scheduleProbe(this, probe, duration);
+            }
+        }
+
+        private boolean startProbe() {
+            synchronized (this) {
+                probeScheduled = false;
+                if (state != State.OPEN) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                probing = true;
+            }
+            notifyListeners(server, State.OPEN, State.HALF_OPEN);
+            return true;
+        }
+
+        private synchronized ServerHealth snapshot() {
+            return new ServerHealth(server, state, consecutiveFailures, currentOpenDuration, successes, failures, opens,
+                            skipped);
+        }
+    }
+
+    private static void scheduleProbe(final Health health, final Probe probe, long delay) {
+        PROBE_EXECUTOR.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!health.startProbe()) {
+                    return;
+                }
+                try {
+                    probe.probe(health.server);
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.log(Level.FINE, "Probe of the DNS server " + health.server + " failed", e);
+                    health.reportFailure();
+                    return;
+                }
+                health.reportSuccess();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void notifyListeners(InetAddress server, State previous, State current) {
+        for (StateListener listener : listeners) {
+            listener.onStateChanged(server, previous, current);
+        }
+    }
+
+    private Health getHealth(InetAddress server) {
+        Health health = healths.get(server);
+        if (health == null) {
+            health = new Health(server);
+            Health previous = healths.putIfAbsent(server, health);
+            if (previous != null) {
+                health = previous;
+            }
+        }
+        return health;
+    }
+
+    /**
+     * Check whether the given server should be queried. If the open duration of the server elapsed and no probe is set,
+     * then this lets a single query through as the test of the server, whose outcome must be reported.
+     *
+     * @param server the server.
+     * @return <code>true</code> if the server should be queried.
+     */
+    public boolean isAvailable(InetAddress server) {
+        Health health = healths.get(server);
+        if (health == null) {
+            return true;
+        }
+        return health.isAvailable();
+    }
+
+    /**
+     * Filter the servers which should be queried. If no server should be queried, then all servers are returned, as
+     * skipping all of them would fail the query for sure.
+     *
+     * @param servers the servers.
+     * @return a new list of the servers which should be queried, in the same order.
+     */
+    public List<InetAddress> filter(List<InetAddress> servers) {
+        List<InetAddress> res = new ArrayList<>(servers.size());
+        for (InetAddress server : servers) {
+            if (isAvailable(server)) {
+                res.add(server);
+            } else {
+                LOGGER.finer("Skipping " + server + " because its circuit is open");
+            }
+        }
+        if (res.isEmpty()) {
+            res.addAll(servers);
+        }
+        return res;
+    }
+
+    /**
+     * Record that the given server answered a query with a response other than SERVFAIL.
+     *
+     * @param server the server.
+     */
+    public void reportSuccess(InetAddress server) {
+        Health health = healths.get(server);
+        if (health == null) {
+            // Nothing to reset.
+            return;
+        }
+        health.reportSuccess();
+    }
+
+    /**
+     * Record that a query to the given server failed, for example, because it timed out or was answered with SERVFAIL.
+     *
+     * @param server the server.
+     */
+    public void reportFailure(InetAddress server) {
+        getHealth(server).reportFailure();
+    }
+
+    public State getState(InetAddress server) {
+        Health health = healths.get(server);
+        if (health == null) {
+            return State.CLOSED;
+        }
+        synchronized (health) {
+            return health.state;
+        }
+    }
+
+    /**
+     * Get the health of all servers which failed at least once, for example, for monitoring.
+     *
+     * @return a list of the server healths.
+     */
+    public List<ServerHealth> getServerHealths() {
+        List<ServerHealth> res = new ArrayList<>(healths.size());
+        for (Map.Entry<InetAddress, Health> entry : healths.entrySet()) {
+            res.add(entry.getValue().snapshot());
+        }
+        return res;
+    }
+
+    /**
+     * Close the circuits of all servers and forget their health.
+     */
+    public void clear() {
+        healths.clear();
+    }
+
+    public void addListener(StateListener listener) {
+        listeners.add(listener);
+    }
+
+    public boolean removeListener(StateListener listener) {
+        return listeners.remove(listener);
+    }
+
+    /**
+     * Set the probe which tests servers whose circuit is open in the background. If no probe is set, then a single
+     * query is let through once the open duration elapsed. The probe applies to circuits which open afterwards.
+     *
+     * @param probe the probe or <code>null</code>.
+     */
+    public void setProbe(Probe probe) {
+        this.probe = probe;
+    }
+
+    public Probe getProbe() {
+        return probe;
+    }
+
+    /**
+     * Set the number of consecutive failures after which the circuit of a server opens.
+     *
+     * @param failureThreshold the number of consecutive failures.
+     */
+    public void setFailureThreshold(int failureThreshold) {
+        if (failureThreshold <= 0) {
+            throw new IllegalArgumentException("The failure threshold must be greater than zero");
+        }
+        this.failureThreshold = failureThreshold;
+    }
+
+    /**
+     * Set how long the circuit of a server stays open after it opened for the first time, and the upper bound of the
+     * open duration, which doubles every time a test of the server fails.
+     *
+     * @param openDuration the initial open duration in milliseconds.
+     * @param maxOpenDuration the maximum open duration in milliseconds.
+     */
+    public void setOpenDuration(long openDuration, long maxOpenDuration) {
+        if (openDuration <= 0 || maxOpenDuration < openDuration) {
+            throw new IllegalArgumentException("The open duration must be greater than zero and at most the maximum open duration");
+        }
+        this.openDuration = openDuration;
+        this.maxOpenDuration = maxOpenDuration;
+    }
+
+    /**
+     * A snapshot of the health of a server.
+     */
+    public static final class ServerHealth {
+
+        public final InetAddress server;
+
+        public final State state;
+
+        public final int consecutiveFailures;
+
+        /**
+         * The duration, in milliseconds, of the last time the circuit opened, or 0 if the circuit is closed.
+         */
+        public final long openDuration;
+
+        public final long successes;
+
+        public final long failures;
+
+        /**
+         * The number of times the circuit opened.
+         */
+        public final long opens;
+
+        /**
+         * The number of queries which skipped the server because its circuit was open.
+         */
+        public final long skipped;
+
+        private ServerHealth(InetAddress server, State state, int consecutiveFailures, long openDuration,
+                        long successes, long failures, long opens, long skipped) {
+            this.server = server;
+            this.state = state;
+            this.consecutiveFailures = consecutiveFailures;
+            this.openDuration = openDuration;
+            this.successes = successes;
+            this.failures = failures;
+            this.opens = opens;
+            this.skipped = skipped;
+        }
+
+        @Override
+        public String toString() {
+            return server.getHostAddress() + " state=" + state + " consecutiveFailures=" + consecutiveFailures
+                    + " openDuration=" + openDuration + " successes=" + successes + " failures=" + failures
+                    + " opens=" + opens + " skipped=" + skipped;
+        }
+    }
+}
@@ -0,0 +1,459 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns;
+
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.minidns.MiniDnsException.UpstreamOverloadedException;
+
+/**
+ * Limits the number of concurrent queries to every upstream server. A query which exceeds the limit waits in a bounded
+ * queue until a permit becomes available. If the queue of the server is full, the query fails fast with an
+ * {@link UpstreamOverloadedException} instead of adding to the load of an already overloaded server.
+ * <p>
+ * Optionally, the limit is adapted with the additive increase, multiplicative decrease (AIMD) scheme of TCP congestion
+ * control: every successful query with a round-trip time below the latency threshold raises the limit by the reciprocal
+ * of the limit, that is by about one per limit queries. A failed query, or one slower than the latency threshold, halves
+ * the limit, at most once per limit queries.
+ * </p>
+ * <p>
+ * This class is thread safe. A limiter may be shared by multiple clients and data sources using the same servers.
+ * </p>
+ */
+public class UpstreamConcurrencyLimiter {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+    public static final int DEFAULT_MAX_QUEUED = 256;
+
+    public static final int DEFAULT_MIN_LIMIT = 1;
+
+    public static final long DEFAULT_LATENCY_THRESHOLD = 1000;
+
+    /**
+     * A listener which is notified once a permit for a queued query becomes available.
+     */
+    public interface PermitListener {
+        /**
+         * Called with the permit, either right away or later by the thread releasing another permit.
+         *
+         * @param permit the permit, which must be released once the query finished.
+         */
+        void onPermit(Permit permit);
+    }
+
+    private final ConcurrentMap<InetAddress, Upstream> upstreams = new ConcurrentHashMap<>();
+
+    private final int maxInFlight;
+
+    private final int maxQueued;
+
+    private volatile boolean adaptive;
+
+    private volatile int minLimit = DEFAULT_MIN_LIMIT;
+
+    private volatile long latencyThreshold = DEFAULT_LATENCY_THRESHOLD;
+
+    public UpstreamConcurrencyLimiter() {
+        this(DEFAULT_MAX_IN_FLIGHT, DEFAULT_MAX_QUEUED);
+    }
+
+    /**
+     * Create a new limiter.
+     *
+     * @param maxInFlight the maximum number of concurrent queries per server.
+     * @param maxQueued the maximum number of queries per server waiting for a permit.
+     */
+    public UpstreamConcurrencyLimiter(int maxInFlight, int maxQueued) {
+        if (maxInFlight <= 0 || maxQueued < 0) {
+            throw new IllegalArgumentException("The maximum number of in-flight queries must be greater than zero and the queue size must not be negative");
+        }
+        this.maxInFlight = maxInFlight;
+        this.maxQueued = maxQueued;
+    }
+
+    private abstract static class Waiter {
+        Permit permit;
+    }
+
+    private static final class BlockingWaiter extends Waiter {
+    }
+
+    private static final class ListenerWaiter extends Waiter {
+        private final PermitListener listener;
+
+        private ListenerWaiter(PermitListener listener) {
+            this.listener = listener;
+        }
+    }
+
+    private final class Upstream {
+        private final InetAddress server;
+        private final Deque<Waiter> queue = new ArrayDeque<>();
+        private double limit = maxInFlight;
+        private int inFlight;
+        private long acquisitions;
+        private long acquisitionsAtLastDecrease;
+        private long rejections;
+        private long queueTimeouts;
+        private int maxQueueDepth;
+
+        private Upstream(InetAddress server) {
+            this.server = server;
+        }
+
+        private boolean hasCapacity() {
+            return inFlight < Math.max(1, (int) limit);
+        }
+
+        private Permit grant() {
+            inFlight++;
+            acquisitions++;
+            return new Permit(this);
+        }
+
+        private void enqueue(Waiter waiter) throws UpstreamOverloadedException {
+            if (queue.size() >= maxQueued) {
+                rejections++;
+                throw new UpstreamOverloadedException(server, inFlight, queue.size(), "the queue is full");
+            }
+            queue.add(waiter);
+            maxQueueDepth = Math.max(maxQueueDepth, queue.size());
+        }
+
+        private void released(boolean success, boolean failure, long rtt) {
+            List<ListenerWaiter> granted = null;
+            synchronized (this) {
+                inFlight--;
+                if (adaptive) {
+                    adapt(success, failure, rtt);
+                }
+                while (!queue.isEmpty() && hasCapacity()) {
+                    Waiter waiter = queue.poll();
+                    waiter.permit = grant();
+                    if (waiter instanceof ListenerWaiter) {
+                        if (granted == null) {
+                            granted = new ArrayList<>(2);
+                        }
+                        granted.add((ListenerWaiter) waiter);
+                    }
+                }
+                notifyAll();
+            }
+            if (granted != null) {
+                for (ListenerWaiter waiter : granted) {
+                    waiter.listener.onPermit(waiter.permit);
+                }
+            }
+        }
+
+        private void adapt(boolean success, boolean failure, long rtt) {
+            boolean congested = failure || (success && rtt > latencyThreshold);
+            if (congested) {
+                // Decrease at most once per window of queries, as the failures of the queries which were already in
+                // flight reflect the same congestion.
+                if (acquisitions - acquisitionsAtLastDecrease >= limit) {
+                    limit = Math.max(minLimit, limit / 2);
+                    acquisitionsAtLastDecrease = acquisitions;
+                }
+            } else if (success) {
+                limit = Math.min(maxInFlight, limit + 1 / limit);
+            }
+        }
+
+        private synchronized UpstreamLoad snapshot() {
+            return new UpstreamLoad(server, (int) limit, inFlight, queue.size(), maxQueueDepth, acquisitions, rejections,
+                            queueTimeouts);
+        }
+    }
+
+    /**
+     * A permit to query a server. Exactly one of the release methods must be called once the query finished.
+     */
+    public static final class Permit {
+        private final Upstream upstream;
+        private boolean released;
+
+        private Permit(Upstream upstream) {
+            this.upstream = upstream;
+        }
+
+        /**
+         * Release the permit after the server answered.
+         *
+         * @param rtt the round-trip time in milliseconds.
+         */
+        public void success(long rtt) {
+            release(true, false, rtt);
+        }
+
+        /**
+         * Release the permit after the query failed, for example, because it timed out.
+         */
+        public void failure() {
+            release(false, true, -1);
+        }
+
+        /**
+         * Release the permit without an outcome, for example, because the query was cancelled.
+         */
+        public void release() {
+            release(false, false, -1);
+        }
+
+        private void release(boolean success, boolean failure, long rtt) {
+            synchronized (this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+            }
+            upstream.released(success, failure, rtt);
+        }
+    }
+
+    private Upstream getUpstream(InetAddress server) {
+        Upstream upstream = upstreams.get(server);
+        if (upstream == null) {
+            upstream = new Upstream(server);
+            Upstream previous = upstreams.putIfAbsent(server, upstream);
+            if (previous != null) {
+                upstream = previous;
+            }
+        }
+        return upstream;
+    }
+
+    /**
+     * Acquire a permit to query the given server, waiting at most the given time if the limit of the server is
+     * reached.
+     *
+     * @param server the server.
+     * @param timeout the maximum time to wait in milliseconds.
+     * @return the permit.
+     * @throws UpstreamOverloadedException if the queue of the server is full or no permit became available in time.
+     * @throws InterruptedIOException if the thread was interrupted while waiting.
+     */
+    public Permit acquire(InetAddress server, long timeout) throws UpstreamOverloadedException, InterruptedIOException {
+        Upstream upstream = getUpstream(server);
+        BlockingWaiter waiter = new BlockingWaiter();
+        synchronized (upstream) {
+            if (upstream.queue.isEmpty() && upstream.hasCapacity()) {
+                return upstream.grant();
+            }
+            upstream.enqueue(waiter);
+
+            final long deadline = System.currentTimeMillis() + timeout;
+            try {
+                while (waiter.permit == null) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        upstream.queue.remove(waiter);
+                        upstream.queueTimeouts++;
+                        throw new UpstreamOverloadedException(server, upstream.inFlight, upstream.queue.size(),
+                                        "no permit became available within " + timeout + "ms");
+                    }
+                    upstream.wait(remaining);
+                }
+                return waiter.permit;
+            } catch (InterruptedException e) {
+                upstream.queue.remove(waiter);
+                Thread.currentThread().interrupt();
+            }
+        }
+        // The permit may have been granted right before the interrupt.
+        if (waiter.permit != null) {
+            waiter.permit.release();
+        }
+        throw new InterruptedIOException("Interrupted while waiting for a permit to query " + server);
+    }
+
+    /**
+     * Acquire a permit to query the given server without blocking. If the limit of the server is reached, then the
+     * listener is queued and notified once a permit becomes available.
+     *
+     * @param server the server.
+     * @param listener the listener which is notified with the permit.
+     * @throws UpstreamOverloadedException if the queue of the server is full.
+     */
+    public void acquire(InetAddress server, PermitListener listener) throws UpstreamOverloadedException {
+        Upstream upstream = getUpstream(server);
+        Permit permit;
+        synchronized (upstream) {
+            if (!upstream.queue.isEmpty() || !upstream.hasCapacity()) {
+                upstream.enqueue(new ListenerWaiter(listener));
+                return;
+            }
+            permit = upstream.grant();
+        }
+        listener.onPermit(permit);
+    }
+
+    /**
+     * Remove a queued listener, for example, because its query was cancelled.
+     *
+     * @param server the server.
+     * @param listener the listener.
+     * @return <code>true</code> if the listener was removed before it received a permit.
+     */
+    public boolean cancel(InetAddress server, PermitListener listener) {
+        Upstream upstream = upstreams.get(server);
+        if (upstream == null) {
+            return false;
+        }
+        synchronized (upstream) {
+            return remove(upstream, listener);
+        }
+    }
+
+    /**
+     * Remove a queued listener because no permit became available within the given time. This is counted as queue
+     * timeout, like a blocking acquisition which timed out.
+     *
+     * @param server the server.
+     * @param listener the listener.
+     * @param timeout the time the listener waited in milliseconds.
+     * @throws UpstreamOverloadedException if the listener was removed before it received a permit.
+     */
+    public void timeout(InetAddress server, PermitListener listener, long timeout) throws UpstreamOverloadedException {
+        Upstream upstream = upstreams.get(server);
+        if (upstream == null) {
+            return;
+        }
+        synchronized (upstream) {
+            if (remove(upstream, listener)) {
+                upstream.queueTimeouts++;
+                throw new UpstreamOverloadedException(server, upstream.inFlight, upstream.queue.size(),
+                                "no permit became available within " + timeout + "ms");
+            }
+        }
+    }
+
+    private static boolean remove(Upstream upstream, PermitListener listener) {
+        for (Waiter waiter : upstream.queue) {
+            if (waiter instanceof ListenerWaiter && ((ListenerWaiter) waiter).listener == listener) {
+                upstream.queue.remove(waiter);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the load of all servers which were queried, for example, for monitoring.
+     *
+     * @return a list of the loads.
+     */
+    public List<UpstreamLoad> getUpstreamLoads() {
+        List<UpstreamLoad> res = new ArrayList<>(upstreams.size());
+        for (Map.Entry<InetAddress, Upstream> entry : upstreams.entrySet()) {
+            res.add(entry.getValue().snapshot());
+        }
+        return res;
+    }
+
+    /**
+     * Set whether the limit of every server is adapted to the observed failures and latencies. Otherwise, the limit is
+     * always the maximum number of in-flight queries.
+     *
+     * @param adaptive <code>true</code> to adapt the limits.
+     */
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    public void setMinLimit(int minLimit) {
+        if (minLimit <= 0 || minLimit > maxInFlight) {
+            throw new IllegalArgumentException("The minimum limit must be greater than zero and at most the maximum number of in-flight queries");
+        }
+        this.minLimit = minLimit;
+    }
+
+    /**
+     * Set the round-trip time above which a successful query is considered a sign of congestion.
+     *
+     * @param latencyThreshold the latency threshold in milliseconds.
+     */
+    public void setLatencyThreshold(long latencyThreshold) {
+        if (latencyThreshold <= 0) {
+            throw new IllegalArgumentException("The latency threshold must be greater than zero");
+        }
+        this.latencyThreshold = latencyThreshold;
+    }
+
+    /**
+     * A snapshot of the load of a server.
+     */
+    public static final class UpstreamLoad {
+
+        public final InetAddress server;
+
+        /**
+         * The current limit of concurrent queries.
+         */
+        public final int limit;
+
+        public final int inFlight;
+
+        /**
+         * The number of queries currently waiting for a permit.
+         */
+        public final int queued;
+
+        /**
+         * The highest number of queries which waited for a permit at the same time.
+         */
+        public final int maxQueueDepth;
+
+        public final long acquisitions;
+
+        /**
+         * The number of queries which failed fast because the queue was full.
+         */
+        public final long rejections;
+
+        /**
+         * The number of queries which failed because they waited too long for a permit.
+         */
+        public final long queueTimeouts;
+
+        private UpstreamLoad(InetAddress server, int limit, int inFlight, int queued, int maxQueueDepth,
+                        long acquisitions, long rejections, long queueTimeouts) {
+            this.server = server;
+            this.limit = limit;
+            this.inFlight = inFlight;
+            this.queued = queued;
+            this.maxQueueDepth = maxQueueDepth;
+            this.acquisitions = acquisitions;
+            this.rejections = rejections;
+            this.queueTimeouts = queueTimeouts;
+        }
+
+        @Override
+        public String toString() {
+            return server.getHostAddress() + " limit=" + limit + " inFlight=" + inFlight + " queued=" + queued
+                    + " maxQueueDepth=" + maxQueueDepth + " acquisitions=" + acquisitions + " rejections=" + rejections
+                    + " queueTimeouts=" + queueTimeouts;
+        }
+    }
+}
@@ -0,0 +1,431 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.cache;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.minidns.AbstractDnsClient;
+import org.minidns.DnsCache;
+import org.minidns.MiniDnsFuture;
+import org.minidns.dnsmessage.Question;
+import org.minidns.dnsqueryresult.DnsQueryResult;
+import org.minidns.record.Record.TYPE;
+import org.minidns.util.ExceptionCallback;
+import org.minidns.util.SuccessCallback;
+
+/**
+ * Warms up the cache of a DNS client by resolving a list of questions, for example the names of the services an
+ * application needs, so that the first request for each of them does not pay a cache miss. The questions are resolved
+ * asynchronously with a bounded number of concurrent queries. Optionally, every question is resolved again once its
+ * response expired, so that the cache is kept warm.
+ * <p>
+ * Use {@link #awaitWarmUp(long, TimeUnit)}, for example in a readiness probe, to wait until all questions were resolved
+ * or failed.
+ * </p>
+ */
+public class CacheWarmer {
+
+    private static final Logger LOGGER = Logger.getLogger(CacheWarmer.class.getName());
+
+    /**
+     * The default maximum number of concurrent queries.
+     */
+    public static final int DEFAULT_MAX_CONCURRENCY = 32;
+
+    /**
+     * The minimum delay between two refreshes of the same question, in milliseconds.
+     */
+    private static final long MIN_REFRESH_DELAY = 1000;
+
+    /**
+     * The delay after which a failed refresh is retried, in milliseconds.
+     */
+    private static final long REFRESH_RETRY_DELAY = 30 * 1000;
+
+    /**
+     * Listener informed about the progress of the warm-up.
+     */
+    public interface Listener {
+        /**
+         * Invoked after every question of the warm-up was resolved or failed.
+         *
+         * @param cacheWarmer the cache warmer.
+         * @param resolved the number of resolved questions.
+         * @param failed the number of failed questions.
+         * @param total the total number of questions.
+         */
+        void onProgress(CacheWarmer cacheWarmer, int resolved, int failed, int total);
+
+        /**
+         * Invoked once all questions of the warm-up were resolved or failed.
+         *
+         * @param cacheWarmer the cache warmer.
+         * @param durationMillis the duration of the warm-up in milliseconds.
+         */
+        void onWarmedUp(CacheWarmer cacheWarmer, long durationMillis);
+    }
+
+    private final AbstractDnsClient client;
+
+    private final List<Question> questions;
+
+    private final int maxConcurrency;
+
+    private final List<Listener> listeners = new ArrayList<>();
+
+    private final List<Question> failedQuestions = new ArrayList<>();
+
+    private Iterator<Question> pending;
+
+    private boolean launching;
+
+    private int inFlight;
+
+    private int resolved;
+
+    private int failed;
+
+    private long startTimestamp = -1;
+
+    private long warmedUpTimestamp = -1;
+
+    private boolean keepRefreshed;
+
+    private ScheduledExecutorService refreshExecutor;
+
+    /**
+     * Create a new cache warmer.
+     *
+     * @param client the DNS client whose cache is warmed up.
+     * @param questions the questions to resolve.
+     * @param maxConcurrency the maximum number of concurrent queries.
+     */
+    public CacheWarmer(AbstractDnsClient client, Collection<Question> questions, int maxConcurrency) {
+        if (client.getCache() == null) {
+            throw new IllegalArgumentException("The DNS client has no cache");
+        }
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("The maximum concurrency must be positive");
+        }
+        this.client = client;
+        this.questions = Collections.unmodifiableList(new ArrayList<>(questions));
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    public CacheWarmer(AbstractDnsClient client, Collection<Question> questions) {
+        this(client, questions, DEFAULT_MAX_CONCURRENCY);
+    }
+
+    /**
+     * Read questions from the given file. See {@link #readQuestions(Reader)} for the format.
+     *
+     * @param file the file.
+     * @return the questions.
+     * @throws IOException if an I/O error occurs or if the file contains an invalid line.
+     */
+    public static List<Question> readQuestions(File file) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8);
+        try {
+            return readQuestions(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Read questions, one per line, consisting of the name and optionally the type, separated by whitespace, e.g.
+     * <code>example.org AAAA</code>. The type defaults to A. Empty lines and lines starting with '#' are ignored.
+     *
+     * @param reader the reader to read the questions from.
+     * @return the questions.
+     * @throws IOException if an I/O error occurs or if there is an invalid line.
+     */
+    public static List<Question> readQuestions(Reader reader) throws IOException {
+        List<Question> questions = new ArrayList<>();
+        BufferedReader bufferedReader = new BufferedReader(reader);
+        String line;
+        int lineNumber = 0;
+        while ((line = bufferedReader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            String[] parts = line.split("\\s+");
+            if (parts.length > 2) {
+                throw new IOException("Invalid question in line " + lineNumber + ": " + line);
+            }
+            TYPE type = TYPE.A;
+            if (parts.length == 2) {
+                try {
+                    type = TYPE.valueOf(parts[1].toUpperCase(Locale.US));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Unknown type in line " + lineNumber + ": " + line, e);
+                }
+            }
+            questions.add(new Question(parts[0], type));
+        }
+        return questions;
+    }
+
+    public synchronized void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public synchronized void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Set whether every question is resolved again once its response expired, so that the cache is kept warm. The
+     * refreshes take place until {@link #stop()} is called.
+     *
+     * @param keepRefreshed <code>true</code> to keep the questions refreshed.
+     */
+    public synchronized void setKeepRefreshed(boolean keepRefreshed) {
+        this.keepRefreshed = keepRefreshed;
+    }
+
+    /**
+     * Start the warm-up. This method returns immediately.
+     */
+    public void start() {
+        synchronized (this) {
+            if (startTimestamp >= 0) {
+                throw new IllegalStateException("The warm-up was already started");
+            }
+            startTimestamp = System.currentTimeMillis();
+            pending = questions.iterator();
+            if (keepRefreshed) {
+                refreshExecutor = createRefreshExecutor();
+            }
+        }
+        launchQueries();
+        maybeFinish();
+    }
+
+    /**
+     * Stop refreshing the questions. Queries which are already in flight will still complete.
+     */
+    public synchronized void stop() {
+        keepRefreshed = false;
+        if (refreshExecutor != null) {
+            refreshExecutor.shutdownNow();
+            refreshExecutor = null;
+        }
+    }
+
+    private void launchQueries() {
+        synchronized (this) {
+            if (launching) {
+                // A query completed while we are launching queries, the launching loop will pick up the free slot.
+                return;
+            }
+            launching = true;
+        }
+        while (true) {
+            final Question question;
+            synchronized (this) {
+                if (inFlight >= maxConcurrency || !pending.hasNext()) {
+                    launching = false;
+                    return;
+                }
+                question = pending.next();
+                inFlight++;
+            }
+            query(question, false);
+        }
+    }
+
+    private void query(final Question question, final boolean refresh) {
+        MiniDnsFuture<DnsQueryResult, IOException> future = client.queryAsync(question);
+        future.onSuccess(new SuccessCallback<DnsQueryResult>() {
+            @Override
+            public void onSuccess(DnsQueryResult result) {
+                onResult(question, result, null, refresh);
+            }
+        }).onError(new ExceptionCallback<IOException>() {
+            @Override
+            public void processException(IOException exception) {
+                onResult(question, null, exception, refresh);
+            }
+        });
+    }
+
+    private void onResult(Question question, DnsQueryResult result, IOException exception, boolean refresh) {
+        boolean success = result != null && exception == null;
+        if (!success) {
+            LOGGER.log(Level.FINE, "Could not resolve " + question + " to warm up the cache", exception);
+        }
+
+        scheduleRefresh(question, success ? result : null);
+        if (refresh) {
+            return;
+        }
+
+        List<Listener> listeners;
+        int resolved, failed;
+        synchronized (this) {
+            inFlight--;
+            if (success) {
+                resolved = ++this.resolved;
+                failed = this.failed;
+            } else {
+                failedQuestions.add(question);
+                resolved = this.resolved;
+                failed = ++this.failed;
+            }
+            listeners = new ArrayList<>(this.listeners);
+        }
+        for (Listener listener : listeners) {
+            listener.onProgress(this, resolved, failed, questions.size());
+        }
+
+        launchQueries();
+        maybeFinish();
+    }
+
+    private void scheduleRefresh(final Question question, DnsQueryResult result) {
+        final long delay;
+        if (result != null) {
+            // Refresh the question once the cached response expired. Refreshing it earlier would be answered by the cache.
+            long expiry = DnsCache.getExpirationTimestamp(result.response, Long.MAX_VALUE, DnsCache.DEFAULT_MAX_NEGATIVE_TTL);
+            delay = Math.max(MIN_REFRESH_DELAY, expiry - System.currentTimeMillis() + 1);
+        } else {
+            delay = REFRESH_RETRY_DELAY;
+        }
+
+        synchronized (this) {
+            if (refreshExecutor == null) {
+                return;
+            }
+            refreshExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    query(question, true);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void maybeFinish() {
+        List<Listener> listeners;
+        long duration;
+        synchronized (this) {
+            if (warmedUpTimestamp >= 0 || resolved + failed < questions.size()) {
+                return;
+            }
+            warmedUpTimestamp = System.currentTimeMillis();
+            duration = warmedUpTimestamp - startTimestamp;
+            notifyAll();
+            listeners = new ArrayList<>(this.listeners);
+        }
+        LOGGER.fine("Warmed up the cache with " + resolved + " of " + questions.size() + " questions in " + duration + "ms");
+        for (Listener listener : listeners) {
+            listener.onWarmedUp(this, duration);
+        }
+    }
+
+    private static ScheduledExecutorService createRefreshExecutor() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MiniDNS CacheWarmer refresh thread");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        return executor;
+    }
+
+    /**
+     * Wait until all questions of the warm-up were resolved or failed.
+     *
+     * @param timeout the maximum time to wait.
+     * @param unit the unit of the timeout.
+     * @return <code>true</code> if the warm-up is finished, <code>false</code> if the timeout elapsed before.
+     * @throws InterruptedException if the thread was interrupted while waiting.
+     */
+    public synchronized boolean awaitWarmUp(long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        while (warmedUpTimestamp < 0) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    public synchronized boolean isWarmedUp() {
+        return warmedUpTimestamp >= 0;
+    }
+
+    public List<Question> getQuestions() {
+        return questions;
+    }
+
+    public synchronized int getResolvedCount() {
+        return resolved;
+    }
+
+    public synchronized int getFailedCount() {
+        return failed;
+    }
+
+    /**
+     * Get the questions which could not be resolved during the warm-up.
+     *
+     * @return the failed questions.
+     */
+    public synchronized List<Question> getFailedQuestions() {
+        return new ArrayList<>(failedQuestions);
+    }
+
+    /**
+     * Get the duration of the warm-up in milliseconds.
+     *
+     * @return the duration of the warm-up, or -1 if it is not finished.
+     */
+    public synchronized long getWarmUpDuration() {
+        if (warmedUpTimestamp < 0) {
+            return -1;
+        }
+        return warmedUpTimestamp - startTimestamp;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CacheWarmer{questions=" + questions.size() + ", resolved=" + resolved + ", failed=" + failed + ", inFlight="
+                + inFlight + ", keepRefreshed=" + keepRefreshed + "}";
+    }
+}
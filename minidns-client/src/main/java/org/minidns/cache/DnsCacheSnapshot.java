@@ -0,0 +1,190 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.cache;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.minidns.DnsCache;
+import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsqueryresult.CacheSnapshotDnsQueryResult;
+import org.minidns.dnsqueryresult.CachedDnsQueryResult;
+
+/**
+ * Persist the entries of a {@link DnsCache} to a compact binary file and restore them, e.g. when a resolver restarts,
+ * so that it does not start with an empty cache.
+ * <p>
+ * Every entry is stored with its absolute expiry date and the receive timestamp of the response. Hence the remaining
+ * TTLs are correct after restoring, and entries which expired in the meantime are skipped without being decoded. The
+ * snapshot file is memory-mapped when it is restored.
+ * </p>
+ * <p>
+ * Only caches implementing {@link DnsCache#getEntries()} can be snapshotted.
+ * </p>
+ */
+public final class DnsCacheSnapshot {
+
+    private static final Logger LOGGER = Logger.getLogger(DnsCacheSnapshot.class.getName());
+
+    private static final long MAGIC = 0x4d696e69444e5331L; // "MiniDNS1"
+
+    private static final int VERSION = 1;
+
+    private DnsCacheSnapshot() {
+    }
+
+    /**
+     * Write a snapshot of the given cache to the given file. The snapshot is first written to a temporary file, which
+     * then replaces the given file.
+     *
+     * @param cache the cache to snapshot.
+     * @param file the snapshot file.
+     * @return the number of written entries.
+     * @throws IOException if an I/O error occurs.
+     */
+    public static int write(DnsCache cache, File file) throws IOException {
+        List<CachedDnsQueryResult> entries = cache.getEntries();
+        final long now = System.currentTimeMillis();
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        int written = 0;
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            dos.writeLong(MAGIC);
+            dos.writeInt(VERSION);
+            for (CachedDnsQueryResult entry : entries) {
+                DnsMessage response = entry.response;
+                // The snapshot records the expiry date as given by the response. The restoring cache applies its own
+                // upper bounds of the TTL.
+                long expiry = DnsCache.getExpirationTimestamp(response, Long.MAX_VALUE, DnsCache.DEFAULT_MAX_NEGATIVE_TTL);
+                if (expiry < now) {
+                    continue;
+                }
+
+                byte[] query = entry.query.asNormalizedVersion().toArray();
+                byte[] responseBytes = response.toArray();
+                dos.writeLong(expiry);
+                dos.writeLong(response.receiveTimestamp);
+                dos.writeInt(query.length);
+                dos.write(query);
+                dos.writeInt(responseBytes.length);
+                dos.write(responseBytes);
+                written++;
+            }
+        } finally {
+            dos.close();
+        }
+
+        // Renaming over the previous snapshot replaces it atomically on POSIX file systems. Only where the rename does not
+        // replace an existing file, the previous snapshot is deleted first.
+        if (!tempFile.renameTo(file)) {
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Could not delete previous snapshot " + file);
+            }
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Could not rename " + tempFile + " to " + file);
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Restore the entries of the given snapshot file into the given cache. Entries which expired since the snapshot was
+     * written are skipped.
+     *
+     * @param file the snapshot file.
+     * @param cache the cache to restore the entries into.
+     * @return the number of restored entries.
+     * @throws IOException if an I/O error occurs or if the file is not a valid snapshot.
+     */
+    public static int restore(File file, DnsCache cache) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        MappedByteBuffer buffer;
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            randomAccessFile.close();
+        }
+
+        try {
+            return restore(buffer, cache);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Truncated or corrupted cache snapshot " + file, e);
+        }
+    }
+
+    private static int restore(ByteBuffer buffer, DnsCache cache) throws IOException {
+        if (buffer.remaining() < 12 || buffer.getLong() != MAGIC) {
+            throw new IOException("Not a MiniDNS cache snapshot");
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported cache snapshot version " + version);
+        }
+
+        final long now = System.currentTimeMillis();
+        int restored = 0;
+        while (buffer.hasRemaining()) {
+            long expiry = buffer.getLong();
+            long receiveTimestamp = buffer.getLong();
+            int queryLength = getLength(buffer);
+            if (expiry < now) {
+                buffer.position(buffer.position() + queryLength);
+                int responseLength = getLength(buffer);
+                buffer.position(buffer.position() + responseLength);
+                continue;
+            }
+
+            byte[] queryBytes = new byte[queryLength];
+            buffer.get(queryBytes);
+            byte[] responseBytes = new byte[getLength(buffer)];
+            buffer.get(responseBytes);
+
+            DnsMessage query;
+            DnsMessage response;
+            try {
+                query = new DnsMessage(queryBytes);
+                response = new DnsMessage(responseBytes, receiveTimestamp);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Skipping undecodable cache snapshot entry", e);
+                continue;
+            }
+            cache.put(query, new CacheSnapshotDnsQueryResult(query, response));
+            restored++;
+        }
+        return restored;
+    }
+
+    /**
+     * Read the length of the following message and check that the buffer holds that many bytes, so that a corrupted
+     * snapshot does not cause an attempt to allocate a negative or huge array.
+     */
+    private static int getLength(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Invalid message length " + length + " in cache snapshot, " + buffer.remaining()
+                    + " bytes remaining");
+        }
+        return length;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.minidns.dnslabel.DnsLabel;
+import org.minidns.dnsname.DnsName;
+
+/**
+ * A trie of DNS names with reversed labels, i.e. starting at the top-level domain, mapping every name to a set of keys.
+ * This allows to find the keys of all ancestors of a name, and the keys of all names below a name, with a number of
+ * steps proportional to the label count of the name. Names are compared case-insensitively. This class is not thread
+ * safe.
+ *
+ * @param <K> the type of the keys.
+ */
+final class DnsNameIndex<K> {
+
+    private static final class Node<K> {
+        private final Node<K> parent;
+        private final DnsLabel label;
+        private Map<DnsLabel, Node<K>> children;
+        private Set<K> keys;
+
+        private Node(Node<K> parent, DnsLabel label) {
+            this.parent = parent;
+            this.label = label;
+        }
+
+        private boolean isEmpty() {
+            return (children == null || children.isEmpty()) && (keys == null || keys.isEmpty());
+        }
+    }
+
+    private Node<K> root = new Node<>(null, null);
+
+    void add(DnsName name, K key) {
+        Node<K> node = root;
+        for (int i = 0; i < name.getLabelCount(); i++) {
+            DnsLabel label = name.getLabel(i);
+            if (node.children == null) {
+                node.children = new HashMap<>(4);
+            }
+            Node<K> child = node.children.get(label);
+            if (child == null) {
+                child = new Node<>(node, label);
+                node.children.put(label, child);
+            }
+            node = child;
+        }
+        if (node.keys == null) {
+            node.keys = new HashSet<>(2);
+        }
+        node.keys.add(key);
+    }
+
+    void remove(DnsName name, K key) {
+        Node<K> node = find(name);
+        if (node == null || node.keys == null || !node.keys.remove(key)) {
+            return;
+        }
+        // Prune the nodes which are no longer needed.
+        while (node.parent != null && node.isEmpty()) {
+            node.parent.children.remove(node.label);
+            node = node.parent;
+        }
+    }
+
+    /**
+     * Get the key sets of the given name and its ancestors, ordered from the given name to the root. Names without keys
+     * are omitted.
+     *
+     * @param name the name.
+     * @return the key sets, ordered from the deepest to the root.
+     */
+    List<Set<K>> getKeysOfAncestors(DnsName name) {
+        List<Set<K>> res = new ArrayList<>();
+        Node<K> node = root;
+        for (int i = 0; node != null; i++) {
+            if (node.keys != null && !node.keys.isEmpty()) {
+                res.add(node.keys);
+            }
+            if (i == name.getLabelCount() || node.children == null) {
+                break;
+            }
+            node = node.children.get(name.getLabel(i));
+        }
+        Collections.reverse(res);
+        return res;
+    }
+
+    /**
+     * Get the keys of the given name and all names below it.
+     *
+     * @param name the name.
+     * @return the keys of the subtree of the given name.
+     */
+    List<K> getKeysUnder(DnsName name) {
+        Node<K> node = find(name);
+        if (node == null) {
+            return Collections.emptyList();
+        }
+        List<K> res = new ArrayList<>();
+        collect(node, res);
+        return res;
+    }
+
+    void clear() {
+        root = new Node<>(null, null);
+    }
+
+    private Node<K> find(DnsName name) {
+        Node<K> node = root;
+        for (int i = 0; i < name.getLabelCount() && node != null; i++) {
+            if (node.children == null) {
+                return null;
+            }
+            node = node.children.get(name.getLabel(i));
+        }
+        return node;
+    }
+
+    private static <K> void collect(Node<K> node, List<K> res) {
+        if (node.keys != null) {
+            res.addAll(node.keys);
+        }
+        if (node.children != null) {
+            for (Node<K> child : node.children.values()) {
+                collect(child, res);
+            }
+        }
+    }
+}
@@ -24,6 +24,7 @@ import org.minidns.dnsqueryresult.DnsQueryResult;
 import org.minidns.dnsqueryresult.SynthesizedCachedDnsQueryResult;
 import org.minidns.record.Data;
 import org.minidns.record.Record;
+import org.minidns.record.Record.TYPE;
 
 /**
  * A variant of {@link LruCache} also using the data found in the sections for caching.
@@ -47,6 +48,11 @@ public class ExtendedLruCache extends LruCache {
     protected void putNormalized(DnsMessage q, DnsQueryResult result) {
         super.putNormalized(q, result);
         DnsMessage message = result.response;
+        if (message.isNegativeResponse()) {
+            // The authority section of negative responses carries the SOA and the records proving the non-existence, but
+            // synthesizing answers from it would inherit the response code of the negative response.
+            return;
+        }
         Map<DnsMessage, List<Record<? extends Data>>> extraCaches = new HashMap<>(message.additionalSection.size());
 
         gather(extraCaches, q, message.answerSection, null);
@@ -123,7 +129,10 @@ public class ExtendedLruCache extends LruCache {
             extraRecordIsChildOfAuthoritativeZone = extraRecord.name.isChildOf(authoritativeZone);
         }
 
-        return extraRecordIsChildOfQuestion || extraRecordIsChildOfAuthoritativeZone;
+        // A DNAME record applies to the names below its owner, hence it is cached if the question name is one of them.
+        boolean extraRecordIsDnameOfQuestion = extraRecord.type == TYPE.DNAME && question.name.isChildOf(extraRecord.name);
+
+        return extraRecordIsChildOfQuestion || extraRecordIsChildOfAuthoritativeZone || extraRecordIsDnameOfQuestion;
     }
 
 }
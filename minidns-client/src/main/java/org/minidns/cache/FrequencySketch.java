@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.cache;
+
+import java.util.Arrays;
+
+/**
+ * A count-min sketch estimating the access frequency of items by their hash code, with 4-bit counters and periodic
+ * aging. Once the number of recorded accesses reaches the sample size, all counters are halved, so that the sketch
+ * forgets items which were popular in the past. This class is not thread safe.
+ */
+final class FrequencySketch {
+
+    private static final int[] SEEDS = { 0x97cb3127, 0xb8b2e4af, 0x8c5b4e07, 0x3a5c1bd5 };
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private static final int MAX_COUNT = 15;
+
+    private final long[] table;
+
+    private final int tableMask;
+
+    private final int sampleSize;
+
+    private int additions;
+
+    /**
+     * Create a new frequency sketch.
+     *
+     * @param expectedItems the expected number of distinct items, usually the capacity of the cache.
+     */
+    FrequencySketch(int expectedItems) {
+        int size = 8;
+        while (size < expectedItems) {
+            size <<= 1;
+        }
+        table = new long[size];
+        tableMask = size - 1;
+        sampleSize = 10 * Math.max(expectedItems, 1);
+    }
+
+    /**
+     * Get the estimated frequency of the item with the given hash code.
+     *
+     * @param hash the hash code of the item.
+     * @return the estimated frequency, between 0 and 15.
+     */
+    int frequency(int hash) {
+        int frequency = MAX_COUNT;
+        for (int seed : SEEDS) {
+            int h = rehash(hash, seed);
+            int count = (int) ((table[(h >>> 4) & tableMask] >>> ((h & 15) << 2)) & 0xf);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Record an access of the item with the given hash code.
+     *
+     * @param hash the hash code of the item.
+     */
+    void increment(int hash) {
+        boolean added = false;
+        for (int seed : SEEDS) {
+            int h = rehash(hash, seed);
+            int index = (h >>> 4) & tableMask;
+            int offset = (h & 15) << 2;
+            if (((table[index] >>> offset) & 0xf) < MAX_COUNT) {
+                table[index] += 1L << offset;
+                added = true;
+            }
+        }
+
+        if (added && ++additions >= sampleSize) {
+            age();
+        }
+    }
+
+    void clear() {
+        Arrays.fill(table, 0L);
+        additions = 0;
+    }
+
+    private void age() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions >>>= 1;
+    }
+
+    private static int rehash(int hash, int seed) {
+        int h = hash * seed;
+        h ^= h >>> 17;
+        h *= 0xed5ad4bb;
+        h ^= h >>> 11;
+        return h;
+    }
+}
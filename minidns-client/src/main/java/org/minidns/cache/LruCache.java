@@ -10,18 +10,34 @@
  */
 package org.minidns.cache;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import org.minidns.DnsCache;
+import org.minidns.dnslabel.DnsLabel;
 import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsmessage.Question;
 import org.minidns.dnsname.DnsName;
+import org.minidns.dnsname.InvalidDnsNameException;
 import org.minidns.dnsqueryresult.CachedDnsQueryResult;
 import org.minidns.dnsqueryresult.DirectCachedDnsQueryResult;
 import org.minidns.dnsqueryresult.DnsQueryResult;
+import org.minidns.dnsqueryresult.SynthesizedCachedDnsQueryResult;
+import org.minidns.record.CNAME;
+import org.minidns.record.DNAME;
+import org.minidns.record.Data;
+import org.minidns.record.Record;
+import org.minidns.record.Record.TYPE;
 
 /**
- * LRU based DNSCache backed by a LinkedHashMap.
+ * LRU based DNSCache backed by a LinkedHashMap. If there is no cached response for a query, the cache tries to
+ * synthesize one by following cached CNAME and DNAME records, see {@link #setMaxChainLength(int)}.
  */
 public class LruCache extends DnsCache {
 
@@ -50,28 +66,84 @@ public class LruCache extends DnsCache {
      */
     protected long maxTTL;
 
+    /**
+     * Internal hit count of negative responses (subset of hits).
+     */
+    protected long negativeHitCount = 0L;
+
+    /**
+     * The internal capacity of the backend cache for negative responses.
+     */
+    protected int negativeCapacity;
+
+    /**
+     * The upper bound of the ttl of negative responses. All longer negative TTLs will be capped by this ttl.
+     */
+    protected long maxNegativeTTL;
+
+    /**
+     * The maximum number of CNAME and DNAME records followed to synthesize a response.
+     */
+    protected int maxChainLength = DEFAULT_MAX_CHAIN_LENGTH;
+
+    /**
+     * The index of the question names of the keys of the backend cache.
+     */
+    private final DnsNameIndex<DnsMessage> index = new DnsNameIndex<>();
+
+    /**
+     * The index of the question names of the keys of the backend cache for negative responses.
+     */
+    private final DnsNameIndex<DnsMessage> negativeIndex = new DnsNameIndex<>();
+
+    /**
+     * The keys of the entries of the backend cache, by the owner names of the CNAME and DNAME records in the answer
+     * sections of their responses. This allows following a chain through a response to a query of another type, for
+     * example, the CNAME record of a response to an A query while looking up the AAAA records of the same name.
+     */
+    private final Map<DnsName, Set<DnsMessage>> chainIndex = new HashMap<>();
+
+    /**
+     * The keys of the entries of the backend cache for negative responses, by the owner names of their CNAME and DNAME
+     * records.
+     */
+    private final Map<DnsName, Set<DnsMessage>> negativeChainIndex = new HashMap<>();
+
     /**
      * The backend cache.
      */
     protected LinkedHashMap<DnsMessage, CachedDnsQueryResult> backend;
 
     /**
-     * Create a new LRUCache with given capacity and upper bound ttl.
+     * The backend cache for negative responses (NXDOMAIN and NODATA). It has its own capacity, so that a flood of
+     * queries for non-existent names is not able to evict positive responses.
+     */
+    protected LinkedHashMap<DnsMessage, CachedDnsQueryResult> negativeBackend;
+
+    /**
+     * Create a new LRUCache with given capacities and upper bound ttls.
      * @param capacity The internal capacity.
      * @param maxTTL The upper bound for any ttl.
+     * @param negativeCapacity The internal capacity for negative responses.
+     * @param maxNegativeTTL The upper bound for any ttl of negative responses.
      */
-    @SuppressWarnings("serial")
-    public LruCache(final int capacity, final long maxTTL) {
+    public LruCache(final int capacity, final long maxTTL, final int negativeCapacity, final long maxNegativeTTL) {
         this.capacity = capacity;
         this.maxTTL = maxTTL;
-        backend = new LinkedHashMap<DnsMessage, CachedDnsQueryResult>(
-                Math.min(capacity + (capacity + 3) / 4 + 2, 11), 0.75f, true) {
-                @Override
-                protected boolean removeEldestEntry(
-                        Entry<DnsMessage, CachedDnsQueryResult> eldest) {
-                    return size() > capacity;
-                }
-            };
+        this.negativeCapacity = negativeCapacity;
+        this.maxNegativeTTL = maxNegativeTTL;
+        backend = new IndexedBackend(capacity, index, chainIndex);
+        negativeBackend = new IndexedBackend(negativeCapacity, negativeIndex, negativeChainIndex);
+    }
+
+    /**
+     * Create a new LRUCache with given capacity and upper bound ttl. A quarter of the capacity is used as additional
+     * capacity for negative responses.
+     * @param capacity The internal capacity.
+     * @param maxTTL The upper bound for any ttl.
+     */
+    public LruCache(final int capacity, final long maxTTL) {
+        this(capacity, maxTTL, capacity / 4, Math.min(maxTTL, DEFAULT_MAX_NEGATIVE_TTL));
     }
 
     /**
@@ -86,40 +158,386 @@ public class LruCache extends DnsCache {
         this(DEFAULT_CACHE_SIZE);
     }
 
+    /**
+     * A LRU backend maintaining an index of the question names of its keys, and an index of the owner names of the
+     * CNAME and DNAME records of its values.
+     */
+    @SuppressWarnings("serial")
+    private static final class IndexedBackend extends LinkedHashMap<DnsMessage, CachedDnsQueryResult> {
+        private final int capacity;
+        private final DnsNameIndex<DnsMessage> index;
+        private final Map<DnsName, Set<DnsMessage>> chainIndex;
+
+        private IndexedBackend(int capacity, DnsNameIndex<DnsMessage> index, Map<DnsName, Set<DnsMessage>> chainIndex) {
+            super(Math.min(capacity + (capacity + 3) / 4 + 2, 11), 0.75f, true);
+            this.capacity = capacity;
+            this.index = index;
+            this.chainIndex = chainIndex;
+        }
+
+        @Override
+        public CachedDnsQueryResult put(DnsMessage key, CachedDnsQueryResult value) {
+            if (!containsKey(key)) {
+                // Index the key before inserting it, as the insertion may cause its immediate eviction.
+                index(key, true);
+            }
+            CachedDnsQueryResult previous = super.put(key, value);
+            if (previous != null) {
+                indexChain(key, previous, false);
+            }
+            if (containsKey(key)) {
+                indexChain(key, value, true);
+            }
+            return previous;
+        }
+
+        @Override
+        public CachedDnsQueryResult remove(Object key) {
+            CachedDnsQueryResult removed = super.remove(key);
+            if (removed != null) {
+                index((DnsMessage) key, false);
+                indexChain((DnsMessage) key, removed, false);
+            }
+            return removed;
+        }
+
+        @Override
+        public void clear() {
+            super.clear();
+            index.clear();
+            chainIndex.clear();
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Entry<DnsMessage, CachedDnsQueryResult> eldest) {
+            if (size() <= capacity) {
+                return false;
+            }
+            index(eldest.getKey(), false);
+            indexChain(eldest.getKey(), eldest.getValue(), false);
+            return true;
+        }
+
+        private void indexChain(DnsMessage key, CachedDnsQueryResult value, boolean add) {
+            for (Record<? extends Data> record : value.response.answerSection) {
+                if (record.type != TYPE.CNAME && record.type != TYPE.DNAME) {
+                    continue;
+                }
+                Set<DnsMessage> keys = chainIndex.get(record.name);
+                if (add) {
+                    if (keys == null) {
+                        keys = new HashSet<>();
+                        chainIndex.put(record.name, keys);
+                    }
+                    keys.add(key);
+                } else if (keys != null) {
+                    keys.remove(key);
+                    if (keys.isEmpty()) {
+                        chainIndex.remove(record.name);
+                    }
+                }
+            }
+        }
+
+        private void index(DnsMessage key, boolean add) {
+            Question question = key.getQuestion();
+            if (question == null) {
+                return;
+            }
+            if (add) {
+                index.add(question.name, key);
+            } else {
+                index.remove(question.name, key);
+            }
+        }
+    }
+
     @Override
     protected synchronized void putNormalized(DnsMessage q, DnsQueryResult result) {
-        if (result.response.receiveTimestamp <= 0L) {
+        DnsMessage message = result.response;
+        if (message.receiveTimestamp <= 0L) {
             return;
         }
-        backend.put(q, new DirectCachedDnsQueryResult(q, result));
+        if (message.isNegativeResponse()) {
+            // RFC 2308 § 5: Negative responses without SOA records SHOULD NOT be cached.
+            if (message.getNegativeTtl() < 0) {
+                return;
+            }
+            backend.remove(q);
+            negativeBackend.put(q, new DirectCachedDnsQueryResult(q, result));
+        } else {
+            negativeBackend.remove(q);
+            backend.put(q, new DirectCachedDnsQueryResult(q, result));
+        }
     }
 
     @Override
     protected synchronized CachedDnsQueryResult getNormalized(DnsMessage q) {
-        CachedDnsQueryResult result = backend.get(q);
+        CachedDnsQueryResult result = lookup(q, true);
+        if (result == null && maxChainLength > 0) {
+            result = followChain(q);
+        }
         if (result == null) {
             missCount++;
             return null;
         }
 
-        DnsMessage message = result.response;
+        hitCount++;
+        if (result.response.isNegativeResponse()) {
+            negativeHitCount++;
+        }
+        return result;
+    }
 
-        // RFC 2181 § 5.2 says that all TTLs in a RRSet should be equal, if this isn't the case, then we assume the
-        // shortest TTL to be the effective one.
-        final long answersMinTtl = message.getAnswersMinTtl();
-        final long ttl = Math.min(answersMinTtl, maxTTL);
+    @Override
+    protected synchronized CachedDnsQueryResult peekNormalized(DnsMessage q) {
+        return lookup(q, false);
+    }
+
+    private CachedDnsQueryResult lookup(DnsMessage q, boolean countExpire) {
+        boolean negative = false;
+        CachedDnsQueryResult result = backend.get(q);
+        if (result == null) {
+            result = negativeBackend.get(q);
+            negative = true;
+        }
+        if (result == null) {
+            return null;
+        }
 
-        final long expiryDate = message.receiveTimestamp + (ttl * 1000);
+        final long expiryDate = getExpirationTimestamp(result.response, maxTTL, maxNegativeTTL);
         final long now = System.currentTimeMillis();
         if (expiryDate < now) {
-            missCount++;
-            expireCount++;
-            backend.remove(q);
+            if (countExpire) {
+                expireCount++;
+            }
+            if (negative) {
+                negativeBackend.remove(q);
+            } else {
+                backend.remove(q);
+            }
             return null;
-        } else {
-            hitCount++;
-            return result;
         }
+        return result;
+    }
+
+    /**
+     * Try to synthesize a response to the given query by following cached CNAME and DNAME records, starting at the
+     * question name, until a cached response for the question type is found. The TTL of all records of the synthesized
+     * response is the minimum remaining TTL of the cached responses it was assembled from.
+     *
+     * @param q the normalized query.
+     * @return the synthesized result or <code>null</code>.
+     */
+    private CachedDnsQueryResult followChain(DnsMessage q) {
+        Question question = q.getQuestion();
+        if (question == null || question.type == TYPE.CNAME || question.type == TYPE.DNAME) {
+            return null;
+        }
+
+        List<Record<? extends Data>> chain = new ArrayList<>();
+        long expiryDate = Long.MAX_VALUE;
+        DnsName name = question.name;
+        for (int i = 0; i < maxChainLength; i++) {
+            CachedDnsQueryResult link = findChainLink(q, name, TYPE.CNAME);
+            Record<? extends Data> cname = link == null ? null : findRecord(link.response, name, TYPE.CNAME);
+            if (cname != null) {
+                chain.add(cname);
+                name = ((CNAME) cname.payloadData).target;
+            } else {
+                Record<? extends Data> dname = null;
+                // Search the closest DNAME record owned by an ancestor of the name.
+                for (int labels = name.getLabelCount() - 1; labels > 0 && dname == null; labels--) {
+                    DnsName ancestor = name.stripToLabels(labels);
+                    link = findChainLink(q, ancestor, TYPE.DNAME);
+                    dname = link == null ? null : findRecord(link.response, ancestor, TYPE.DNAME);
+                }
+                if (dname == null) {
+                    return null;
+                }
+
+                // RFC 6672 § 2.2: Substitute the owner of the DNAME record by its target.
+                DnsName target = ((DNAME) dname.payloadData).target;
+                DnsLabel[] labels = name.getRawLabels();
+                try {
+                    for (int l = dname.name.getLabelCount(); l < labels.length; l++) {
+                        target = DnsName.from(labels[l], target);
+                    }
+                } catch (InvalidDnsNameException e) {
+                    return null;
+                }
+                chain.add(dname);
+                chain.add(new Record<>(name, TYPE.CNAME, question.clazz, dname.ttl, new CNAME(target), false));
+                name = target;
+            }
+            expiryDate = Math.min(expiryDate, getExpirationTimestamp(link.response, maxTTL, maxNegativeTTL));
+
+            CachedDnsQueryResult result = lookup(chainQuery(q, name, question.type), false);
+            if (result != null) {
+                DnsMessage response = result.response;
+                expiryDate = Math.min(expiryDate, getExpirationTimestamp(response, maxTTL, maxNegativeTTL));
+                final long now = System.currentTimeMillis();
+                final long ttl = Math.max(0, (expiryDate - now) / 1000);
+
+                List<Record<? extends Data>> answers = new ArrayList<>(chain.size() + response.answerSection.size());
+                for (Record<? extends Data> record : chain) {
+                    answers.add(record.withTtl(ttl));
+                }
+                for (Record<? extends Data> record : response.answerSection) {
+                    answers.add(record.withTtl(ttl));
+                }
+                List<Record<? extends Data>> authority = new ArrayList<>(response.authoritySection.size());
+                for (Record<? extends Data> record : response.authoritySection) {
+                    authority.add(record.withTtl(Math.min(record.ttl, ttl)));
+                }
+
+                DnsMessage synthesized = response.asBuilder()
+                        .setQuestion(question)
+                        .setAuthoritativeAnswer(false)
+                        .setAnswers(answers)
+                        .setNameserverRecords(authority)
+                        .setReceiveTimestamp(now)
+                        .build();
+                return new SynthesizedCachedDnsQueryResult(q, synthesized);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find a cached response with a CNAME or DNAME record of the given owner name in its answer section. This is either
+     * the response to a query for the record itself, or any other response whose answer went through the record.
+     *
+     * @param q the normalized query whose flags the response must have been cached for.
+     * @param owner the owner name of the record.
+     * @param type the type of the record.
+     * @return the cached result or <code>null</code>.
+     */
+    private CachedDnsQueryResult findChainLink(DnsMessage q, DnsName owner, TYPE type) {
+        CachedDnsQueryResult link = lookup(chainQuery(q, owner, type), false);
+        if (link != null && findRecord(link.response, owner, type) != null) {
+            return link;
+        }
+        link = findChainLink(q, owner, type, chainIndex);
+        if (link == null) {
+            link = findChainLink(q, owner, type, negativeChainIndex);
+        }
+        return link;
+    }
+
+    private CachedDnsQueryResult findChainLink(DnsMessage q, DnsName owner, TYPE type, Map<DnsName, Set<DnsMessage>> chainIndex) {
+        Set<DnsMessage> keys = chainIndex.get(owner);
+        if (keys == null) {
+            return null;
+        }
+        // Copy the keys, as the lookup removes expired entries.
+        for (DnsMessage key : new ArrayList<>(keys)) {
+            if (!hasSameFlags(q, key)) {
+                continue;
+            }
+            CachedDnsQueryResult link = lookup(key, false);
+            if (link != null && findRecord(link.response, owner, type) != null) {
+                return link;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Check whether the given keys only differ in their question.
+     */
+    private static boolean hasSameFlags(DnsMessage q, DnsMessage key) {
+        return key.getQuestion().clazz == q.getQuestion().clazz
+                && chainQuery(q, key.getQuestion().name, key.getQuestion().type).equals(key);
+    }
+
+    private static DnsMessage chainQuery(DnsMessage q, DnsName name, TYPE type) {
+        return q.asBuilder()
+                .setQuestion(new Question(name, type, q.getQuestion().clazz))
+                .build()
+                .asNormalizedVersion();
+    }
+
+    private static Record<? extends Data> findRecord(DnsMessage response, DnsName name, TYPE type) {
+        for (Record<? extends Data> record : response.answerSection) {
+            if (record.type == type && record.name.equals(name)) {
+                return record;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find the cached NS records of the closest enclosing zone of the given name, using an index of the cached names
+     * instead of probing every ancestor. Entries are considered regardless of the flags of the query they are cached for.
+     *
+     * @param name the name.
+     * @return the cached result answering the NS question of the closest enclosing zone, or <code>null</code>.
+     */
+    @Override
+    public synchronized CachedDnsQueryResult findClosestEnclosingNs(DnsName name) {
+        for (Set<DnsMessage> keys : index.getKeysOfAncestors(name)) {
+            // Copy the keys, as the lookup removes expired entries.
+            for (DnsMessage key : new ArrayList<>(keys)) {
+                Question question = key.getQuestion();
+                if (question.type != TYPE.NS) {
+                    continue;
+                }
+                CachedDnsQueryResult result = lookup(key, false);
+                if (result != null && !result.response.getAnswersFor(question).isEmpty()) {
+                    return result;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized List<CachedDnsQueryResult> entriesUnder(DnsName name) {
+        List<DnsMessage> negativeKeys = negativeIndex.getKeysUnder(name);
+        List<DnsMessage> keys = index.getKeysUnder(name);
+        List<CachedDnsQueryResult> entries = new ArrayList<>(negativeKeys.size() + keys.size());
+        for (DnsMessage key : negativeKeys) {
+            entries.add(negativeBackend.get(key));
+        }
+        for (DnsMessage key : keys) {
+            entries.add(backend.get(key));
+        }
+        return entries;
+    }
+
+    @Override
+    public synchronized int invalidateSubtree(DnsName name) {
+        int removed = 0;
+        for (DnsMessage key : negativeIndex.getKeysUnder(name)) {
+            if (negativeBackend.remove(key) != null) {
+                removed++;
+            }
+        }
+        for (DnsMessage key : index.getKeysUnder(name)) {
+            if (backend.remove(key) != null) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Set the maximum number of CNAME and DNAME records followed to synthesize a response if there is no cached response
+     * for a query. A value of zero disables following chains.
+     *
+     * @param maxChainLength the maximum chain length.
+     */
+    public synchronized void setMaxChainLength(int maxChainLength) {
+        this.maxChainLength = maxChainLength;
+    }
+
+    @Override
+    public synchronized List<CachedDnsQueryResult> getEntries() {
+        List<CachedDnsQueryResult> entries = new ArrayList<>(backend.size() + negativeBackend.size());
+        entries.addAll(negativeBackend.values());
+        entries.addAll(backend.values());
+        return entries;
     }
 
     /**
@@ -127,8 +545,10 @@ public class LruCache extends DnsCache {
      */
     public synchronized void clear() {
         backend.clear();
+        negativeBackend.clear();
         missCount = 0L;
         hitCount = 0L;
+        negativeHitCount = 0L;
         expireCount = 0L;
     }
 
@@ -158,9 +578,18 @@ public class LruCache extends DnsCache {
         return hitCount;
     }
 
+    /**
+     * The cache hit count of negative responses (subset of all hits).
+     * @return The negative hit count.
+     */
+    public long getNegativeHitCount() {
+        return negativeHitCount;
+    }
+
     @Override
     public String toString() {
-        return "LRUCache{usage=" + backend.size() + "/" + capacity + ", hits=" + hitCount + ", misses=" + missCount + ", expires=" + expireCount + "}";
+        return "LRUCache{usage=" + backend.size() + "/" + capacity + ", negativeUsage=" + negativeBackend.size() + "/" + negativeCapacity
+                + ", hits=" + hitCount + ", negativeHits=" + negativeHitCount + ", misses=" + missCount + ", expires=" + expireCount + "}";
     }
 
     @Override
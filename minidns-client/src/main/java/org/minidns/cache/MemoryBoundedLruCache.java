@@ -0,0 +1,353 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.cache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.minidns.DnsCache;
+import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsname.DnsName;
+import org.minidns.dnsqueryresult.CachedDnsQueryResult;
+import org.minidns.dnsqueryresult.DirectCachedDnsQueryResult;
+import org.minidns.dnsqueryresult.DnsQueryResult;
+import org.minidns.record.Data;
+import org.minidns.record.Record;
+
+/**
+ * LRU based DNSCache whose capacity is not given as number of entries, but as maximum weight. The weight of an entry
+ * is determined by a {@link Weigher}, the default one estimates the number of bytes retained by the entry. This allows
+ * to bound the memory used by the cache independently of the kind of cached responses, e.g. a DNSKEY/RRSIG heavy
+ * response is considerably more expensive than a single A record.
+ */
+public class MemoryBoundedLruCache extends DnsCache {
+
+    /**
+     * Determines the weight of a cache entry.
+     */
+    public interface Weigher {
+        /**
+         * Weigh the given cache entry. The returned weight must not be negative.
+         *
+         * @param normalizedQuery the normalized query, which is the key of the entry.
+         * @param result the DNS query result, which is the value of the entry.
+         * @return the weight of the entry.
+         */
+        long weigh(DnsMessage normalizedQuery, DnsQueryResult result);
+    }
+
+    /**
+     * The estimated fixed overhead of a cache entry in bytes: The map entry, the cached result and the message objects.
+     */
+    private static final int ENTRY_OVERHEAD = 256;
+
+    /**
+     * The estimated overhead of a single parsed record in bytes, without its owner name.
+     */
+    private static final int RECORD_OVERHEAD = 64;
+
+    /**
+     * The estimated overhead of a DNS name in bytes. Its textual representation is retained multiple times, for example
+     * as ACE and raw ACE string and as labels.
+     */
+    private static final int NAME_OVERHEAD = 48;
+
+    /**
+     * A {@link Weigher} estimating the number of bytes retained by a cache entry based on the wire size of the query and
+     * the response, the number of records and the size of the records' owner names.
+     */
+    public static final Weigher ESTIMATED_RETAINED_BYTES = new Weigher() {
+        @Override
+        public long weigh(DnsMessage normalizedQuery, DnsQueryResult result) {
+            DnsMessage response = result.response;
+            long weight = ENTRY_OVERHEAD;
+            weight += normalizedQuery.toArray().length;
+            weight += response.toArray().length;
+            weight += weigh(response.answerSection);
+            weight += weigh(response.authoritySection);
+            weight += weigh(response.additionalSection);
+            return weight;
+        }
+
+        private long weigh(List<Record<? extends Data>> records) {
+            long weight = 0;
+            for (Record<? extends Data> record : records) {
+                weight += RECORD_OVERHEAD + weigh(record.name);
+            }
+            return weight;
+        }
+
+        private long weigh(DnsName name) {
+            return NAME_OVERHEAD + 3L * name.ace.length();
+        }
+    };
+
+    /**
+     * The default maximum weight, 4 MiB.
+     */
+    public static final long DEFAULT_MAX_WEIGHT = 4 * 1024 * 1024;
+
+    private static final class WeighedEntry {
+        private final CachedDnsQueryResult result;
+        private final long weight;
+
+        private WeighedEntry(CachedDnsQueryResult result, long weight) {
+            this.result = result;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Internal miss count.
+     */
+    protected long missCount = 0L;
+
+    /**
+     * Internal expire count (subset of misses that was caused by expire).
+     */
+    protected long expireCount = 0L;
+
+    /**
+     * Internal hit count.
+     */
+    protected long hitCount = 0L;
+
+    /**
+     * Internal count of entries evicted because the maximum weight was exceeded.
+     */
+    protected long evictionCount = 0L;
+
+    /**
+     * The upper bound of the sum of the weights of all entries.
+     */
+    protected final long maxWeight;
+
+    /**
+     * The upper bound of the ttl. All longer TTLs will be capped by this ttl.
+     */
+    protected final long maxTTL;
+
+    /**
+     * The upper bound of the ttl of negative responses.
+     */
+    protected final long maxNegativeTTL;
+
+    private final Weigher weigher;
+
+    private final LinkedHashMap<DnsMessage, WeighedEntry> backend = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long weight;
+
+    /**
+     * Create a new memory bounded LRU cache.
+     *
+     * @param maxWeight the upper bound of the sum of the weights of all entries.
+     * @param weigher the weigher used to determine the weight of an entry.
+     * @param maxTTL the upper bound for any ttl.
+     * @param maxNegativeTTL the upper bound for any ttl of negative responses.
+     */
+    public MemoryBoundedLruCache(long maxWeight, Weigher weigher, long maxTTL, long maxNegativeTTL) {
+        if (maxWeight < 0) {
+            throw new IllegalArgumentException("The maximum weight must not be negative");
+        }
+        if (weigher == null) {
+            throw new IllegalArgumentException();
+        }
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        this.maxTTL = maxTTL;
+        this.maxNegativeTTL = maxNegativeTTL;
+    }
+
+    /**
+     * Create a new memory bounded LRU cache using the {@link #ESTIMATED_RETAINED_BYTES} weigher.
+     *
+     * @param maxBytes the upper bound of the estimated number of bytes retained by the cache.
+     */
+    public MemoryBoundedLruCache(long maxBytes) {
+        this(maxBytes, ESTIMATED_RETAINED_BYTES, Long.MAX_VALUE, DEFAULT_MAX_NEGATIVE_TTL);
+    }
+
+    public MemoryBoundedLruCache() {
+        this(DEFAULT_MAX_WEIGHT);
+    }
+
+    @Override
+    protected synchronized void putNormalized(DnsMessage q, DnsQueryResult result) {
+        DnsMessage message = result.response;
+        if (message.receiveTimestamp <= 0L) {
+            return;
+        }
+        // RFC 2308 § 5: Negative responses without SOA records SHOULD NOT be cached.
+        if (message.isNegativeResponse() && message.getNegativeTtl() < 0) {
+            return;
+        }
+
+        long entryWeight = weigher.weigh(q, result);
+        if (entryWeight < 0) {
+            throw new IllegalStateException("Weigher returned negative weight " + entryWeight + " for " + q);
+        }
+
+        WeighedEntry previous = backend.remove(q);
+        if (previous != null) {
+            weight -= previous.weight;
+        }
+
+        if (entryWeight > maxWeight) {
+            // The entry would evict everything else and still not fit.
+            return;
+        }
+
+        backend.put(q, new WeighedEntry(new DirectCachedDnsQueryResult(q, result), entryWeight));
+        weight += entryWeight;
+
+        Iterator<Entry<DnsMessage, WeighedEntry>> it = backend.entrySet().iterator();
+        while (weight > maxWeight && it.hasNext()) {
+            WeighedEntry eldest = it.next().getValue();
+            it.remove();
+            weight -= eldest.weight;
+            evictionCount++;
+        }
+    }
+
+    @Override
+    protected synchronized CachedDnsQueryResult getNormalized(DnsMessage q) {
+        WeighedEntry entry = backend.get(q);
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+
+        final long expiryDate = getExpirationTimestamp(entry.result.response, maxTTL, maxNegativeTTL);
+        final long now = System.currentTimeMillis();
+        if (expiryDate < now) {
+            missCount++;
+            expireCount++;
+            backend.remove(q);
+            weight -= entry.weight;
+            return null;
+        }
+
+        hitCount++;
+        return entry.result;
+    }
+
+    @Override
+    protected synchronized CachedDnsQueryResult peekNormalized(DnsMessage q) {
+        WeighedEntry entry = backend.get(q);
+        if (entry == null) {
+            return null;
+        }
+        if (getExpirationTimestamp(entry.result.response, maxTTL, maxNegativeTTL) < System.currentTimeMillis()) {
+            backend.remove(q);
+            weight -= entry.weight;
+            return null;
+        }
+        return entry.result;
+    }
+
+    @Override
+    public void offer(DnsMessage query, DnsQueryResult result, DnsName knownAuthoritativeZone) {
+    }
+
+    @Override
+    public synchronized List<CachedDnsQueryResult> getEntries() {
+        List<CachedDnsQueryResult> entries = new ArrayList<>(backend.size());
+        for (WeighedEntry entry : backend.values()) {
+            entries.add(entry.result);
+        }
+        return entries;
+    }
+
+    @Override
+    public synchronized int invalidateSubtree(DnsName name) {
+        int removed = 0;
+        Iterator<Entry<DnsMessage, WeighedEntry>> it = backend.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry<DnsMessage, WeighedEntry> entry = it.next();
+            if (isInSubtree(entry.getKey(), name)) {
+                it.remove();
+                weight -= entry.getValue().weight;
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Clear all entries in this cache.
+     */
+    public synchronized void clear() {
+        backend.clear();
+        weight = 0;
+        missCount = 0L;
+        hitCount = 0L;
+        expireCount = 0L;
+        evictionCount = 0L;
+    }
+
+    /**
+     * Get the current weight of this cache, which is the sum of the weights of all entries.
+     *
+     * @return the current weight.
+     */
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    /**
+     * Get the maximum weight of this cache.
+     *
+     * @return the maximum weight.
+     */
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * Get the number of entries in this cache.
+     *
+     * @return the number of entries.
+     */
+    public synchronized int size() {
+        return backend.size();
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    public long getExpireCount() {
+        return expireCount;
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * The number of entries evicted because the maximum weight was exceeded.
+     *
+     * @return the eviction count.
+     */
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MemoryBoundedLruCache{weight=" + weight + "/" + maxWeight + ", entries=" + backend.size() + ", hits=" + hitCount
+                + ", misses=" + missCount + ", expires=" + expireCount + ", evictions=" + evictionCount + "}";
+    }
+}
@@ -0,0 +1,542 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.cache;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.minidns.DnsCache;
+import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsname.DnsName;
+import org.minidns.dnsqueryresult.CachedDnsQueryResult;
+import org.minidns.dnsqueryresult.DirectCachedDnsQueryResult;
+import org.minidns.dnsqueryresult.DnsQueryResult;
+import org.minidns.dnsqueryresult.DnsQueryResult.QueryMethod;
+import org.minidns.dnsqueryresult.StandardDnsQueryResult;
+
+/**
+ * A DNSCache storing the responses in their wire format in off-heap memory. This avoids having millions of small
+ * objects on the heap when the cache is large, which reduces the pressure on the garbage collector.
+ * <p>
+ * The entries are appended to a ring of direct {@link ByteBuffer} slabs. Once the ring is full, the oldest entries are
+ * overwritten, hence the eviction strategy is FIFO. The entries are found via a compact open-addressing index, made of
+ * primitive arrays, storing the hash of the normalized query, the position of the entry in the ring and its expiry
+ * date. On a cache hit, the response is decoded from its wire format.
+ * </p>
+ */
+public class OffHeapCache extends DnsCache {
+
+    private static final Logger LOGGER = Logger.getLogger(OffHeapCache.class.getName());
+
+    public static final int DEFAULT_SLAB_SIZE = 4 * 1024 * 1024;
+
+    public static final int DEFAULT_SLAB_COUNT = 4;
+
+    /**
+     * The size of the fixed part of an entry header: entry length (int), key length (int), receive timestamp (long),
+     * query method (byte), port (short) and address length (byte).
+     */
+    private static final int ENTRY_HEADER_SIZE = 4 + 4 + 8 + 1 + 2 + 1;
+
+    private static final long EMPTY = -1;
+
+    private static final long REMOVED = -2;
+
+    private static final int MIN_INDEX_SIZE = 16;
+
+    private static final QueryMethod[] QUERY_METHODS = QueryMethod.values();
+
+    /**
+     * Internal miss count.
+     */
+    protected long missCount = 0L;
+
+    /**
+     * Internal expire count (subset of misses that was caused by expire).
+     */
+    protected long expireCount = 0L;
+
+    /**
+     * Internal hit count.
+     */
+    protected long hitCount = 0L;
+
+    /**
+     * The upper bound of the ttl. All longer TTLs will be capped by this ttl.
+     */
+    protected final long maxTTL;
+
+    /**
+     * The upper bound of the ttl of negative responses.
+     */
+    protected final long maxNegativeTTL;
+
+    private final int slabSize;
+
+    private final ByteBuffer[] slabs;
+
+    private final long ringSize;
+
+    /**
+     * The position in the ring at which the next entry will be written. Positions increase monotonically, the position
+     * within the slabs is obtained by taking the modulo of the ring size.
+     */
+    private long head;
+
+    private int[] indexHashes;
+
+    private long[] indexPositions;
+
+    private long[] indexExpiries;
+
+    /**
+     * The number of index slots which are not {@link #EMPTY}.
+     */
+    private int indexUsed;
+
+    /**
+     * Create a new off-heap cache.
+     *
+     * @param slabSize the size of a single slab in bytes, which is also the upper bound of the size of a single entry.
+     * @param slabCount the number of slabs.
+     * @param maxTTL the upper bound for any ttl.
+     * @param maxNegativeTTL the upper bound for any ttl of negative responses.
+     */
+    public OffHeapCache(int slabSize, int slabCount, long maxTTL, long maxNegativeTTL) {
+        if (slabSize <= ENTRY_HEADER_SIZE) {
+            throw new IllegalArgumentException("Slab size must be greater than " + ENTRY_HEADER_SIZE);
+        }
+        if (slabCount <= 0) {
+            throw new IllegalArgumentException("Slab count must be greater than zero");
+        }
+        this.slabSize = slabSize;
+        this.slabs = new ByteBuffer[slabCount];
+        this.ringSize = (long) slabSize * slabCount;
+        this.maxTTL = maxTTL;
+        this.maxNegativeTTL = maxNegativeTTL;
+        resetIndex(MIN_INDEX_SIZE);
+    }
+
+    public OffHeapCache(int slabSize, int slabCount) {
+        this(slabSize, slabCount, Long.MAX_VALUE, DEFAULT_MAX_NEGATIVE_TTL);
+    }
+
+    public OffHeapCache() {
+        this(DEFAULT_SLAB_SIZE, DEFAULT_SLAB_COUNT);
+    }
+
+    @Override
+    protected synchronized void putNormalized(DnsMessage q, DnsQueryResult result) {
+        DnsMessage response = result.response;
+        if (response.receiveTimestamp <= 0L) {
+            return;
+        }
+        // RFC 2308 § 5: Negative responses without SOA records SHOULD NOT be cached.
+        if (response.isNegativeResponse() && response.getNegativeTtl() < 0) {
+            return;
+        }
+
+        final long expiry = getExpirationTimestamp(response, maxTTL, maxNegativeTTL);
+        if (expiry < System.currentTimeMillis()) {
+            return;
+        }
+
+        byte[] address = null;
+        int port = 0;
+        if (result instanceof StandardDnsQueryResult) {
+            StandardDnsQueryResult standardResult = (StandardDnsQueryResult) result;
+            if (standardResult.serverAddress != null) {
+                address = standardResult.serverAddress.getAddress();
+            }
+            port = standardResult.port;
+        }
+        final int addressLength = address == null ? 0 : address.length;
+
+        byte[] key = q.toArray();
+        byte[] responseBytes = response.toArray();
+        final int entryLength = ENTRY_HEADER_SIZE + addressLength + key.length + responseBytes.length;
+        if (entryLength > slabSize) {
+            LOGGER.fine("Not caching response of " + entryLength + " bytes, as it exceeds the slab size of " + slabSize);
+            return;
+        }
+
+        // Entries never span two slabs.
+        int offset = (int) (head % slabSize);
+        if (offset + entryLength > slabSize) {
+            head += slabSize - offset;
+            offset = 0;
+        }
+        final long position = head;
+        head += entryLength;
+
+        ByteBuffer slab = getSlab(position);
+        slab.position(offset);
+        slab.putInt(entryLength);
+        slab.putInt(key.length);
+        slab.putLong(response.receiveTimestamp);
+        slab.put((byte) result.queryMethod.ordinal());
+        slab.putShort((short) port);
+        slab.put((byte) addressLength);
+        if (address != null) {
+            slab.put(address);
+        }
+        slab.put(key);
+        slab.put(responseBytes);
+
+        final int hash = q.hashCode();
+        if (indexUsed + 1 > indexPositions.length * 3 / 4) {
+            rebuildIndex();
+        }
+        int slot = findSlot(hash, key, true);
+        if (indexPositions[slot] == EMPTY) {
+            indexUsed++;
+        }
+        indexHashes[slot] = hash;
+        indexPositions[slot] = position;
+        indexExpiries[slot] = expiry;
+    }
+
+    @Override
+    protected synchronized CachedDnsQueryResult getNormalized(DnsMessage q) {
+        return lookup(q, true);
+    }
+
+    @Override
+    protected synchronized CachedDnsQueryResult peekNormalized(DnsMessage q) {
+        return lookup(q, false);
+    }
+
+    private CachedDnsQueryResult lookup(DnsMessage q, boolean record) {
+        byte[] key = q.toArray();
+        int slot = findSlot(q.hashCode(), key, false);
+        if (slot < 0) {
+            if (record) {
+                missCount++;
+            }
+            return null;
+        }
+
+        if (indexExpiries[slot] < System.currentTimeMillis()) {
+            if (record) {
+                missCount++;
+                expireCount++;
+            }
+            indexPositions[slot] = REMOVED;
+            return null;
+        }
+
+        DnsQueryResult cachedResult;
+        try {
+            cachedResult = readEntry(q, indexPositions[slot]);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not decode cached response for " + q.getQuestion(), e);
+            if (record) {
+                missCount++;
+            }
+            indexPositions[slot] = REMOVED;
+            return null;
+        }
+
+        if (record) {
+            hitCount++;
+        }
+        return new DirectCachedDnsQueryResult(q, cachedResult);
+    }
+
+    /**
+     * Get a copy of the entries currently in this cache. Note that this decodes all entries and hence creates objects on
+     * the heap for every entry.
+     *
+     * @return a list of the cached entries.
+     */
+    @Override
+    public synchronized List<CachedDnsQueryResult> getEntries() {
+        List<CachedDnsQueryResult> entries = new ArrayList<>();
+        for (int i = 0; i < indexPositions.length; i++) {
+            long position = indexPositions[i];
+            if (position < 0 || isOverwritten(position)) {
+                continue;
+            }
+            try {
+                DnsMessage q = new DnsMessage(readKey(position));
+                entries.add(new DirectCachedDnsQueryResult(q, readEntry(q, position)));
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not decode cached entry", e);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Remove all cached entries whose question name is the given name or a name below it. The entries are only removed
+     * from the index, their space in the ring is reclaimed once it is overwritten.
+     */
+    @Override
+    public synchronized int invalidateSubtree(DnsName name) {
+        int removed = 0;
+        for (int i = 0; i < indexPositions.length; i++) {
+            long position = indexPositions[i];
+            if (position < 0 || isOverwritten(position)) {
+                continue;
+            }
+            DnsMessage q;
+            try {
+                q = new DnsMessage(readKey(position));
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not decode cached entry", e);
+                indexPositions[i] = REMOVED;
+                continue;
+            }
+            if (isInSubtree(q, name)) {
+                indexPositions[i] = REMOVED;
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public void offer(DnsMessage query, DnsQueryResult result, DnsName knownAuthoritativeZone) {
+    }
+
+    private ByteBuffer getSlab(long position) {
+        int slabIndex = (int) ((position / slabSize) % slabs.length);
+        ByteBuffer slab = slabs[slabIndex];
+        if (slab == null) {
+            slab = ByteBuffer.allocateDirect(slabSize);
+            slabs[slabIndex] = slab;
+        }
+        return slab;
+    }
+
+    /**
+     * Check if the entry at the given position was overwritten, because the ring wrapped around since it was written.
+     */
+    private boolean isOverwritten(long position) {
+        return head > position + ringSize;
+    }
+
+    private StandardDnsQueryResult readEntry(DnsMessage q, long position) throws IOException {
+        ByteBuffer slab = getSlab(position);
+        slab.position((int) (position % slabSize));
+        int entryLength = slab.getInt();
+        int keyLength = slab.getInt();
+        long receiveTimestamp = slab.getLong();
+        QueryMethod queryMethod = QUERY_METHODS[slab.get()];
+        int port = slab.getShort() & 0xffff;
+        int addressLength = slab.get();
+
+        InetAddress address = null;
+        if (addressLength > 0) {
+            byte[] addressBytes = new byte[addressLength];
+            slab.get(addressBytes);
+            try {
+                address = InetAddress.getByAddress(addressBytes);
+            } catch (UnknownHostException e) {
+                throw new IOException(e);
+            }
+        }
+
+        slab.position(slab.position() + keyLength);
+        byte[] responseBytes = new byte[entryLength - ENTRY_HEADER_SIZE - addressLength - keyLength];
+        slab.get(responseBytes);
+
+        DnsMessage response = new DnsMessage(responseBytes, receiveTimestamp);
+        return new StandardDnsQueryResult(address, port, queryMethod, q, response);
+    }
+
+    private byte[] readKey(long position) {
+        ByteBuffer slab = getSlab(position);
+        int offset = (int) (position % slabSize);
+        int keyLength = slab.getInt(offset + 4);
+        int addressLength = slab.get(offset + ENTRY_HEADER_SIZE - 1);
+        byte[] key = new byte[keyLength];
+        slab.position(offset + ENTRY_HEADER_SIZE + addressLength);
+        slab.get(key);
+        return key;
+    }
+
+    private boolean keyEquals(long position, byte[] key) {
+        ByteBuffer slab = getSlab(position);
+        int offset = (int) (position % slabSize);
+        int keyLength = slab.getInt(offset + 4);
+        if (keyLength != key.length) {
+            return false;
+        }
+        int addressLength = slab.get(offset + ENTRY_HEADER_SIZE - 1);
+        int keyOffset = offset + ENTRY_HEADER_SIZE + addressLength;
+        for (int i = 0; i < keyLength; i++) {
+            if (slab.get(keyOffset + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find the index slot of the entry with the given key. Index slots pointing to overwritten entries are marked as
+     * removed while probing.
+     *
+     * @param hash the hash of the key.
+     * @param key the key.
+     * @param forInsert if <code>true</code>, return the first free slot if there is no entry with the given key.
+     * @return the slot, or -1 if there is no entry with the given key and <code>forInsert</code> is false.
+     */
+    private int findSlot(int hash, byte[] key, boolean forInsert) {
+        final int mask = indexPositions.length - 1;
+        int freeSlot = -1;
+        for (int i = spread(hash) & mask;; i = (i + 1) & mask) {
+            long position = indexPositions[i];
+            if (position == EMPTY) {
+                if (!forInsert) {
+                    return -1;
+                }
+                return freeSlot >= 0 ? freeSlot : i;
+            }
+
+            if (position != REMOVED && isOverwritten(position)) {
+                indexPositions[i] = REMOVED;
+                position = REMOVED;
+            }
+
+            if (position == REMOVED) {
+                if (freeSlot < 0) {
+                    freeSlot = i;
+                }
+                continue;
+            }
+
+            if (indexHashes[i] == hash && keyEquals(position, key)) {
+                return i;
+            }
+        }
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private void resetIndex(int size) {
+        indexHashes = new int[size];
+        indexPositions = new long[size];
+        Arrays.fill(indexPositions, EMPTY);
+        indexExpiries = new long[size];
+        indexUsed = 0;
+    }
+
+    /**
+     * Rebuild the index, purging expired, overwritten and removed entries, and grow it if required.
+     */
+    private void rebuildIndex() {
+        final long now = System.currentTimeMillis();
+        int[] oldHashes = indexHashes;
+        long[] oldPositions = indexPositions;
+        long[] oldExpiries = indexExpiries;
+
+        int live = 0;
+        for (int i = 0; i < oldPositions.length; i++) {
+            long position = oldPositions[i];
+            if (position >= 0 && !isOverwritten(position) && oldExpiries[i] >= now) {
+                live++;
+            } else {
+                oldPositions[i] = REMOVED;
+            }
+        }
+
+        int size = MIN_INDEX_SIZE;
+        while ((live + 1) > size / 2) {
+            size <<= 1;
+        }
+        resetIndex(size);
+
+        final int mask = size - 1;
+        for (int i = 0; i < oldPositions.length; i++) {
+            if (oldPositions[i] < 0) {
+                continue;
+            }
+            int slot = spread(oldHashes[i]) & mask;
+            while (indexPositions[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            indexHashes[slot] = oldHashes[i];
+            indexPositions[slot] = oldPositions[i];
+            indexExpiries[slot] = oldExpiries[i];
+            indexUsed++;
+        }
+    }
+
+    /**
+     * Clear all entries in this cache. The off-heap memory already allocated is retained for re-use.
+     */
+    public synchronized void clear() {
+        head = 0;
+        resetIndex(MIN_INDEX_SIZE);
+        missCount = 0L;
+        hitCount = 0L;
+        expireCount = 0L;
+    }
+
+    /**
+     * Get the number of entries in the index. Note that this includes entries which expired or were overwritten, but
+     * which have not been purged from the index yet.
+     *
+     * @return the number of entries in the index.
+     */
+    public synchronized int size() {
+        int size = 0;
+        for (long position : indexPositions) {
+            if (position >= 0) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Get the number of off-heap bytes allocated by this cache.
+     *
+     * @return the number of allocated off-heap bytes.
+     */
+    public synchronized long getAllocatedOffHeapBytes() {
+        long allocated = 0;
+        for (ByteBuffer slab : slabs) {
+            if (slab != null) {
+                allocated += slab.capacity();
+            }
+        }
+        return allocated;
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    public long getExpireCount() {
+        return expireCount;
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "OffHeapCache{slabs=" + slabs.length + "x" + slabSize + ", allocated=" + getAllocatedOffHeapBytes() + ", hits=" + hitCount
+                + ", misses=" + missCount + ", expires=" + expireCount + "}";
+    }
+}
@@ -0,0 +1,654 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.minidns.DnsCache;
+import org.minidns.RrSet;
+import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsmessage.DnsMessage.RESPONSE_CODE;
+import org.minidns.dnsmessage.Question;
+import org.minidns.dnsname.DnsName;
+import org.minidns.dnsqueryresult.CachedDnsQueryResult;
+import org.minidns.dnsqueryresult.DnsQueryResult;
+import org.minidns.dnsqueryresult.SynthesizedCachedDnsQueryResult;
+import org.minidns.edns.Edns;
+import org.minidns.record.CNAME;
+import org.minidns.record.Data;
+import org.minidns.record.RRSIG;
+import org.minidns.record.Record;
+import org.minidns.record.Record.CLASS;
+import org.minidns.record.Record.TYPE;
+
+/**
+ * A DNSCache which does not store whole response messages, but the RRsets contained in them, keyed by their owner name,
+ * type and class. Every RRset has its own TTL and trust level. Responses are synthesized from the cached RRsets on
+ * lookup, following CNAME chains. Hence RRsets shared by many responses are only stored once, and a query is answered
+ * from the cache if the RRsets it needs were learned by different queries.
+ * <p>
+ * Only RRsets which are part of the answer, i.e. the RRsets owned by the question name and the names of the CNAME chain
+ * starting there, and the authority section of authoritative answers for an ancestor of the question name are cached.
+ * Following RFC 2181 § 5.4.1, data from the additional section is never used to answer a query. An RRset is only
+ * replaced by one with the same or a higher trust level, unless it is expired.
+ * </p>
+ */
+public class RrSetCache extends DnsCache {
+
+    /**
+     * The trust level of a cached RRset, as specified in RFC 2181 § 5.4.1, from the lowest to the highest level.
+     */
+    public enum Trust {
+        /**
+         * Data from the answer section of a non-authoritative answer.
+         */
+        nonAuthoritativeAnswer,
+
+        /**
+         * Data from the authority section of an authoritative answer.
+         */
+        authoritativeAuthority,
+
+        /**
+         * Data from the answer section of an authoritative answer.
+         */
+        authoritativeAnswer,
+    }
+
+    private static final class RrSetKey {
+        private final DnsName name;
+        private final TYPE type;
+        private final CLASS clazz;
+
+        private RrSetKey(DnsName name, TYPE type, CLASS clazz) {
+            this.name = name;
+            this.type = type;
+            this.clazz = clazz;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof RrSetKey)) {
+                return false;
+            }
+            RrSetKey otherKey = (RrSetKey) other;
+            return name.equals(otherKey.name) && type == otherKey.type && clazz == otherKey.clazz;
+        }
+
+        @Override
+        public int hashCode() {
+            return (name.hashCode() * 31 + type.hashCode()) * 31 + clazz.hashCode();
+        }
+    }
+
+    private static final class CachedRrSet {
+        private final RrSet rrSet;
+        private final List<Record<? extends Data>> signatures;
+        private final long expiry;
+        private final Trust trust;
+        private final boolean dnssecOk;
+        private final boolean authenticData;
+
+        private CachedRrSet(RrSet rrSet, List<Record<? extends Data>> signatures, long expiry, Trust trust,
+                boolean dnssecOk, boolean authenticData) {
+            this.rrSet = rrSet;
+            this.signatures = signatures;
+            this.expiry = expiry;
+            this.trust = trust;
+            this.dnssecOk = dnssecOk;
+            this.authenticData = authenticData;
+        }
+    }
+
+    private static final class NegativeEntry {
+        private final RESPONSE_CODE responseCode;
+        private final List<Record<? extends Data>> authority;
+        private final long expiry;
+        private final boolean dnssecOk;
+        private final boolean authenticData;
+
+        private NegativeEntry(RESPONSE_CODE responseCode, List<Record<? extends Data>> authority, long expiry,
+                boolean dnssecOk, boolean authenticData) {
+            this.responseCode = responseCode;
+            this.authority = authority;
+            this.expiry = expiry;
+            this.dnssecOk = dnssecOk;
+            this.authenticData = authenticData;
+        }
+    }
+
+    /**
+     * Internal miss count.
+     */
+    protected long missCount = 0L;
+
+    /**
+     * Internal expire count (number of expired RRsets or negative entries encountered on lookup).
+     */
+    protected long expireCount = 0L;
+
+    /**
+     * Internal hit count.
+     */
+    protected long hitCount = 0L;
+
+    /**
+     * Internal hit count of negative responses (subset of hits).
+     */
+    protected long negativeHitCount = 0L;
+
+    /**
+     * The maximum number of cached RRsets.
+     */
+    protected final int capacity;
+
+    /**
+     * The maximum number of cached negative responses.
+     */
+    protected final int negativeCapacity;
+
+    /**
+     * The upper bound of the ttl. All longer TTLs will be capped by this ttl.
+     */
+    protected final long maxTTL;
+
+    /**
+     * The upper bound of the ttl of negative responses.
+     */
+    protected final long maxNegativeTTL;
+
+    /**
+     * The maximum number of CNAME records followed when synthesizing a response.
+     */
+    protected final int maxChainLength;
+
+    private final LinkedHashMap<RrSetKey, CachedRrSet> rrSets;
+
+    private final LinkedHashMap<RrSetKey, NegativeEntry> negativeEntries;
+
+    /**
+     * Create a new RRset cache.
+     *
+     * @param capacity the maximum number of cached RRsets.
+     * @param maxTTL the upper bound for any ttl.
+     * @param negativeCapacity the maximum number of cached negative responses.
+     * @param maxNegativeTTL the upper bound for any ttl of negative responses.
+     * @param maxChainLength the maximum number of CNAME records followed when synthesizing a response.
+     */
+    public RrSetCache(int capacity, long maxTTL, int negativeCapacity, long maxNegativeTTL, int maxChainLength) {
+        this.capacity = capacity;
+        this.maxTTL = maxTTL;
+        this.negativeCapacity = negativeCapacity;
+        this.maxNegativeTTL = maxNegativeTTL;
+        this.maxChainLength = maxChainLength;
+        rrSets = createBackend(capacity);
+        negativeEntries = createBackend(negativeCapacity);
+    }
+
+    /**
+     * Create a new RRset cache with the given capacity. A quarter of the capacity is used as additional capacity for
+     * negative responses.
+     *
+     * @param capacity the maximum number of cached RRsets.
+     */
+    public RrSetCache(int capacity) {
+        this(capacity, Long.MAX_VALUE, capacity / 4, DEFAULT_MAX_NEGATIVE_TTL, DEFAULT_MAX_CHAIN_LENGTH);
+    }
+
+    public RrSetCache() {
+        this(DEFAULT_CACHE_SIZE);
+    }
+
+    @SuppressWarnings("serial")
+    private static <V> LinkedHashMap<RrSetKey, V> createBackend(final int capacity) {
+        return new LinkedHashMap<RrSetKey, V>(Math.min(capacity + (capacity + 3) / 4 + 2, 11), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Entry<RrSetKey, V> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    @Override
+    protected synchronized void putNormalized(DnsMessage q, DnsQueryResult result) {
+        DnsMessage message = result.response;
+        Question question = q.getQuestion();
+        if (message.receiveTimestamp <= 0L || question == null) {
+            return;
+        }
+        if (message.responseCode != RESPONSE_CODE.NO_ERROR && message.responseCode != RESPONSE_CODE.NX_DOMAIN) {
+            return;
+        }
+
+        Edns edns = message.getEdns();
+        boolean dnssecOk = edns != null && edns.dnssecOk;
+
+        Set<DnsName> chain = new HashSet<>();
+        DnsName chainEnd = followChain(question, message.answerSection, chain);
+
+        Trust answerTrust = message.authoritativeAnswer ? Trust.authoritativeAnswer : Trust.nonAuthoritativeAnswer;
+        Map<RrSetKey, Set<Record<? extends Data>>> answerRrSets = new LinkedHashMap<>();
+        Map<RrSetKey, List<Record<? extends Data>>> signatures = new LinkedHashMap<>();
+        gather(message.answerSection, chain, answerRrSets, signatures);
+        storeRrSets(answerRrSets, signatures, message, answerTrust, dnssecOk);
+
+        if (message.isNegativeResponse()) {
+            long negativeTtl = message.getNegativeTtl();
+            // RFC 2308 § 5: Negative responses without SOA records SHOULD NOT be cached.
+            if (negativeTtl >= 0) {
+                negativeTtl = Math.min(negativeTtl, maxNegativeTTL);
+                RrSetKey key = new RrSetKey(chainEnd, negativeKeyType(message.responseCode, question.type), question.clazz);
+                List<Record<? extends Data>> authority = new ArrayList<>(message.authoritySection);
+                negativeEntries.put(key, new NegativeEntry(message.responseCode, authority,
+                        message.receiveTimestamp + negativeTtl * 1000, dnssecOk, message.authenticData));
+                rrSets.remove(new RrSetKey(chainEnd, question.type, question.clazz));
+            }
+        } else if (message.authoritativeAnswer) {
+            Map<RrSetKey, Set<Record<? extends Data>>> authorityRrSets = new LinkedHashMap<>();
+            signatures.clear();
+            for (Record<? extends Data> record : message.authoritySection) {
+                // Only accept authority data for the zones the question name belongs to.
+                if (question.name.isChildOf(record.name)) {
+                    gather(record, authorityRrSets, signatures);
+                }
+            }
+            storeRrSets(authorityRrSets, signatures, message, Trust.authoritativeAuthority, dnssecOk);
+        }
+    }
+
+    /**
+     * Follow the CNAME chain starting at the question name within the given records.
+     *
+     * @param question the question.
+     * @param records the records of the answer section.
+     * @param chain the set the names of the chain are added to.
+     * @return the last name of the chain.
+     */
+    private DnsName followChain(Question question, List<Record<? extends Data>> records, Set<DnsName> chain) {
+        DnsName name = question.name;
+        chain.add(name);
+        if (question.type == TYPE.CNAME) {
+            return name;
+        }
+        for (int i = 0; i < maxChainLength; i++) {
+            DnsName target = null;
+            for (Record<? extends Data> record : records) {
+                if (record.type == TYPE.CNAME && record.name.equals(name)) {
+                    target = ((CNAME) record.payloadData).target;
+                    break;
+                }
+            }
+            if (target == null || !chain.add(target)) {
+                break;
+            }
+            name = target;
+        }
+        return name;
+    }
+
+    private static void gather(List<Record<? extends Data>> records, Set<DnsName> owners,
+            Map<RrSetKey, Set<Record<? extends Data>>> rrSets, Map<RrSetKey, List<Record<? extends Data>>> signatures) {
+        for (Record<? extends Data> record : records) {
+            if (owners.contains(record.name)) {
+                gather(record, rrSets, signatures);
+            }
+        }
+    }
+
+    private static void gather(Record<? extends Data> record, Map<RrSetKey, Set<Record<? extends Data>>> rrSets,
+            Map<RrSetKey, List<Record<? extends Data>>> signatures) {
+        if (record.type == TYPE.OPT) {
+            return;
+        }
+        if (record.type == TYPE.RRSIG) {
+            RrSetKey key = new RrSetKey(record.name, ((RRSIG) record.payloadData).typeCovered, record.clazz);
+            List<Record<? extends Data>> keySignatures = signatures.get(key);
+            if (keySignatures == null) {
+                keySignatures = new ArrayList<>(2);
+                signatures.put(key, keySignatures);
+            }
+            keySignatures.add(record);
+            return;
+        }
+
+        RrSetKey key = new RrSetKey(record.name, record.type, record.clazz);
+        Set<Record<? extends Data>> rrSet = rrSets.get(key);
+        if (rrSet == null) {
+            rrSet = new LinkedHashSet<>();
+            rrSets.put(key, rrSet);
+        }
+        rrSet.add(record);
+    }
+
+    private void storeRrSets(Map<RrSetKey, Set<Record<? extends Data>>> newRrSets, Map<RrSetKey, List<Record<? extends Data>>> signatures,
+            DnsMessage message, Trust trust, boolean dnssecOk) {
+        final long now = System.currentTimeMillis();
+        for (Entry<RrSetKey, Set<Record<? extends Data>>> entry : newRrSets.entrySet()) {
+            RrSetKey key = entry.getKey();
+            CachedRrSet existing = rrSets.get(key);
+            if (existing != null && existing.expiry >= now && existing.trust.compareTo(trust) > 0) {
+                continue;
+            }
+
+            RrSet.Builder rrSet = RrSet.builder();
+            // RFC 2181 § 5.2: If the TTLs of an RRSet differ, the shortest one is assumed to be the effective one.
+            long ttl = maxTTL;
+            for (Record<? extends Data> record : entry.getValue()) {
+                rrSet.addRecord(record);
+                ttl = Math.min(ttl, record.ttl);
+            }
+            List<Record<? extends Data>> keySignatures = signatures.get(key);
+            if (keySignatures == null) {
+                keySignatures = Collections.emptyList();
+            }
+            rrSets.put(key, new CachedRrSet(rrSet.build(), keySignatures, message.receiveTimestamp + ttl * 1000, trust, dnssecOk,
+                    message.authenticData));
+            negativeEntries.remove(key);
+            negativeEntries.remove(new RrSetKey(key.name, TYPE.ANY, key.clazz));
+        }
+    }
+
+    /**
+     * NXDOMAIN responses apply to all types of the name, hence they are stored with the ANY type.
+     */
+    private static TYPE negativeKeyType(RESPONSE_CODE responseCode, TYPE type) {
+        return responseCode == RESPONSE_CODE.NX_DOMAIN ? TYPE.ANY : type;
+    }
+
+    @Override
+    protected synchronized CachedDnsQueryResult getNormalized(DnsMessage q) {
+        return synthesize(q, true);
+    }
+
+    @Override
+    protected synchronized CachedDnsQueryResult peekNormalized(DnsMessage q) {
+        return synthesize(q, false);
+    }
+
+    private CachedDnsQueryResult synthesize(DnsMessage q, boolean record) {
+        Question question = q.getQuestion();
+        if (question == null) {
+            if (record) {
+                missCount++;
+            }
+            return null;
+        }
+        Edns edns = q.getEdns();
+        final boolean dnssecOk = edns != null && edns.dnssecOk;
+        final long now = System.currentTimeMillis();
+
+        List<Record<? extends Data>> answers = new ArrayList<>();
+        List<Record<? extends Data>> authority = Collections.emptyList();
+        RESPONSE_CODE responseCode = RESPONSE_CODE.NO_ERROR;
+        boolean authoritativeAnswer = true;
+        boolean authenticData = true;
+
+        DnsName name = question.name;
+        Set<DnsName> chain = new HashSet<>();
+        chain.add(name);
+        int chainLength = 0;
+        while (true) {
+            CachedRrSet rrSet = lookup(new RrSetKey(name, question.type, question.clazz), dnssecOk, now);
+            if (rrSet != null) {
+                addRrSet(answers, rrSet, dnssecOk, now);
+                authoritativeAnswer &= rrSet.trust == Trust.authoritativeAnswer;
+                authenticData &= rrSet.authenticData;
+                break;
+            }
+
+            NegativeEntry negativeEntry = lookupNegative(new RrSetKey(name, question.type, question.clazz), dnssecOk, now);
+            if (negativeEntry == null) {
+                negativeEntry = lookupNegative(new RrSetKey(name, TYPE.ANY, question.clazz), dnssecOk, now);
+            }
+            if (negativeEntry != null) {
+                responseCode = negativeEntry.responseCode;
+                authority = negativeAuthority(negativeEntry, dnssecOk, now);
+                authenticData &= negativeEntry.authenticData;
+                if (record) {
+                    negativeHitCount++;
+                }
+                break;
+            }
+
+            CachedRrSet cname = null;
+            if (question.type != TYPE.CNAME && chainLength < maxChainLength) {
+                cname = lookup(new RrSetKey(name, TYPE.CNAME, question.clazz), dnssecOk, now);
+            }
+            if (cname == null) {
+                if (record) {
+                    missCount++;
+                }
+                return null;
+            }
+            addRrSet(answers, cname, dnssecOk, now);
+            authoritativeAnswer &= cname.trust == Trust.authoritativeAnswer;
+            authenticData &= cname.authenticData;
+
+            name = ((CNAME) cname.rrSet.records.iterator().next().payloadData).target;
+            chainLength++;
+            if (!chain.add(name)) {
+                // CNAME loop.
+                if (record) {
+                    missCount++;
+                }
+                return null;
+            }
+        }
+
+        DnsMessage.Builder response = q.getResponseBuilder(responseCode)
+                .setRecursionDesired(q.recursionDesired)
+                .setRecursionAvailable(true)
+                .setAuthoritativeAnswer(authoritativeAnswer && responseCode == RESPONSE_CODE.NO_ERROR)
+                // RFC 6840 § 5.7: Only set the AD bit if the query had the AD or the DO bit set.
+                .setAuthenticData(authenticData && (q.authenticData || dnssecOk))
+                .setCheckingDisabled(q.checkingDisabled)
+                .setAnswers(answers)
+                .setNameserverRecords(authority)
+                .setReceiveTimestamp(now);
+        if (edns != null) {
+            response.getEdnsBuilder().setUdpPayloadSize(edns.udpPayloadSize).setDnssecOk(dnssecOk);
+        }
+
+        if (record) {
+            hitCount++;
+        }
+        return new SynthesizedCachedDnsQueryResult(q, response.build());
+    }
+
+    private CachedRrSet lookup(RrSetKey key, boolean dnssecOk, long now) {
+        CachedRrSet rrSet = rrSets.get(key);
+        if (rrSet == null) {
+            return null;
+        }
+        if (rrSet.expiry < now) {
+            expireCount++;
+            rrSets.remove(key);
+            return null;
+        }
+        if (dnssecOk && !rrSet.dnssecOk) {
+            // The RRset was cached from a response without DNSSEC records, so the signatures are missing.
+            return null;
+        }
+        return rrSet;
+    }
+
+    private NegativeEntry lookupNegative(RrSetKey key, boolean dnssecOk, long now) {
+        NegativeEntry negativeEntry = negativeEntries.get(key);
+        if (negativeEntry == null) {
+            return null;
+        }
+        if (negativeEntry.expiry < now) {
+            expireCount++;
+            negativeEntries.remove(key);
+            return null;
+        }
+        if (dnssecOk && !negativeEntry.dnssecOk) {
+            return null;
+        }
+        return negativeEntry;
+    }
+
+    private static void addRrSet(List<Record<? extends Data>> records, CachedRrSet rrSet, boolean dnssecOk, long now) {
+        long remainingTtl = remainingTtl(rrSet.expiry, now);
+        for (Record<? extends Data> record : rrSet.rrSet.records) {
+            records.add(record.withTtl(remainingTtl));
+        }
+        if (dnssecOk) {
+            for (Record<? extends Data> signature : rrSet.signatures) {
+                records.add(signature.withTtl(remainingTtl));
+            }
+        }
+    }
+
+    private static List<Record<? extends Data>> negativeAuthority(NegativeEntry negativeEntry, boolean dnssecOk, long now) {
+        long remainingTtl = remainingTtl(negativeEntry.expiry, now);
+        List<Record<? extends Data>> authority = new ArrayList<>(negativeEntry.authority.size());
+        for (Record<? extends Data> record : negativeEntry.authority) {
+            if (!dnssecOk && record.type != TYPE.SOA) {
+                continue;
+            }
+            authority.add(record.withTtl(Math.min(record.ttl, remainingTtl)));
+        }
+        return authority;
+    }
+
+    private static long remainingTtl(long expiry, long now) {
+        return Math.max(0, (expiry - now) / 1000);
+    }
+
+    @Override
+    public void offer(DnsMessage query, DnsQueryResult result, DnsName knownAuthoritativeZone) {
+    }
+
+    /**
+     * Get the cached RRsets, each as synthesized response to a query for the RRset, and the cached negative responses.
+     * The trust level of the RRsets is not retained, apart from the authoritative answer flag.
+     *
+     * @return a list of the cached entries.
+     */
+    @Override
+    public synchronized List<CachedDnsQueryResult> getEntries() {
+        List<CachedDnsQueryResult> entries = new ArrayList<>(rrSets.size() + negativeEntries.size());
+        final long now = System.currentTimeMillis();
+        for (Entry<RrSetKey, NegativeEntry> entry : negativeEntries.entrySet()) {
+            RrSetKey key = entry.getKey();
+            NegativeEntry negativeEntry = entry.getValue();
+            DnsMessage query = entryQuery(key, negativeEntry.dnssecOk);
+            DnsMessage.Builder response = query.getResponseBuilder(negativeEntry.responseCode)
+                    .setRecursionAvailable(true)
+                    .setAuthenticData(negativeEntry.authenticData)
+                    .setNameserverRecords(negativeAuthority(negativeEntry, true, now))
+                    .setReceiveTimestamp(now);
+            entries.add(new SynthesizedCachedDnsQueryResult(query, withEdns(response, negativeEntry.dnssecOk).build()));
+        }
+        for (Entry<RrSetKey, CachedRrSet> entry : rrSets.entrySet()) {
+            CachedRrSet rrSet = entry.getValue();
+            DnsMessage query = entryQuery(entry.getKey(), rrSet.dnssecOk);
+            List<Record<? extends Data>> answers = new ArrayList<>(rrSet.rrSet.records.size() + rrSet.signatures.size());
+            addRrSet(answers, rrSet, true, now);
+            DnsMessage.Builder response = query.getResponseBuilder(RESPONSE_CODE.NO_ERROR)
+                    .setRecursionAvailable(true)
+                    .setAuthoritativeAnswer(rrSet.trust == Trust.authoritativeAnswer)
+                    .setAuthenticData(rrSet.authenticData)
+                    .setAnswers(answers)
+                    .setReceiveTimestamp(now);
+            entries.add(new SynthesizedCachedDnsQueryResult(query, withEdns(response, rrSet.dnssecOk).build()));
+        }
+        return entries;
+    }
+
+    private static DnsMessage entryQuery(RrSetKey key, boolean dnssecOk) {
+        DnsMessage.Builder query = DnsMessage.builder()
+                .setQuestion(new Question(key.name, key.type, key.clazz))
+                .setRecursionDesired(true);
+        return withEdns(query, dnssecOk).build();
+    }
+
+    private static DnsMessage.Builder withEdns(DnsMessage.Builder message, boolean dnssecOk) {
+        if (dnssecOk) {
+            message.getEdnsBuilder().setDnssecOk();
+        }
+        return message;
+    }
+
+    /**
+     * Remove all cached RRsets and negative entries whose owner name is the given name or a name below it.
+     */
+    @Override
+    public synchronized int invalidateSubtree(DnsName name) {
+        return invalidateSubtree(rrSets, name) + invalidateSubtree(negativeEntries, name);
+    }
+
+    private static int invalidateSubtree(LinkedHashMap<RrSetKey, ?> entries, DnsName name) {
+        int removed = 0;
+        Iterator<RrSetKey> it = entries.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().name.isChildOf(name)) {
+                it.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Clear all entries in this cache.
+     */
+    public synchronized void clear() {
+        rrSets.clear();
+        negativeEntries.clear();
+        missCount = 0L;
+        hitCount = 0L;
+        negativeHitCount = 0L;
+        expireCount = 0L;
+    }
+
+    /**
+     * Get the number of cached RRsets.
+     *
+     * @return the number of cached RRsets.
+     */
+    public synchronized int size() {
+        return rrSets.size();
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    public long getExpireCount() {
+        return expireCount;
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public long getNegativeHitCount() {
+        return negativeHitCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RrSetCache{rrsets=" + rrSets.size() + "/" + capacity + ", negative=" + negativeEntries.size() + "/"
+                + negativeCapacity + ", hits=" + hitCount + ", negativeHits=" + negativeHitCount + ", misses=" + missCount
+                + ", expires=" + expireCount + "}";
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.cache;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.minidns.DnsCache;
+import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsname.DnsName;
+import org.minidns.dnsqueryresult.CachedDnsQueryResult;
+import org.minidns.dnsqueryresult.DnsQueryResult;
+
+/**
+ * A two-tier DNSCache with a small per-thread near cache (L1) in front of a shared cache (L2). Lookups of the hottest
+ * names are answered from the near cache of the calling thread, without synchronizing with other threads.
+ * <p>
+ * Entries are kept in a near cache until the response expires, but at most for the configured maximum near cache TTL,
+ * which bounds the time it takes until a thread sees an entry which was replaced by another thread. Invalidations, like
+ * {@link #invalidateSubtree(DnsName)} and {@link #invalidateNearCaches()}, increment a generation counter, and a near
+ * cache is discarded as soon as its thread notices that its generation is outdated.
+ * </p>
+ */
+public class TieredDnsCache extends DnsCache {
+
+    /**
+     * The default capacity of the near cache of every thread.
+     */
+    public static final int DEFAULT_NEAR_CACHE_CAPACITY = 128;
+
+    /**
+     * The default upper bound, in seconds, of the time an entry is kept in a near cache.
+     */
+    public static final long DEFAULT_NEAR_CACHE_MAX_TTL = 30;
+
+    private static final class NearEntry {
+        private final CachedDnsQueryResult result;
+        private final long expiry;
+
+        private NearEntry(CachedDnsQueryResult result, long expiry) {
+            this.result = result;
+            this.expiry = expiry;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static final class NearCache extends LinkedHashMap<DnsMessage, NearEntry> {
+        private final int capacity;
+        private long generation;
+
+        private NearCache(int capacity, long generation) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+            this.generation = generation;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Entry<DnsMessage, NearEntry> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    private final DnsCache sharedCache;
+
+    private final int nearCacheCapacity;
+
+    private final long nearCacheMaxTtl;
+
+    private final AtomicLong generation = new AtomicLong();
+
+    private final ThreadLocal<NearCache> nearCaches = new ThreadLocal<NearCache>() {
+        @Override
+        protected NearCache initialValue() {
+            return new NearCache(nearCacheCapacity, generation.get());
+        }
+    };
+
+    /**
+     * Create a new two-tier cache.
+     *
+     * @param sharedCache the shared cache.
+     * @param nearCacheCapacity the capacity of the near cache of every thread.
+     * @param nearCacheMaxTtl the upper bound, in seconds, of the time an entry is kept in a near cache.
+     */
+    public TieredDnsCache(DnsCache sharedCache, int nearCacheCapacity, long nearCacheMaxTtl) {
+        if (sharedCache == null) {
+            throw new IllegalArgumentException("The shared cache must not be null");
+        }
+        this.sharedCache = sharedCache;
+        this.nearCacheCapacity = nearCacheCapacity;
+        this.nearCacheMaxTtl = nearCacheMaxTtl;
+    }
+
+    public TieredDnsCache(DnsCache sharedCache) {
+        this(sharedCache, DEFAULT_NEAR_CACHE_CAPACITY, DEFAULT_NEAR_CACHE_MAX_TTL);
+    }
+
+    private NearCache getNearCache() {
+        NearCache nearCache = nearCaches.get();
+        long currentGeneration = generation.get();
+        if (nearCache.generation != currentGeneration) {
+            nearCache.clear();
+            nearCache.generation = currentGeneration;
+        }
+        return nearCache;
+    }
+
+    @Override
+    protected void putNormalized(DnsMessage q, DnsQueryResult result) {
+        sharedCache.put(q, result);
+        // Do not serve the previous entry from the near cache of this thread.
+        getNearCache().remove(q);
+    }
+
+    @Override
+    protected CachedDnsQueryResult getNormalized(DnsMessage q) {
+        NearCache nearCache = getNearCache();
+        final long now = System.currentTimeMillis();
+        NearEntry nearEntry = nearCache.get(q);
+        if (nearEntry != null) {
+            if (nearEntry.expiry >= now) {
+                return nearEntry.result;
+            }
+            nearCache.remove(q);
+        }
+
+        CachedDnsQueryResult result = sharedCache.get(q);
+        if (result == null || nearCacheCapacity <= 0) {
+            return result;
+        }
+
+        long expiry = getExpirationTimestamp(result.response, Long.MAX_VALUE, DEFAULT_MAX_NEGATIVE_TTL);
+        expiry = Math.min(expiry, now + nearCacheMaxTtl * 1000);
+        nearCache.put(q, new NearEntry(result, expiry));
+        return result;
+    }
+
+    @Override
+    protected CachedDnsQueryResult peekNormalized(DnsMessage q) {
+        NearEntry nearEntry = getNearCache().get(q);
+        if (nearEntry != null && nearEntry.expiry >= System.currentTimeMillis()) {
+            return nearEntry.result;
+        }
+        return sharedCache.peek(q);
+    }
+
+    @Override
+    public void offer(DnsMessage query, DnsQueryResult result, DnsName authoritativeZone) {
+        sharedCache.offer(query, result, authoritativeZone);
+    }
+
+    @Override
+    public List<CachedDnsQueryResult> getEntries() {
+        return sharedCache.getEntries();
+    }
+
+    @Override
+    public CachedDnsQueryResult findClosestEnclosingNs(DnsName name) {
+        return sharedCache.findClosestEnclosingNs(name);
+    }
+
+    @Override
+    public List<CachedDnsQueryResult> entriesUnder(DnsName name) {
+        return sharedCache.entriesUnder(name);
+    }
+
+    @Override
+    public int invalidateSubtree(DnsName name) {
+        int removed = sharedCache.invalidateSubtree(name);
+        invalidateNearCaches();
+        return removed;
+    }
+
+    /**
+     * Invalidate the near caches of all threads, for example, after the shared cache was cleared.
+     */
+    public void invalidateNearCaches() {
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Get the shared cache.
+     *
+     * @return the shared cache.
+     */
+    public DnsCache getSharedCache() {
+        return sharedCache;
+    }
+
+    @Override
+    public String toString() {
+        return "TieredDnsCache{nearCapacity=" + nearCacheCapacity + ", nearMaxTtl=" + nearCacheMaxTtl + ", generation="
+                + generation.get() + ", shared=" + sharedCache + "}";
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.cache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.minidns.DnsCache;
+import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsname.DnsName;
+import org.minidns.dnsqueryresult.CachedDnsQueryResult;
+import org.minidns.dnsqueryresult.DirectCachedDnsQueryResult;
+import org.minidns.dnsqueryresult.DnsQueryResult;
+
+/**
+ * A scan-resistant DNSCache using the W-TinyLFU admission policy. Unlike {@link LruCache}, which admits every new entry
+ * and thereby allows a burst of one-off queries to flush the whole cache, this cache only admits an entry into its main
+ * region if it was accessed more often than the entry it would evict.
+ * <p>
+ * New entries are first put into a small LRU window, which makes up 1% of the capacity. Entries evicted from the
+ * window are candidates for the main region, a segmented LRU consisting of a probation and a protected segment. The
+ * access frequencies are estimated with a count-min sketch, which is periodically aged.
+ * </p>
+ *
+ * @see <a href="https://arxiv.org/abs/1512.00727">TinyLFU: A Highly Efficient Cache Admission Policy</a>
+ */
+public class TinyLfuCache extends DnsCache {
+
+    /**
+     * Internal miss count.
+     */
+    protected long missCount = 0L;
+
+    /**
+     * Internal expire count (subset of misses that was caused by expire).
+     */
+    protected long expireCount = 0L;
+
+    /**
+     * Internal hit count.
+     */
+    protected long hitCount = 0L;
+
+    /**
+     * Internal count of candidates which were not admitted into the main region.
+     */
+    protected long rejectCount = 0L;
+
+    /**
+     * The capacity of the cache.
+     */
+    protected final int capacity;
+
+    /**
+     * The upper bound of the ttl. All longer TTLs will be capped by this ttl.
+     */
+    protected final long maxTTL;
+
+    /**
+     * The upper bound of the ttl of negative responses.
+     */
+    protected final long maxNegativeTTL;
+
+    private final int windowCapacity;
+
+    private final int mainCapacity;
+
+    private final int protectedCapacity;
+
+    private final LinkedHashMap<DnsMessage, CachedDnsQueryResult> window = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final LinkedHashMap<DnsMessage, CachedDnsQueryResult> probation = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final LinkedHashMap<DnsMessage, CachedDnsQueryResult> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final FrequencySketch sketch;
+
+    /**
+     * Create a new W-TinyLFU cache.
+     *
+     * @param capacity the capacity of the cache.
+     * @param maxTTL the upper bound for any ttl.
+     * @param maxNegativeTTL the upper bound for any ttl of negative responses.
+     */
+    public TinyLfuCache(int capacity, long maxTTL, long maxNegativeTTL) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity must not be negative");
+        }
+        this.capacity = capacity;
+        this.maxTTL = maxTTL;
+        this.maxNegativeTTL = maxNegativeTTL;
+        windowCapacity = Math.min(capacity, Math.max(1, capacity / 100));
+        mainCapacity = capacity - windowCapacity;
+        protectedCapacity = mainCapacity * 4 / 5;
+        sketch = new FrequencySketch(capacity);
+    }
+
+    public TinyLfuCache(int capacity) {
+        this(capacity, Long.MAX_VALUE, DEFAULT_MAX_NEGATIVE_TTL);
+    }
+
+    public TinyLfuCache() {
+        this(DEFAULT_CACHE_SIZE);
+    }
+
+    @Override
+    protected synchronized void putNormalized(DnsMessage q, DnsQueryResult result) {
+        DnsMessage message = result.response;
+        if (message.receiveTimestamp <= 0L || capacity == 0) {
+            return;
+        }
+        // RFC 2308 § 5: Negative responses without SOA records SHOULD NOT be cached.
+        if (message.isNegativeResponse() && message.getNegativeTtl() < 0) {
+            return;
+        }
+
+        CachedDnsQueryResult cachedResult = new DirectCachedDnsQueryResult(q, result);
+        if (window.containsKey(q)) {
+            window.put(q, cachedResult);
+            return;
+        }
+        if (probation.containsKey(q)) {
+            probation.put(q, cachedResult);
+            return;
+        }
+        if (protectedSegment.containsKey(q)) {
+            protectedSegment.put(q, cachedResult);
+            return;
+        }
+
+        window.put(q, cachedResult);
+        if (window.size() <= windowCapacity) {
+            return;
+        }
+
+        Entry<DnsMessage, CachedDnsQueryResult> candidate = removeEldest(window);
+        if (probation.size() + protectedSegment.size() < mainCapacity) {
+            probation.put(candidate.getKey(), candidate.getValue());
+            return;
+        }
+
+        LinkedHashMap<DnsMessage, CachedDnsQueryResult> victimSegment = probation.isEmpty() ? protectedSegment : probation;
+        if (victimSegment.isEmpty()) {
+            // The main region has no capacity.
+            rejectCount++;
+            return;
+        }
+        DnsMessage victim = victimSegment.keySet().iterator().next();
+        if (sketch.frequency(candidate.getKey().hashCode()) > sketch.frequency(victim.hashCode())) {
+            victimSegment.remove(victim);
+            probation.put(candidate.getKey(), candidate.getValue());
+        } else {
+            rejectCount++;
+        }
+    }
+
+    @Override
+    protected synchronized CachedDnsQueryResult getNormalized(DnsMessage q) {
+        sketch.increment(q.hashCode());
+
+        LinkedHashMap<DnsMessage, CachedDnsQueryResult> segment = window;
+        CachedDnsQueryResult result = window.get(q);
+        if (result == null) {
+            segment = probation;
+            result = probation.get(q);
+        }
+        if (result == null) {
+            segment = protectedSegment;
+            result = protectedSegment.get(q);
+        }
+        if (result == null) {
+            missCount++;
+            return null;
+        }
+
+        final long expiryDate = getExpirationTimestamp(result.response, maxTTL, maxNegativeTTL);
+        if (expiryDate < System.currentTimeMillis()) {
+            missCount++;
+            expireCount++;
+            segment.remove(q);
+            return null;
+        }
+
+        if (segment == probation) {
+            // Promote the entry to the protected segment, and demote the least recently used protected entry if the
+            // protected segment is full.
+            probation.remove(q);
+            protectedSegment.put(q, result);
+            if (protectedSegment.size() > protectedCapacity) {
+                Entry<DnsMessage, CachedDnsQueryResult> demoted = removeEldest(protectedSegment);
+                probation.put(demoted.getKey(), demoted.getValue());
+            }
+        }
+
+        hitCount++;
+        return result;
+    }
+
+    /**
+     * Look up the given query without incrementing its frequency and without promoting the entry.
+     */
+    @Override
+    protected synchronized CachedDnsQueryResult peekNormalized(DnsMessage q) {
+        LinkedHashMap<DnsMessage, CachedDnsQueryResult> segment = window;
+        CachedDnsQueryResult result = window.get(q);
+        if (result == null) {
+            segment = probation;
+            result = probation.get(q);
+        }
+        if (result == null) {
+            segment = protectedSegment;
+            result = protectedSegment.get(q);
+        }
+        if (result == null) {
+            return null;
+        }
+        if (getExpirationTimestamp(result.response, maxTTL, maxNegativeTTL) < System.currentTimeMillis()) {
+            segment.remove(q);
+            return null;
+        }
+        return result;
+    }
+
+    private static Entry<DnsMessage, CachedDnsQueryResult> removeEldest(LinkedHashMap<DnsMessage, CachedDnsQueryResult> map) {
+        Iterator<Entry<DnsMessage, CachedDnsQueryResult>> it = map.entrySet().iterator();
+        Entry<DnsMessage, CachedDnsQueryResult> eldest = it.next();
+        it.remove();
+        return eldest;
+    }
+
+    @Override
+    public void offer(DnsMessage query, DnsQueryResult result, DnsName knownAuthoritativeZone) {
+    }
+
+    @Override
+    public synchronized List<CachedDnsQueryResult> getEntries() {
+        List<CachedDnsQueryResult> entries = new ArrayList<>(window.size() + probation.size() + protectedSegment.size());
+        entries.addAll(probation.values());
+        entries.addAll(protectedSegment.values());
+        entries.addAll(window.values());
+        return entries;
+    }
+
+    /**
+     * Remove all cached entries whose question name is the given name or a name below it. The frequency sketch is
+     * retained, as it does not hold any cached data.
+     */
+    @Override
+    public synchronized int invalidateSubtree(DnsName name) {
+        return invalidateSubtree(window, name) + invalidateSubtree(probation, name)
+                + invalidateSubtree(protectedSegment, name);
+    }
+
+    private static int invalidateSubtree(LinkedHashMap<DnsMessage, CachedDnsQueryResult> segment, DnsName name) {
+        int removed = 0;
+        Iterator<DnsMessage> it = segment.keySet().iterator();
+        while (it.hasNext()) {
+            if (isInSubtree(it.next(), name)) {
+                it.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Clear all entries in this cache and reset the frequency sketch.
+     */
+    public synchronized void clear() {
+        window.clear();
+        probation.clear();
+        protectedSegment.clear();
+        sketch.clear();
+        missCount = 0L;
+        hitCount = 0L;
+        expireCount = 0L;
+        rejectCount = 0L;
+    }
+
+    public synchronized int size() {
+        return window.size() + probation.size() + protectedSegment.size();
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    public long getExpireCount() {
+        return expireCount;
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * The number of candidates which were not admitted into the main region, because they were accessed less frequently
+     * than the entry they would have evicted.
+     *
+     * @return the reject count.
+     */
+    public long getRejectCount() {
+        return rejectCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TinyLfuCache{usage=" + size() + "/" + capacity + ", window=" + window.size() + ", probation=" + probation.size()
+                + ", protected=" + protectedSegment.size() + ", hits=" + hitCount + ", misses=" + missCount + ", expires="
+                + expireCount + ", rejects=" + rejectCount + "}";
+    }
+}
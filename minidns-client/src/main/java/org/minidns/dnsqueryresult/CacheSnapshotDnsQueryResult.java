@@ -0,0 +1,26 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.dnsqueryresult;
+
+import org.minidns.dnsmessage.DnsMessage;
+
+/**
+ * A DNS query result restored from a cache snapshot.
+ *
+ * @see org.minidns.cache.DnsCacheSnapshot
+ */
+public class CacheSnapshotDnsQueryResult extends DnsQueryResult {
+
+    public CacheSnapshotDnsQueryResult(DnsMessage query, DnsMessage response) {
+        super(QueryMethod.cacheSnapshot, query, response);
+    }
+
+}
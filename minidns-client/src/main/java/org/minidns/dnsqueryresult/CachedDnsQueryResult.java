@@ -25,4 +25,19 @@ public abstract class CachedDnsQueryResult extends DnsQueryResult {
         super(QueryMethod.cachedSynthesized, query, response);
         this.cachedDnsQueryResult = synthesynthesizationSource;
     }
+
+    /**
+     * Get the DNSSEC validation status of this result. If no status was recorded for this result, then the status of
+     * the cached result is returned, which may have been recorded after the result was put into the cache.
+     *
+     * @return the DNSSEC validation status.
+     */
+    @Override
+    public DnssecValidationStatus getDnssecValidationStatus() {
+        DnssecValidationStatus status = super.getDnssecValidationStatus();
+        if (status == DnssecValidationStatus.unknown && cachedDnsQueryResult != null) {
+            status = cachedDnsQueryResult.getDnssecValidationStatus();
+        }
+        return status;
+    }
 }
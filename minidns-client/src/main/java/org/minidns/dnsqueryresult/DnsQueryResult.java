@@ -23,6 +23,36 @@ public abstract class DnsQueryResult {
         cachedDirect,
         cachedSynthesized,
         testWorld,
+        cacheSnapshot,
+        tls,
+        https,
+    }
+
+    /**
+     * The DNSSEC validation status of a result, as defined in RFC 4033 § 5.
+     */
+    public enum DnssecValidationStatus {
+        /**
+         * The result was not validated (yet).
+         */
+        unknown,
+
+        /**
+         * The result was validated using a chain of trust.
+         */
+        secure,
+
+        /**
+         * The result is provably unsigned, for example because the zone is not signed or because there is no trust
+         * anchor for it.
+         */
+        insecure,
+
+        /**
+         * The validation of the result failed, or the result could not be validated although it should be signed, for
+         * example because its signatures expired.
+         */
+        bogus,
     }
 
     public final QueryMethod queryMethod;
@@ -31,6 +61,8 @@ public abstract class DnsQueryResult {
 
     public final DnsMessage response;
 
+    private volatile DnssecValidationStatus dnssecValidationStatus = DnssecValidationStatus.unknown;
+
     protected DnsQueryResult(QueryMethod queryMethod, DnsMessage query, DnsMessage response) {
         assert queryMethod != null;
         assert query != null;
@@ -46,6 +78,25 @@ public abstract class DnsQueryResult {
         return response.toString();
     }
 
+    /**
+     * Get the DNSSEC validation status of this result, as recorded by a validating client.
+     *
+     * @return the DNSSEC validation status.
+     */
+    public DnssecValidationStatus getDnssecValidationStatus() {
+        return dnssecValidationStatus;
+    }
+
+    /**
+     * Record the DNSSEC validation status of this result. This is used by validating clients, so that caches are able
+     * to consider the status when they serve the result to other clients.
+     *
+     * @param dnssecValidationStatus the DNSSEC validation status.
+     */
+    public void setDnssecValidationStatus(DnssecValidationStatus dnssecValidationStatus) {
+        this.dnssecValidationStatus = dnssecValidationStatus;
+    }
+
     public boolean wasSuccessful() {
         return response.responseCode == RESPONSE_CODE.NO_ERROR;
     }
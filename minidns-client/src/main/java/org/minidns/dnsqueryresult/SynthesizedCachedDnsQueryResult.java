@@ -18,4 +18,15 @@ public class SynthesizedCachedDnsQueryResult extends CachedDnsQueryResult {
         super(query, response, synthesynthesizationSource);
     }
 
+    /**
+     * Create a synthesized result which has no single synthesization source, because the response was assembled from
+     * data cached from multiple responses.
+     *
+     * @param query the query.
+     * @param response the synthesized response.
+     */
+    public SynthesizedCachedDnsQueryResult(DnsMessage query, DnsMessage response) {
+        super(query, response, null);
+    }
+
 }
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.dnsserverlookup;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.minidns.dnsname.DnsName;
+import org.minidns.dnsname.InvalidDnsNameException;
+
+/**
+ * The resolver configuration as found in <code>/etc/resolv.conf</code>, see resolv.conf(5). Besides the
+ * <code>nameserver</code> lines, the <code>search</code> and <code>domain</code> lines and the <code>ndots</code>,
+ * <code>timeout</code>, <code>attempts</code> and <code>rotate</code> options are honored. Other options are ignored.
+ * As with the GNU C library, the last <code>search</code> or <code>domain</code> line wins, and the options are capped
+ * at the same maximum values.
+ */
+public final class ResolvConf {
+
+    private static final Logger LOGGER = Logger.getLogger(ResolvConf.class.getName());
+
+    public static final String RESOLV_CONF_FILE = "/etc/resolv.conf";
+
+    public static final int DEFAULT_NDOTS = 1;
+    public static final int DEFAULT_TIMEOUT = 5;
+    public static final int DEFAULT_ATTEMPTS = 2;
+
+    private static final int MAX_NDOTS = 15;
+    private static final int MAX_TIMEOUT = 30;
+    private static final int MAX_ATTEMPTS = 5;
+
+    /**
+     * The configuration used if there is no configuration file: no name servers, no search list and the default
+     * options.
+     */
+    public static final ResolvConf DEFAULT = new ResolvConf(Collections.<String>emptyList(),
+                    Collections.<DnsName>emptyList(), DEFAULT_NDOTS, DEFAULT_TIMEOUT, DEFAULT_ATTEMPTS, false);
+
+    private static ResolvConf systemResolvConf;
+    private static long systemResolvConfLastModified;
+
+    /**
+     * The addresses of the name servers, as found in the file. Note that those are not verified to be IP addresses.
+     */
+    public final List<String> nameservers;
+
+    /**
+     * The search list for host-name lookup.
+     */
+    public final List<DnsName> search;
+
+    /**
+     * The number of dots a name must at least contain to be queried as is, before the search list is applied.
+     */
+    public final int ndots;
+
+    /**
+     * The time, in seconds, to wait for a response of a name server.
+     */
+    public final int timeout;
+
+    /**
+     * The number of times all name servers are tried.
+     */
+    public final int attempts;
+
+    /**
+     * Whether the queries should be distributed round-robin over the name servers.
+     */
+    public final boolean rotate;
+
+    private ResolvConf(List<String> nameservers, List<DnsName> search, int ndots, int timeout, int attempts,
+                    boolean rotate) {
+        this.nameservers = Collections.unmodifiableList(nameservers);
+        this.search = Collections.unmodifiableList(search);
+        this.ndots = ndots;
+        this.timeout = timeout;
+        this.attempts = attempts;
+        this.rotate = rotate;
+    }
+
+    /**
+     * Get the names to query for the given name, in the order they should be tried, as specified in resolver(3). A
+     * name ending with a dot is only queried as is. A name with at least {@link #ndots} dots is first queried as is and
+     * then with every domain of the search list appended. Otherwise, the search list is tried first.
+     *
+     * @param name the name, which may end with a dot.
+     * @return the names to query.
+     */
+    public List<DnsName> getSearchCandidates(CharSequence name) {
+        String string = name.toString();
+        DnsName dnsName = DnsName.from(string);
+        if (string.endsWith(".") || dnsName.isRootLabel() || search.isEmpty()) {
+            return Collections.singletonList(dnsName);
+        }
+
+        List<DnsName> candidates = new ArrayList<>(search.size() + 1);
+        int dots = dnsName.getLabelCount() - 1;
+        boolean asIsFirst = dots >= ndots;
+        if (asIsFirst) {
+            candidates.add(dnsName);
+        }
+        for (DnsName domain : search) {
+            DnsName candidate = DnsName.from(dnsName, domain);
+            if (!candidates.contains(candidate)) {
+                candidates.add(candidate);
+            }
+        }
+        if (!asIsFirst && !candidates.contains(dnsName)) {
+            candidates.add(dnsName);
+        }
+        return candidates;
+    }
+
+    /**
+     * Parse a resolver configuration.
+     *
+     * @param reader the reader to read the configuration from.
+     * @return the resolver configuration.
+     * @throws IOException if an I/O error occurs.
+     */
+    public static ResolvConf parse(Reader reader) throws IOException {
+        List<String> nameservers = new ArrayList<>(3);
+        List<DnsName> search = Collections.emptyList();
+        int ndots = DEFAULT_NDOTS;
+        int timeout = DEFAULT_TIMEOUT;
+        int attempts = DEFAULT_ATTEMPTS;
+        boolean rotate = false;
+
+        BufferedReader bufferedReader = new BufferedReader(reader);
+        String line;
+        while ((line = bufferedReader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.charAt(0) == '#' || line.charAt(0) == ';') {
+                continue;
+            }
+            String[] tokens = line.split("\\s+");
+            switch (tokens[0]) {
+            case "nameserver":
+                if (tokens.length > 1) {
+                    nameservers.add(tokens[1]);
+                }
+                break;
+            case "domain":
+            case "search":
+                search = new ArrayList<>(tokens.length - 1);
+                for (int i = 1; i < tokens.length; i++) {
+                    if (tokens[i].charAt(0) == '#' || tokens[i].charAt(0) == ';') {
+                        break;
+                    }
+                    try {
+                        search.add(DnsName.from(tokens[i]));
+                    } catch (InvalidDnsNameException e) {
+                        LOGGER.log(Level.FINE, "Ignoring invalid search domain " + tokens[i], e);
+                    }
+                }
+                break;
+            case "options":
+                for (int i = 1; i < tokens.length; i++) {
+                    String option = tokens[i];
+                    if (option.startsWith("ndots:")) {
+                        ndots = parseOption(option, ndots, 0, MAX_NDOTS);
+                    } else if (option.startsWith("timeout:")) {
+                        timeout = parseOption(option, timeout, 1, MAX_TIMEOUT);
+                    } else if (option.startsWith("attempts:")) {
+                        attempts = parseOption(option, attempts, 1, MAX_ATTEMPTS);
+                    } else if (option.equals("rotate")) {
+                        rotate = true;
+                    }
+                }
+                break;
+            default:
+                break;
+            }
+        }
+
+        return new ResolvConf(nameservers, search, ndots, timeout, attempts, rotate);
+    }
+
+    private static int parseOption(String option, int defaultValue, int min, int max) {
+        String value = option.substring(option.indexOf(':') + 1);
+        try {
+            return Math.max(min, Math.min(Integer.parseInt(value), max));
+        } catch (NumberFormatException e) {
+            LOGGER.fine("Ignoring invalid option " + option);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Parse the given resolver configuration file.
+     *
+     * @param file the file.
+     * @return the resolver configuration.
+     * @throws IOException if an I/O error occurs.
+     */
+    public static ResolvConf parse(File file) throws IOException {
+        // TODO Use a try-with-resource statement here once miniDNS minimum
+        // required Android API level is >= 19
+        Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8);
+        try {
+            return parse(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Get the resolver configuration of this system from {@value #RESOLV_CONF_FILE}. The file is only parsed again if
+     * it was modified.
+     *
+     * @return the resolver configuration or <code>null</code> if the file does not exist or could not be read.
+     */
+    public static synchronized ResolvConf getSystemResolvConf() {
+        File file = new File(RESOLV_CONF_FILE);
+        if (!file.exists()) {
+            return null;
+        }
+
+        long lastModified = file.lastModified();
+        if (systemResolvConf != null && lastModified == systemResolvConfLastModified) {
+            return systemResolvConf;
+        }
+
+        ResolvConf resolvConf;
+        try {
+            resolvConf = parse(file);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not read from " + RESOLV_CONF_FILE, e);
+            return null;
+        }
+
+        systemResolvConf = resolvConf;
+        systemResolvConfLastModified = lastModified;
+        return resolvConf;
+    }
+
+    @Override
+    public String toString() {
+        return "nameservers=" + nameservers + " search=" + search + " ndots=" + ndots + " timeout=" + timeout
+                        + " attempts=" + attempts + " rotate=" + rotate;
+    }
+}
@@ -12,18 +12,11 @@ package org.minidns.dnsserverlookup;
 
 import org.minidns.util.PlatformDetection;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public final class UnixUsingEtcResolvConf extends AbstractDnsServerLookupMechanism {
 
@@ -32,11 +25,7 @@ public final class UnixUsingEtcResolvConf extends AbstractDnsServerLookupMechani
 
     private static final Logger LOGGER = Logger.getLogger(UnixUsingEtcResolvConf.class.getName());
 
-    private static final String RESOLV_CONF_FILE = "/etc/resolv.conf";
-    private static final Pattern NAMESERVER_PATTERN = Pattern.compile("^nameserver\\s+(.*)$");
-
-    private static List<String> cached;
-    private static long lastModified;
+    private static final String RESOLV_CONF_FILE = ResolvConf.RESOLV_CONF_FILE;
 
     private UnixUsingEtcResolvConf() {
         super(UnixUsingEtcResolvConf.class.getSimpleName(), PRIORITY);
@@ -44,48 +33,19 @@ public final class UnixUsingEtcResolvConf extends AbstractDnsServerLookupMechani
 
     @Override
     public List<String> getDnsServerAddresses() {
-        File file = new File(RESOLV_CONF_FILE);
-        if (!file.exists()) {
+        ResolvConf resolvConf = ResolvConf.getSystemResolvConf();
+        if (resolvConf == null) {
             // Not very unixoid systems
             return null;
         }
 
-        long currentLastModified = file.lastModified();
-        if (currentLastModified == lastModified && cached != null) {
-            return cached;
-        }
-
-        List<String> servers = new ArrayList<>();
-        BufferedReader reader = null;
-        try {
-            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                Matcher matcher = NAMESERVER_PATTERN.matcher(line);
-                if (matcher.matches()) {
-                    servers.add(matcher.group(1).trim());
-                }
-            }
-        } catch (IOException e) {
-            LOGGER.log(Level.WARNING, "Could not read from " + RESOLV_CONF_FILE, e);
-            return null;
-        } finally {
-            if (reader != null) try {
-                reader.close();
-            } catch (IOException e) {
-                LOGGER.log(Level.WARNING, "Could not close reader", e);
-            }
-        }
-
-        if (servers.isEmpty()) {
+        if (resolvConf.nameservers.isEmpty()) {
             LOGGER.fine("Could not find any nameservers in " + RESOLV_CONF_FILE);
             return null;
         }
 
-        cached = servers;
-        lastModified = currentLastModified;
-
-        return cached;
+        // Return a copy, as the caller may modify the list.
+        return new ArrayList<>(resolvConf.nameservers);
     }
 
     @Override
@@ -24,6 +24,32 @@ public abstract class AbstractDnsDataSource implements DnsDataSource {
     @Override
     public abstract DnsQueryResult query(DnsMessage message, InetAddress address, int port) throws IOException;
 
+    /**
+     * Query the given server, waiting at most the given timeout for a response instead of the timeout of this data
+     * source. This is used by clients which adapt the timeout to the observed round-trip time of the server. The
+     * default implementation ignores the timeout, data sources supporting per-query timeouts override this method.
+     *
+     * @param message the query.
+     * @param address the address of the server.
+     * @param port the port of the server.
+     * @param timeout the timeout in milliseconds.
+     * @return the result of the query.
+     * @throws IOException if an IO error occurs.
+     */
+    public DnsQueryResult query(DnsMessage message, InetAddress address, int port, int timeout) throws IOException {
+        return query(message, address, port);
+    }
+
+    /**
+     * Abort the query the given thread is currently waiting for, for example, because its answer is no longer required.
+     * This is required for queries which do not end once the thread is interrupted. The default implementation does
+     * nothing, hence the thread keeps waiting until the query completes or times out.
+     *
+     * @param thread the thread waiting for the query.
+     */
+    public void abort(Thread thread) {
+    }
+
     @Override
     public MiniDnsFuture<DnsQueryResult, IOException> queryAsync(DnsMessage message, InetAddress address, int port, OnResponseCallback onResponseCallback) {
         InternalMiniDnsFuture<DnsQueryResult, IOException> future = new InternalMiniDnsFuture<>();
@@ -34,6 +60,9 @@ public abstract class AbstractDnsDataSource implements DnsDataSource {
             future.setException(e);
             return future;
         }
+        if (onResponseCallback != null && result != null) {
+            onResponseCallback.onResponse(message, result);
+        }
         future.setResult(result);
         return future;
     }
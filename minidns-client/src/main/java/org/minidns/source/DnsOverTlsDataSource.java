@@ -0,0 +1,195 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.source;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Level;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsqueryresult.DnsQueryResult.QueryMethod;
+import org.minidns.dnsqueryresult.StandardDnsQueryResult;
+
+/**
+ * A data source using DNS over TLS as specified in RFC 7858. All queries are sent over TLS connections to port
+ * {@value #DEFAULT_PORT} of the upstream server, regardless of the configured query mode and the port requested by the
+ * client.
+ * <p>
+ * As with plain TCP, connections are kept open and shared by pipelined queries, as a new connection costs two to three
+ * round trips for the TCP and TLS handshakes. When a connection has to be reopened, the TLS session is resumed, as the
+ * {@link SSLSocketFactory} caches the sessions per server.
+ * </p>
+ * <p>
+ * The certificate of the server is verified with the {@link HostnameVerifier} against the server name, if one is given,
+ * or the IP address of the server otherwise. The default verifier matches the subject alternative names of the
+ * certificate as described in RFC 6125, as the default verifier of {@link javax.net.ssl.HttpsURLConnection} rejects
+ * every name on some platforms.
+ * </p>
+ */
+public class DnsOverTlsDataSource extends NetworkDataSource {
+
+    public static final int DEFAULT_PORT = 853;
+
+    private static final int SUBJECT_ALT_NAME_DNS = 2;
+    private static final int SUBJECT_ALT_NAME_IP = 7;
+
+    /**
+     * Verifies that the name is one of the DNS names or IP addresses in the subject alternative names of the
+     * certificate. The DNS names may contain a wildcard as the complete leftmost label.
+     */
+    public static final HostnameVerifier SUBJECT_ALT_NAME_VERIFIER = new HostnameVerifier() {
+        @Override
+        public boolean verify(String hostname, SSLSession session) {
+            Collection<List<?>> subjectAltNames;
+            try {
+                Certificate[] certificates = session.getPeerCertificates();
+                if (certificates.length == 0 || !(certificates[0] instanceof X509Certificate)) {
+                    return false;
+                }
+                subjectAltNames = ((X509Certificate) certificates[0]).getSubjectAlternativeNames();
+            } catch (SSLPeerUnverifiedException | CertificateParsingException e) {
+                LOGGER.log(Level.FINE, "Could not get the subject alternative names of " + hostname, e);
+                return false;
+            }
+            if (subjectAltNames == null) {
+                return false;
+            }
+
+            String name = hostname.toLowerCase(Locale.US);
+            if (name.endsWith(".")) {
+                name = name.substring(0, name.length() - 1);
+            }
+            boolean ipAddress = name.indexOf(':') >= 0 || name.matches("[0-9.]+");
+            for (List<?> subjectAltName : subjectAltNames) {
+                int type = (Integer) subjectAltName.get(0);
+                String value = subjectAltName.get(1).toString().toLowerCase(Locale.US);
+                if (ipAddress && type == SUBJECT_ALT_NAME_IP && isSameAddress(name, value)) {
+                    return true;
+                }
+                if (!ipAddress && type == SUBJECT_ALT_NAME_DNS && matchesDnsName(name, value)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean isSameAddress(String name, String value) {
+            if (name.equals(value)) {
+                return true;
+            }
+            try {
+                // Compare IPv6 addresses in their binary form, as their textual form is not unique.
+                return InetAddress.getByName(name).equals(InetAddress.getByName(value));
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        private boolean matchesDnsName(String name, String pattern) {
+            if (!pattern.startsWith("*.")) {
+                return name.equals(pattern);
+            }
+            int firstDot = name.indexOf('.');
+            return firstDot > 0 && name.substring(firstDot).equals(pattern.substring(1));
+        }
+    };
+
+    private final String serverName;
+
+    private final SSLSocketFactory sslSocketFactory;
+
+    private final HostnameVerifier hostnameVerifier;
+
+    private int port = DEFAULT_PORT;
+
+    /**
+     * Create a new DNS over TLS data source, which verifies the certificates of the servers against their IP address.
+     */
+    public DnsOverTlsDataSource() {
+        this(null);
+    }
+
+    /**
+     * Create a new DNS over TLS data source.
+     *
+     * @param serverName the name the certificates of the servers are verified against, or <code>null</code> to verify
+     * them against the IP address of the server.
+     */
+    public DnsOverTlsDataSource(String serverName) {
+        this(serverName, (SSLSocketFactory) SSLSocketFactory.getDefault(), SUBJECT_ALT_NAME_VERIFIER);
+    }
+
+    public DnsOverTlsDataSource(String serverName, SSLSocketFactory sslSocketFactory, HostnameVerifier hostnameVerifier) {
+        this.serverName = serverName;
+        this.sslSocketFactory = sslSocketFactory;
+        this.hostnameVerifier = hostnameVerifier;
+    }
+
+    @Override
+    public StandardDnsQueryResult query(DnsMessage message, InetAddress address, int port) throws IOException {
+        DnsMessage response = queryTcp(message, address, this.port);
+        return new StandardDnsQueryResult(address, this.port, QueryMethod.tls, message, response);
+    }
+
+    @Override
+    protected Socket openTcpConnection(InetSocketAddress server, int timeout) throws IOException {
+        Socket socket = super.openTcpConnection(server, timeout);
+        String host = serverName != null ? serverName : server.getAddress().getHostAddress();
+        try {
+            // The host and port are used for SNI and as the key to look up the session to resume.
+            SSLSocket sslSocket = (SSLSocket) sslSocketFactory.createSocket(socket, host, server.getPort(), true);
+            sslSocket.setSoTimeout(timeout);
+            sslSocket.startHandshake();
+            sslSocket.setSoTimeout(0);
+            if (!hostnameVerifier.verify(host, sslSocket.getSession())) {
+                throw new SSLPeerUnverifiedException("The certificate of " + server + " is not valid for " + host);
+            }
+            return sslSocket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Set the port of the DNS over TLS servers.
+     *
+     * @param port the port.
+     */
+    public void setPort(int port) {
+        if (port <= 0 || port > 0xffff) {
+            throw new IllegalArgumentException("Invalid port: " + port);
+        }
+        this.port = port;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getServerName() {
+        return serverName;
+    }
+}
@@ -14,20 +14,29 @@ import org.minidns.MiniDnsException;
 import org.minidns.dnsmessage.DnsMessage;
 import org.minidns.dnsqueryresult.DnsQueryResult.QueryMethod;
 import org.minidns.dnsqueryresult.StandardDnsQueryResult;
+import org.minidns.edns.Edns;
+import org.minidns.edns.EdnsOption;
+import org.minidns.record.Data;
+import org.minidns.record.Record;
+import org.minidns.record.Record.TYPE;
 import org.minidns.util.MultipleIoException;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -35,6 +44,95 @@ public class NetworkDataSource extends AbstractDnsDataSource {
 
     protected static final Logger LOGGER = Logger.getLogger(NetworkDataSource.class.getName());
 
+    private final UdpSocketPool udpSocketPool = new UdpSocketPool();
+
+    private volatile boolean udpSocketPooling = true;
+
+    private final TcpConnectionPool tcpConnectionPool = new TcpConnectionPool(this);
+
+    private volatile boolean tcpConnectionReuse = true;
+
+    private volatile UdpPayloadSizeEstimator udpPayloadSizeEstimator = new UdpPayloadSizeEstimator();
+
+    private final TruncatedQueries truncatedQueries = new TruncatedQueries();
+
+    private volatile boolean tcpFirstAfterTruncation = true;
+
+    /**
+     * The timeout of the query in progress on the current thread, or <code>null</code> if it uses the timeout of this
+     * data source.
+     */
+    private final ThreadLocal<Integer> queryTimeout = new ThreadLocal<>();
+
+    /**
+     * The UDP sockets threads currently wait on for a response, so that their queries can be aborted.
+     */
+    private final ConcurrentMap<Thread, DatagramSocket> receivingSockets = new ConcurrentHashMap<>();
+
+    // A timeout which is not positive selects the timeout of this data source.
+    @Override
+    public StandardDnsQueryResult query(DnsMessage message, InetAddress address, int port, int timeout) throws IOException {
+        if (timeout <= 0) {
+            return query(message, address, port);
+        }
+        Integer previousTimeout = queryTimeout.get();
+        queryTimeout.set(timeout);
+        try {
+            return query(message, address, port);
+        } finally {
+            if (previousTimeout == null) {
+                queryTimeout.remove();
+            } else {
+                queryTimeout.set(previousTimeout);
+            }
+        }
+    }
+
+    /**
+     * Get the timeout of the query in progress on the current thread, which is the timeout passed to
+     * {@link #query(DnsMessage, InetAddress, int, int)} or else the timeout of this data source. Subclasses overriding
+     * {@link #queryUdp(DnsMessage, InetAddress, int)} or {@link #queryTcp(DnsMessage, InetAddress, int)} should use this
+     * timeout.
+     *
+     * @return the timeout in milliseconds.
+     */
+    protected int getQueryTimeout() {
+        Integer queryTimeout = this.queryTimeout.get();
+        if (queryTimeout == null) {
+            return timeout;
+        }
+        return queryTimeout;
+    }
+
+    /**
+     * Abort the UDP query the given thread is waiting for by closing its socket, as an interrupt does not end a thread
+     * blocking in {@link DatagramSocket#receive(DatagramPacket)}. The query then fails with an
+     * {@link InterruptedIOException} instead of falling back to TCP. Queries over TCP already end once the thread is
+     * interrupted.
+     *
+     * @param thread the thread waiting for the query.
+     */
+    @Override
+    public void abort(Thread thread) {
+        DatagramSocket socket = receivingSockets.remove(thread);
+        if (socket != null) {
+            socket.close();
+        }
+    }
+
+    /**
+     * Get the exception to throw for the given exception of a UDP query, which is an {@link InterruptedIOException} if
+     * the query was aborted.
+     */
+    private IOException getUdpException(SocketException exception, Thread thread, DatagramSocket socket) {
+        if (socket == null || receivingSockets.get(thread) == socket) {
+            return exception;
+        }
+        InterruptedIOException interruptedIoException = new InterruptedIOException("The query was aborted");
+        interruptedIoException.initCause(exception);
+        return interruptedIoException;
+    }
+
     // TODO: Rename 'message' parameter to query.
     @Override
     public StandardDnsQueryResult query(DnsMessage message, InetAddress address, int port) throws IOException {
@@ -55,11 +153,63 @@ public class NetworkDataSource extends AbstractDnsDataSource {
         List<IOException> ioExceptions = new ArrayList<>(2);
         DnsMessage dnsMessage = null;
 
+        TruncatedQueries.Key truncatedQueriesKey = null;
+        if (doUdpFirst && tcpFirstAfterTruncation && !message.questions.isEmpty()) {
+            truncatedQueriesKey = new TruncatedQueries.Key(address, port, message.getQuestion());
+            if (truncatedQueries.contains(truncatedQueriesKey)) {
+                try {
+                    dnsMessage = queryTcp(message, address, port);
+                    return new StandardDnsQueryResult(address, port, QueryMethod.tcp, message, dnsMessage);
+                } catch (IOException e) {
+                    // Maybe the server does not support TCP (anymore), hence try UDP again.
+                    ioExceptions.add(e);
+                    truncatedQueries.remove(truncatedQueriesKey);
+                }
+            }
+        }
+
         if (doUdpFirst) {
-            try {
-                dnsMessage = queryUdp(message, address, port);
-            } catch (IOException e) {
-                ioExceptions.add(e);
+            final UdpPayloadSizeEstimator estimator = udpPayloadSizeEstimator;
+            final Edns edns = message.getEdns();
+            int advertisedSize = -1;
+            DnsMessage udpMessage = message;
+            if (estimator != null && edns != null) {
+                advertisedSize = estimator.getUdpPayloadSize(address, edns.udpPayloadSize);
+                udpMessage = withUdpPayloadSize(message, advertisedSize);
+            }
+
+            boolean retried = false;
+            while (true) {
+                try {
+                    dnsMessage = queryUdp(udpMessage, address, port);
+                    if (advertisedSize > 0) {
+                        estimator.reportSuccess(address, advertisedSize, dnsMessage.truncated, getReceiveBufferSize(message));
+                    }
+                    break;
+                } catch (SocketTimeoutException e) {
+                    ioExceptions.add(e);
+                    if (advertisedSize < 0) {
+                        break;
+                    }
+                    // The response may have been dropped because of its size, in which case a query advertising a
+                    // smaller payload size is answered with a smaller or a truncated response.
+                    boolean fullTimeout = getQueryTimeout() >= timeout;
+                    int smallerSize = estimator.reportTimeout(address, advertisedSize, fullTimeout);
+                    if (smallerSize < 0 || retried) {
+                        break;
+                    }
+                    LOGGER.log(Level.FINE, "Retrying query to {0} with UDP payload size {1} after timeout",
+                            new Object[] { address, smallerSize });
+                    advertisedSize = smallerSize;
+                    udpMessage = withUdpPayloadSize(message, smallerSize);
+                    retried = true;
+                } catch (InterruptedIOException e) {
+                    // The query was aborted, hence do not fall back to TCP.
+                    throw e;
+                } catch (IOException e) {
+                    ioExceptions.add(e);
+                    break;
+                }
             }
 
             // TODO: This null check could probably be removed by now.
@@ -67,7 +217,11 @@ public class NetworkDataSource extends AbstractDnsDataSource {
                 return new StandardDnsQueryResult(address, port, QueryMethod.udp, message, dnsMessage);
             }
 
-            assert dnsMessage == null || dnsMessage.truncated || ioExceptions.size() == 1;
+            if (dnsMessage != null && truncatedQueriesKey != null) {
+                truncatedQueries.add(truncatedQueriesKey);
+            }
+
+            assert dnsMessage == null || dnsMessage.truncated || !ioExceptions.isEmpty();
             LOGGER.log(Level.FINE, "Fallback to TCP because {0}",
                     new Object[] { dnsMessage != null ? "response is truncated" : ioExceptions.get(0) });
         }
@@ -83,13 +237,20 @@ public class NetworkDataSource extends AbstractDnsDataSource {
     }
 
     protected DnsMessage queryUdp(DnsMessage message, InetAddress address, int port) throws IOException {
+        final int timeout = getQueryTimeout();
+        if (udpSocketPooling) {
+            return queryUdpPooled(message, address, port, timeout);
+        }
+
         // TODO Use a try-with-resource statement here once miniDNS minimum
         // required Android API level is >= 19
         DatagramSocket socket = null;
         DatagramPacket packet = message.asDatagram(address, port);
-        byte[] buffer = new byte[udpPayloadSize];
+        byte[] buffer = new byte[getReceiveBufferSize(message)];
+        final Thread thread = Thread.currentThread();
         try {
             socket = createDatagramSocket();
+            receivingSockets.put(thread, socket);
             socket.setSoTimeout(timeout);
             socket.send(packet);
             packet = new DatagramPacket(buffer, buffer.length);
@@ -99,21 +260,268 @@ public class NetworkDataSource extends AbstractDnsDataSource {
                 throw new MiniDnsException.IdMismatch(message, dnsMessage);
             }
             return dnsMessage;
+        } catch (SocketException e) {
+            throw getUdpException(e, thread, socket);
         } finally {
             if (socket != null) {
+                receivingSockets.remove(thread, socket);
                 socket.close();
             }
         }
     }
 
+    private DnsMessage queryUdpPooled(DnsMessage message, InetAddress address, int port, int timeout) throws IOException {
+        InetSocketAddress server = new InetSocketAddress(address, port);
+        UdpSocketPool.PooledSocket pooledSocket = udpSocketPool.acquire(server);
+        if (pooledSocket == null) {
+            DatagramSocket socket = createDatagramSocket();
+            try {
+                socket.connect(server);
+            } catch (SocketException e) {
+                socket.close();
+                throw e;
+            }
+            pooledSocket = new UdpSocketPool.PooledSocket(socket);
+        }
+
+        DatagramSocket socket = pooledSocket.socket;
+        byte[] buffer = pooledSocket.getBuffer(getReceiveBufferSize(message));
+        boolean reusable = false;
+        final Thread thread = Thread.currentThread();
+        receivingSockets.put(thread, socket);
+        try {
+            socket.setSoTimeout(timeout);
+            socket.send(message.asDatagram(address, port));
+            final long deadline = System.currentTimeMillis() + timeout;
+            while (true) {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+                DnsMessage dnsMessage = new DnsMessage(Arrays.copyOf(buffer, packet.getLength()));
+                if (dnsMessage.id == message.id) {
+                    reusable = true;
+                    return dnsMessage;
+                }
+
+                // Most likely a late response to a query which previously timed out on this socket.
+                LOGGER.log(Level.FINE, "Discarding response with mismatched ID {0} while waiting for {1}",
+                        new Object[] { dnsMessage.id, message.id });
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new MiniDnsException.IdMismatch(message, dnsMessage);
+                }
+                socket.setSoTimeout((int) remaining);
+            }
+        } catch (SocketException e) {
+            throw getUdpException(e, thread, socket);
+        } finally {
+            // If the query was aborted, then its socket is closed.
+            boolean aborted = !receivingSockets.remove(thread, socket);
+            if (reusable && !aborted) {
+                udpSocketPool.release(server, pooledSocket);
+            } else {
+                socket.close();
+            }
+        }
+    }
+
+    private int getReceiveBufferSize(DnsMessage query) {
+        Edns edns = query.getEdns();
+        if (edns == null) {
+            return udpPayloadSize;
+        }
+        return Math.max(udpPayloadSize, edns.udpPayloadSize);
+    }
+
+    /**
+     * Get a copy of the given query advertising the given EDNS UDP payload size.
+     */
+    private static DnsMessage withUdpPayloadSize(DnsMessage query, int udpPayloadSize) {
+        Edns edns = query.getEdns();
+        if (edns.udpPayloadSize == udpPayloadSize) {
+            return query;
+        }
+
+        List<Record<? extends Data>> additional = new ArrayList<>(query.additionalSection.size());
+        for (Record<? extends Data> record : query.additionalSection) {
+            if (record.type != TYPE.OPT) {
+                additional.add(record);
+            }
+        }
+        DnsMessage.Builder builder = query.asBuilder().setAdditionalResourceRecords(additional);
+        Edns.Builder ednsBuilder = builder.getEdnsBuilder()
+                .setUdpPayloadSize(udpPayloadSize)
+                .setDnssecOk(edns.dnssecOk);
+        for (EdnsOption option : edns.variablePart) {
+            ednsBuilder.addEdnsOption(option);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Set whether queries which were recently answered with a truncated response over UDP are sent over TCP right away.
+     * If enabled, which is the default, the server, the question type and the question name of truncated responses are
+     * remembered for some time, so that, for example, repeated DNSKEY queries do not waste a UDP round trip each.
+     *
+     * @param tcpFirstAfterTruncation <code>true</code> to send recently truncated queries over TCP first.
+     */
+    public void setTcpFirstAfterTruncation(boolean tcpFirstAfterTruncation) {
+        this.tcpFirstAfterTruncation = tcpFirstAfterTruncation;
+        if (!tcpFirstAfterTruncation) {
+            truncatedQueries.clear();
+        }
+    }
+
+    /**
+     * Set for how long and for how many queries a truncated response is remembered.
+     *
+     * @param lifetime the time in milliseconds a truncated response is remembered.
+     * @param maxEntries the maximum number of remembered queries.
+     */
+    public void setTruncatedQueriesMemory(long lifetime, int maxEntries) {
+        if (lifetime <= 0 || maxEntries <= 0) {
+            throw new IllegalArgumentException("The lifetime and the maximum number of entries must be greater than zero");
+        }
+        truncatedQueries.lifetime = lifetime;
+        truncatedQueries.maxEntries = maxEntries;
+    }
+
+    /**
+     * Get the number of remembered queries which are sent over TCP right away, for example, for monitoring. This may
+     * include expired entries.
+     *
+     * @return the number of remembered queries.
+     */
+    public int getTruncatedQueriesCount() {
+        return truncatedQueries.size();
+    }
+
+    public UdpPayloadSizeEstimator getUdpPayloadSizeEstimator() {
+        return udpPayloadSizeEstimator;
+    }
+
+    /**
+     * Set the estimator which learns the EDNS UDP payload size advertised to every upstream server. If set, which is
+     * the default, the payload size of queries with EDNS is replaced by the learned one, and a query which timed out is
+     * retried once with a smaller payload size before falling back to TCP.
+     *
+     * @param udpPayloadSizeEstimator the estimator or <code>null</code> to always advertise the payload size of the
+     * query.
+     */
+    public void setUdpPayloadSizeEstimator(UdpPayloadSizeEstimator udpPayloadSizeEstimator) {
+        this.udpPayloadSizeEstimator = udpPayloadSizeEstimator;
+    }
+
+    /**
+     * Set whether UDP queries reuse sockets connected to the upstream server. If enabled, which is the default, idle
+     * sockets are kept per upstream server together with their receive buffer, instead of creating a new socket for
+     * every query. Every socket is retired after a number of queries or some time, so that the source port keeps
+     * changing.
+     *
+     * @param udpSocketPooling <code>true</code> to reuse UDP sockets.
+     */
+    public void setUdpSocketPooling(boolean udpSocketPooling) {
+        this.udpSocketPooling = udpSocketPooling;
+        if (!udpSocketPooling) {
+            udpSocketPool.closeIdleSockets();
+        }
+    }
+
+    /**
+     * Set the maximum number of idle UDP sockets kept per upstream server.
+     *
+     * @param maxIdleUdpSocketsPerServer the maximum number of idle sockets.
+     */
+    public void setMaxIdleUdpSocketsPerServer(int maxIdleUdpSocketsPerServer) {
+        if (maxIdleUdpSocketsPerServer < 0) {
+            throw new IllegalArgumentException("The maximum number of idle sockets must not be negative");
+        }
+        udpSocketPool.maxIdleSocketsPerServer = maxIdleUdpSocketsPerServer;
+    }
+
+    /**
+     * Set after how many queries or how much time a UDP socket is retired, and hence the source port changes.
+     *
+     * @param maxUses the maximum number of queries per socket.
+     * @param maxAge the maximum age of a socket in milliseconds.
+     */
+    public void setUdpSocketRotation(int maxUses, long maxAge) {
+        if (maxUses <= 0 || maxAge <= 0) {
+            throw new IllegalArgumentException("The maximum uses and age must be greater than zero");
+        }
+        udpSocketPool.maxUses = maxUses;
+        udpSocketPool.maxAge = maxAge;
+    }
+
+    /**
+     * Set whether TCP connections to upstream servers are kept open and shared by queries, as recommended by RFC 7766.
+     * If enabled, which is the default, queries are pipelined over up to a few connections per upstream server, and
+     * queries using EDNS carry the edns-tcp-keepalive option of RFC 7828, so that the server may announce how long the
+     * connection may be kept idle.
+     *
+     * @param tcpConnectionReuse <code>true</code> to reuse TCP connections.
+     */
+    public void setTcpConnectionReuse(boolean tcpConnectionReuse) {
+        this.tcpConnectionReuse = tcpConnectionReuse;
+        if (!tcpConnectionReuse) {
+            tcpConnectionPool.closeIdleConnections();
+        }
+    }
+
+    /**
+     * Set the maximum number of queries pipelined over a single TCP connection before another connection is opened.
+     *
+     * @param maxPipelinedTcpQueries the maximum number of outstanding queries per connection.
+     */
+    public void setMaxPipelinedTcpQueries(int maxPipelinedTcpQueries) {
+        if (maxPipelinedTcpQueries <= 0) {
+            throw new IllegalArgumentException("The maximum number of pipelined queries must be greater than zero");
+        }
+        tcpConnectionPool.maxPipelinedQueries = maxPipelinedTcpQueries;
+    }
+
+    /**
+     * Set the maximum number of TCP connections kept open per upstream server.
+     *
+     * @param maxTcpConnectionsPerServer the maximum number of connections.
+     */
+    public void setMaxTcpConnectionsPerServer(int maxTcpConnectionsPerServer) {
+        if (maxTcpConnectionsPerServer <= 0) {
+            throw new IllegalArgumentException("The maximum number of connections must be greater than zero");
+        }
+        tcpConnectionPool.maxConnectionsPerServer = maxTcpConnectionsPerServer;
+    }
+
+    /**
+     * Set how long an idle TCP connection is kept open, unless the server announces a different timeout.
+     *
+     * @param tcpIdleTimeout the idle timeout in milliseconds.
+     */
+    public void setTcpIdleTimeout(long tcpIdleTimeout) {
+        if (tcpIdleTimeout <= 0) {
+            throw new IllegalArgumentException("The idle timeout must be greater than zero");
+        }
+        tcpConnectionPool.defaultIdleTimeout = tcpIdleTimeout;
+    }
+
+    /**
+     * Close the idle UDP sockets and the TCP connections without outstanding queries.
+     */
+    public void closeIdleSockets() {
+        udpSocketPool.closeIdleSockets();
+        tcpConnectionPool.closeIdleConnections();
+    }
+
     protected DnsMessage queryTcp(DnsMessage message, InetAddress address, int port) throws IOException {
+        final int timeout = getQueryTimeout();
+        if (tcpConnectionReuse) {
+            return tcpConnectionPool.query(message, new InetSocketAddress(address, port), timeout);
+        }
+
         // TODO Use a try-with-resource statement here once miniDNS minimum
         // required Android API level is >= 19
         Socket socket = null;
         try {
-            socket = createSocket();
-            SocketAddress socketAddress = new InetSocketAddress(address, port);
-            socket.connect(socketAddress, timeout);
+            socket = openTcpConnection(new InetSocketAddress(address, port), timeout);
             socket.setSoTimeout(timeout);
             DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
             message.writeTo(dos);
@@ -137,6 +545,25 @@ public class NetworkDataSource extends AbstractDnsDataSource {
         }
     }
 
+    /**
+     * Open a TCP connection to the given server. The socket is created with {@link #createSocket()}.
+     *
+     * @param server the address of the server.
+     * @param timeout the connect timeout in milliseconds.
+     * @return the connected socket.
+     * @throws IOException if the connection could not be established.
+     */
+    protected Socket openTcpConnection(InetSocketAddress server, int timeout) throws IOException {
+        Socket socket = createSocket();
+        try {
+            socket.connect(server, timeout);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
     /**
      * Create a {@link Socket} using the system default {@link javax.net.SocketFactory}.
      *
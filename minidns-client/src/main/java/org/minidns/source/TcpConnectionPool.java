@@ -0,0 +1,401 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.source;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsmessage.Question;
+import org.minidns.edns.Edns;
+import org.minidns.edns.Edns.OptionCode;
+import org.minidns.edns.EdnsOption;
+import org.minidns.edns.TcpKeepalive;
+import org.minidns.record.Data;
+import org.minidns.record.Record;
+import org.minidns.record.Record.TYPE;
+
+/**
+ * Persistent TCP connections to upstream servers as recommended by RFC 7766. Multiple queries are pipelined over a
+ * connection, and the responses, which may arrive out of order, are matched to the queries by their ID and question.
+ * Every connection has a reader thread, which closes the connection once it was idle for the idle timeout. The idle
+ * timeout is the one announced by the server with the edns-tcp-keepalive option of RFC 7828, or a default if the
+ * server does not announce one. A connection on which a query timed out is retired, as the server may have silently
+ * dropped it, for example when a NAT binding expired: no further queries are sent over it, and it is closed once its
+ * pending queries completed.
+ */
+final class TcpConnectionPool {
+
+    private static final Logger LOGGER = Logger.getLogger(TcpConnectionPool.class.getName());
+
+    private final NetworkDataSource dataSource;
+
+    private final ConcurrentMap<InetSocketAddress, List<Connection>> connections = new ConcurrentHashMap<>();
+
+    volatile int maxConnectionsPerServer = 2;
+
+    volatile int maxPipelinedQueries = 16;
+
+    volatile long defaultIdleTimeout = 10 * 1000;
+
+    TcpConnectionPool(NetworkDataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    DnsMessage query(DnsMessage message, InetSocketAddress server, int timeout) throws IOException {
+        DnsMessage tcpMessage = withTcpKeepalive(message);
+        Connection connection = getConnection(server, message.id, timeout);
+        try {
+            return connection.query(tcpMessage, timeout);
+        } catch (ConnectionClosedException e) {
+            if (connection.fresh) {
+                throw e;
+            }
+            // The server may close idle connections at any time, in which case RFC 7766 § 6.2.1 suggests to retry the
+            // query on a new connection.
+            LOGGER.log(Level.FINE, "Retrying query on new connection to " + server, e);
+            connection = openConnection(server, timeout);
+            return connection.query(tcpMessage, timeout);
+        }
+    }
+
+    private Connection getConnection(InetSocketAddress server, int id, int timeout) throws IOException {
+        List<Connection> serverConnections = getServerConnections(server);
+        synchronized (serverConnections) {
+            Connection best = null;
+            int open = 0;
+            for (Connection connection : serverConnections) {
+                if (!connection.isUsable(id)) {
+                    continue;
+                }
+                open++;
+                if (best == null || connection.getPendingCount() < best.getPendingCount()) {
+                    best = connection;
+                }
+            }
+            if (best != null && (best.getPendingCount() < maxPipelinedQueries || open >= maxConnectionsPerServer)) {
+                best.fresh = false;
+                return best;
+            }
+        }
+        return openConnection(server, timeout);
+    }
+
+    private List<Connection> getServerConnections(InetSocketAddress server) {
+        List<Connection> serverConnections = connections.get(server);
+        if (serverConnections == null) {
+            serverConnections = new ArrayList<>(2);
+            List<Connection> previous = connections.putIfAbsent(server, serverConnections);
+            if (previous != null) {
+                serverConnections = previous;
+            }
+        }
+        return serverConnections;
+    }
+
+    private Connection openConnection(InetSocketAddress server, int timeout) throws IOException {
+        Socket socket = dataSource.openTcpConnection(server, timeout);
+        try {
+            socket.setTcpNoDelay(true);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+
+        Connection connection = new Connection(server, socket);
+        List<Connection> serverConnections = getServerConnections(server);
+        synchronized (serverConnections) {
+            serverConnections.add(connection);
+        }
+        connection.start();
+        return connection;
+    }
+
+    private void removed(Connection connection) {
+        List<Connection> serverConnections = connections.get(connection.server);
+        if (serverConnections == null) {
+            return;
+        }
+        synchronized (serverConnections) {
+            serverConnections.remove(connection);
+        }
+    }
+
+    void closeIdleConnections() {
+        for (List<Connection> serverConnections : connections.values()) {
+            List<Connection> idle = new ArrayList<>();
+            synchronized (serverConnections) {
+                for (Connection connection : serverConnections) {
+                    if (connection.getPendingCount() == 0) {
+                        idle.add(connection);
+                    }
+                }
+            }
+            for (Connection connection : idle) {
+                connection.close(new ConnectionClosedException("Connection closed"));
+            }
+        }
+    }
+
+    /**
+     * Add the edns-tcp-keepalive option to the given query, if it uses EDNS and does not already carry the option.
+     */
+    static DnsMessage withTcpKeepalive(DnsMessage query) {
+        Edns edns = query.getEdns();
+        if (edns == null || edns.getEdnsOption(OptionCode.TCP_KEEPALIVE) != null) {
+            return query;
+        }
+
+        List<Record<? extends Data>> additional = new ArrayList<>(query.additionalSection.size());
+        for (Record<? extends Data> record : query.additionalSection) {
+            if (record.type != TYPE.OPT) {
+                additional.add(record);
+            }
+        }
+        DnsMessage.Builder builder = query.asBuilder().setAdditionalResourceRecords(additional);
+        Edns.Builder ednsBuilder = builder.getEdnsBuilder()
+                .setUdpPayloadSize(edns.udpPayloadSize)
+                .setDnssecOk(edns.dnssecOk);
+        for (EdnsOption option : edns.variablePart) {
+            ednsBuilder.addEdnsOption(option);
+        }
+        ednsBuilder.addEdnsOption(TcpKeepalive.REQUEST);
+        return builder.build();
+    }
+
+    @SuppressWarnings("serial")
+    static final class ConnectionClosedException extends IOException {
+        ConnectionClosedException(String message) {
+            super(message);
+        }
+
+        ConnectionClosedException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    private static final class PendingQuery {
+        private final Question question;
+        private DnsMessage response;
+        private IOException exception;
+
+        private PendingQuery(Question question) {
+            this.question = question;
+        }
+    }
+
+    private final class Connection implements Runnable {
+        private final InetSocketAddress server;
+        private final Socket socket;
+        private final Map<Integer, PendingQuery> pending = new HashMap<>();
+        private volatile boolean closed;
+        private boolean retired;
+        private volatile long idleTimeout = defaultIdleTimeout;
+        private boolean fresh = true;
+
+        private Connection(InetSocketAddress server, Socket socket) {
+            this.server = server;
+            this.socket = socket;
+        }
+
+        private void start() {
+            Thread thread = new Thread(this);
+            thread.setDaemon(true);
+            thread.setName("MiniDNS TCP Connection Reader " + server);
+            thread.start();
+        }
+
+        private synchronized int getPendingCount() {
+            return pending.size();
+        }
+
+        private synchronized boolean isUsable(int id) {
+            return !closed && !retired && !pending.containsKey(id);
+        }
+
+        private DnsMessage query(DnsMessage message, int timeout) throws IOException {
+            PendingQuery pendingQuery = new PendingQuery(message.getQuestion());
+            synchronized (this) {
+                if (closed) {
+                    throw new ConnectionClosedException("Connection to " + server + " is closed");
+                }
+                if (pending.containsKey(message.id)) {
+                    throw new IOException("A query with the ID " + message.id + " is already pending on " + server);
+                }
+                pending.put(message.id, pendingQuery);
+            }
+
+            try {
+                byte[] bytes = message.toArray();
+                byte[] frame = new byte[bytes.length + 2];
+                frame[0] = (byte) (bytes.length >> 8);
+                frame[1] = (byte) bytes.length;
+                System.arraycopy(bytes, 0, frame, 2, bytes.length);
+                OutputStream outputStream = socket.getOutputStream();
+                // Write the whole frame at once, so that frames of concurrent queries do not interleave.
+                synchronized (outputStream) {
+                    outputStream.write(frame);
+                    outputStream.flush();
+                }
+            } catch (IOException e) {
+                close(new ConnectionClosedException("Could not send query to " + server, e));
+            }
+
+            final long deadline = System.currentTimeMillis() + timeout;
+            boolean timedOut = false;
+            boolean closeRetired = false;
+            synchronized (this) {
+                try {
+                    while (pendingQuery.response == null && pendingQuery.exception == null) {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            timedOut = true;
+                            retired = true;
+                            break;
+                        }
+                        try {
+                            wait(remaining);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("Interrupted while waiting for response from " + server);
+                        }
+                    }
+                } finally {
+                    if (pending.get(message.id) == pendingQuery) {
+                        pending.remove(message.id);
+                    }
+                    closeRetired = retired && pending.isEmpty();
+                }
+            }
+
+            // Close the connection outside of its monitor, as closing it acquires the lock of the server's connections.
+            if (closeRetired) {
+                close(new ConnectionClosedException("Retired connection to " + server + " closed"));
+            }
+            if (timedOut) {
+                throw new SocketTimeoutException("Timeout waiting for response from " + server);
+            }
+            if (pendingQuery.exception != null) {
+                throw pendingQuery.exception;
+            }
+            return pendingQuery.response;
+        }
+
+        @Override
+        public void run() {
+            try {
+                InputStream inputStream = socket.getInputStream();
+                DataInputStream dataInputStream = new DataInputStream(inputStream);
+                long lastActivity = System.currentTimeMillis();
+                while (true) {
+                    int firstByte;
+                    try {
+                        socket.setSoTimeout((int) Math.max(1, Math.min(idleTimeout, Integer.MAX_VALUE)));
+                        firstByte = inputStream.read();
+                    } catch (SocketTimeoutException e) {
+                        if (getPendingCount() == 0 && System.currentTimeMillis() - lastActivity >= idleTimeout) {
+                            close(new ConnectionClosedException("Idle connection to " + server + " closed"));
+                            return;
+                        }
+                        continue;
+                    }
+                    if (firstByte < 0) {
+                        close(new ConnectionClosedException("Connection closed by " + server));
+                        return;
+                    }
+                    int length = (firstByte << 8) | dataInputStream.readUnsignedByte();
+                    byte[] data = new byte[length];
+                    dataInputStream.readFully(data);
+                    lastActivity = System.currentTimeMillis();
+
+                    DnsMessage response = new DnsMessage(data);
+                    updateIdleTimeout(response);
+                    dispatch(response);
+                }
+            } catch (EOFException e) {
+                close(new ConnectionClosedException("Connection closed by " + server, e));
+            } catch (IOException e) {
+                close(new ConnectionClosedException("Error reading from " + server, e));
+            } catch (RuntimeException e) {
+                // Never leave a connection without reader in the pool, as all queries sent over it would time out.
+                LOGGER.log(Level.WARNING, "Exception processing response from " + server, e);
+                close(new ConnectionClosedException("Error processing response from " + server, e));
+            }
+        }
+
+        private void updateIdleTimeout(DnsMessage response) {
+            Edns edns = response.getEdns();
+            if (edns == null) {
+                return;
+            }
+            TcpKeepalive tcpKeepalive = edns.getEdnsOption(OptionCode.TCP_KEEPALIVE);
+            if (tcpKeepalive == null) {
+                return;
+            }
+            int timeout = tcpKeepalive.getTimeout();
+            if (timeout == 0) {
+                // RFC 7828 § 3.3.2: A timeout of zero signals the client to close the connection as soon as possible.
+                idleTimeout = 1;
+            } else if (timeout > 0) {
+                idleTimeout = timeout * 100L;
+            }
+        }
+
+        private synchronized void dispatch(DnsMessage response) {
+            PendingQuery pendingQuery = pending.get(response.id);
+            // Error responses, like FORMERR, may come without a question section, in which case only the ID is matched.
+            Question question = response.questions.isEmpty() ? null : response.getQuestion();
+            if (pendingQuery == null
+                    || (pendingQuery.question != null && question != null && !pendingQuery.question.equals(question))) {
+                LOGGER.fine("Discarding unexpected response from " + server + " with ID " + response.id);
+                return;
+            }
+            pending.remove(response.id);
+            pendingQuery.response = response;
+            notifyAll();
+        }
+
+        private void close(ConnectionClosedException exception) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                for (PendingQuery pendingQuery : pending.values()) {
+                    pendingQuery.exception = exception;
+                }
+                pending.clear();
+                notifyAll();
+            }
+            removed(this);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Exception closing connection to " + server, e);
+            }
+        }
+    }
+}
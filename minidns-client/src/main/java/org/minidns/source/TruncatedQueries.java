@@ -0,0 +1,106 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.source;
+
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.minidns.dnsmessage.Question;
+import org.minidns.dnsname.DnsName;
+import org.minidns.record.Record.TYPE;
+
+/**
+ * Remembers for some time which queries to which server were recently answered with a truncated response over UDP, so
+ * that the same queries are sent over TCP right away. The entries are keyed by the server, the question type and the
+ * question name, and the least recently used entries are evicted once the maximum number of entries is reached.
+ */
+final class TruncatedQueries {
+
+    static final class Key {
+        private final InetAddress server;
+        private final int port;
+        private final TYPE type;
+        private final DnsName name;
+        private final int hashCode;
+
+        Key(InetAddress server, int port, Question question) {
+            this.server = server;
+            this.port = port;
+            this.type = question.type;
+            this.name = question.name;
+            int hashCode = server != null ? server.hashCode() : 0;
+            hashCode = 31 * hashCode + port;
+            hashCode = 31 * hashCode + type.hashCode();
+            hashCode = 31 * hashCode + name.hashCode();
+            this.hashCode = hashCode;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key otherKey = (Key) other;
+            return port == otherKey.port && type == otherKey.type && name.equals(otherKey.name)
+                    && (server == null ? otherKey.server == null : server.equals(otherKey.server));
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private final Map<Key, Long> expirations = new LinkedHashMap<Key, Long>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Long> eldest) {
+            return size() > maxEntries;
+        }
+    };
+
+    volatile int maxEntries = 1024;
+
+    volatile long lifetime = 10 * 60 * 1000;
+
+    synchronized void add(Key key) {
+        expirations.put(key, System.currentTimeMillis() + lifetime);
+    }
+
+    synchronized boolean contains(Key key) {
+        Long expiration = expirations.get(key);
+        if (expiration == null) {
+            return false;
+        }
+        if (expiration <= System.currentTimeMillis()) {
+            expirations.remove(key);
+            return false;
+        }
+        return true;
+    }
+
+    synchronized void remove(Key key) {
+        expirations.remove(key);
+    }
+
+    synchronized int size() {
+        return expirations.size();
+    }
+
+    synchronized void clear() {
+        expirations.clear();
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.source;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Learns the EDNS UDP payload size to advertise to every upstream server, similar to the EDNS fallback of BIND.
+ * <p>
+ * Middleboxes on some paths silently drop large UDP responses, usually because they are fragmented, which makes a
+ * query time out. If a query to a server which answered recently times out after the full timeout, or repeatedly after a
+ * shortened timeout, then the payload size of the server is lowered to the next smaller of the
+ * {@link #UDP_PAYLOAD_SIZES}, and the size that timed out becomes the ceiling of the server for
+ * {@link #DEFAULT_CEILING_LIFETIME} milliseconds. Conversely, if a response is truncated, then the payload size is raised
+ * to the next larger size below the ceiling and the maximum payload size, so that clean paths avoid needless fallbacks
+ * to TCP. The maximum payload size is never larger than the size the caller is able to receive, which is the UDP
+ * payload size of the data source. A lowered payload size is also raised again after a number of successful queries, to
+ * check whether the path has recovered.
+ * </p>
+ * <p>
+ * This class is thread safe.
+ * </p>
+ */
+public class UdpPayloadSizeEstimator {
+
+    /**
+     * The payload sizes tried. 1232 is the size recommended by the DNS flag day 2020, 1432 fits into an Ethernet frame
+     * with common tunnel overheads.
+     */
+    static final int[] UDP_PAYLOAD_SIZES = { 512, 1232, 1432, 4096 };
+
+    public static final int DEFAULT_MAX_UDP_PAYLOAD_SIZE = 4096;
+
+    /**
+     * The default time, in milliseconds, a payload size which timed out is not advertised to a server again.
+     */
+    public static final long DEFAULT_CEILING_LIFETIME = 10 * 60 * 1000;
+
+    /**
+     * The default number of successful queries after which a lowered payload size is raised again.
+     */
+    public static final int DEFAULT_PROBE_INTERVAL = 100;
+
+    /**
+     * The time, in milliseconds, after its last response during which a timeout of a server is attributed to the size of
+     * the response instead of the server being unreachable.
+     */
+    static final long RESPONSIVE_WINDOW = 60 * 1000;
+
+    /**
+     * The number of consecutive timeouts after a shortened timeout after which a timeout is attributed to the payload
+     * size. A shortened timeout may just have been too short for the server, so a single one is not attributed.
+     */
+    static final int REPEATED_TIMEOUTS = 2;
+
+    private final ConcurrentMap<InetAddress, State> states = new ConcurrentHashMap<>();
+
+    private volatile int maxUdpPayloadSize = DEFAULT_MAX_UDP_PAYLOAD_SIZE;
+
+    private volatile long ceilingLifetime = DEFAULT_CEILING_LIFETIME;
+
+    private volatile int probeInterval = DEFAULT_PROBE_INTERVAL;
+
+    private static final class State {
+        private final int initialSize;
+        private int size;
+        private int ceiling = Integer.MAX_VALUE;
+        private long ceilingTimestamp;
+        private int consecutiveSuccesses;
+        private int consecutiveTimeouts;
+        private long lastSuccess;
+        private long successes;
+        private long timeouts;
+        private long truncations;
+        private long reductions;
+        private long increases;
+
+        private State(int initialSize) {
+            this.initialSize = initialSize;
+            this.size = initialSize;
+        }
+
+        private synchronized int getSize() {
+            return size;
+        }
+
+        private synchronized void reportSuccess(int advertisedSize, boolean truncated, int maxSize, long ceilingLifetime,
+                        int probeInterval) {
+            long now = System.currentTimeMillis();
+            lastSuccess = now;
+            successes++;
+            consecutiveTimeouts = 0;
+            if (advertisedSize != size) {
+                // The size was changed by a concurrent query.
+                return;
+            }
+            consecutiveSuccesses++;
+            if (truncated) {
+                truncations++;
+            }
+
+            if (ceiling != Integer.MAX_VALUE && now - ceilingTimestamp >= ceilingLifetime) {
+                ceiling = Integer.MAX_VALUE;
+            }
+            boolean probe = size < initialSize && consecutiveSuccesses >= probeInterval;
+            if (!truncated && !probe) {
+                return;
+            }
+            int next = nextLarger(size);
+            if (next < 0 || next > maxSize || next >= ceiling) {
+                return;
+            }
+            size = next;
+            consecutiveSuccesses = 0;
+            increases++;
+        }
+
+        private synchronized int reportTimeout(int advertisedSize, boolean fullTimeout) {
+            timeouts++;
+            consecutiveTimeouts++;
+            long now = System.currentTimeMillis();
+            if (lastSuccess == 0 || now - lastSuccess > RESPONSIVE_WINDOW) {
+                // The server is possibly unreachable, which says nothing about the payload size.
+                return -1;
+            }
+            if (!fullTimeout && consecutiveTimeouts < REPEATED_TIMEOUTS) {
+                // The server was possibly just slower than the shortened timeout.
+                return -1;
+            }
+            int smaller = nextSmaller(advertisedSize);
+            if (smaller < 0) {
+                return -1;
+            }
+            ceiling = Math.min(ceiling, advertisedSize);
+            ceilingTimestamp = now;
+            if (size > smaller) {
+                size = smaller;
+                reductions++;
+            }
+            consecutiveSuccesses = 0;
+            return smaller;
+        }
+
+        private synchronized UdpPayloadSize snapshot(InetAddress server) {
+            return new UdpPayloadSize(server, size, ceiling == Integer.MAX_VALUE ? -1 : ceiling, successes, timeouts,
+                            truncations, reductions, increases);
+        }
+    }
+
+    private static int nextLarger(int size) {
+        for (int candidate : UDP_PAYLOAD_SIZES) {
+            if (candidate > size) {
+                return candidate;
+            }
+        }
+        return -1;
+    }
+
+    private static int nextSmaller(int size) {
+        for (int i = UDP_PAYLOAD_SIZES.length - 1; i >= 0; i--) {
+            if (UDP_PAYLOAD_SIZES[i] < size) {
+                return UDP_PAYLOAD_SIZES[i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the payload size to advertise to the given server.
+     *
+     * @param server the server.
+     * @param requestedSize the payload size requested by the client, which is used until something was learned.
+     * @return the payload size.
+     */
+    public int getUdpPayloadSize(InetAddress server, int requestedSize) {
+        State state = states.get(server);
+        if (state == null) {
+            return requestedSize;
+        }
+        return state.getSize();
+    }
+
+    private State getState(InetAddress server, int requestedSize) {
+        State state = states.get(server);
+        if (state == null) {
+            state = new State(requestedSize);
+            State previous = states.putIfAbsent(server, state);
+            if (previous != null) {
+                state = previous;
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Record that the given server answered a query over UDP.
+     *
+     * @param server the server.
+     * @param advertisedSize the payload size advertised in the query.
+     * @param truncated whether the response was truncated.
+     * @param receivableSize the largest payload size the caller is able to receive, which caps the maximum payload
+     * size.
+     */
+    public void reportSuccess(InetAddress server, int advertisedSize, boolean truncated, int receivableSize) {
+        int maxSize = Math.min(maxUdpPayloadSize, receivableSize);
+        getState(server, advertisedSize).reportSuccess(advertisedSize, truncated, maxSize, ceilingLifetime,
+                        probeInterval);
+    }
+
+    /**
+     * Record that a query over UDP to the given server timed out.
+     *
+     * @param server the server.
+     * @param advertisedSize the payload size advertised in the query.
+     * @param fullTimeout whether the query waited for the full timeout, rather than for a timeout shortened, for
+     * example, from the measured round-trip time of the server.
+     * @return the smaller payload size to retry the query with, or -1 if the timeout is not attributed to the payload
+     * size.
+     */
+    public int reportTimeout(InetAddress server, int advertisedSize, boolean fullTimeout) {
+        return getState(server, advertisedSize).reportTimeout(advertisedSize, fullTimeout);
+    }
+
+    /**
+     * Get the learned payload sizes of all servers which were queried, for example, for monitoring.
+     *
+     * @return a list of the learned payload sizes.
+     */
+    public List<UdpPayloadSize> getUdpPayloadSizes() {
+        List<UdpPayloadSize> res = new ArrayList<>(states.size());
+        for (Map.Entry<InetAddress, State> entry : states.entrySet()) {
+            res.add(entry.getValue().snapshot(entry.getKey()));
+        }
+        return res;
+    }
+
+    /**
+     * Forget everything learned about the servers.
+     */
+    public void clear() {
+        states.clear();
+    }
+
+    /**
+     * Set the largest payload size advertised after truncated responses. The payload size is furthermore never raised
+     * above the size the caller is able to receive.
+     *
+     * @param maxUdpPayloadSize the maximum payload size.
+     */
+    public void setMaxUdpPayloadSize(int maxUdpPayloadSize) {
+        if (maxUdpPayloadSize < 512) {
+            throw new IllegalArgumentException("The maximum UDP payload size must be at least 512");
+        }
+        this.maxUdpPayloadSize = maxUdpPayloadSize;
+    }
+
+    /**
+     * Set how long a payload size which timed out is not advertised to a server again.
+     *
+     * @param ceilingLifetime the time in milliseconds.
+     */
+    public void setCeilingLifetime(long ceilingLifetime) {
+        if (ceilingLifetime < 0) {
+            throw new IllegalArgumentException("The ceiling lifetime must not be negative");
+        }
+        this.ceilingLifetime = ceilingLifetime;
+    }
+
+    /**
+     * Set after how many successful queries a lowered payload size is raised again.
+     *
+     * @param probeInterval the number of successful queries.
+     */
+    public void setProbeInterval(int probeInterval) {
+        if (probeInterval <= 0) {
+            throw new IllegalArgumentException("The probe interval must be greater than zero");
+        }
+        this.probeInterval = probeInterval;
+    }
+
+    /**
+     * A snapshot of the payload size learned for a server.
+     */
+    public static final class UdpPayloadSize {
+
+        public final InetAddress server;
+
+        /**
+         * The payload size currently advertised to the server.
+         */
+        public final int udpPayloadSize;
+
+        /**
+         * The smallest payload size which timed out recently, or -1 if there is none.
+         */
+        public final int ceiling;
+
+        public final long successes;
+
+        public final long timeouts;
+
+        public final long truncations;
+
+        /**
+         * The number of times the payload size was lowered after a timeout.
+         */
+        public final long reductions;
+
+        /**
+         * The number of times the payload size was raised after a truncated response or to probe the path.
+         */
+        public final long increases;
+
+        private UdpPayloadSize(InetAddress server, int udpPayloadSize, int ceiling, long successes, long timeouts,
+                        long truncations, long reductions, long increases) {
+            this.server = server;
+            this.udpPayloadSize = udpPayloadSize;
+            this.ceiling = ceiling;
+            this.successes = successes;
+            this.timeouts = timeouts;
+            this.truncations = truncations;
+            this.reductions = reductions;
+            this.increases = increases;
+        }
+
+        @Override
+        public String toString() {
+            return server.getHostAddress() + " udpPayloadSize=" + udpPayloadSize + " ceiling=" + ceiling + " successes="
+                    + successes + " timeouts=" + timeouts + " truncations=" + truncations + " reductions=" + reductions
+                    + " increases=" + increases;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.source;
+
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A pool of UDP sockets connected to upstream servers. A socket is used by a single query at a time, hence responses
+ * do not need to be demultiplexed. Every socket is bound to a random source port chosen by the operating system, and
+ * is retired after a number of queries or some time, so that the source port keeps changing as required by RFC 5452
+ * for the resistance against spoofed responses.
+ */
+final class UdpSocketPool {
+
+    static final class PooledSocket {
+        final DatagramSocket socket;
+        final long created;
+        byte[] buffer;
+        int uses;
+
+        PooledSocket(DatagramSocket socket) {
+            this.socket = socket;
+            this.created = System.currentTimeMillis();
+        }
+
+        byte[] getBuffer(int size) {
+            if (buffer == null || buffer.length != size) {
+                buffer = new byte[size];
+            }
+            return buffer;
+        }
+    }
+
+    private final ConcurrentMap<InetSocketAddress, Deque<PooledSocket>> idleSockets = new ConcurrentHashMap<>();
+
+    volatile int maxIdleSocketsPerServer = 8;
+
+    volatile int maxUses = 64;
+
+    volatile long maxAge = 60 * 1000;
+
+    /**
+     * Get an idle socket connected to the given server.
+     *
+     * @param server the server.
+     * @return an idle socket or <code>null</code> if there is none.
+     */
+    PooledSocket acquire(InetSocketAddress server) {
+        Deque<PooledSocket> sockets = idleSockets.get(server);
+        if (sockets == null) {
+            return null;
+        }
+        while (true) {
+            PooledSocket pooledSocket;
+            synchronized (sockets) {
+                pooledSocket = sockets.pollFirst();
+            }
+            if (pooledSocket == null) {
+                return null;
+            }
+            if (isExpired(pooledSocket)) {
+                pooledSocket.socket.close();
+                continue;
+            }
+            return pooledSocket;
+        }
+    }
+
+    /**
+     * Return a socket after it was successfully used for a query. The socket is closed if it was used too often, is too
+     * old or if there are enough idle sockets.
+     *
+     * @param server the server the socket is connected to.
+     * @param pooledSocket the socket.
+     */
+    void release(InetSocketAddress server, PooledSocket pooledSocket) {
+        pooledSocket.uses++;
+        if (isExpired(pooledSocket)) {
+            pooledSocket.socket.close();
+            return;
+        }
+
+        Deque<PooledSocket> sockets = idleSockets.get(server);
+        if (sockets == null) {
+            sockets = new ArrayDeque<>();
+            Deque<PooledSocket> previous = idleSockets.putIfAbsent(server, sockets);
+            if (previous != null) {
+                sockets = previous;
+            }
+        }
+        synchronized (sockets) {
+            if (sockets.size() < maxIdleSocketsPerServer) {
+                // Reuse the most recently used socket first, so that surplus sockets expire.
+                sockets.addFirst(pooledSocket);
+                return;
+            }
+        }
+        pooledSocket.socket.close();
+    }
+
+    private boolean isExpired(PooledSocket pooledSocket) {
+        return pooledSocket.uses >= maxUses || System.currentTimeMillis() - pooledSocket.created >= maxAge;
+    }
+
+    /**
+     * Close all idle sockets.
+     */
+    void closeIdleSockets() {
+        for (Deque<PooledSocket> sockets : idleSockets.values()) {
+            synchronized (sockets) {
+                for (PooledSocket pooledSocket : sockets) {
+                    pooledSocket.socket.close();
+                }
+                sockets.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns;
+
+import org.junit.jupiter.api.Test;
+
+import org.minidns.cache.CacheWarmer;
+import org.minidns.cache.LruCache;
+import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsmessage.Question;
+import org.minidns.record.Data;
+import org.minidns.record.Record;
+import org.minidns.record.Record.TYPE;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.minidns.DnsWorld.a;
+import static org.minidns.DnsWorld.aaaa;
+import static org.minidns.DnsWorld.record;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CacheWarmerTest {
+
+    @Test
+    public void testReadQuestions() throws IOException {
+        List<Question> questions = CacheWarmer.readQuestions(new StringReader(
+                "# Services\n"
+                + "www.example.org\n"
+                + "\n"
+                + "  mail.example.org   aaaa \n"));
+        assertEquals(2, questions.size());
+        assertEquals(new Question("www.example.org", TYPE.A), questions.get(0));
+        assertEquals(new Question("mail.example.org", TYPE.AAAA), questions.get(1));
+
+        assertThrows(IOException.class, () -> CacheWarmer.readQuestions(new StringReader("example.org FOO\n")));
+    }
+
+    @Test
+    public void testWarmUpPopulatesCache() throws IOException, InterruptedException {
+        LruCache cache = new LruCache(16);
+        DnsClient client = new DnsClient(cache);
+        applyRecords(client,
+                record("www.example.org", a("127.0.0.1")),
+                record("mail.example.org", a("127.0.0.2")),
+                record("mail.example.org", aaaa(new byte[] {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1})));
+
+        List<Question> questions = new ArrayList<>();
+        questions.add(new Question("www.example.org", TYPE.A));
+        questions.add(new Question("mail.example.org", TYPE.A));
+        questions.add(new Question("mail.example.org", TYPE.AAAA));
+
+        final int[] progress = new int[1];
+        CacheWarmer cacheWarmer = new CacheWarmer(client, questions, 2);
+        cacheWarmer.addListener(new CacheWarmer.Listener() {
+            @Override
+            public void onProgress(CacheWarmer cacheWarmer, int resolved, int failed, int total) {
+                synchronized (progress) {
+                    progress[0]++;
+                }
+            }
+
+            @Override
+            public void onWarmedUp(CacheWarmer cacheWarmer, long durationMillis) {
+            }
+        });
+        cacheWarmer.start();
+
+        assertTrue(cacheWarmer.awaitWarmUp(10, TimeUnit.SECONDS));
+        assertTrue(cacheWarmer.isWarmedUp());
+        assertEquals(3, cacheWarmer.getResolvedCount());
+        assertEquals(0, cacheWarmer.getFailedCount());
+        assertTrue(cacheWarmer.getWarmUpDuration() >= 0);
+        synchronized (progress) {
+            assertEquals(3, progress[0]);
+        }
+
+        // The questions are now answered from the cache.
+        long hits = cache.getHitCount();
+        for (Question question : questions) {
+            assertNotNull(client.query(question));
+        }
+        assertEquals(hits + questions.size(), cache.getHitCount());
+    }
+
+    @Test
+    public void testEmptyWarmUpIsImmediatelyFinished() throws InterruptedException {
+        DnsClient client = new DnsClient(new LruCache(16));
+        CacheWarmer cacheWarmer = new CacheWarmer(client, new ArrayList<Question>());
+        cacheWarmer.start();
+        assertTrue(cacheWarmer.awaitWarmUp(0, TimeUnit.SECONDS));
+    }
+
+    @SafeVarargs
+    private static void applyRecords(DnsClient client, Record<? extends Data>... records) {
+        DnsWorld world = new DnsWorld();
+        client.setDataSource(world);
+        for (Record<? extends Data> record : records) {
+            DnsMessage request = client.buildMessage(new Question(record.name, record.type)).build();
+            // Stub responses lack a receive timestamp, which is required to cache them.
+            DnsMessage response = DnsMessage.builder()
+                    .setReceiveTimestamp(System.currentTimeMillis())
+                    .setRecursionAvailable(true)
+                    .addAnswer(record)
+                    .build();
+            world.addPreparedResponse(new DnsWorld.AnswerResponse(request, response));
+        }
+    }
+}
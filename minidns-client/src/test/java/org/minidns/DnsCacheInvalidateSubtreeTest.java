@@ -0,0 +1,72 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.minidns.DnsWorld.a;
+import static org.minidns.DnsWorld.record;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.minidns.cache.LruCache;
+import org.minidns.cache.MemoryBoundedLruCache;
+import org.minidns.cache.OffHeapCache;
+import org.minidns.cache.RrSetCache;
+import org.minidns.cache.TieredDnsCache;
+import org.minidns.cache.TinyLfuCache;
+import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsmessage.Question;
+import org.minidns.dnsname.DnsName;
+import org.minidns.dnsqueryresult.TestWorldDnsQueryResult;
+import org.minidns.record.Record.TYPE;
+
+public class DnsCacheInvalidateSubtreeTest {
+
+    private static final List<String> NAMES = Arrays.asList("example.org", "www.example.org", "a.b.example.org",
+                    "example.com", "notexample.org");
+
+    private static DnsMessage query(String name) {
+        return new Question(name, TYPE.A).asMessageBuilder().setRecursionDesired(true).build();
+    }
+
+    private static void put(DnsCache cache, String name) {
+        DnsMessage query = query(name);
+        DnsMessage response = query.getResponseBuilder(DnsMessage.RESPONSE_CODE.NO_ERROR)
+                .setRecursionAvailable(true)
+                .setReceiveTimestamp(System.currentTimeMillis())
+                .addAnswer(record(name, 300, a("192.0.2.1")))
+                .build();
+        cache.put(query, new TestWorldDnsQueryResult(query, response));
+    }
+
+    @Test
+    public void testAllCachesInvalidateSubtree() {
+        List<DnsCache> caches = Arrays.asList(new LruCache(16), new MemoryBoundedLruCache(), new OffHeapCache(4096, 2),
+                        new TinyLfuCache(16), new RrSetCache(16), new TieredDnsCache(new LruCache(16)));
+        for (DnsCache cache : caches) {
+            for (String name : NAMES) {
+                put(cache, name);
+            }
+
+            assertEquals(3, cache.invalidateSubtree(DnsName.from("example.org")), cache.getClass().getSimpleName());
+            for (String name : NAMES.subList(0, 3)) {
+                assertNull(cache.get(query(name)), cache.getClass().getSimpleName() + " " + name);
+            }
+            for (String name : NAMES.subList(3, 5)) {
+                assertNotNull(cache.get(query(name)), cache.getClass().getSimpleName() + " " + name);
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns;
+
+import org.junit.jupiter.api.Test;
+
+import org.minidns.cache.DnsCacheSnapshot;
+import org.minidns.cache.LruCache;
+import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsmessage.Question;
+import org.minidns.dnsqueryresult.CachedDnsQueryResult;
+import org.minidns.dnsqueryresult.TestWorldDnsQueryResult;
+import org.minidns.record.Record;
+
+import static org.minidns.DnsWorld.a;
+import static org.minidns.DnsWorld.record;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+public class DnsCacheSnapshotTest {
+
+    @Test
+    public void testWriteAndRestore() throws IOException {
+        LruCache cache = new LruCache(8);
+        long receiveTimestamp = System.currentTimeMillis() - 10 * 1000;
+
+        Question fresh = new Question("fresh.example.org", Record.TYPE.A);
+        cache.put(fresh.asQueryMessage(), createSampleMessage(fresh, receiveTimestamp, 3600));
+        Question stale = new Question("stale.example.org", Record.TYPE.A);
+        cache.put(stale.asQueryMessage(), createSampleMessage(stale, receiveTimestamp, 5));
+
+        File file = File.createTempFile("minidns-cache", ".snapshot");
+        try {
+            assertEquals(1, DnsCacheSnapshot.write(cache, file));
+
+            LruCache restoredCache = new LruCache(8);
+            assertEquals(1, DnsCacheSnapshot.restore(file, restoredCache));
+
+            CachedDnsQueryResult restored = restoredCache.get(fresh.asQueryMessage());
+            assertNotNull(restored);
+            assertEquals(receiveTimestamp, restored.response.receiveTimestamp);
+            assertNull(restoredCache.get(stale.asQueryMessage()));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testRestoreInvalidFile() throws IOException {
+        File file = File.createTempFile("minidns-cache", ".snapshot");
+        try {
+            FileOutputStream fos = new FileOutputStream(file);
+            fos.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13 });
+            fos.close();
+            assertThrows(IOException.class, () -> DnsCacheSnapshot.restore(file, new LruCache(8)));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testRestoreCorruptedFile() throws IOException {
+        LruCache cache = new LruCache(8);
+        Question question = new Question("example.org", Record.TYPE.A);
+        cache.put(question.asQueryMessage(), createSampleMessage(question, System.currentTimeMillis(), 300));
+
+        File file = File.createTempFile("minidns-cache", ".snapshot");
+        try {
+            for (int length : new int[] { -1, Integer.MIN_VALUE, Integer.MAX_VALUE, 1 << 20 }) {
+                assertEquals(1, DnsCacheSnapshot.write(cache, file));
+                RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+                try {
+                    // Overwrite the query length of the first entry, which follows the header and the two timestamps.
+                    randomAccessFile.seek(12 + 16);
+                    randomAccessFile.writeInt(length);
+                } finally {
+                    randomAccessFile.close();
+                }
+                assertThrows(IOException.class, () -> DnsCacheSnapshot.restore(file, new LruCache(8)));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static TestWorldDnsQueryResult createSampleMessage(Question question, long receiveTimestamp, long ttl) {
+        DnsMessage.Builder message = DnsMessage.builder();
+        message.setReceiveTimestamp(receiveTimestamp);
+        message.setQuestion(question);
+        message.addAnswer(record(question.name, ttl, a("127.0.0.1")));
+        DnsMessage responseMessage = message.build();
+        DnsMessage query = question.asQueryMessage();
+        return new TestWorldDnsQueryResult(query, responseMessage);
+    }
+}
@@ -10,9 +10,12 @@
  */
 package org.minidns;
 
+import org.minidns.MiniDnsFuture.InternalMiniDnsFuture;
 import org.minidns.cache.LruCache;
 import org.minidns.dnsmessage.DnsMessage;
 import org.minidns.dnsmessage.DnsMessage.RESPONSE_CODE;
+import org.minidns.dnsmessage.Question;
+import org.minidns.dnsname.DnsName;
 import org.minidns.dnsqueryresult.DnsQueryResult;
 import org.minidns.dnsqueryresult.TestWorldDnsQueryResult;
 import org.minidns.dnsserverlookup.AbstractDnsServerLookupMechanism;
@@ -20,6 +23,8 @@ import org.minidns.dnsserverlookup.AndroidUsingExec;
 import org.minidns.dnsserverlookup.AndroidUsingReflection;
 import org.minidns.dnsserverlookup.DnsServerLookupMechanism;
 import org.minidns.record.A;
+import org.minidns.record.Data;
+import org.minidns.record.Record;
 import org.minidns.record.Record.TYPE;
 import org.minidns.source.AbstractDnsDataSource;
 
@@ -27,15 +32,25 @@ import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.minidns.DnsWorld.a;
+import static org.minidns.DnsWorld.aaaa;
+import static org.minidns.DnsWorld.cname;
 import static org.minidns.DnsWorld.applyStubRecords;
+import static org.minidns.DnsWorld.localhostAnswer;
 import static org.minidns.DnsWorld.record;
+import static org.minidns.DnsWorld.recursiveAnswer;
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class DnsClientTest {
@@ -113,4 +128,251 @@ public class DnsClientTest {
         assertTrue(source.queried);
         assertNotNull(message);
     }
+
+    @Test
+    public void testConcurrentQueriesAreCoalesced() throws IOException, InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger upstreamQueries = new AtomicInteger();
+        class BlockingSource extends AbstractDnsDataSource {
+            @Override
+            public DnsQueryResult query(DnsMessage message, InetAddress address, int port) throws IOException {
+                upstreamQueries.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return localhostAnswer(message);
+            }
+        }
+        final DnsClient client = new DnsClient(new LruCache(0));
+        client.setDataSource(new BlockingSource());
+
+        final Question question = new Question("www.example.com", TYPE.A);
+        final DnsQueryResult[] results = new DnsQueryResult[4];
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < results.length; i++) {
+            final int index = i;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        results[index] = client.query(question);
+                    } catch (IOException e) {
+                        throw new AssertionError(e);
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+            if (i == 0) {
+                // Wait until the first thread sent its query.
+                while (upstreamQueries.get() == 0) {
+                    Thread.sleep(1);
+                }
+            }
+        }
+        MiniDnsFuture<DnsQueryResult, IOException> future = client.queryAsync(question);
+
+        // Wait until the other threads attached to the in-flight query.
+        for (Thread thread : threads.subList(1, threads.size())) {
+            while (thread.getState() != Thread.State.WAITING) {
+                Thread.sleep(1);
+            }
+        }
+        assertFalse(future.isDone());
+        release.countDown();
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1, upstreamQueries.get());
+        for (DnsQueryResult result : results) {
+            assertSame(results[0], result);
+        }
+        assertSame(results[0], future.getOrThrow());
+    }
+
+    @Test
+    public void testCancellingAllCoalescedFuturesCancelsQuery() throws IOException {
+        final List<InternalMiniDnsFuture<DnsQueryResult, IOException>> upstreamFutures = new ArrayList<>();
+        class PendingSource extends AbstractDnsDataSource {
+            @Override
+            public DnsQueryResult query(DnsMessage message, InetAddress address, int port) throws IOException {
+                throw new IOException("Only asynchronous queries are supported");
+            }
+
+            @Override
+            public MiniDnsFuture<DnsQueryResult, IOException> queryAsync(DnsMessage message, InetAddress address, int port,
+                            OnResponseCallback onResponseCallback) {
+                InternalMiniDnsFuture<DnsQueryResult, IOException> future = new InternalMiniDnsFuture<>();
+                upstreamFutures.add(future);
+                return future;
+            }
+        }
+        DnsClient client = new DnsClient(new LruCache(0));
+        client.setDataSource(new PendingSource());
+
+        Question question = new Question("www.example.com", TYPE.A);
+        MiniDnsFuture<DnsQueryResult, IOException> first = client.queryAsync(question);
+        int upstreamQueries = upstreamFutures.size();
+        assertTrue(upstreamQueries > 0);
+        MiniDnsFuture<DnsQueryResult, IOException> second = client.queryAsync(question);
+        assertEquals(upstreamQueries, upstreamFutures.size());
+
+        first.cancel(true);
+        for (MiniDnsFuture<DnsQueryResult, IOException> upstreamFuture : upstreamFutures) {
+            assertFalse(upstreamFuture.isCancelled());
+        }
+
+        second.cancel(true);
+        for (MiniDnsFuture<DnsQueryResult, IOException> upstreamFuture : upstreamFutures) {
+            assertTrue(upstreamFuture.isCancelled());
+        }
+
+        // The cancelled query is no longer in flight, hence the next caller sends a new query.
+        MiniDnsFuture<DnsQueryResult, IOException> third = client.queryAsync(question);
+        assertEquals(2 * upstreamQueries, upstreamFutures.size());
+        assertFalse(third.isDone());
+    }
+
+    @Test
+    public void testHedgedQuery() throws IOException, InterruptedException {
+        final CountDownLatch firstQueryCancelled = new CountDownLatch(1);
+        final CountDownLatch neverReleased = new CountDownLatch(1);
+        class SlowFirstServerSource extends AbstractDnsDataSource {
+            InetAddress firstServer;
+            InetAddress answeringServer;
+
+            @Override
+            public DnsQueryResult query(DnsMessage message, InetAddress address, int port) throws IOException {
+                boolean first;
+                synchronized (this) {
+                    first = firstServer == null;
+                    if (first) {
+                        firstServer = address;
+                    }
+                }
+                if (first) {
+                    try {
+                        // Only the cancellation of the query ends the wait, unless hedging is broken.
+                        neverReleased.await(30, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        firstQueryCancelled.countDown();
+                    }
+                    throw new IOException("Timeout");
+                }
+                answeringServer = address;
+                return localhostAnswer(message);
+            }
+        }
+        DnsClient client = new DnsClient(new LruCache(0));
+        // Ensure that there are at least two servers.
+        client.setUseHardcodedDnsServers(true);
+        client.setPreferedIpVersion(AbstractDnsClient.IpVersionSetting.v4v6);
+        SlowFirstServerSource source = new SlowFirstServerSource();
+        client.setDataSource(source);
+        client.setHedgeQueries(true);
+        UpstreamConcurrencyLimiter limiter = new UpstreamConcurrencyLimiter(1, 1);
+        client.setConcurrencyLimiter(limiter);
+
+        DnsQueryResult result = client.query("www.example.com", TYPE.A);
+
+        assertNotNull(result);
+        assertNotNull(source.answeringServer);
+        assertFalse(source.answeringServer.equals(source.firstServer));
+        // The query to the first server was still waiting when the hedged query was answered, and got cancelled.
+        assertTrue(firstQueryCancelled.await(5, TimeUnit.SECONDS));
+
+        // The cancelled query releases its permit after it would have reported its failure.
+        limiter.acquire(source.firstServer, 5000).release();
+
+        // The failure of the cancelled query is not blamed on the first server.
+        for (UpstreamCircuitBreaker.ServerHealth health : client.getCircuitBreaker().getServerHealths()) {
+            assertEquals(0, health.failures, health.server.toString());
+        }
+    }
+
+    @Test
+    public void testDeadServerIsSkipped() throws IOException {
+        class DeadFirstServerSource extends AbstractDnsDataSource {
+            InetAddress deadServer;
+            final List<InetAddress> queried = new ArrayList<>();
+
+            @Override
+            public synchronized DnsQueryResult query(DnsMessage message, InetAddress address, int port) throws IOException {
+                queried.add(address);
+                if (deadServer == null) {
+                    deadServer = address;
+                }
+                if (address.equals(deadServer)) {
+                    throw new SocketTimeoutException("Timeout");
+                }
+                return localhostAnswer(message);
+            }
+        }
+        DnsClient client = new DnsClient(new LruCache(0));
+        // Ensure that there are at least two servers, which are queried in a stable order.
+        client.setUseHardcodedDnsServers(true);
+        client.setPreferedIpVersion(AbstractDnsClient.IpVersionSetting.v4v6);
+        client.setServerRttEstimator(null);
+        UpstreamCircuitBreaker circuitBreaker = new UpstreamCircuitBreaker();
+        circuitBreaker.setFailureThreshold(2);
+        client.setCircuitBreaker(circuitBreaker);
+        // Do not probe the servers in the background.
+        circuitBreaker.setProbe(null);
+        DeadFirstServerSource source = new DeadFirstServerSource();
+        client.setDataSource(source);
+
+        for (int i = 0; i < 2; i++) {
+            assertNotNull(client.query("www" + i + ".example.com", TYPE.A));
+        }
+        assertEquals(UpstreamCircuitBreaker.State.OPEN, circuitBreaker.getState(source.deadServer));
+
+        source.queried.clear();
+        assertNotNull(client.query("www.example.com", TYPE.A));
+        assertEquals(1, source.queried.size());
+        assertFalse(source.queried.contains(source.deadServer));
+    }
+
+    @Test
+    public void testCnameChainedResponsesAreCached() throws IOException {
+        class CnameSource extends AbstractDnsDataSource {
+            final List<Question> queried = new ArrayList<>();
+
+            @Override
+            public DnsQueryResult query(DnsMessage message, InetAddress address, int port) {
+                Question question = message.getQuestion();
+                queried.add(question);
+                Record<? extends Data> addressRecord;
+                if (question.type == TYPE.A) {
+                    addressRecord = record("web.example.com", a("192.0.2.1"));
+                } else {
+                    addressRecord = record("web.example.com", aaaa(new byte[16]));
+                }
+                if (question.name.equals(DnsName.from("www.example.com"))) {
+                    return recursiveAnswer(message, record("www.example.com", cname("web.example.com")), addressRecord);
+                }
+                return recursiveAnswer(message, addressRecord);
+            }
+        }
+        DnsClient client = new DnsClient(new LruCache());
+        CnameSource source = new CnameSource();
+        client.setDataSource(source);
+
+        client.query("web.example.com", TYPE.A);
+        DnsQueryResult result = client.query("www.example.com", TYPE.A);
+        assertEquals(2, result.response.answerSection.size());
+        // The response answering through the CNAME record was cached.
+        result = client.query("www.example.com", TYPE.A);
+        assertEquals(2, result.response.answerSection.size());
+        assertEquals(2, source.queried.size());
+
+        // The CNAME record of the cached response to the A query is followed to the cached AAAA records.
+        client.query("web.example.com", TYPE.AAAA);
+        result = client.query("www.example.com", TYPE.AAAA);
+        assertEquals(2, result.response.answerSection.size());
+        assertEquals(TYPE.AAAA, result.response.answerSection.get(1).type);
+        assertEquals(3, source.queried.size());
+    }
 }
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.minidns.AbstractDnsClient.IpVersionSetting;
+import org.minidns.util.InetAddressUtil;
+
+public class DnsServerDiscoveryTest {
+
+    private static final InetAddress FIRST = InetAddressUtil.ipv4From("192.0.2.1");
+    private static final InetAddress SECOND = InetAddressUtil.ipv4From("192.0.2.2");
+
+    private static class TestAddressSource implements DnsServerDiscovery.AddressSource {
+        List<InetAddress> servers = Collections.singletonList(FIRST);
+        int lookups;
+
+        @Override
+        public List<InetAddress> lookup(IpVersionSetting ipVersionSetting) {
+            lookups++;
+            return servers;
+        }
+    }
+
+    private static class TestListener implements DnsServerDiscovery.Listener {
+        List<InetAddress> oldServers;
+        List<InetAddress> newServers;
+        int notifications;
+
+        @Override
+        public void onDnsServersChanged(List<InetAddress> oldServers, List<InetAddress> newServers) {
+            this.oldServers = oldServers;
+            this.newServers = newServers;
+            notifications++;
+        }
+    }
+
+    @Test
+    public void testAddressesAreCached() {
+        TestAddressSource source = new TestAddressSource();
+        DnsServerDiscovery discovery = new DnsServerDiscovery(source);
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(Collections.singletonList(FIRST), discovery.getServerAddresses());
+        }
+        assertEquals(1, source.lookups);
+
+        discovery.invalidate();
+        discovery.getServerAddresses();
+        assertEquals(2, source.lookups);
+    }
+
+    @Test
+    public void testListenersAreNotifiedOnChange() {
+        TestAddressSource source = new TestAddressSource();
+        DnsServerDiscovery discovery = new DnsServerDiscovery(source);
+        discovery.setPollInterval(0);
+        TestListener listener = new TestListener();
+        discovery.addListener(listener);
+
+        discovery.getServerAddresses();
+        discovery.getServerAddresses();
+        assertEquals(2, source.lookups);
+        assertEquals(0, listener.notifications);
+        assertNull(listener.newServers);
+
+        List<InetAddress> servers = new ArrayList<>();
+        servers.add(SECOND);
+        servers.add(FIRST);
+        source.servers = servers;
+        assertEquals(servers, discovery.getServerAddresses());
+        assertEquals(1, listener.notifications);
+        assertEquals(Collections.singletonList(FIRST), listener.oldServers);
+        assertEquals(servers, listener.newServers);
+    }
+}
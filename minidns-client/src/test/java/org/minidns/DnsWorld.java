@@ -391,6 +391,27 @@ public class DnsWorld extends AbstractDnsDataSource {
         return world;
     }
 
+    /**
+     * Get the response of a recursive resolver answering the given query with the given records.
+     */
+    @SafeVarargs
+    public static DnsQueryResult recursiveAnswer(DnsMessage query, Record<? extends Data>... answers) {
+        DnsMessage.Builder response = query.getResponseBuilder(RESPONSE_CODE.NO_ERROR)
+                .setRecursionAvailable(true)
+                .setReceiveTimestamp(System.currentTimeMillis());
+        for (Record<? extends Data> answer : answers) {
+            response.addAnswer(answer);
+        }
+        return new TestWorldDnsQueryResult(query, response.build());
+    }
+
+    /**
+     * Get the response of a recursive resolver answering the given query with the address 127.0.0.1.
+     */
+    public static DnsQueryResult localhostAnswer(DnsMessage query) {
+        return recursiveAnswer(query, record(query.getQuestion().name, a("127.0.0.1")));
+    }
+
     @SafeVarargs
     public static Zone rootZone(Record<? extends Data>... records) {
         List<Record<? extends Data>> listOfRecords = new ArrayList<>(records.length);
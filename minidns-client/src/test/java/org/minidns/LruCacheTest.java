@@ -12,18 +12,35 @@ package org.minidns;
 
 import org.junit.jupiter.api.Test;
 
+import org.minidns.cache.ExtendedLruCache;
 import org.minidns.cache.LruCache;
 import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsmessage.DnsMessage.RESPONSE_CODE;
 import org.minidns.dnsmessage.Question;
+import org.minidns.dnsname.DnsName;
+import org.minidns.dnsqueryresult.CachedDnsQueryResult;
+import org.minidns.dnsqueryresult.DnsQueryResult.DnssecValidationStatus;
+import org.minidns.dnsqueryresult.DnsQueryResult.QueryMethod;
 import org.minidns.dnsqueryresult.TestWorldDnsQueryResult;
+import org.minidns.record.AAAA;
+import org.minidns.record.DNAME;
+import org.minidns.record.Data;
 import org.minidns.record.Record;
 
+import java.util.Date;
+import java.util.List;
+
 import static org.minidns.DnsWorld.a;
+import static org.minidns.DnsWorld.cname;
 import static org.minidns.DnsWorld.ns;
 import static org.minidns.DnsWorld.record;
+import static org.minidns.DnsWorld.rrsig;
+import static org.minidns.DnsWorld.soa;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class LruCacheTest {
 
@@ -68,6 +85,222 @@ public class LruCacheTest {
         assertEquals(1, lruCache.getHitCount());
     }
 
+    @Test
+    public void testNegativeCacheEntry() {
+        LruCache lruCache = new LruCache(4);
+
+        Question question = new Question("nx.example.org", Record.TYPE.A);
+        lruCache.put(question.asQueryMessage(), createNegativeMessage(question, System.currentTimeMillis(), true));
+        assertNotNull(lruCache.get(question.asQueryMessage()));
+        assertEquals(1, lruCache.getNegativeHitCount());
+
+        // The SOA's MINIMUM of 60 seconds is the effective negative TTL.
+        Question expiredQuestion = new Question("expired.example.org", Record.TYPE.A);
+        lruCache.put(expiredQuestion.asQueryMessage(), createNegativeMessage(expiredQuestion, System.currentTimeMillis() - 61 * 1000, true));
+        assertNull(lruCache.get(expiredQuestion.asQueryMessage()));
+        assertEquals(1, lruCache.getExpireCount());
+
+        Question noSoaQuestion = new Question("nosoa.example.org", Record.TYPE.A);
+        lruCache.put(noSoaQuestion.asQueryMessage(), createNegativeMessage(noSoaQuestion, System.currentTimeMillis(), false));
+        assertNull(lruCache.get(noSoaQuestion.asQueryMessage()));
+    }
+
+    @Test
+    public void testNegativeCacheEntriesDoNotEvictPositiveEntries() {
+        LruCache lruCache = new LruCache(4);
+
+        Question positiveQuestion = new Question("", Record.TYPE.A);
+        lruCache.put(positiveQuestion.asQueryMessage(), createSampleMessage(positiveQuestion));
+
+        for (int i = 0; i < 10; i++) {
+            Question question = new Question("nx" + i + ".example.org", Record.TYPE.A);
+            lruCache.put(question.asQueryMessage(), createNegativeMessage(question, System.currentTimeMillis(), true));
+        }
+
+        assertNotNull(lruCache.get(positiveQuestion.asQueryMessage()));
+        assertNull(lruCache.get(new Question("nx0.example.org", Record.TYPE.A).asQueryMessage()));
+        assertNotNull(lruCache.get(new Question("nx9.example.org", Record.TYPE.A).asQueryMessage()));
+    }
+
+    @Test
+    public void testCnameChainFromCache() {
+        LruCache lruCache = new LruCache(8);
+
+        Question cnameQuestion = new Question("www.example.org", Record.TYPE.CNAME);
+        lruCache.put(cnameQuestion.asQueryMessage(), createAnswerMessage(cnameQuestion, record("www.example.org", 300, cname("cdn.example.net"))));
+        Question aQuestion = new Question("cdn.example.net", Record.TYPE.A);
+        lruCache.put(aQuestion.asQueryMessage(), createAnswerMessage(aQuestion, record("cdn.example.net", 60, a("127.0.0.1"))));
+
+        Question question = new Question("www.example.org", Record.TYPE.A);
+        CachedDnsQueryResult result = lruCache.get(question.asQueryMessage());
+        assertNotNull(result);
+        assertEquals(QueryMethod.cachedSynthesized, result.queryMethod);
+        DnsMessage response = result.response;
+        assertEquals(question, response.getQuestion());
+        assertEquals(2, response.answerSection.size());
+        assertEquals(Record.TYPE.CNAME, response.answerSection.get(0).type);
+        // All records carry the minimum TTL of the chain.
+        for (Record<? extends Data> record : response.answerSection) {
+            assertTrue(record.ttl <= 60);
+        }
+        assertEquals(1, lruCache.getHitCount());
+
+        lruCache.setMaxChainLength(0);
+        assertNull(lruCache.get(question.asQueryMessage()));
+    }
+
+    @Test
+    public void testDnameChainFromCache() {
+        LruCache lruCache = new LruCache(8);
+
+        Question dnameQuestion = new Question("example.org", Record.TYPE.DNAME);
+        lruCache.put(dnameQuestion.asQueryMessage(), createAnswerMessage(dnameQuestion, record("example.org", 300, new DNAME("example.net"))));
+        Question aQuestion = new Question("www.sub.example.net", Record.TYPE.A);
+        lruCache.put(aQuestion.asQueryMessage(), createAnswerMessage(aQuestion, record("www.sub.example.net", 300, a("127.0.0.1"))));
+
+        DnsMessage response = lruCache.get(new Question("www.sub.example.org", Record.TYPE.A).asQueryMessage()).response;
+        assertEquals(3, response.answerSection.size());
+        assertEquals(Record.TYPE.DNAME, response.answerSection.get(0).type);
+        assertEquals(cname("www.sub.example.net"), response.answerSection.get(1).payloadData);
+        assertEquals(1, response.getAnswersFor(aQuestion).size());
+
+        assertNull(lruCache.get(new Question("www.sub.example.com", Record.TYPE.A).asQueryMessage()));
+    }
+
+    @Test
+    public void testExtendedLruCacheFollowsChainOfOtherResponse() {
+        ExtendedLruCache lruCache = new ExtendedLruCache(8);
+
+        Question question = new Question("www.example.org", Record.TYPE.A);
+        lruCache.put(question.asQueryMessage(), createAnswerMessage(question,
+                record("www.example.org", 300, cname("cdn.example.net")),
+                record("cdn.example.net", 300, a("127.0.0.1"))));
+        Question aaaaQuestion = new Question("cdn.example.net", Record.TYPE.AAAA);
+        lruCache.put(aaaaQuestion.asQueryMessage(), createAnswerMessage(aaaaQuestion,
+                record("cdn.example.net", 300, new AAAA("::1"))));
+
+        DnsMessage response = lruCache.get(new Question("www.example.org", Record.TYPE.AAAA).asQueryMessage()).response;
+        assertEquals(2, response.answerSection.size());
+        assertEquals(Record.TYPE.AAAA, response.answerSection.get(1).type);
+    }
+
+    @Test
+    public void testFindClosestEnclosingNs() {
+        LruCache lruCache = new LruCache(8);
+
+        Question orgQuestion = new Question("org", Record.TYPE.NS);
+        lruCache.put(orgQuestion.asQueryMessage(), createAnswerMessage(orgQuestion, record("org", 300, ns("a0.org.afilias-nst.info"))));
+        Question exampleQuestion = new Question("example.org", Record.TYPE.NS);
+        lruCache.put(exampleQuestion.asQueryMessage(), createAnswerMessage(exampleQuestion, record("example.org", 300, ns("ns.example.org"))));
+        Question aQuestion = new Question("www.sub.example.org", Record.TYPE.A);
+        lruCache.put(aQuestion.asQueryMessage(), createAnswerMessage(aQuestion, record("www.sub.example.org", 300, a("127.0.0.1"))));
+
+        CachedDnsQueryResult result = lruCache.findClosestEnclosingNs(DnsName.from("www.sub.EXAMPLE.org"));
+        assertNotNull(result);
+        assertEquals(exampleQuestion, result.query.getQuestion());
+        assertEquals(orgQuestion, lruCache.findClosestEnclosingNs(DnsName.from("example.com.org")).query.getQuestion());
+        assertNull(lruCache.findClosestEnclosingNs(DnsName.from("example.com")));
+    }
+
+    @Test
+    public void testInvalidateSubtree() {
+        LruCache lruCache = new LruCache(4);
+
+        for (String name : new String[] { "example.org", "www.example.org", "www.example.com", "a.example.org", "b.example.org" }) {
+            Question question = new Question(name, Record.TYPE.A);
+            lruCache.put(question.asQueryMessage(), createAnswerMessage(question, record(name, 300, a("127.0.0.1"))));
+        }
+        Question nxQuestion = new Question("nx.example.org", Record.TYPE.A);
+        lruCache.put(nxQuestion.asQueryMessage(), createNegativeMessage(nxQuestion, System.currentTimeMillis(), true));
+
+        // The first entry was evicted.
+        List<CachedDnsQueryResult> entries = lruCache.entriesUnder(DnsName.from("example.org"));
+        assertEquals(4, entries.size());
+        for (CachedDnsQueryResult entry : entries) {
+            assertTrue(entry.query.getQuestion().name.isChildOf(DnsName.from("example.org")));
+        }
+
+        assertEquals(4, lruCache.invalidateSubtree(DnsName.from("example.org")));
+        assertNull(lruCache.get(nxQuestion.asQueryMessage()));
+        assertNotNull(lruCache.get(new Question("www.example.com", Record.TYPE.A).asQueryMessage()));
+        assertEquals(0, lruCache.entriesUnder(DnsName.from("example.org")).size());
+    }
+
+    @Test
+    public void testNonDnssecQueryIsAnsweredFromDnssecEntry() {
+        LruCache lruCache = new LruCache(8);
+
+        Question question = new Question("example.org", Record.TYPE.A);
+        DnsMessage.Builder dnssecQuery = question.asMessageBuilder().setRecursionDesired(true).setCheckingDisabled(true);
+        dnssecQuery.getEdnsBuilder().setUdpPayloadSize(1232).setDnssecOk();
+        DnsMessage.Builder response = DnsMessage.builder()
+                .setQuestion(question)
+                .setReceiveTimestamp(System.currentTimeMillis())
+                .addAnswer(record("example.org", 300, a("127.0.0.1")))
+                .addAnswer(record("example.org", 300, rrsig(Record.TYPE.A, 8, 2, 300, new Date(), new Date(), 1234, "example.org", new byte[8])));
+        response.getEdnsBuilder().setUdpPayloadSize(1232).setDnssecOk();
+        TestWorldDnsQueryResult dnssecResult = new TestWorldDnsQueryResult(dnssecQuery.build(), response.build());
+        lruCache.put(dnssecQuery.build(), dnssecResult);
+
+        DnsMessage.Builder query = question.asMessageBuilder().setRecursionDesired(true).setAuthenticData(true);
+        query.getEdnsBuilder().setUdpPayloadSize(1232);
+
+        // The entry was not validated yet.
+        assertNull(lruCache.get(query.build()));
+
+        dnssecResult.setDnssecValidationStatus(DnssecValidationStatus.secure);
+        CachedDnsQueryResult result = lruCache.get(query.build());
+        assertNotNull(result);
+        assertEquals(1, result.response.answerSection.size());
+        assertEquals(Record.TYPE.A, result.response.answerSection.get(0).type);
+        assertFalse(result.response.isDnssecOk());
+        assertTrue(result.response.authenticData);
+        assertEquals(DnssecValidationStatus.secure, result.getDnssecValidationStatus());
+
+        dnssecResult.setDnssecValidationStatus(DnssecValidationStatus.bogus);
+        assertNull(lruCache.get(query.build()));
+
+        dnssecResult.setDnssecValidationStatus(DnssecValidationStatus.insecure);
+        lruCache.setShareDnssecEntries(false);
+        assertNull(lruCache.get(query.build()));
+    }
+
+    @Test
+    public void testMissWithEdnsIsCountedOnce() {
+        LruCache lruCache = new LruCache(8);
+
+        DnsMessage.Builder query = new Question("example.org", Record.TYPE.A).asMessageBuilder().setRecursionDesired(true);
+        query.getEdnsBuilder().setUdpPayloadSize(1232);
+
+        // The lookup of the entry for the DNSSEC query is not counted as a second miss.
+        assertNull(lruCache.get(query.build()));
+        assertEquals(1, lruCache.getMissCount());
+    }
+
+    @SafeVarargs
+    private static TestWorldDnsQueryResult createAnswerMessage(Question question, Record<? extends Data>... answers) {
+        DnsMessage.Builder message = DnsMessage.builder();
+        message.setReceiveTimestamp(System.currentTimeMillis());
+        message.setQuestion(question);
+        for (Record<? extends Data> answer : answers) {
+            message.addAnswer(answer);
+        }
+        return new TestWorldDnsQueryResult(question.asQueryMessage(), message.build());
+    }
+
+    private static TestWorldDnsQueryResult createNegativeMessage(Question question, long receiveTimestamp, boolean withSoa) {
+        DnsMessage.Builder message = DnsMessage.builder();
+        message.setReceiveTimestamp(receiveTimestamp);
+        message.setResponseCode(RESPONSE_CODE.NX_DOMAIN);
+        message.setQuestion(question);
+        if (withSoa) {
+            message.addNameserverRecords(record("example.org", 3600, soa("ns.example.org", "hostmaster.example.org", 1, 3600, 600, 86400, 60)));
+        }
+        DnsMessage responseMessage = message.build();
+        DnsMessage query = question.asQueryMessage();
+        return new TestWorldDnsQueryResult(query, responseMessage);
+    }
+
     private static TestWorldDnsQueryResult createSampleMessage(Question question) {
         return createSampleMessage(question, System.currentTimeMillis());
     }
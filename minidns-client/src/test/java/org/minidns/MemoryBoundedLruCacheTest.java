@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns;
+
+import org.junit.jupiter.api.Test;
+
+import org.minidns.cache.MemoryBoundedLruCache;
+import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsmessage.Question;
+import org.minidns.dnsqueryresult.DnsQueryResult;
+import org.minidns.dnsqueryresult.TestWorldDnsQueryResult;
+import org.minidns.record.Record;
+
+import static org.minidns.DnsWorld.a;
+import static org.minidns.DnsWorld.record;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MemoryBoundedLruCacheTest {
+
+    private static final MemoryBoundedLruCache.Weigher RECORD_COUNT_WEIGHER = new MemoryBoundedLruCache.Weigher() {
+        @Override
+        public long weigh(DnsMessage normalizedQuery, DnsQueryResult result) {
+            return result.response.answerSection.size();
+        }
+    };
+
+    @Test
+    public void testEvictsUntilUnderMaxWeight() {
+        MemoryBoundedLruCache cache = new MemoryBoundedLruCache(10, RECORD_COUNT_WEIGHER, Long.MAX_VALUE, Long.MAX_VALUE);
+
+        Question small = new Question("small.example.org", Record.TYPE.A);
+        cache.put(small.asQueryMessage(), createSampleMessage(small, 2));
+        Question medium = new Question("medium.example.org", Record.TYPE.A);
+        cache.put(medium.asQueryMessage(), createSampleMessage(medium, 4));
+        assertEquals(6, cache.getWeight());
+
+        // Touch 'small', so that 'medium' is the least recently used entry.
+        assertNotNull(cache.get(small.asQueryMessage()));
+
+        Question large = new Question("large.example.org", Record.TYPE.A);
+        cache.put(large.asQueryMessage(), createSampleMessage(large, 7));
+
+        assertNull(cache.get(medium.asQueryMessage()));
+        assertNotNull(cache.get(small.asQueryMessage()));
+        assertNotNull(cache.get(large.asQueryMessage()));
+        assertEquals(9, cache.getWeight());
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    public void testEntryHeavierThanMaxWeightIsNotCached() {
+        MemoryBoundedLruCache cache = new MemoryBoundedLruCache(3, RECORD_COUNT_WEIGHER, Long.MAX_VALUE, Long.MAX_VALUE);
+
+        Question small = new Question("small.example.org", Record.TYPE.A);
+        cache.put(small.asQueryMessage(), createSampleMessage(small, 1));
+        Question huge = new Question("huge.example.org", Record.TYPE.A);
+        cache.put(huge.asQueryMessage(), createSampleMessage(huge, 4));
+
+        assertNull(cache.get(huge.asQueryMessage()));
+        assertNotNull(cache.get(small.asQueryMessage()));
+        assertEquals(1, cache.getWeight());
+    }
+
+    @Test
+    public void testEstimatedRetainedBytesGrowsWithRecords() {
+        Question q = new Question("example.org", Record.TYPE.A);
+        DnsMessage query = q.asQueryMessage();
+        long one = MemoryBoundedLruCache.ESTIMATED_RETAINED_BYTES.weigh(query, createSampleMessage(q, 1));
+        long ten = MemoryBoundedLruCache.ESTIMATED_RETAINED_BYTES.weigh(query, createSampleMessage(q, 10));
+        assertTrue(one > 0);
+        assertTrue(ten > one);
+    }
+
+    private static TestWorldDnsQueryResult createSampleMessage(Question question, int recordCount) {
+        DnsMessage.Builder message = DnsMessage.builder();
+        message.setReceiveTimestamp(System.currentTimeMillis());
+        message.setQuestion(question);
+        for (int i = 0; i < recordCount; i++) {
+            message.addAnswer(record(question.name, 3600, a(new byte[] { 127, 0, 0, (byte) (i + 1) })));
+        }
+        DnsMessage responseMessage = message.build();
+        DnsMessage query = question.asQueryMessage();
+        return new TestWorldDnsQueryResult(query, responseMessage);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns;
+
+import org.junit.jupiter.api.Test;
+
+import org.minidns.cache.OffHeapCache;
+import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsmessage.Question;
+import org.minidns.dnsname.DnsName;
+import org.minidns.dnsqueryresult.CachedDnsQueryResult;
+import org.minidns.dnsqueryresult.TestWorldDnsQueryResult;
+import org.minidns.record.A;
+import org.minidns.record.Record;
+
+import static org.minidns.DnsWorld.a;
+import static org.minidns.DnsWorld.ns;
+import static org.minidns.DnsWorld.record;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.Set;
+
+public class OffHeapCacheTest {
+
+    @Test
+    public void testRoundTrip() {
+        OffHeapCache cache = new OffHeapCache(4096, 2);
+
+        Question question = new Question("example.org", Record.TYPE.A);
+        long receiveTimestamp = System.currentTimeMillis() - 1000;
+        cache.put(question.asQueryMessage(), createSampleMessage(question, receiveTimestamp, 3600));
+
+        CachedDnsQueryResult cachedResult = cache.get(question.asQueryMessage());
+        assertNotNull(cachedResult);
+        assertEquals(receiveTimestamp, cachedResult.response.receiveTimestamp);
+        Set<A> answers = cachedResult.response.getAnswersFor(question);
+        assertEquals(1, answers.size());
+        assertEquals(a("127.0.0.1"), answers.iterator().next());
+
+        assertNull(cache.get(new Question("example.com", Record.TYPE.A).asQueryMessage()));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testExpiredEntry() {
+        OffHeapCache cache = new OffHeapCache(4096, 2);
+
+        Question question = new Question("example.org", Record.TYPE.A);
+        cache.put(question.asQueryMessage(), createSampleMessage(question, System.currentTimeMillis() - 2000, 1));
+
+        assertNull(cache.get(question.asQueryMessage()));
+    }
+
+    @Test
+    public void testOldestEntriesAreOverwritten() {
+        OffHeapCache cache = new OffHeapCache(512, 2);
+
+        for (int i = 0; i < 100; i++) {
+            Question question = new Question(i + ".example.org", Record.TYPE.A);
+            cache.put(question.asQueryMessage(), createSampleMessage(question, System.currentTimeMillis(), 3600));
+        }
+
+        assertNull(cache.get(new Question("0.example.org", Record.TYPE.A).asQueryMessage()));
+        assertNotNull(cache.get(new Question("99.example.org", Record.TYPE.A).asQueryMessage()));
+        assertEquals(1024, cache.getAllocatedOffHeapBytes());
+    }
+
+    @Test
+    public void testFindClosestEnclosingNsDoesNotRecordLookups() {
+        OffHeapCache cache = new OffHeapCache(4096, 2);
+
+        Question question = new Question("example.org", Record.TYPE.NS);
+        DnsMessage response = DnsMessage.builder()
+                .setReceiveTimestamp(System.currentTimeMillis())
+                .setQuestion(question)
+                .addAnswer(record("example.org", ns("ns.example.org")))
+                .build();
+        cache.put(question.asQueryMessage(), new TestWorldDnsQueryResult(question.asQueryMessage(), response));
+
+        CachedDnsQueryResult result = cache.findClosestEnclosingNs(DnsName.from("www.sub.example.org"));
+        assertNotNull(result);
+        assertEquals(question, result.query.getQuestion());
+        assertEquals(0, cache.getHitCount());
+        assertEquals(0, cache.getMissCount());
+    }
+
+    private static TestWorldDnsQueryResult createSampleMessage(Question question, long receiveTimestamp, long ttl) {
+        DnsMessage.Builder message = DnsMessage.builder();
+        message.setReceiveTimestamp(receiveTimestamp);
+        message.setQuestion(question);
+        message.addAnswer(record(question.name, ttl, a("127.0.0.1")));
+        DnsMessage responseMessage = message.build();
+        DnsMessage query = question.asQueryMessage();
+        return new TestWorldDnsQueryResult(query, responseMessage);
+    }
+}
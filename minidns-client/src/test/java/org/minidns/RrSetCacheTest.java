@@ -0,0 +1,152 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns;
+
+import org.junit.jupiter.api.Test;
+
+import org.minidns.cache.RrSetCache;
+import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsmessage.DnsMessage.RESPONSE_CODE;
+import org.minidns.dnsmessage.Question;
+import org.minidns.dnsqueryresult.CachedDnsQueryResult;
+import org.minidns.dnsqueryresult.DnsQueryResult.QueryMethod;
+import org.minidns.dnsqueryresult.TestWorldDnsQueryResult;
+import org.minidns.record.Data;
+import org.minidns.record.Record;
+import org.minidns.record.Record.TYPE;
+
+import static org.minidns.DnsWorld.a;
+import static org.minidns.DnsWorld.cname;
+import static org.minidns.DnsWorld.ns;
+import static org.minidns.DnsWorld.record;
+import static org.minidns.DnsWorld.soa;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RrSetCacheTest {
+
+    @Test
+    public void testAnswerFromRrSetsOfDifferentResponses() {
+        RrSetCache cache = new RrSetCache(16);
+
+        Question cnameQuestion = new Question("www.example.org", TYPE.CNAME);
+        cache.put(cnameQuestion.asQueryMessage(), response(cnameQuestion, false,
+                record("www.example.org", 300, cname("cdn.example.net"))));
+        Question aQuestion = new Question("cdn.example.net", TYPE.A);
+        cache.put(aQuestion.asQueryMessage(), response(aQuestion, true,
+                record("cdn.example.net", 60, a("127.0.0.1")),
+                record("cdn.example.net", 60, a("127.0.0.2"))));
+
+        CachedDnsQueryResult result = cache.get(new Question("www.example.org", TYPE.A).asQueryMessage());
+        assertNotNull(result);
+        assertEquals(QueryMethod.cachedSynthesized, result.queryMethod);
+        DnsMessage response = result.response;
+        assertEquals(RESPONSE_CODE.NO_ERROR, response.responseCode);
+        assertEquals(3, response.answerSection.size());
+        assertEquals(TYPE.CNAME, response.answerSection.get(0).type);
+        assertEquals(2, response.getAnswersFor(aQuestion).size());
+        assertTrue(response.answerSection.get(1).ttl <= 60);
+        // The CNAME was learned from a non-authoritative answer.
+        assertFalse(response.authoritativeAnswer);
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void testAdditionalSectionIsNotUsedForAnswers() {
+        RrSetCache cache = new RrSetCache(16);
+
+        Question question = new Question("example.org", TYPE.NS);
+        DnsMessage.Builder message = DnsMessage.builder()
+                .setQuestion(question)
+                .setReceiveTimestamp(System.currentTimeMillis())
+                .addAnswer(record("example.org", 3600, ns("ns.example.org")))
+                .addAdditionalResourceRecord(record("ns.example.org", 3600, a("127.0.0.1")))
+                .addAdditionalResourceRecord(record("victim.example.com", 3600, a("127.0.0.1")));
+        cache.put(question.asQueryMessage(), new TestWorldDnsQueryResult(question.asQueryMessage(), message.build()));
+
+        assertNotNull(cache.get(question.asQueryMessage()));
+        assertNull(cache.get(new Question("ns.example.org", TYPE.A).asQueryMessage()));
+        assertNull(cache.get(new Question("victim.example.com", TYPE.A).asQueryMessage()));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testHigherTrustIsNotReplaced() {
+        RrSetCache cache = new RrSetCache(16);
+
+        Question question = new Question("example.org", TYPE.A);
+        cache.put(question.asQueryMessage(), response(question, true, record("example.org", 300, a("127.0.0.1"))));
+        cache.put(question.asQueryMessage(), response(question, false, record("example.org", 300, a("127.0.0.2"))));
+
+        DnsMessage response = cache.get(question.asQueryMessage()).response;
+        assertEquals(1, response.answerSection.size());
+        assertEquals(a("127.0.0.1"), response.answerSection.get(0).payloadData);
+        assertTrue(response.authoritativeAnswer);
+    }
+
+    @Test
+    public void testNegativeResponseAtEndOfChain() {
+        RrSetCache cache = new RrSetCache(16);
+
+        Question question = new Question("www.example.org", TYPE.A);
+        DnsMessage.Builder message = DnsMessage.builder()
+                .setQuestion(question)
+                .setResponseCode(RESPONSE_CODE.NX_DOMAIN)
+                .setReceiveTimestamp(System.currentTimeMillis())
+                .addAnswer(record("www.example.org", 300, cname("nx.example.org")))
+                .addNameserverRecords(record("example.org", 3600, soa("ns.example.org", "hostmaster.example.org", 1, 3600, 600, 86400, 60)));
+        cache.put(question.asQueryMessage(), new TestWorldDnsQueryResult(question.asQueryMessage(), message.build()));
+
+        // NXDOMAIN applies to all types of the last name of the chain.
+        DnsMessage response = cache.get(new Question("nx.example.org", TYPE.AAAA).asQueryMessage()).response;
+        assertEquals(RESPONSE_CODE.NX_DOMAIN, response.responseCode);
+        assertEquals(TYPE.SOA, response.authoritySection.get(0).type);
+        assertTrue(response.authoritySection.get(0).ttl <= 60);
+
+        response = cache.get(question.asQueryMessage()).response;
+        assertEquals(RESPONSE_CODE.NX_DOMAIN, response.responseCode);
+        assertEquals(1, response.answerSection.size());
+        assertEquals(2, cache.getNegativeHitCount());
+    }
+
+    @Test
+    public void testExpiredRrSetInChainIsMiss() {
+        RrSetCache cache = new RrSetCache(16);
+
+        Question question = new Question("www.example.org", TYPE.A);
+        DnsMessage.Builder message = DnsMessage.builder()
+                .setQuestion(question)
+                .setReceiveTimestamp(System.currentTimeMillis() - 2000)
+                .addAnswer(record("www.example.org", 1, cname("cdn.example.net")))
+                .addAnswer(record("cdn.example.net", 300, a("127.0.0.1")));
+        cache.put(question.asQueryMessage(), new TestWorldDnsQueryResult(question.asQueryMessage(), message.build()));
+
+        assertNull(cache.get(question.asQueryMessage()));
+        assertEquals(1, cache.getExpireCount());
+        assertNotNull(cache.get(new Question("cdn.example.net", TYPE.A).asQueryMessage()));
+    }
+
+    @SafeVarargs
+    private static TestWorldDnsQueryResult response(Question question, boolean authoritative, Record<? extends Data>... answers) {
+        DnsMessage.Builder message = DnsMessage.builder()
+                .setQuestion(question)
+                .setAuthoritativeAnswer(authoritative)
+                .setReceiveTimestamp(System.currentTimeMillis());
+        for (Record<? extends Data> answer : answers) {
+            message.addAnswer(answer);
+        }
+        DnsMessage query = question.asQueryMessage();
+        return new TestWorldDnsQueryResult(query, message.build());
+    }
+}
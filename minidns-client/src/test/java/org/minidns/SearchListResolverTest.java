@@ -0,0 +1,70 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns;
+
+import static org.minidns.DnsWorld.a;
+import static org.minidns.DnsWorld.record;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.jupiter.api.Test;
+import org.minidns.cache.LruCache;
+import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsmessage.DnsMessage.RESPONSE_CODE;
+import org.minidns.dnsname.DnsName;
+import org.minidns.dnsqueryresult.DnsQueryResult;
+import org.minidns.dnsqueryresult.TestWorldDnsQueryResult;
+import org.minidns.dnsserverlookup.ResolvConf;
+import org.minidns.record.Record.TYPE;
+import org.minidns.source.AbstractDnsDataSource;
+
+public class SearchListResolverTest {
+
+    @Test
+    public void testFirstPositiveAnswerInSearchOrder() throws IOException {
+        final Set<DnsName> queried = ConcurrentHashMap.newKeySet();
+        class SearchDomainSource extends AbstractDnsDataSource {
+            @Override
+            public DnsQueryResult query(DnsMessage message, InetAddress address, int port) {
+                DnsName name = message.getQuestion().name;
+                queried.add(name);
+                DnsMessage.Builder response;
+                if (name.equals(DnsName.from("www.example.org")) || name.equals(DnsName.from("www.example.net"))) {
+                    response = message.getResponseBuilder(RESPONSE_CODE.NO_ERROR)
+                            .addAnswer(record(name, a("127.0.0.1")));
+                } else {
+                    response = message.getResponseBuilder(RESPONSE_CODE.NX_DOMAIN);
+                }
+                return new TestWorldDnsQueryResult(message, response.setRecursionAvailable(true).build());
+            }
+        }
+        DnsClient client = new DnsClient(new LruCache(0));
+        client.setDataSource(new SearchDomainSource());
+
+        ResolvConf resolvConf = ResolvConf.parse(new StringReader("search example.com example.org example.net\n"));
+        SearchListResolver resolver = new SearchListResolver(client, resolvConf);
+
+        DnsQueryResult result = resolver.resolve("www", TYPE.A);
+        assertEquals(DnsName.from("www.example.org"), result.response.getQuestion().name);
+        assertEquals(RESPONSE_CODE.NO_ERROR, result.response.responseCode);
+
+        result = resolver.resolve("mail", TYPE.A);
+        assertEquals(DnsName.from("mail.example.com"), result.response.getQuestion().name);
+        assertEquals(RESPONSE_CODE.NX_DOMAIN, result.response.responseCode);
+        assertTrue(queried.contains(DnsName.from("mail")));
+    }
+}
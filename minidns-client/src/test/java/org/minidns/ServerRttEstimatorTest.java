@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.minidns.util.InetAddressUtil;
+
+public class ServerRttEstimatorTest {
+
+    private static final InetAddress FIRST = InetAddressUtil.ipv4From("192.0.2.1");
+    private static final InetAddress SECOND = InetAddressUtil.ipv4From("192.0.2.2");
+    private static final InetAddress THIRD = InetAddressUtil.ipv4From("192.0.2.3");
+
+    private static final List<InetAddress> SERVERS = Arrays.asList(FIRST, SECOND, THIRD);
+
+    private static ServerRttEstimator createEstimator() {
+        ServerRttEstimator estimator = new ServerRttEstimator();
+        estimator.setExplorationProbability(0);
+        return estimator;
+    }
+
+    @Test
+    public void testUnknownServersRetainOrder() {
+        ServerRttEstimator estimator = createEstimator();
+        assertEquals(SERVERS, estimator.order(SERVERS, new Random()));
+        assertEquals(5000, estimator.getTimeout(FIRST, 5000));
+        assertNull(estimator.getServerRtt(FIRST));
+    }
+
+    @Test
+    public void testFastestServerFirst() {
+        ServerRttEstimator estimator = createEstimator();
+        estimator.reportSuccess(FIRST, 500, 5000);
+        estimator.reportSuccess(SECOND, 20, 5000);
+
+        // The unknown third server is preferred over the slow first server.
+        assertEquals(Arrays.asList(SECOND, THIRD, FIRST), estimator.order(SERVERS, new Random()));
+    }
+
+    @Test
+    public void testFailingServerIsPenalizedAndRetriedEventually() {
+        ServerRttEstimator estimator = createEstimator();
+        estimator.reportSuccess(SECOND, 100, 5000);
+        estimator.reportFailure(FIRST, 5000);
+
+        List<InetAddress> servers = Arrays.asList(FIRST, SECOND);
+        assertEquals(SECOND, estimator.order(servers, new Random()).get(0));
+
+        // The penalty decays every time the first server is passed over.
+        int passedOver = 1;
+        while (estimator.order(servers, new Random()).get(0) != FIRST) {
+            passedOver++;
+            assertTrue(passedOver < 1000);
+        }
+        assertTrue(passedOver > 10);
+    }
+
+    @Test
+    public void testAdaptiveTimeout() {
+        ServerRttEstimator estimator = createEstimator();
+        for (int i = 0; i < 10; i++) {
+            estimator.reportSuccess(FIRST, 10, 5000);
+        }
+        assertEquals(ServerRttEstimator.DEFAULT_MIN_TIMEOUT, estimator.getTimeout(FIRST, 5000));
+        // The timeout never exceeds the timeout of the data source.
+        assertEquals(100, estimator.getTimeout(FIRST, 100));
+
+        for (int i = 0; i < 10; i++) {
+            estimator.reportSuccess(SECOND, 1000, 5000);
+        }
+        int timeout = estimator.getTimeout(SECOND, 5000);
+        assertTrue(timeout >= 1000 && timeout < 5000);
+
+        // Every failure doubles the timeout.
+        estimator.reportFailure(SECOND, 5000);
+        assertEquals(Math.min(2 * timeout, 5000), estimator.getTimeout(SECOND, 5000), 1);
+        assertEquals(1, estimator.getServerRtt(SECOND).consecutiveFailures);
+
+        assertEquals(2, estimator.getServerRtts().size());
+        assertEquals(FIRST, estimator.getServerRtts().get(0).server);
+    }
+
+    @Test
+    public void testExploration() {
+        ServerRttEstimator estimator = new ServerRttEstimator();
+        estimator.setExplorationProbability(1);
+        estimator.reportSuccess(FIRST, 10, 5000);
+        estimator.reportSuccess(SECOND, 100, 5000);
+
+        assertEquals(SECOND, estimator.order(Arrays.asList(FIRST, SECOND), new Random()).get(0));
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns;
+
+import org.junit.jupiter.api.Test;
+
+import org.minidns.cache.LruCache;
+import org.minidns.cache.TieredDnsCache;
+import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsmessage.Question;
+import org.minidns.dnsname.DnsName;
+import org.minidns.dnsqueryresult.TestWorldDnsQueryResult;
+import org.minidns.record.Record;
+
+import static org.minidns.DnsWorld.a;
+import static org.minidns.DnsWorld.record;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class TieredDnsCacheTest {
+
+    @Test
+    public void testNearCacheHitDoesNotReachSharedCache() {
+        LruCache sharedCache = new LruCache(8);
+        TieredDnsCache cache = new TieredDnsCache(sharedCache);
+
+        Question question = new Question("example.org", Record.TYPE.A);
+        cache.put(question.asQueryMessage(), createMessage(question, 300, System.currentTimeMillis()));
+        for (int i = 0; i < 5; i++) {
+            assertNotNull(cache.get(question.asQueryMessage()));
+        }
+        assertEquals(1, sharedCache.getHitCount());
+    }
+
+    @Test
+    public void testNearCacheRespectsTtl() {
+        LruCache sharedCache = new LruCache(8);
+        TieredDnsCache cache = new TieredDnsCache(sharedCache);
+
+        Question question = new Question("example.org", Record.TYPE.A);
+        // The response expires one second ago.
+        cache.put(question.asQueryMessage(), createMessage(question, 1, System.currentTimeMillis() - 2000));
+        assertNull(cache.get(question.asQueryMessage()));
+        assertEquals(1, sharedCache.getExpireCount());
+    }
+
+    @Test
+    public void testInvalidationReachesOtherThreads() throws InterruptedException {
+        LruCache sharedCache = new LruCache(8);
+        final TieredDnsCache cache = new TieredDnsCache(sharedCache);
+
+        final Question question = new Question("www.example.org", Record.TYPE.A);
+        cache.put(question.asQueryMessage(), createMessage(question, 300, System.currentTimeMillis()));
+
+        // Populate the near cache of another thread.
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                cache.get(question.asQueryMessage());
+            }
+        };
+        thread.start();
+        thread.join();
+        assertNotNull(cache.get(question.asQueryMessage()));
+
+        assertEquals(1, cache.invalidateSubtree(DnsName.from("example.org")));
+        assertNull(cache.get(question.asQueryMessage()));
+
+        final boolean[] otherThreadHit = new boolean[1];
+        thread = new Thread() {
+            @Override
+            public void run() {
+                otherThreadHit[0] = cache.get(question.asQueryMessage()) != null;
+            }
+        };
+        thread.start();
+        thread.join();
+        assertFalse(otherThreadHit[0]);
+    }
+
+    private static TestWorldDnsQueryResult createMessage(Question question, long ttl, long receiveTimestamp) {
+        DnsMessage.Builder message = DnsMessage.builder();
+        message.setReceiveTimestamp(receiveTimestamp);
+        message.setQuestion(question);
+        message.addAnswer(record(question.name, ttl, a("127.0.0.1")));
+        return new TestWorldDnsQueryResult(question.asQueryMessage(), message.build());
+    }
+}
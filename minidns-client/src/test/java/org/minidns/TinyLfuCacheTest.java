@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns;
+
+import org.junit.jupiter.api.Test;
+
+import org.minidns.cache.TinyLfuCache;
+import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsmessage.Question;
+import org.minidns.dnsqueryresult.TestWorldDnsQueryResult;
+import org.minidns.record.Record;
+
+import static org.minidns.DnsWorld.a;
+import static org.minidns.DnsWorld.record;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TinyLfuCacheTest {
+
+    @Test
+    public void testScanDoesNotFlushHotEntries() {
+        TinyLfuCache cache = new TinyLfuCache(100);
+
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 50; i++) {
+                lookup(cache, "hot" + i + ".example.org");
+            }
+        }
+
+        for (int i = 0; i < 1000; i++) {
+            lookup(cache, "oneoff" + i + ".example.org");
+        }
+
+        for (int i = 0; i < 50; i++) {
+            Question question = new Question("hot" + i + ".example.org", Record.TYPE.A);
+            assertNotNull(cache.get(question.asQueryMessage()), "hot" + i + " was evicted");
+        }
+        assertTrue(cache.getRejectCount() > 900);
+        assertTrue(cache.size() <= 100);
+    }
+
+    @Test
+    public void testZeroCapacity() {
+        TinyLfuCache cache = new TinyLfuCache(0);
+        lookup(cache, "example.org");
+        lookup(cache, "example.org");
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getHitCount());
+    }
+
+    @Test
+    public void testMissWithEdnsIsCountedOnce() {
+        TinyLfuCache cache = new TinyLfuCache(100);
+
+        DnsMessage.Builder query = new Question("example.org", Record.TYPE.A).asMessageBuilder().setRecursionDesired(true);
+        query.getEdnsBuilder().setUdpPayloadSize(1232);
+
+        assertNull(cache.get(query.build()));
+        assertEquals(1, cache.getMissCount());
+    }
+
+    private static void lookup(TinyLfuCache cache, String name) {
+        Question question = new Question(name, Record.TYPE.A);
+        DnsMessage query = question.asQueryMessage();
+        if (cache.get(query) != null) {
+            return;
+        }
+        DnsMessage.Builder message = DnsMessage.builder();
+        message.setReceiveTimestamp(System.currentTimeMillis());
+        message.setQuestion(question);
+        message.addAnswer(record(question.name, 3600, a("127.0.0.1")));
+        cache.put(query, new TestWorldDnsQueryResult(query, message.build()));
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+import org.minidns.UpstreamCircuitBreaker.ServerHealth;
+import org.minidns.UpstreamCircuitBreaker.State;
+import org.minidns.util.InetAddressUtil;
+
+public class UpstreamCircuitBreakerTest {
+
+    private static final InetAddress FIRST = InetAddressUtil.ipv4From("192.0.2.1");
+    private static final InetAddress SECOND = InetAddressUtil.ipv4From("192.0.2.2");
+
+    private static final List<InetAddress> SERVERS = Arrays.asList(FIRST, SECOND);
+
+    private static final class RecordingListener implements UpstreamCircuitBreaker.StateListener {
+        final List<String> transitions = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void onStateChanged(InetAddress server, State previous, State current) {
+            transitions.add(server.getHostAddress() + " " + previous + "->" + current);
+        }
+    }
+
+    private static UpstreamCircuitBreaker createCircuitBreaker(long openDuration) {
+        UpstreamCircuitBreaker circuitBreaker = new UpstreamCircuitBreaker();
+        circuitBreaker.setFailureThreshold(3);
+        circuitBreaker.setOpenDuration(openDuration, 4 * openDuration);
+        return circuitBreaker;
+    }
+
+    @Test
+    public void testOpensAfterConsecutiveFailures() {
+        UpstreamCircuitBreaker circuitBreaker = createCircuitBreaker(60000);
+        RecordingListener listener = new RecordingListener();
+        circuitBreaker.addListener(listener);
+
+        circuitBreaker.reportFailure(FIRST);
+        circuitBreaker.reportFailure(FIRST);
+        // A success resets the consecutive failures.
+        circuitBreaker.reportSuccess(FIRST);
+        circuitBreaker.reportFailure(FIRST);
+        circuitBreaker.reportFailure(FIRST);
+        assertEquals(State.CLOSED, circuitBreaker.getState(FIRST));
+
+        circuitBreaker.reportFailure(FIRST);
+        assertEquals(State.OPEN, circuitBreaker.getState(FIRST));
+        assertFalse(circuitBreaker.isAvailable(FIRST));
+        assertEquals(Collections.singletonList(SECOND), circuitBreaker.filter(SERVERS));
+        assertEquals(Arrays.asList("192.0.2.1 CLOSED->OPEN"), listener.transitions);
+
+        ServerHealth health = circuitBreaker.getServerHealths().get(0);
+        assertEquals(FIRST, health.server);
+        assertEquals(1, health.opens);
+        assertEquals(5, health.failures);
+        assertEquals(2, health.skipped);
+    }
+
+    @Test
+    public void testAllServersOpenAreQueriedAnyway() {
+        UpstreamCircuitBreaker circuitBreaker = createCircuitBreaker(60000);
+        for (int i = 0; i < 3; i++) {
+            circuitBreaker.reportFailure(FIRST);
+            circuitBreaker.reportFailure(SECOND);
+        }
+        assertEquals(SERVERS, circuitBreaker.filter(SERVERS));
+    }
+
+    @Test
+    public void testHalfOpenTrialQueryWithoutProbe() throws InterruptedException {
+        UpstreamCircuitBreaker circuitBreaker = createCircuitBreaker(50);
+        RecordingListener listener = new RecordingListener();
+        circuitBreaker.addListener(listener);
+        for (int i = 0; i < 3; i++) {
+            circuitBreaker.reportFailure(FIRST);
+        }
+        Thread.sleep(100);
+
+        // Only a single query is let through as the test of the server.
+        assertTrue(circuitBreaker.isAvailable(FIRST));
+        assertFalse(circuitBreaker.isAvailable(FIRST));
+        assertEquals(State.HALF_OPEN, circuitBreaker.getState(FIRST));
+
+        // A failed test doubles the open duration.
+        circuitBreaker.reportFailure(FIRST);
+        assertEquals(State.OPEN, circuitBreaker.getState(FIRST));
+        assertEquals(100, circuitBreaker.getServerHealths().get(0).openDuration);
+        assertFalse(circuitBreaker.isAvailable(FIRST));
+
+        Thread.sleep(150);
+        assertTrue(circuitBreaker.isAvailable(FIRST));
+        circuitBreaker.reportSuccess(FIRST);
+        assertEquals(State.CLOSED, circuitBreaker.getState(FIRST));
+        assertTrue(circuitBreaker.isAvailable(FIRST));
+
+        assertEquals(Arrays.asList("192.0.2.1 CLOSED->OPEN", "192.0.2.1 OPEN->HALF_OPEN", "192.0.2.1 HALF_OPEN->OPEN",
+                        "192.0.2.1 OPEN->HALF_OPEN", "192.0.2.1 HALF_OPEN->CLOSED"), listener.transitions);
+    }
+
+    @Test
+    public void testBackgroundProbeRestoresServer() throws InterruptedException {
+        UpstreamCircuitBreaker circuitBreaker = createCircuitBreaker(20);
+        final AtomicBoolean serverBack = new AtomicBoolean();
+        final List<InetAddress> probed = Collections.synchronizedList(new ArrayList<InetAddress>());
+        circuitBreaker.setProbe(new UpstreamCircuitBreaker.Probe() {
+            @Override
+            public void probe(InetAddress server) throws IOException {
+                probed.add(server);
+                if (!serverBack.get()) {
+                    throw new IOException("Timeout");
+                }
+            }
+        });
+        final CountDownLatch closed = new CountDownLatch(1);
+        circuitBreaker.addListener(new UpstreamCircuitBreaker.StateListener() {
+            @Override
+            public void onStateChanged(InetAddress server, State previous, State current) {
+                if (current == State.CLOSED) {
+                    closed.countDown();
+                }
+            }
+        });
+
+        for (int i = 0; i < 3; i++) {
+            circuitBreaker.reportFailure(FIRST);
+        }
+        // Wait for the first probe, which fails.
+        while (probed.isEmpty()) {
+            Thread.sleep(5);
+        }
+        // The server is not let through while the probe tests it.
+        assertFalse(circuitBreaker.isAvailable(FIRST));
+
+        serverBack.set(true);
+        assertTrue(closed.await(5, TimeUnit.SECONDS));
+        assertEquals(State.CLOSED, circuitBreaker.getState(FIRST));
+        assertTrue(probed.size() >= 2);
+    }
+}
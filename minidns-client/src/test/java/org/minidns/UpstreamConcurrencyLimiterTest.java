@@ -0,0 +1,211 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.minidns.MiniDnsException.UpstreamOverloadedException;
+import org.minidns.UpstreamConcurrencyLimiter.Permit;
+import org.minidns.UpstreamConcurrencyLimiter.PermitListener;
+import org.minidns.UpstreamConcurrencyLimiter.UpstreamLoad;
+import org.minidns.util.InetAddressUtil;
+
+public class UpstreamConcurrencyLimiterTest {
+
+    private static final InetAddress FIRST = InetAddressUtil.ipv4From("192.0.2.1");
+    private static final InetAddress SECOND = InetAddressUtil.ipv4From("192.0.2.2");
+
+    private static final class RecordingListener implements PermitListener {
+        Permit permit;
+
+        @Override
+        public void onPermit(Permit permit) {
+            this.permit = permit;
+        }
+    }
+
+    private static UpstreamLoad getLoad(UpstreamConcurrencyLimiter limiter, InetAddress server) {
+        for (UpstreamLoad load : limiter.getUpstreamLoads()) {
+            if (load.server.equals(server)) {
+                return load;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testQueueAndFastFail() throws IOException {
+        UpstreamConcurrencyLimiter limiter = new UpstreamConcurrencyLimiter(2, 2);
+        Permit first = limiter.acquire(FIRST, 1000);
+        limiter.acquire(FIRST, 1000);
+
+        RecordingListener queuedFirst = new RecordingListener();
+        RecordingListener queuedSecond = new RecordingListener();
+        limiter.acquire(FIRST, queuedFirst);
+        limiter.acquire(FIRST, queuedSecond);
+        assertNull(queuedFirst.permit);
+        assertNull(queuedSecond.permit);
+
+        UpstreamOverloadedException e = assertThrows(UpstreamOverloadedException.class,
+                        () -> limiter.acquire(FIRST, new RecordingListener()));
+        assertEquals(FIRST, e.getServer());
+
+        // Other servers are not affected.
+        assertNotNull(limiter.acquire(SECOND, 1000));
+
+        // Permits are handed over in FIFO order.
+        first.success(10);
+        assertNotNull(queuedFirst.permit);
+        assertNull(queuedSecond.permit);
+
+        // Releasing a permit twice does not grant a second permit.
+        first.release();
+        assertNull(queuedSecond.permit);
+
+        UpstreamLoad load = getLoad(limiter, FIRST);
+        assertEquals(2, load.inFlight);
+        assertEquals(1, load.queued);
+        assertEquals(2, load.maxQueueDepth);
+        assertEquals(1, load.rejections);
+    }
+
+    @Test
+    public void testCancelQueuedListener() throws IOException {
+        UpstreamConcurrencyLimiter limiter = new UpstreamConcurrencyLimiter(1, 1);
+        Permit permit = limiter.acquire(FIRST, 1000);
+
+        RecordingListener listener = new RecordingListener();
+        limiter.acquire(FIRST, listener);
+        assertTrue(limiter.cancel(FIRST, listener));
+        assertFalse(limiter.cancel(FIRST, listener));
+
+        permit.failure();
+        assertNull(listener.permit);
+        assertEquals(0, getLoad(limiter, FIRST).inFlight);
+    }
+
+    @Test
+    public void testQueuedListenerTimesOut() throws IOException {
+        UpstreamConcurrencyLimiter limiter = new UpstreamConcurrencyLimiter(1, 1);
+        Permit permit = limiter.acquire(FIRST, 1000);
+        RecordingListener listener = new RecordingListener();
+        limiter.acquire(FIRST, listener);
+
+        assertThrows(UpstreamOverloadedException.class, () -> limiter.timeout(FIRST, listener, 50));
+        UpstreamLoad load = getLoad(limiter, FIRST);
+        assertEquals(1, load.queueTimeouts);
+        assertEquals(0, load.queued);
+
+        // A listener which is no longer queued does not time out.
+        limiter.timeout(FIRST, listener, 50);
+        permit.release();
+        assertNull(listener.permit);
+        assertEquals(1, getLoad(limiter, FIRST).queueTimeouts);
+    }
+
+    @Test
+    public void testBlockingAcquireTimesOut() throws IOException {
+        UpstreamConcurrencyLimiter limiter = new UpstreamConcurrencyLimiter(1, 1);
+        limiter.acquire(FIRST, 1000);
+
+        assertThrows(UpstreamOverloadedException.class, () -> limiter.acquire(FIRST, 50));
+        UpstreamLoad load = getLoad(limiter, FIRST);
+        assertEquals(1, load.queueTimeouts);
+        assertEquals(0, load.queued);
+    }
+
+    @Test
+    public void testBlockingAcquireIsWokenUp() throws Exception {
+        final UpstreamConcurrencyLimiter limiter = new UpstreamConcurrencyLimiter(1, 1);
+        Permit permit = limiter.acquire(FIRST, 1000);
+
+        final List<Permit> acquired = new ArrayList<>();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    acquired.add(limiter.acquire(FIRST, 10000));
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        };
+        thread.start();
+        while (getLoad(limiter, FIRST).queued == 0) {
+            Thread.sleep(5);
+        }
+        permit.success(10);
+        thread.join(5000);
+        assertEquals(1, acquired.size());
+    }
+
+    @Test
+    public void testAdaptiveLimitIsHalvedOnFailureAndRecovers() throws IOException {
+        UpstreamConcurrencyLimiter limiter = new UpstreamConcurrencyLimiter(8, 16);
+        limiter.setAdaptive(true);
+
+        List<Permit> permits = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            permits.add(limiter.acquire(FIRST, 1000));
+        }
+        // All in-flight queries fail because of the same congestion, which halves the limit only once.
+        for (Permit permit : permits) {
+            permit.failure();
+        }
+        assertEquals(4, getLoad(limiter, FIRST).limit);
+
+        permits.clear();
+        for (int i = 0; i < 4; i++) {
+            permits.add(limiter.acquire(FIRST, 1000));
+        }
+        RecordingListener listener = new RecordingListener();
+        limiter.acquire(FIRST, listener);
+        assertNull(listener.permit);
+
+        permits.get(0).success(10);
+        assertNotNull(listener.permit);
+        listener.permit.success(10);
+        for (Permit permit : permits) {
+            permit.success(10);
+        }
+
+        // Successful queries raise the limit again.
+        for (int i = 0; i < 100; i++) {
+            Permit permit = limiter.acquire(FIRST, 1000);
+            permit.success(10);
+        }
+        assertEquals(8, getLoad(limiter, FIRST).limit);
+    }
+
+    @Test
+    public void testSlowResponsesHalveTheAdaptiveLimit() throws IOException {
+        UpstreamConcurrencyLimiter limiter = new UpstreamConcurrencyLimiter(8, 16);
+        limiter.setAdaptive(true);
+        limiter.setLatencyThreshold(100);
+
+        for (int i = 0; i < 8; i++) {
+            limiter.acquire(FIRST, 1000).success(500);
+        }
+        assertEquals(4, getLoad(limiter, FIRST).limit);
+        assertNull(getLoad(limiter, SECOND));
+    }
+}
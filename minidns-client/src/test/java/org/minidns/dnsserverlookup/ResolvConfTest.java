@@ -0,0 +1,77 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.dnsserverlookup;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.jupiter.api.Test;
+import org.minidns.dnsname.DnsName;
+
+public class ResolvConfTest {
+
+    private static ResolvConf parse(String string) throws IOException {
+        return ResolvConf.parse(new StringReader(string));
+    }
+
+    @Test
+    public void testParse() throws IOException {
+        ResolvConf resolvConf = parse(
+                "# Generated by a container runtime\n"
+              + "nameserver 10.96.0.10\n"
+              + "nameserver 2001:db8::53 # secondary\n"
+              + "domain example.org\n"
+              + "search default.svc.cluster.local svc.cluster.local cluster.local\n"
+              + "options ndots:5 timeout:2 attempts:10 rotate edns0\n");
+
+        assertEquals(Arrays.asList("10.96.0.10", "2001:db8::53"), resolvConf.nameservers);
+        // The last search or domain line wins.
+        assertEquals(Arrays.asList(DnsName.from("default.svc.cluster.local"), DnsName.from("svc.cluster.local"),
+                DnsName.from("cluster.local")), resolvConf.search);
+        assertEquals(5, resolvConf.ndots);
+        assertEquals(2, resolvConf.timeout);
+        // The number of attempts is capped.
+        assertEquals(5, resolvConf.attempts);
+        assertTrue(resolvConf.rotate);
+    }
+
+    @Test
+    public void testDefaults() throws IOException {
+        ResolvConf resolvConf = parse("nameserver 192.0.2.1\n");
+        assertEquals(ResolvConf.DEFAULT_NDOTS, resolvConf.ndots);
+        assertEquals(ResolvConf.DEFAULT_TIMEOUT, resolvConf.timeout);
+        assertEquals(ResolvConf.DEFAULT_ATTEMPTS, resolvConf.attempts);
+        assertFalse(resolvConf.rotate);
+        assertTrue(resolvConf.search.isEmpty());
+    }
+
+    @Test
+    public void testSearchCandidates() throws IOException {
+        ResolvConf resolvConf = parse("search example.com example.org\noptions ndots:2\n");
+
+        // Less than ndots dots: the search list is tried first.
+        assertEquals(Arrays.asList(DnsName.from("www.example.com"), DnsName.from("www.example.org"),
+                DnsName.from("www")), resolvConf.getSearchCandidates("www"));
+
+        // At least ndots dots: the name is tried as is first.
+        assertEquals(Arrays.asList(DnsName.from("a.b.c"), DnsName.from("a.b.c.example.com"),
+                DnsName.from("a.b.c.example.org")), resolvConf.getSearchCandidates("a.b.c"));
+
+        // Absolute names are not subject to the search list.
+        assertEquals(Collections.singletonList(DnsName.from("www")), resolvConf.getSearchCandidates("www."));
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.source;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.junit.jupiter.api.Test;
+import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsmessage.DnsMessage.RESPONSE_CODE;
+import org.minidns.dnsmessage.Question;
+import org.minidns.dnsqueryresult.DnsQueryResult;
+import org.minidns.dnsqueryresult.DnsQueryResult.QueryMethod;
+import org.minidns.record.Record.TYPE;
+
+public class DnsOverTlsDataSourceTest {
+
+    private static final char[] PASSWORD = "minidns".toCharArray();
+
+    private static KeyStore loadKeyStore() throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        InputStream inputStream = DnsOverTlsDataSourceTest.class.getResourceAsStream("dot-test.p12");
+        try {
+            keyStore.load(inputStream, PASSWORD);
+        } finally {
+            inputStream.close();
+        }
+        return keyStore;
+    }
+
+    /**
+     * A DNS over TLS server on the loopback interface, which records the TLS session of every accepted connection. It
+     * only offers TLS 1.2, where a resumed session keeps its session ID.
+     */
+    private static final class LoopbackTlsServer extends Thread {
+        final SSLServerSocket serverSocket;
+        final List<byte[]> sessionIds = Collections.synchronizedList(new ArrayList<byte[]>());
+
+        LoopbackTlsServer(KeyStore keyStore) throws IOException, GeneralSecurityException {
+            KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagerFactory.init(keyStore, PASSWORD);
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+            serverSocket = (SSLServerSocket) sslContext.getServerSocketFactory().createServerSocket(0, 50,
+                            InetAddress.getLoopbackAddress());
+            serverSocket.setEnabledProtocols(new String[] { "TLSv1.2" });
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final SSLSocket socket = (SSLSocket) serverSocket.accept();
+                    Thread connectionThread = new Thread() {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    };
+                    connectionThread.setDaemon(true);
+                    connectionThread.start();
+                }
+            } catch (IOException e) {
+                // The server socket was closed.
+            }
+        }
+
+        private void serve(SSLSocket socket) {
+            try {
+                socket.startHandshake();
+                sessionIds.add(socket.getSession().getId());
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                while (true) {
+                    byte[] data = new byte[in.readUnsignedShort()];
+                    in.readFully(data);
+                    DnsMessage query = new DnsMessage(data);
+                    query.getResponseBuilder(RESPONSE_CODE.NO_ERROR).build().writeTo(out);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // The client closed the connection or the handshake failed.
+            }
+        }
+    }
+
+    private static DnsOverTlsDataSource createDataSource(KeyStore keyStore, String serverName, int port)
+                    throws GeneralSecurityException {
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(keyStore);
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, trustManagerFactory.getTrustManagers(), null);
+        DnsOverTlsDataSource dataSource = new DnsOverTlsDataSource(serverName, sslContext.getSocketFactory(),
+                        DnsOverTlsDataSource.SUBJECT_ALT_NAME_VERIFIER);
+        dataSource.setPort(port);
+        return dataSource;
+    }
+
+    @Test
+    public void connectionReuseAndSessionResumptionTest() throws Exception {
+        KeyStore keyStore = loadKeyStore();
+        LoopbackTlsServer server = new LoopbackTlsServer(keyStore);
+        server.start();
+        try {
+            DnsOverTlsDataSource dataSource = createDataSource(keyStore, "dot.example", server.serverSocket.getLocalPort());
+            for (int i = 0; i < 3; i++) {
+                DnsMessage query = new Question("example.org", TYPE.A).asMessageBuilder().setId(i).build();
+                DnsQueryResult result = dataSource.query(query, InetAddress.getLoopbackAddress(), 53);
+                assertEquals(i, result.response.id);
+                assertEquals(QueryMethod.tls, result.queryMethod);
+            }
+            assertEquals(1, server.sessionIds.size());
+
+            dataSource.closeIdleSockets();
+            DnsMessage query = new Question("example.org", TYPE.A).asMessageBuilder().setId(3).build();
+            dataSource.query(query, InetAddress.getLoopbackAddress(), 53);
+            dataSource.closeIdleSockets();
+
+            // The new connection resumed the TLS session of the first one.
+            assertEquals(2, server.sessionIds.size());
+            assertArrayEquals(server.sessionIds.get(0), server.sessionIds.get(1));
+        } finally {
+            server.serverSocket.close();
+        }
+    }
+
+    @Test
+    public void serverNameMismatchTest() throws Exception {
+        KeyStore keyStore = loadKeyStore();
+        LoopbackTlsServer server = new LoopbackTlsServer(keyStore);
+        server.start();
+        try {
+            final DnsOverTlsDataSource dataSource = createDataSource(keyStore, "other.example",
+                            server.serverSocket.getLocalPort());
+            final DnsMessage query = new Question("example.org", TYPE.A).asMessageBuilder().build();
+            assertThrows(IOException.class, () -> dataSource.query(query, InetAddress.getLoopbackAddress(), 53));
+        } finally {
+            server.serverSocket.close();
+        }
+    }
+}
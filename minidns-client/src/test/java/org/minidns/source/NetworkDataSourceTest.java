@@ -12,13 +12,38 @@ package org.minidns.source;
 
 import org.junit.jupiter.api.Test;
 import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsmessage.DnsMessage.RESPONSE_CODE;
+import org.minidns.dnsmessage.Question;
+import org.minidns.edns.Edns.OptionCode;
+import org.minidns.edns.TcpKeepalive;
+import org.minidns.record.Record.TYPE;
+import org.minidns.source.AbstractDnsDataSource.QueryMode;
 import org.minidns.dnsqueryresult.DnsQueryResult;
+import org.minidns.dnsqueryresult.DnsQueryResult.QueryMethod;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class NetworkDataSourceTest {
@@ -51,4 +76,382 @@ public class NetworkDataSourceTest {
         assertEquals(tcpResponseId, result.response.id);
         assertFalse(world.lastQueryUdp);
     }
+
+    /**
+     * A UDP DNS server on the loopback interface which records the source addresses of the queries. It answers the
+     * first query with a response with a wrong ID first, as if it was a late response to a previous query.
+     */
+    private static final class LoopbackUdpServer extends Thread {
+        final DatagramSocket socket;
+        final List<SocketAddress> clients = Collections.synchronizedList(new ArrayList<SocketAddress>());
+
+        LoopbackUdpServer() throws IOException {
+            socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[512];
+            try {
+                while (true) {
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    socket.receive(packet);
+                    DnsMessage query = new DnsMessage(packet.getData());
+                    if (clients.isEmpty()) {
+                        DnsMessage stale = query.getResponseBuilder(RESPONSE_CODE.NO_ERROR).setId(query.id + 1).build();
+                        socket.send(stale.asDatagram(packet.getAddress(), packet.getPort()));
+                    }
+                    clients.add(packet.getSocketAddress());
+                    DnsMessage response = query.getResponseBuilder(RESPONSE_CODE.NO_ERROR).build();
+                    socket.send(response.asDatagram(packet.getAddress(), packet.getPort()));
+                }
+            } catch (IOException e) {
+                // The socket was closed.
+            }
+        }
+    }
+
+    @Test
+    public void udpSocketReuseTest() throws IOException {
+        LoopbackUdpServer server = new LoopbackUdpServer();
+        server.start();
+        try {
+            NetworkDataSource dataSource = new NetworkDataSource();
+            dataSource.setUdpSocketRotation(5, 60 * 1000);
+            for (int i = 0; i < 10; i++) {
+                DnsMessage query = new Question("example.org", TYPE.A).asMessageBuilder().setId(i).build();
+                DnsQueryResult result = dataSource.query(query, InetAddress.getLoopbackAddress(), server.socket.getLocalPort());
+                assertEquals(i, result.response.id);
+            }
+            dataSource.closeIdleSockets();
+
+            // Every socket is used for five queries before the source port changes.
+            assertEquals(10, server.clients.size());
+            assertEquals(1, new HashSet<>(server.clients.subList(0, 5)).size());
+            assertEquals(1, new HashSet<>(server.clients.subList(5, 10)).size());
+            assertFalse(server.clients.get(0).equals(server.clients.get(5)));
+        } finally {
+            server.socket.close();
+        }
+    }
+
+    /**
+     * A TCP DNS server on the loopback interface which counts the accepted connections. After the first query on a
+     * connection, it waits for a batch of pipelined queries and answers them in reverse order.
+     */
+    private static final class LoopbackTcpServer extends Thread {
+        final ServerSocket serverSocket;
+        final AtomicInteger connections = new AtomicInteger();
+        final List<DnsMessage> queries = Collections.synchronizedList(new ArrayList<DnsMessage>());
+        final int batchSize;
+        final AtomicInteger formatErrors = new AtomicInteger();
+        final AtomicInteger unanswered = new AtomicInteger();
+
+        LoopbackTcpServer(int batchSize) throws IOException {
+            serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            this.batchSize = batchSize;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Socket socket = serverSocket.accept();
+                    connections.incrementAndGet();
+                    serve(socket);
+                }
+            } catch (IOException e) {
+                // The server socket was closed.
+            }
+        }
+
+        private void serve(Socket socket) {
+            try {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                respond(out, read(in));
+                while (true) {
+                    List<DnsMessage> batch = new ArrayList<>(batchSize);
+                    for (int i = 0; i < batchSize; i++) {
+                        batch.add(read(in));
+                    }
+                    for (int i = batch.size() - 1; i >= 0; i--) {
+                        respond(out, batch.get(i));
+                    }
+                }
+            } catch (IOException e) {
+                // The client closed the connection.
+            }
+        }
+
+        private DnsMessage read(DataInputStream in) throws IOException {
+            byte[] data = new byte[in.readUnsignedShort()];
+            in.readFully(data);
+            DnsMessage query = new DnsMessage(data);
+            queries.add(query);
+            return query;
+        }
+
+        private void respond(DataOutputStream out, DnsMessage query) throws IOException {
+            if (unanswered.getAndDecrement() > 0) {
+                // Silently drop the query, but keep the connection open.
+                return;
+            }
+            if (formatErrors.getAndDecrement() > 0) {
+                // A FORMERR response without a question section.
+                DnsMessage.builder().setId(query.id).setQrFlag(true).setResponseCode(RESPONSE_CODE.FORMAT_ERR).build()
+                        .writeTo(out);
+                out.flush();
+                return;
+            }
+            DnsMessage.Builder response = query.getResponseBuilder(RESPONSE_CODE.NO_ERROR);
+            response.getEdnsBuilder().addEdnsOption(new TcpKeepalive(600));
+            response.build().writeTo(out);
+            out.flush();
+        }
+    }
+
+    @Test
+    public void tcpPipeliningTest() throws Exception {
+        final int batchSize = 4;
+        final LoopbackTcpServer server = new LoopbackTcpServer(batchSize);
+        server.start();
+        try {
+            final NetworkDataSource dataSource = new NetworkDataSource();
+            dataSource.setQueryMode(QueryMode.tcp);
+            dataSource.query(query(100), InetAddress.getLoopbackAddress(), server.serverSocket.getLocalPort());
+
+            final List<Object> results = Collections.synchronizedList(new ArrayList<>());
+            List<Thread> threads = new ArrayList<>(batchSize);
+            for (int i = 0; i < batchSize; i++) {
+                final int id = i;
+                Thread thread = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            DnsQueryResult result = dataSource.query(query(id), InetAddress.getLoopbackAddress(),
+                                            server.serverSocket.getLocalPort());
+                            results.add(result.response.id == id && result.query.id == id);
+                        } catch (IOException e) {
+                            results.add(e);
+                        }
+                    }
+                };
+                thread.start();
+                threads.add(thread);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            dataSource.closeIdleSockets();
+
+            assertEquals(Collections.nCopies(batchSize, true), results);
+            // All queries, answered out of order, were sent over a single connection.
+            assertEquals(1, server.connections.get());
+            for (DnsMessage query : server.queries) {
+                assertTrue(query.getEdns().getEdnsOption(OptionCode.TCP_KEEPALIVE) != null);
+            }
+        } finally {
+            server.serverSocket.close();
+        }
+    }
+
+    @Test
+    public void tcpResponseWithoutQuestionTest() throws Exception {
+        LoopbackTcpServer server = new LoopbackTcpServer(1);
+        server.formatErrors.set(1);
+        server.start();
+        try {
+            NetworkDataSource dataSource = new NetworkDataSource();
+            dataSource.setQueryMode(QueryMode.tcp);
+            dataSource.setTimeout(1000);
+            DnsQueryResult result = dataSource.query(query(1), InetAddress.getLoopbackAddress(),
+                            server.serverSocket.getLocalPort());
+            assertEquals(RESPONSE_CODE.FORMAT_ERR, result.response.responseCode);
+
+            // The connection is still usable afterwards.
+            for (int i = 2; i < 5; i++) {
+                result = dataSource.query(query(i), InetAddress.getLoopbackAddress(), server.serverSocket.getLocalPort());
+                assertEquals(i, result.response.id);
+                assertEquals(RESPONSE_CODE.NO_ERROR, result.response.responseCode);
+            }
+            dataSource.closeIdleSockets();
+            assertEquals(1, server.connections.get());
+        } finally {
+            server.serverSocket.close();
+        }
+    }
+
+    @Test
+    public void tcpConnectionRetiredAfterTimeoutTest() throws Exception {
+        LoopbackTcpServer server = new LoopbackTcpServer(1);
+        server.start();
+        try {
+            NetworkDataSource dataSource = new NetworkDataSource();
+            dataSource.setQueryMode(QueryMode.tcp);
+            dataSource.setTimeout(200);
+            dataSource.query(query(1), InetAddress.getLoopbackAddress(), server.serverSocket.getLocalPort());
+
+            // The server stops answering without closing the connection.
+            server.unanswered.set(1);
+            assertThrows(SocketTimeoutException.class, () -> dataSource.query(query(2), InetAddress.getLoopbackAddress(),
+                            server.serverSocket.getLocalPort()));
+
+            // The next query is sent over a new connection.
+            DnsQueryResult result = dataSource.query(query(3), InetAddress.getLoopbackAddress(),
+                            server.serverSocket.getLocalPort());
+            assertEquals(3, result.response.id);
+            dataSource.closeIdleSockets();
+            assertEquals(2, server.connections.get());
+        } finally {
+            server.serverSocket.close();
+        }
+    }
+
+    @Test
+    public void abortUdpQueryTest() throws Exception {
+        // A server which never answers.
+        DatagramSocket server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        final CountDownLatch receiving = new CountDownLatch(1);
+        final NetworkDataSource dataSource = new NetworkDataSource() {
+            @Override
+            protected DatagramSocket createDatagramSocket() throws SocketException {
+                return new DatagramSocket() {
+                    @Override
+                    public synchronized void receive(DatagramPacket packet) throws IOException {
+                        receiving.countDown();
+                        super.receive(packet);
+                    }
+                };
+            }
+        };
+        dataSource.setTimeout(30000);
+        final int port = server.getLocalPort();
+        final List<Object> results = Collections.synchronizedList(new ArrayList<>());
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    results.add(dataSource.query(query(1), InetAddress.getLoopbackAddress(), port));
+                } catch (IOException e) {
+                    results.add(e);
+                }
+            }
+        };
+        try {
+            thread.start();
+            receiving.await();
+            dataSource.abort(thread);
+            thread.join();
+
+            // The aborted query neither waits for the timeout nor falls back to TCP.
+            assertEquals(1, results.size());
+            assertTrue(results.get(0) instanceof InterruptedIOException, results.get(0).toString());
+        } finally {
+            server.close();
+        }
+    }
+
+    private static DnsMessage query(int id) {
+        return query(id, 1232);
+    }
+
+    @Test
+    public void udpPayloadSizeFallbackTest() throws IOException {
+        class TestNetworkDataSource extends NetworkDataSource {
+            final List<Integer> advertisedSizes = new ArrayList<>();
+
+            @Override
+            protected DnsMessage queryUdp(DnsMessage message, InetAddress address, int port) throws IOException {
+                int advertisedSize = message.getEdns().udpPayloadSize;
+                advertisedSizes.add(advertisedSize);
+                if (message.id == 1 && advertisedSize > 1432) {
+                    // A middlebox drops the fragmented response.
+                    throw new SocketTimeoutException();
+                }
+                return message.getResponseBuilder(RESPONSE_CODE.NO_ERROR).build();
+            }
+
+            @Override
+            protected DnsMessage queryTcp(DnsMessage message, InetAddress address, int port) throws IOException {
+                throw new AssertionError("Unexpected fallback to TCP");
+            }
+        }
+
+        TestNetworkDataSource dataSource = new TestNetworkDataSource();
+        InetAddress server = InetAddress.getLoopbackAddress();
+        dataSource.query(query(0, 4096), server, 53);
+        DnsQueryResult result = dataSource.query(query(1, 4096), server, 53);
+        assertEquals(1, result.response.id);
+        // The query keeps the payload size requested by the client.
+        assertEquals(4096, result.query.getEdns().udpPayloadSize);
+        dataSource.query(query(2, 4096), server, 53);
+
+        assertEquals(Arrays.asList(4096, 4096, 1432, 1432), dataSource.advertisedSizes);
+        UdpPayloadSizeEstimator.UdpPayloadSize learned = dataSource.getUdpPayloadSizeEstimator().getUdpPayloadSizes().get(0);
+        assertEquals(1432, learned.udpPayloadSize);
+        assertEquals(4096, learned.ceiling);
+        assertEquals(1, learned.reductions);
+    }
+
+    @Test
+    public void queryTimeoutIsPassedToOverriddenQueryMethodsTest() throws IOException {
+        class TestNetworkDataSource extends NetworkDataSource {
+            final List<Integer> timeouts = new ArrayList<>();
+
+            @Override
+            protected DnsMessage queryUdp(DnsMessage message, InetAddress address, int port) throws IOException {
+                timeouts.add(getQueryTimeout());
+                return message.getResponseBuilder(RESPONSE_CODE.NO_ERROR).build();
+            }
+        }
+
+        TestNetworkDataSource dataSource = new TestNetworkDataSource();
+        dataSource.setTimeout(3000);
+        InetAddress server = InetAddress.getLoopbackAddress();
+        dataSource.query(query(0, 1232), server, 53, 200);
+        dataSource.query(query(1, 1232), server, 53);
+
+        assertEquals(Arrays.asList(200, 3000), dataSource.timeouts);
+    }
+
+    private static DnsMessage query(int id, int udpPayloadSize) {
+        DnsMessage.Builder query = new Question("example.org", TYPE.A).asMessageBuilder().setId(id);
+        query.getEdnsBuilder().setUdpPayloadSize(udpPayloadSize);
+        return query.build();
+    }
+
+    @Test
+    public void tcpFirstAfterTruncationTest() throws IOException {
+        class TestNetworkDataSource extends NetworkDataSource {
+            final List<String> transports = new ArrayList<>();
+
+            @Override
+            protected DnsMessage queryUdp(DnsMessage message, InetAddress address, int port) throws IOException {
+                transports.add("udp");
+                DnsMessage.Builder response = message.getResponseBuilder(RESPONSE_CODE.NO_ERROR);
+                response.setTruncated(message.getQuestion().type == TYPE.DNSKEY);
+                return response.build();
+            }
+
+            @Override
+            protected DnsMessage queryTcp(DnsMessage message, InetAddress address, int port) throws IOException {
+                transports.add("tcp");
+                return message.getResponseBuilder(RESPONSE_CODE.NO_ERROR).build();
+            }
+        }
+
+        TestNetworkDataSource dataSource = new TestNetworkDataSource();
+        InetAddress server = InetAddress.getLoopbackAddress();
+        DnsMessage dnskeyQuery = new Question("example.org", TYPE.DNSKEY).asQueryMessage();
+        dataSource.query(dnskeyQuery, server, 53);
+        DnsQueryResult result = dataSource.query(dnskeyQuery, server, 53);
+        assertEquals(QueryMethod.tcp, result.queryMethod);
+        dataSource.query(new Question("example.org", TYPE.A).asQueryMessage(), server, 53);
+
+        assertEquals(Arrays.asList("udp", "tcp", "tcp", "udp"), dataSource.transports);
+        assertEquals(1, dataSource.getTruncatedQueriesCount());
+    }
 }
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.source;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.net.InetAddress;
+
+import org.junit.jupiter.api.Test;
+import org.minidns.util.InetAddressUtil;
+
+public class UdpPayloadSizeEstimatorTest {
+
+    private static final InetAddress SERVER = InetAddressUtil.ipv4From("192.0.2.1");
+
+    @Test
+    public void testTimeoutOfUnresponsiveServerIsIgnored() {
+        UdpPayloadSizeEstimator estimator = new UdpPayloadSizeEstimator();
+        assertEquals(-1, estimator.reportTimeout(SERVER, 1232, true));
+        assertEquals(1232, estimator.getUdpPayloadSize(SERVER, 1232));
+    }
+
+    @Test
+    public void testTimeoutLowersPayloadSize() {
+        UdpPayloadSizeEstimator estimator = new UdpPayloadSizeEstimator();
+        estimator.reportSuccess(SERVER, 1232, false, 4096);
+        assertEquals(512, estimator.reportTimeout(SERVER, 1232, true));
+        assertEquals(512, estimator.getUdpPayloadSize(SERVER, 1232));
+        assertEquals(-1, estimator.reportTimeout(SERVER, 512, true));
+
+        // A truncated response does not raise the payload size to the ceiling.
+        estimator.reportSuccess(SERVER, 512, true, 4096);
+        assertEquals(512, estimator.getUdpPayloadSize(SERVER, 1232));
+    }
+
+    @Test
+    public void testTruncationRaisesPayloadSize() {
+        UdpPayloadSizeEstimator estimator = new UdpPayloadSizeEstimator();
+        estimator.setMaxUdpPayloadSize(1432);
+        estimator.reportSuccess(SERVER, 1232, true, 4096);
+        assertEquals(1432, estimator.getUdpPayloadSize(SERVER, 1232));
+        estimator.reportSuccess(SERVER, 1432, true, 4096);
+        assertEquals(1432, estimator.getUdpPayloadSize(SERVER, 1232));
+        assertEquals(1, estimator.getUdpPayloadSizes().get(0).increases);
+    }
+
+    @Test
+    public void testLoweredPayloadSizeIsProbedAgain() {
+        UdpPayloadSizeEstimator estimator = new UdpPayloadSizeEstimator();
+        estimator.setCeilingLifetime(0);
+        estimator.setProbeInterval(3);
+        estimator.reportSuccess(SERVER, 1232, false, 4096);
+        estimator.reportTimeout(SERVER, 1232, true);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(512, estimator.getUdpPayloadSize(SERVER, 1232));
+            estimator.reportSuccess(SERVER, 512, false, 4096);
+        }
+        assertEquals(1232, estimator.getUdpPayloadSize(SERVER, 1232));
+    }
+
+    @Test
+    public void testShortenedTimeoutLowersPayloadSizeOnlyWhenRepeated() {
+        UdpPayloadSizeEstimator estimator = new UdpPayloadSizeEstimator();
+        estimator.reportSuccess(SERVER, 1232, false, 4096);
+        assertEquals(-1, estimator.reportTimeout(SERVER, 1232, false));
+        assertEquals(1232, estimator.getUdpPayloadSize(SERVER, 1232));
+
+        // A success in between resets the consecutive timeouts.
+        estimator.reportSuccess(SERVER, 1232, false, 4096);
+        assertEquals(-1, estimator.reportTimeout(SERVER, 1232, false));
+        assertEquals(512, estimator.reportTimeout(SERVER, 1232, false));
+        assertEquals(512, estimator.getUdpPayloadSize(SERVER, 1232));
+    }
+
+    @Test
+    public void testTruncationDoesNotRaisePayloadSizeAboveReceivableSize() {
+        UdpPayloadSizeEstimator estimator = new UdpPayloadSizeEstimator();
+        estimator.reportSuccess(SERVER, 1232, true, 1232);
+        assertEquals(1232, estimator.getUdpPayloadSize(SERVER, 1232));
+        assertEquals(0, estimator.getUdpPayloadSizes().get(0).increases);
+    }
+}
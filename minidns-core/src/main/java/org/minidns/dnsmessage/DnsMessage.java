@@ -10,11 +10,14 @@
  */
 package org.minidns.dnsmessage;
 
+import org.minidns.dnsname.DnsName;
 import org.minidns.edns.Edns;
+import org.minidns.record.CNAME;
 import org.minidns.record.Data;
 import org.minidns.record.OPT;
 import org.minidns.record.Record;
 import org.minidns.record.Record.TYPE;
+import org.minidns.record.SOA;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -388,6 +391,18 @@ public class DnsMessage {
      * @throws IOException On read errors.
      */
     public DnsMessage(byte[] data) throws IOException {
+        this(data, System.currentTimeMillis());
+    }
+
+    /**
+     * Build a DNS Message based on a binary DNS message, which was received at the given point in time. This is useful if
+     * the message was not received right now, e.g. because it was stored in a cache.
+     *
+     * @param data The DNS message data.
+     * @param receiveTimestamp The receive timestamp in milliseconds since the epoch.
+     * @throws IOException On read errors.
+     */
+    public DnsMessage(byte[] data, long receiveTimestamp) throws IOException {
         ByteArrayInputStream bis = new ByteArrayInputStream(data);
         DataInputStream dis = new DataInputStream(bis);
         id = dis.readUnsignedShort();
@@ -401,7 +416,7 @@ public class DnsMessage {
         authenticData = ((header >> 5) & 1) == 1;
         checkingDisabled = ((header >> 4) & 1) == 1;
         responseCode = RESPONSE_CODE.getResponseCode(header & 0xf);
-        receiveTimestamp = System.currentTimeMillis();
+        this.receiveTimestamp = receiveTimestamp;
         int questionCount = dis.readUnsignedShort();
         int answerCount = dis.readUnsignedShort();
         int nameserverCount = dis.readUnsignedShort();
@@ -781,6 +796,69 @@ public class DnsMessage {
         return answersMinTtlCache;
     }
 
+    /**
+     * Check if this message is a negative response as defined in RFC 2308 § 2, that is, either a NXDOMAIN response or a
+     * NODATA response (NOERROR without any record answering the question, taking the CNAME chain starting at the question
+     * name into account).
+     *
+     * @return <code>true</code> if this is a negative response.
+     * @see <a href="https://tools.ietf.org/html/rfc2308#section-2">RFC 2308 § 2. Negative Responses</a>
+     */
+    public boolean isNegativeResponse() {
+        switch (responseCode) {
+        case NX_DOMAIN:
+            return true;
+        case NO_ERROR:
+            if (questions.isEmpty()) {
+                return false;
+            }
+            Question q = getQuestion();
+            // Follow the CNAME chain starting at the question name, a NODATA response may contain a chain which does not
+            // end in a record answering the question. The number of iterations is bounded in case of a CNAME loop.
+            for (int i = 0; i <= answerSection.size(); i++) {
+                DnsName target = null;
+                for (Record<? extends Data> record : answerSection) {
+                    if (record.isAnswer(q)) {
+                        return false;
+                    }
+                    if (record.type == TYPE.CNAME && record.name.equals(q.name)) {
+                        target = ((CNAME) record.payloadData).target;
+                    }
+                }
+                if (target == null) {
+                    return true;
+                }
+                q = new Question(target, q.type, q.clazz);
+            }
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private long negativeTtlCache = -2;
+
+    /**
+     * Get the TTL of this message if it is used as negative response in seconds. As per RFC 2308 § 5 this is the minimum
+     * of the TTL of the SOA record in the authority section and the SOA's MINIMUM field.
+     *
+     * @return the negative TTL in seconds, or -1 if there is no SOA record in the authority section.
+     * @see <a href="https://tools.ietf.org/html/rfc2308#section-5">RFC 2308 § 5. Caching Negative Answers</a>
+     */
+    public long getNegativeTtl() {
+        if (negativeTtlCache > -2) {
+            return negativeTtlCache;
+        }
+
+        Record<SOA> soa = getFirstOfTypeFromAuthoritySection(SOA.class);
+        if (soa == null) {
+            negativeTtlCache = -1;
+        } else {
+            negativeTtlCache = Math.min(soa.ttl, soa.payloadData.minimum);
+        }
+        return negativeTtlCache;
+    }
+
     public Builder asBuilder() {
         return new Builder(this);
     }
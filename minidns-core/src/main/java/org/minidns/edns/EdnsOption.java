@@ -73,6 +73,9 @@ public abstract class EdnsOption {
         case NSID:
             res = new Nsid(optionData);
             break;
+        case TCP_KEEPALIVE:
+            res = new TcpKeepalive(optionData);
+            break;
         default:
             res = new UnknownEdnsOption(intOptionCode, optionData);
             break;
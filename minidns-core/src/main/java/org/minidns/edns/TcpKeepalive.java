@@ -0,0 +1,67 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.edns;
+
+import org.minidns.edns.Edns.OptionCode;
+
+/**
+ * The edns-tcp-keepalive EDNS option as specified in RFC 7828. Clients send it without a timeout in queries over TCP,
+ * servers include the idle timeout of the connection in their responses.
+ */
+public class TcpKeepalive extends EdnsOption {
+
+    public static final TcpKeepalive REQUEST = new TcpKeepalive(new byte[0]);
+
+    public TcpKeepalive(byte[] payload) {
+        super(payload);
+    }
+
+    /**
+     * Create a new edns-tcp-keepalive option with the given timeout.
+     *
+     * @param timeout the idle timeout in units of 100 milliseconds.
+     */
+    public TcpKeepalive(int timeout) {
+        this(new byte[] { (byte) (timeout >> 8), (byte) timeout });
+    }
+
+    /**
+     * Get the idle timeout.
+     *
+     * @return the idle timeout in units of 100 milliseconds, or -1 if the option carries no timeout.
+     */
+    public int getTimeout() {
+        if (optionData.length != 2) {
+            return -1;
+        }
+        return ((optionData[0] & 0xff) << 8) | (optionData[1] & 0xff);
+    }
+
+    @Override
+    public OptionCode getOptionCode() {
+        return OptionCode.TCP_KEEPALIVE;
+    }
+
+    @Override
+    protected CharSequence toStringInternal() {
+        return OptionCode.TCP_KEEPALIVE + ": " + asTerminalOutputInternal();
+    }
+
+    @Override
+    protected CharSequence asTerminalOutputInternal() {
+        int timeout = getTimeout();
+        if (timeout < 0) {
+            return "";
+        }
+        return (timeout * 100) + "ms";
+    }
+
+}
@@ -513,6 +513,19 @@ public final class Record<D extends Data> {
         return ttl;
     }
 
+    /**
+     * Get a copy of this resource record with the given TTL, for example to express the remaining TTL of a cached record.
+     *
+     * @param ttl the TTL of the copy in seconds.
+     * @return a copy of this resource record with the given TTL.
+     */
+    public Record<D> withTtl(long ttl) {
+        if (ttl == this.ttl) {
+            return this;
+        }
+        return new Record<>(name, type, clazz, clazzValue, ttl, payloadData, unicastQuery);
+    }
+
     /**
      * Get the question asking for this resource record. This will return <code>null</code> if the record is not retrievable, i.e.
      * {@link TYPE#OPT}.
@@ -15,6 +15,8 @@ import org.minidns.dnsmessage.DnsMessage;
 import org.minidns.dnsmessage.Question;
 import org.minidns.dnsname.DnsName;
 import org.minidns.dnsqueryresult.DnsQueryResult;
+import org.minidns.dnsqueryresult.DnsQueryResult.DnssecValidationStatus;
+import org.minidns.dnsqueryresult.SynthesizedCachedDnsQueryResult;
 import org.minidns.dnssec.DnssecUnverifiedReason.NoActiveSignaturesReason;
 import org.minidns.dnssec.DnssecUnverifiedReason.NoSecureEntryPointReason;
 import org.minidns.dnssec.DnssecUnverifiedReason.NoSignaturesReason;
@@ -79,6 +81,13 @@ public class DnssecClient extends ReliableDnsClient {
 
     private boolean stripSignatureRecords = true;
 
+    /**
+     * The validated NSEC and NSEC3 records used to synthesize negative responses (RFC 8198).
+     */
+    private final ValidatedDenialCache validatedDenialCache = new ValidatedDenialCache();
+
+    private boolean aggressiveNsec = true;
+
     /**
      * The active DNSSEC Look-aside Validation Registry. May be <code>null</code>.
      */
@@ -100,6 +109,16 @@ public class DnssecClient extends ReliableDnsClient {
     }
 
     public DnssecQueryResult queryDnssec(Question q) throws IOException {
+        if (aggressiveNsec) {
+            DnsMessage synthesizedResponse = validatedDenialCache.synthesize(q);
+            if (synthesizedResponse != null) {
+                // The records proving the denial have already been validated when they were cached.
+                DnsQueryResult dnsQueryResult = new SynthesizedCachedDnsQueryResult(q.asQueryMessage(), synthesizedResponse);
+                dnsQueryResult.setDnssecValidationStatus(DnssecValidationStatus.secure);
+                return createDnssecQueryResult(dnsQueryResult, new HashSet<DnssecUnverifiedReason>());
+            }
+        }
+
         DnsQueryResult dnsQueryResult = super.query(q);
         DnssecQueryResult dnssecQueryResult = performVerification(dnsQueryResult);
         return dnssecQueryResult;
@@ -109,10 +128,45 @@ public class DnssecClient extends ReliableDnsClient {
         if (dnsQueryResult == null) return null;
 
         DnsMessage dnsMessage = dnsQueryResult.response;
-        DnsMessage.Builder messageBuilder = dnsMessage.asBuilder();
 
-        Set<DnssecUnverifiedReason> unverifiedReasons = verify(dnsMessage);
+        Set<DnssecUnverifiedReason> unverifiedReasons;
+        try {
+            unverifiedReasons = verify(dnsMessage);
+        } catch (DnssecValidationFailedException e) {
+            dnsQueryResult.setDnssecValidationStatus(DnssecValidationStatus.bogus);
+            throw e;
+        }
+        // Record the validation status, so that a cache holding the result may share it with non-validating clients.
+        dnsQueryResult.setDnssecValidationStatus(getValidationStatus(unverifiedReasons));
+
+        if (aggressiveNsec && unverifiedReasons.isEmpty() && dnsMessage.answerSection.isEmpty()) {
+            validatedDenialCache.add(dnsMessage);
+        }
 
+        return createDnssecQueryResult(dnsQueryResult, unverifiedReasons);
+    }
+
+    /**
+     * Get the validation status of a response which could not be verified for the given reasons. The response is only
+     * insecure if it is provably unsigned. Otherwise, for example if its signatures expired, it is bogus as defined in
+     * RFC 4035 § 5.5, which a validating resolver would answer with SERVFAIL.
+     */
+    private static DnssecValidationStatus getValidationStatus(Set<DnssecUnverifiedReason> unverifiedReasons) {
+        if (unverifiedReasons.isEmpty()) {
+            return DnssecValidationStatus.secure;
+        }
+        for (DnssecUnverifiedReason reason : unverifiedReasons) {
+            if (!(reason instanceof NoSignaturesReason) && !(reason instanceof NoTrustAnchorReason)
+                    && !(reason instanceof NoSecureEntryPointReason)) {
+                return DnssecValidationStatus.bogus;
+            }
+        }
+        return DnssecValidationStatus.insecure;
+    }
+
+    private DnssecQueryResult createDnssecQueryResult(DnsQueryResult dnsQueryResult, Set<DnssecUnverifiedReason> unverifiedReasons) {
+        DnsMessage dnsMessage = dnsQueryResult.response;
+        DnsMessage.Builder messageBuilder = dnsMessage.asBuilder();
         messageBuilder.setAuthenticData(unverifiedReasons.isEmpty());
 
         List<Record<? extends Data>> answers = dnsMessage.answerSection;
@@ -547,6 +601,32 @@ public class DnssecClient extends ReliableDnsClient {
         this.stripSignatureRecords = stripSignatureRecords;
     }
 
+    /**
+     * Whether negative responses are synthesized from previously validated NSEC and NSEC3 records, as specified in
+     * RFC 8198.
+     *
+     * Default is {@code true}.
+     *
+     * @return Whether the aggressive use of the validated NSEC and NSEC3 records is enabled.
+     */
+    public boolean isAggressiveNsec() {
+        return aggressiveNsec;
+    }
+
+    /**
+     * Enable or disable the synthesis of negative responses from previously validated NSEC and NSEC3 records (RFC 8198).
+     * If enabled, a query for a name or type which is proven not to exist by a cached NSEC or NSEC3 record is answered
+     * without querying the DNS system, until the record or its signature expires.
+     *
+     * @param aggressiveNsec Whether validated NSEC and NSEC3 records shall be used aggressively.
+     */
+    public void setAggressiveNsec(boolean aggressiveNsec) {
+        this.aggressiveNsec = aggressiveNsec;
+        if (!aggressiveNsec) {
+            validatedDenialCache.clear();
+        }
+    }
+
     /**
      * Enables DNSSEC Lookaside Validation (DLV) using the default DLV service at dlv.isc.org.
      */
@@ -0,0 +1,474 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.dnssec;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.minidns.dnslabel.DnsLabel;
+import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsmessage.DnsMessage.RESPONSE_CODE;
+import org.minidns.dnsmessage.Question;
+import org.minidns.dnsname.DnsName;
+import org.minidns.dnssec.algorithms.AlgorithmMap;
+import org.minidns.record.Data;
+import org.minidns.record.NSEC;
+import org.minidns.record.NSEC3;
+import org.minidns.record.RRSIG;
+import org.minidns.record.Record;
+import org.minidns.record.Record.CLASS;
+import org.minidns.record.Record.TYPE;
+import org.minidns.record.SOA;
+import org.minidns.util.Base32;
+
+/**
+ * Cache of validated NSEC and NSEC3 records, used to synthesize negative responses as specified in RFC 8198
+ * ("Aggressive Use of DNSSEC-Validated Cache"). For every zone, the NSEC records are kept sorted in the canonical DNS
+ * name order of RFC 4034 § 6.1, and the NSEC3 records are kept sorted by their hashed owner name, so that the record
+ * covering a name is found with a single floor lookup.
+ * <p>
+ * Entries expire with the TTL of the NSEC(3) record, bounded by the negative TTL of the response it was received with
+ * (RFC 8198 § 5.4), or with their signature, whichever comes first. Wildcard expansion (RFC 8198 § 5.3) is not
+ * synthesized, i.e. if a wildcard may exist the query is sent upstream.
+ * </p>
+ */
+final class ValidatedDenialCache {
+
+    /**
+     * The default upper bound of the number of NSEC and of NSEC3 records cached per zone.
+     */
+    static final int DEFAULT_MAX_ENTRIES_PER_ZONE = 1024;
+
+    /**
+     * The canonical DNS name order of RFC 4034 § 6.1.
+     */
+    private static final Comparator<DnsName> CANONICAL_ORDER = new Comparator<DnsName>() {
+        @Override
+        public int compare(DnsName a, DnsName b) {
+            int labelCount = Math.min(a.getLabelCount(), b.getLabelCount());
+            for (int i = 0; i < labelCount; i++) {
+                int res = a.getLabel(i).compareTo(b.getLabel(i));
+                if (res != 0) {
+                    return res;
+                }
+            }
+            return a.getLabelCount() - b.getLabelCount();
+        }
+    };
+
+    private static final class Entry<D extends Data> {
+        private final Record<D> record;
+        private final List<Record<RRSIG>> signatures;
+        private final long expiry;
+
+        private Entry(Record<D> record, List<Record<RRSIG>> signatures, long expiry) {
+            this.record = record;
+            this.signatures = signatures;
+            this.expiry = expiry;
+        }
+    }
+
+    private static final class Nsec3Entry {
+        private final Entry<NSEC3> entry;
+        private final String nextHashed;
+
+        private Nsec3Entry(Entry<NSEC3> entry) {
+            this.entry = entry;
+            this.nextHashed = entry.record.payloadData.getNextHashedBase32().toLowerCase(Locale.US);
+        }
+    }
+
+    private static final class ZoneDenials {
+        private Entry<SOA> soa;
+        private final TreeMap<DnsName, Entry<NSEC>> nsecs = new TreeMap<>(CANONICAL_ORDER);
+        private final TreeMap<String, Nsec3Entry> nsec3s = new TreeMap<>();
+        private NSEC3 nsec3Parameters;
+    }
+
+    private final Map<DnsName, ZoneDenials> zones = new HashMap<>();
+
+    private final int maxEntriesPerZone;
+
+    ValidatedDenialCache(int maxEntriesPerZone) {
+        this.maxEntriesPerZone = maxEntriesPerZone;
+    }
+
+    ValidatedDenialCache() {
+        this(DEFAULT_MAX_ENTRIES_PER_ZONE);
+    }
+
+    /**
+     * Add the NSEC and NSEC3 records of the authority section of the given response. The response must have been
+     * validated as secure.
+     *
+     * @param response the validated response.
+     */
+    synchronized void add(DnsMessage response) {
+        Record<SOA> soaRecord = response.getFirstOfTypeFromAuthoritySection(SOA.class);
+        long negativeTtl = response.getNegativeTtl();
+        if (soaRecord == null || negativeTtl < 0) {
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        for (Record<? extends Data> record : response.authoritySection) {
+            if (record.clazz != CLASS.IN || (record.type != TYPE.NSEC && record.type != TYPE.NSEC3)) {
+                continue;
+            }
+            List<Record<RRSIG>> signatures = getSignatures(response, record);
+            if (signatures.isEmpty()) {
+                continue;
+            }
+            DnsName zone = signatures.get(0).payloadData.signerName;
+            if (!record.name.isChildOf(zone)) {
+                continue;
+            }
+            long expiry = getExpiry(record, signatures, negativeTtl, now);
+
+            ZoneDenials zoneDenials = zones.get(zone);
+            if (zoneDenials == null) {
+                zoneDenials = new ZoneDenials();
+                zones.put(zone, zoneDenials);
+            }
+            if (zoneDenials.soa == null || zoneDenials.soa.expiry < now) {
+                List<Record<RRSIG>> soaSignatures = getSignatures(response, soaRecord);
+                zoneDenials.soa = new Entry<>(soaRecord, soaSignatures, getExpiry(soaRecord, soaSignatures, Long.MAX_VALUE, now));
+            }
+
+            if (record.type == TYPE.NSEC) {
+                zoneDenials.nsecs.put(record.name, new Entry<>(record.as(NSEC.class), signatures, expiry));
+                if (zoneDenials.nsecs.size() > maxEntriesPerZone) {
+                    for (Iterator<Entry<NSEC>> it = zoneDenials.nsecs.values().iterator(); it.hasNext();) {
+                        if (it.next().expiry < now) {
+                            it.remove();
+                        }
+                    }
+                    while (zoneDenials.nsecs.size() > maxEntriesPerZone) {
+                        zoneDenials.nsecs.pollFirstEntry();
+                    }
+                }
+            } else {
+                if (!record.name.isDirectChildOf(zone)) {
+                    continue;
+                }
+                Record<NSEC3> nsec3Record = record.as(NSEC3.class);
+                NSEC3 nsec3 = nsec3Record.payloadData;
+                NSEC3 parameters = zoneDenials.nsec3Parameters;
+                if (parameters == null || parameters.hashAlgorithmByte != nsec3.hashAlgorithmByte
+                        || parameters.iterations != nsec3.iterations || !Arrays.equals(parameters.getSalt(), nsec3.getSalt())) {
+                    // The zone was re-salted, or this is the first NSEC3 record of the zone.
+                    zoneDenials.nsec3s.clear();
+                    zoneDenials.nsec3Parameters = nsec3;
+                }
+                String hashedOwner = record.name.getHostpart().toLowerCase(Locale.US);
+                zoneDenials.nsec3s.put(hashedOwner, new Nsec3Entry(new Entry<>(nsec3Record, signatures, expiry)));
+                if (zoneDenials.nsec3s.size() > maxEntriesPerZone) {
+                    for (Iterator<Nsec3Entry> it = zoneDenials.nsec3s.values().iterator(); it.hasNext();) {
+                        if (it.next().entry.expiry < now) {
+                            it.remove();
+                        }
+                    }
+                    while (zoneDenials.nsec3s.size() > maxEntriesPerZone) {
+                        zoneDenials.nsec3s.pollFirstEntry();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Synthesize a negative response for the given question, if the cached NSEC or NSEC3 records prove that the name
+     * or the type does not exist.
+     *
+     * @param q the question.
+     * @return the synthesized NXDOMAIN or NODATA response, or <code>null</code>.
+     */
+    synchronized DnsMessage synthesize(Question q) {
+        if (q.clazz != CLASS.IN || zones.isEmpty()) {
+            return null;
+        }
+
+        // The DS RRset is part of the parent zone.
+        DnsName zone = q.type == TYPE.DS && !q.name.isRootLabel() ? q.name.getParent() : q.name;
+        ZoneDenials zoneDenials;
+        while ((zoneDenials = zones.get(zone)) == null) {
+            if (zone.isRootLabel()) {
+                return null;
+            }
+            zone = zone.getParent();
+        }
+
+        final long now = System.currentTimeMillis();
+        Entry<SOA> soa = zoneDenials.soa;
+        if (soa == null || soa.expiry < now) {
+            return null;
+        }
+
+        List<Entry<?>> proof = new ArrayList<>(3);
+        RESPONSE_CODE responseCode = proveWithNsec(zoneDenials, q, now, proof);
+        if (responseCode == null) {
+            proof.clear();
+            responseCode = proveWithNsec3(zoneDenials, zone, q, now, proof);
+        }
+        if (responseCode == null) {
+            return null;
+        }
+
+        DnsMessage.Builder response = q.asQueryMessage().getResponseBuilder(responseCode)
+                .setRecursionAvailable(true)
+                .setReceiveTimestamp(now);
+        List<Record<? extends Data>> authority = new ArrayList<>();
+        addWithRemainingTtl(authority, soa, now);
+        for (Entry<?> entry : proof) {
+            addWithRemainingTtl(authority, entry, now);
+        }
+        response.setNameserverRecords(authority);
+        return response.build();
+    }
+
+    private RESPONSE_CODE proveWithNsec(ZoneDenials zoneDenials, Question q, long now, List<Entry<?>> proof) {
+        Entry<NSEC> entry = getCoveringNsec(zoneDenials, q.name, now);
+        if (entry == null) {
+            return null;
+        }
+
+        NSEC nsec = entry.record.payloadData;
+        DnsName owner = entry.record.name;
+        if (owner.equals(q.name)) {
+            if (nsec.types.contains(q.type) || nsec.types.contains(TYPE.CNAME)) {
+                return null;
+            }
+            if (isDelegation(nsec.types) && q.type != TYPE.DS) {
+                // A NSEC record of the parent side of a delegation says nothing about the child zone.
+                return null;
+            }
+            proof.add(entry);
+            return RESPONSE_CODE.NO_ERROR;
+        }
+
+        if (q.name.isChildOf(owner) && (isDelegation(nsec.types) || nsec.types.contains(TYPE.DNAME))) {
+            return null;
+        }
+        proof.add(entry);
+        if (nsec.next.isChildOf(q.name)) {
+            // The name is an empty non-terminal.
+            return RESPONSE_CODE.NO_ERROR;
+        }
+
+        // RFC 4035 § 5.4: Prove that there is no wildcard at the closest encloser which could have been expanded.
+        int closestEncloserLabels = Math.max(getCommonLabelCount(q.name, owner), getCommonLabelCount(q.name, nsec.next));
+        DnsName wildcard = DnsName.from(DnsLabel.WILDCARD_LABEL, q.name.stripToLabels(closestEncloserLabels));
+        Entry<NSEC> wildcardEntry = getCoveringNsec(zoneDenials, wildcard, now);
+        if (wildcardEntry == null || wildcardEntry.record.name.equals(wildcard)) {
+            return null;
+        }
+        if (wildcardEntry != entry) {
+            proof.add(wildcardEntry);
+        }
+        return RESPONSE_CODE.NX_DOMAIN;
+    }
+
+    /**
+     * Get the NSEC record whose owner is the given name, or whose interval covers the given name.
+     */
+    private static Entry<NSEC> getCoveringNsec(ZoneDenials zoneDenials, DnsName name, long now) {
+        Map.Entry<DnsName, Entry<NSEC>> floor = zoneDenials.nsecs.floorEntry(name);
+        if (floor == null) {
+            return null;
+        }
+        Entry<NSEC> entry = floor.getValue();
+        if (entry.expiry < now) {
+            zoneDenials.nsecs.remove(floor.getKey());
+            return null;
+        }
+        DnsName owner = entry.record.name;
+        DnsName next = entry.record.payloadData.next;
+        if (owner.equals(name)) {
+            return entry;
+        }
+        // The NSEC record of the last name of the zone points back to the apex.
+        boolean lastNsec = CANONICAL_ORDER.compare(next, owner) <= 0;
+        if (lastNsec || CANONICAL_ORDER.compare(name, next) < 0) {
+            return entry;
+        }
+        return null;
+    }
+
+    private RESPONSE_CODE proveWithNsec3(ZoneDenials zoneDenials, DnsName zone, Question q, long now, List<Entry<?>> proof) {
+        NSEC3 parameters = zoneDenials.nsec3Parameters;
+        if (parameters == null || zoneDenials.nsec3s.isEmpty()) {
+            return null;
+        }
+        DigestCalculator digestCalculator = AlgorithmMap.INSTANCE.getNsecDigestCalculator(parameters.hashAlgorithm);
+        if (digestCalculator == null) {
+            return null;
+        }
+
+        Nsec3Entry match = getMatchingNsec3(zoneDenials, hash(digestCalculator, parameters, q.name), now);
+        if (match != null) {
+            List<TYPE> types = match.entry.record.payloadData.types;
+            if (types.contains(q.type) || types.contains(TYPE.CNAME) || (isDelegation(types) && q.type != TYPE.DS)) {
+                return null;
+            }
+            proof.add(match.entry);
+            return RESPONSE_CODE.NO_ERROR;
+        }
+
+        // RFC 5155 § 8.4: The closest encloser proof, and the proof that there is no wildcard at the closest encloser.
+        DnsName closestEncloser = q.name;
+        Nsec3Entry closestEncloserMatch = null;
+        while (closestEncloserMatch == null && !closestEncloser.equals(zone)) {
+            closestEncloser = closestEncloser.getParent();
+            closestEncloserMatch = getMatchingNsec3(zoneDenials, hash(digestCalculator, parameters, closestEncloser), now);
+        }
+        if (closestEncloserMatch == null) {
+            return null;
+        }
+        List<TYPE> types = closestEncloserMatch.entry.record.payloadData.types;
+        if ((!closestEncloser.equals(zone) && isDelegation(types)) || types.contains(TYPE.DNAME)) {
+            return null;
+        }
+
+        DnsName nextCloser = q.name.stripToLabels(closestEncloser.getLabelCount() + 1);
+        Nsec3Entry nextCloserCover = getCoveringNsec3(zoneDenials, hash(digestCalculator, parameters, nextCloser), now);
+        // An opt-out NSEC3 record does not prove that the name does not exist (RFC 5155 § 6).
+        if (nextCloserCover == null || (nextCloserCover.entry.record.payloadData.flags & NSEC3.FLAG_OPT_OUT) != 0) {
+            return null;
+        }
+
+        String wildcardHash = hash(digestCalculator, parameters, DnsName.from(DnsLabel.WILDCARD_LABEL, closestEncloser));
+        if (getMatchingNsec3(zoneDenials, wildcardHash, now) != null) {
+            return null;
+        }
+        Nsec3Entry wildcardCover = getCoveringNsec3(zoneDenials, wildcardHash, now);
+        if (wildcardCover == null) {
+            return null;
+        }
+
+        proof.add(closestEncloserMatch.entry);
+        if (nextCloserCover != closestEncloserMatch) {
+            proof.add(nextCloserCover.entry);
+        }
+        if (wildcardCover != closestEncloserMatch && wildcardCover != nextCloserCover) {
+            proof.add(wildcardCover.entry);
+        }
+        return RESPONSE_CODE.NX_DOMAIN;
+    }
+
+    /**
+     * Get the NSEC3 record whose hashed owner name equals the given hash.
+     */
+    private static Nsec3Entry getMatchingNsec3(ZoneDenials zoneDenials, String hash, long now) {
+        Nsec3Entry entry = zoneDenials.nsec3s.get(hash);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.entry.expiry < now) {
+            zoneDenials.nsec3s.remove(hash);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Get the NSEC3 record whose interval covers the given hash.
+     */
+    private static Nsec3Entry getCoveringNsec3(ZoneDenials zoneDenials, String hash, long now) {
+        Map.Entry<String, Nsec3Entry> lower = zoneDenials.nsec3s.lowerEntry(hash);
+        if (lower == null) {
+            // The NSEC3 record with the highest hashed owner name covers the hashes before the first owner name.
+            lower = zoneDenials.nsec3s.lastEntry();
+        }
+        if (lower == null) {
+            return null;
+        }
+
+        Nsec3Entry entry = lower.getValue();
+        if (entry.entry.expiry < now) {
+            zoneDenials.nsec3s.remove(lower.getKey());
+            return null;
+        }
+        String owner = lower.getKey();
+        String next = entry.nextHashed;
+        boolean covered;
+        if (next.compareTo(owner) <= 0) {
+            // The last NSEC3 record of the zone.
+            covered = hash.compareTo(owner) > 0 || hash.compareTo(next) < 0;
+        } else {
+            covered = hash.compareTo(owner) > 0 && hash.compareTo(next) < 0;
+        }
+        return covered ? entry : null;
+    }
+
+    private static String hash(DigestCalculator digestCalculator, NSEC3 parameters, DnsName name) {
+        byte[] hash = Verifier.nsec3hash(digestCalculator, parameters, name, parameters.iterations);
+        return Base32.encodeToString(hash).toLowerCase(Locale.US);
+    }
+
+    private static boolean isDelegation(List<TYPE> types) {
+        return types.contains(TYPE.NS) && !types.contains(TYPE.SOA);
+    }
+
+    private static int getCommonLabelCount(DnsName a, DnsName b) {
+        int labelCount = Math.min(a.getLabelCount(), b.getLabelCount());
+        int i = 0;
+        while (i < labelCount && a.getLabel(i).equals(b.getLabel(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static List<Record<RRSIG>> getSignatures(DnsMessage response, Record<? extends Data> record) {
+        List<Record<RRSIG>> signatures = new ArrayList<>(1);
+        for (Record<RRSIG> signature : response.filterAuthoritySectionBy(RRSIG.class)) {
+            if (signature.payloadData.typeCovered == record.type && signature.name.equals(record.name)) {
+                signatures.add(signature);
+            }
+        }
+        return signatures;
+    }
+
+    @SuppressWarnings("JavaUtilDate")
+    private static long getExpiry(Record<? extends Data> record, List<Record<RRSIG>> signatures, long maxTtl, long now) {
+        long expiry = now + Math.min(record.ttl, maxTtl) * 1000;
+        for (Record<RRSIG> signature : signatures) {
+            expiry = Math.min(expiry, signature.payloadData.signatureExpiration.getTime());
+        }
+        return expiry;
+    }
+
+    private static void addWithRemainingTtl(List<Record<? extends Data>> records, Entry<?> entry, long now) {
+        long remainingTtl = (entry.expiry - now) / 1000;
+        records.add(entry.record.withTtl(Math.min(entry.record.ttl, remainingTtl)));
+        for (Record<RRSIG> signature : entry.signatures) {
+            records.add(signature.withTtl(Math.min(signature.ttl, remainingTtl)));
+        }
+    }
+
+    synchronized void clear() {
+        zones.clear();
+    }
+
+    synchronized int size() {
+        int size = 0;
+        for (ZoneDenials zoneDenials : zones.values()) {
+            size += zoneDenials.nsecs.size() + zoneDenials.nsec3s.size();
+        }
+        return size;
+    }
+}
@@ -15,7 +15,13 @@ import org.minidns.cache.LruCache;
 import org.minidns.constants.DnssecConstants.DigestAlgorithm;
 import org.minidns.constants.DnssecConstants.SignatureAlgorithm;
 import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsmessage.DnsMessage.RESPONSE_CODE;
+import org.minidns.dnsmessage.Question;
 import org.minidns.dnsname.DnsName;
+import org.minidns.dnsqueryresult.CachedDnsQueryResult;
+import org.minidns.dnsqueryresult.DnsQueryResult;
+import org.minidns.dnsqueryresult.DnsQueryResult.DnssecValidationStatus;
+import org.minidns.dnsqueryresult.TestWorldDnsQueryResult;
 import org.minidns.dnssec.DnssecValidationFailedException.AuthorityDoesNotContainSoa;
 import org.minidns.dnssec.DnssecWorld.DnssecData;
 import org.minidns.iterative.ReliableDnsClient.Mode;
@@ -25,12 +31,14 @@ import org.minidns.record.Data;
 import org.minidns.record.RRSIG;
 import org.minidns.record.Record;
 import org.minidns.record.Record.TYPE;
+import org.minidns.source.AbstractDnsDataSource;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.net.InetAddress;
 import java.security.PrivateKey;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
@@ -56,6 +64,8 @@ import static org.minidns.dnssec.DnssecWorld.signedZone;
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -507,6 +517,69 @@ public class DnssecClientTest {
     }
 
     @SuppressWarnings({"unchecked", "JavaUtilDate"})
+    @Test
+    public void testSignatureOutOfDateIsNotShared() throws IOException {
+        LruCache cache = new LruCache(64);
+        DnssecClient client = new DnssecClient(cache);
+        client.addSecureEntryPoint(DnsName.ROOT, rootKSK.getKey());
+        client.setMode(Mode.iterativeOnly);
+        Date signatureExpiration = new Date(System.currentTimeMillis() - 14 * 24 * 60 * 60 * 1000);
+        Date signatureInception = new Date(System.currentTimeMillis() - 28L * 24L * 60L * 60L * 1000L);
+        RRSIG outOfDateSig = rrsig(Record.TYPE.A, algorithm, 2, 3600, signatureExpiration, signatureInception, comZSK.getKeyTag(), "com", new byte[0]);
+        final DnsWorld world = applyZones(client,
+                signedRootZone(
+                        sign(rootKSK, "", rootPrivateKSK, algorithm,
+                                record("", rootKSK),
+                                record("", rootZSK)),
+                        sign(rootZSK, "", rootPrivateZSK, algorithm,
+                                record("com", ds("com", digestType, comKSK))),
+                        sign(rootZSK, "", rootPrivateZSK, algorithm,
+                                record("com", ns("ns.com"))),
+                        sign(rootZSK, "", rootPrivateZSK, algorithm,
+                                record("ns.com", a("1.1.1.1")))
+                ), signedZone("com", "ns.com", "1.1.1.1",
+                        sign(comKSK, "com", comPrivateKSK, algorithm,
+                                record("com", comKSK),
+                                record("com", comZSK)),
+                        sign(comPrivateZSK, outOfDateSig,
+                                record("example.com", a("1.1.1.2")))
+                )
+        );
+        // Echo the DO and CD flags and set a receive timestamp like a real server, which makes the responses cacheable.
+        client.setDataSource(new AbstractDnsDataSource() {
+            @Override
+            public DnsQueryResult query(DnsMessage message, InetAddress address, int port) throws IOException {
+                DnsMessage.Builder response = world.query(message, address, port).response.asBuilder()
+                        .setCheckingDisabled(message.checkingDisabled)
+                        .setReceiveTimestamp(System.currentTimeMillis());
+                response.getEdnsBuilder().setUdpPayloadSize(message.getEdns().udpPayloadSize).setDnssecOk();
+                return new TestWorldDnsQueryResult(message, response.build());
+            }
+        });
+        assertFalse(client.queryDnssec("example.com", Record.TYPE.A).isAuthenticData());
+
+        CachedDnsQueryResult dnssecEntry = null;
+        for (CachedDnsQueryResult entry : cache.getEntries()) {
+            Question question = entry.query.getQuestion();
+            if (question.name.equals(DnsName.from("example.com")) && question.type == Record.TYPE.A) {
+                dnssecEntry = entry;
+            }
+        }
+        assertNotNull(dnssecEntry);
+        // Expired signatures make the response bogus, not insecure.
+        assertEquals(DnssecValidationStatus.bogus, dnssecEntry.getDnssecValidationStatus());
+
+        // Hence it is not served to clients without the DO flag, which a validating resolver would answer with SERVFAIL.
+        DnsMessage.Builder query = dnssecEntry.query.asBuilder()
+                .setCheckingDisabled(false)
+                .setAdditionalResourceRecords(new ArrayList<Record<? extends Data>>());
+        query.getEdnsBuilder().setUdpPayloadSize(dnssecEntry.query.getEdns().udpPayloadSize);
+        assertNull(cache.get(query.build()));
+
+        dnssecEntry.setDnssecValidationStatus(DnssecValidationStatus.insecure);
+        assertNotNull(cache.get(query.build()));
+    }
+
     @Test
     public void testSignatureInFuture() throws IOException {
         DnssecClient client = constructDnssecClient();
@@ -578,6 +651,58 @@ public class DnssecClientTest {
         assertTrue(message.authenticData);
     }
 
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testAggressiveNsec() throws Exception {
+        DnssecClient client = constructDnssecClient();
+        DnsWorld world = applyZones(client,
+                signedRootZone(
+                        sign(rootKSK, "", rootPrivateKSK, algorithm,
+                                record("", rootKSK),
+                                record("", rootZSK)),
+                        sign(rootZSK, "", rootPrivateZSK, algorithm,
+                                record("com", ds("com", digestType, comKSK))),
+                        sign(rootZSK, "", rootPrivateZSK, algorithm,
+                                record("com", ns("ns.com"))),
+                        sign(rootZSK, "", rootPrivateZSK, algorithm,
+                                record("ns.com", a("1.1.1.1")))
+                ), signedZone("com", "ns.com", "1.1.1.1",
+                        sign(comKSK, "com", comPrivateKSK, algorithm,
+                                record("com", comKSK),
+                                record("com", comZSK)),
+                        sign(comZSK, "com", comPrivateZSK, algorithm,
+                                record("example.com", a("1.1.1.2")))
+                )
+        );
+        DnsMessage.Builder nsecMessage = DnsMessage.builder();
+        List<Record<? extends Data>> records = DnssecWorld.merge(
+                                sign(comZSK, "com", comPrivateZSK, algorithm,
+                                        record("example.com", nsec("www.example.com", Record.TYPE.A))),
+                                sign(comZSK, "com", comPrivateZSK, algorithm,
+                                        record("example.com", soa("sns.dns.icann.org", "noc.dns.icann.org", 2015081265, 7200, 3600, 1209600, 3600))));
+        nsecMessage.setNameserverRecords(records);
+        nsecMessage.setAuthoritativeAnswer(true);
+        world.addPreparedResponse(new DnssecWorld.AddressedNsecResponse(InetAddress.getByAddress("ns.com", new byte[] {1, 1, 1, 1}), nsecMessage.build()));
+        assertTrue(client.queryDnssec("nsec.example.com", Record.TYPE.A).isAuthenticData());
+
+        // Further names proven not to exist by the cached NSEC record are answered without querying the DNS system.
+        client.setDataSource(new AbstractDnsDataSource() {
+            @Override
+            public DnsQueryResult query(DnsMessage message, InetAddress address, int port) throws IOException {
+                throw new IOException("Unexpected query for " + message.getQuestion());
+            }
+        });
+        DnssecQueryResult result = client.queryDnssec("mail.example.com", Record.TYPE.A);
+        assertTrue(result.isAuthenticData());
+        assertEquals(RESPONSE_CODE.NX_DOMAIN, result.synthesizedResponse.responseCode);
+        assertEquals(0, result.synthesizedResponse.answerSection.size());
+
+        assertThrows(IOException.class, () -> client.queryDnssec("zzz.example.com", Record.TYPE.A));
+
+        client.setAggressiveNsec(false);
+        assertThrows(IOException.class, () -> client.queryDnssec("mail.example.com", Record.TYPE.A));
+    }
+
     /**
      * Zone 'com.' has no DS in the root zone. Hence, in order to verify the results of RRs under 'com.' a DLV has to
      * been used.
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.dnssec;
+
+import org.minidns.constants.DnssecConstants.SignatureAlgorithm;
+import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsmessage.DnsMessage.RESPONSE_CODE;
+import org.minidns.dnsmessage.Question;
+import org.minidns.dnsname.DnsName;
+import org.minidns.dnssec.algorithms.JavaSecDigestCalculator;
+import org.minidns.record.Data;
+import org.minidns.record.Record;
+import org.minidns.record.Record.TYPE;
+import org.minidns.util.Base32;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.minidns.DnsWorld.nsec;
+import static org.minidns.DnsWorld.nsec3;
+import static org.minidns.DnsWorld.record;
+import static org.minidns.DnsWorld.rrsig;
+import static org.minidns.DnsWorld.soa;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class ValidatedDenialCacheTest {
+
+    private static final byte[] SALT = new byte[] {(byte) 0xAA, (byte) 0xBB};
+
+    @Test
+    public void testNsecDelegation() {
+        ValidatedDenialCache cache = new ValidatedDenialCache();
+        cache.add(negativeResponse("example",
+                record("sub.example", nsec("zzz.example", TYPE.NS, TYPE.RRSIG, TYPE.NSEC))));
+
+        // The parent side of a delegation only proves the absence of the DS RRset.
+        DnsMessage response = cache.synthesize(new Question("sub.example", TYPE.DS));
+        assertNotNull(response);
+        assertEquals(RESPONSE_CODE.NO_ERROR, response.responseCode);
+        assertNull(cache.synthesize(new Question("sub.example", TYPE.A)));
+        assertNull(cache.synthesize(new Question("www.sub.example", TYPE.A)));
+    }
+
+    @Test
+    public void testNsec3() throws Exception {
+        JavaSecDigestCalculator digestCalculator = new JavaSecDigestCalculator("SHA-1");
+        byte[] apexHash = Verifier.nsec3hash(digestCalculator, SALT, DnsName.from("example").getBytes(), 1);
+        byte[] wwwHash = Verifier.nsec3hash(digestCalculator, SALT, DnsName.from("www.example").getBytes(), 1);
+
+        ValidatedDenialCache cache = new ValidatedDenialCache();
+        cache.add(negativeResponse("example",
+                record(Base32.encodeToString(apexHash) + ".example",
+                        nsec3((byte) 1, (byte) 0, 1, SALT, wwwHash, TYPE.NS, TYPE.SOA, TYPE.RRSIG, TYPE.DNSKEY)),
+                record(Base32.encodeToString(wwwHash) + ".example",
+                        nsec3((byte) 1, (byte) 0, 1, SALT, apexHash, TYPE.A, TYPE.RRSIG))));
+        assertEquals(2, cache.size());
+
+        DnsMessage response = cache.synthesize(new Question("nonexistent.example", TYPE.A));
+        assertNotNull(response);
+        assertEquals(RESPONSE_CODE.NX_DOMAIN, response.responseCode);
+
+        response = cache.synthesize(new Question("www.example", TYPE.AAAA));
+        assertNotNull(response);
+        assertEquals(RESPONSE_CODE.NO_ERROR, response.responseCode);
+
+        assertNull(cache.synthesize(new Question("www.example", TYPE.A)));
+        assertNull(cache.synthesize(new Question("www.example.org", TYPE.A)));
+    }
+
+    @Test
+    public void testExpiredNsec3IsEvictedFirst() throws Exception {
+        JavaSecDigestCalculator digestCalculator = new JavaSecDigestCalculator("SHA-1");
+        byte[] wwwHash = Verifier.nsec3hash(digestCalculator, SALT, DnsName.from("www.example").getBytes(), 1);
+        byte[] lastHash = new byte[wwwHash.length];
+        Arrays.fill(lastHash, (byte) 0xFF);
+
+        ValidatedDenialCache cache = new ValidatedDenialCache(1);
+        cache.add(negativeResponse("example",
+                record(Base32.encodeToString(lastHash) + ".example", 0,
+                        nsec3((byte) 1, (byte) 0, 1, SALT, wwwHash, TYPE.A, TYPE.RRSIG))));
+        Thread.sleep(10);
+
+        // The expired entry is purged instead of evicting the entry with the smallest hash.
+        cache.add(negativeResponse("example",
+                record(Base32.encodeToString(wwwHash) + ".example",
+                        nsec3((byte) 1, (byte) 0, 1, SALT, lastHash, TYPE.A, TYPE.RRSIG))));
+        assertEquals(1, cache.size());
+        DnsMessage response = cache.synthesize(new Question("www.example", TYPE.AAAA));
+        assertNotNull(response);
+        assertEquals(RESPONSE_CODE.NO_ERROR, response.responseCode);
+    }
+
+    @SafeVarargs
+    @SuppressWarnings("JavaUtilDate")
+    private static DnsMessage negativeResponse(String zone, Record<? extends Data>... denials) {
+        Date inception = new Date(System.currentTimeMillis() - 60 * 1000);
+        Date expiration = new Date(System.currentTimeMillis() + 60 * 60 * 1000);
+        List<Record<? extends Data>> authority = new ArrayList<>();
+        Record<? extends Data> soaRecord = record(zone, soa("ns." + zone, "hostmaster." + zone, 1, 7200, 3600, 1209600, 3600));
+        authority.add(soaRecord);
+        authority.add(record(zone, rrsig(TYPE.SOA, SignatureAlgorithm.RSASHA256, soaRecord.name.getLabelCount(), 3600,
+                expiration, inception, 1, zone, new byte[0])));
+        for (Record<? extends Data> denial : denials) {
+            authority.add(denial);
+            authority.add(record(denial.name, rrsig(denial.type, SignatureAlgorithm.RSASHA256, denial.name.getLabelCount(),
+                    3600, expiration, inception, 1, zone, new byte[0])));
+        }
+        return DnsMessage.builder()
+                .setQrFlag(true)
+                .setResponseCode(RESPONSE_CODE.NX_DOMAIN)
+                .setNameserverRecords(authority)
+                .build();
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.doh;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+
+import org.minidns.MiniDnsFuture;
+import org.minidns.MiniDnsFuture.InternalMiniDnsFuture;
+import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsqueryresult.DnsQueryResult;
+import org.minidns.dnsqueryresult.DnsQueryResult.QueryMethod;
+import org.minidns.dnsqueryresult.StandardDnsQueryResult;
+import org.minidns.record.Data;
+import org.minidns.record.Record;
+import org.minidns.record.Record.TYPE;
+import org.minidns.source.AbstractDnsDataSource;
+
+/**
+ * A data source using DNS over HTTPS as specified in RFC 8484. All queries are sent to the URI template of the DoH
+ * server, the server address and port requested by the client are only recorded in the result.
+ * <p>
+ * The queries are sent with the {@link HttpClient} of Java 11, which multiplexes concurrent queries over a single
+ * HTTP/2 connection. {@link #queryAsync(DnsMessage, InetAddress, int, OnResponseCallback)} does not block a thread
+ * while waiting for the response.
+ * </p>
+ * <p>
+ * The ID of the queries is set to zero, as recommended by RFC 8484 § 4.1, so that HTTP caches can serve identical
+ * queries, and restored in the response. If the HTTP response carries a freshness lifetime, then the TTLs of the
+ * records in the DNS response are capped to the remaining freshness lifetime as required by RFC 8484 § 5.1. This way,
+ * the {@link org.minidns.DnsCache} of the client does not keep the response longer than the HTTP caches did.
+ * </p>
+ */
+public class DohDataSource extends AbstractDnsDataSource {
+
+    public static final String DNS_MESSAGE_MEDIA_TYPE = "application/dns-message";
+
+    public enum Method {
+        /**
+         * Send the query as the body of a POST request. This usually results in smaller requests.
+         */
+        POST,
+
+        /**
+         * Send the query base64url encoded in the <code>dns</code> parameter of a GET request. This is friendlier to
+         * HTTP caches.
+         */
+        GET,
+    }
+
+    private final URI uri;
+
+    private final HttpClient httpClient;
+
+    private volatile Method method = Method.POST;
+
+    /**
+     * Create a new DNS over HTTPS data source using a new HTTP client, which prefers HTTP/2.
+     *
+     * @param uri the URI of the DoH server, for example <code>https://dns.example/dns-query</code>.
+     */
+    public DohDataSource(URI uri) {
+        this(uri, HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build());
+    }
+
+    public DohDataSource(URI uri, HttpClient httpClient) {
+        this.uri = uri;
+        this.httpClient = httpClient;
+    }
+
+    @Override
+    public DnsQueryResult query(DnsMessage message, InetAddress address, int port) throws IOException {
+        return query(message, address, port, timeout);
+    }
+
+    @Override
+    public DnsQueryResult query(DnsMessage message, InetAddress address, int port, int timeout) throws IOException {
+        if (timeout <= 0) {
+            timeout = this.timeout;
+        }
+        CompletableFuture<HttpResponse<byte[]>> responseFuture = send(message, timeout);
+        HttpResponse<byte[]> httpResponse;
+        try {
+            httpResponse = responseFuture.get();
+        } catch (InterruptedException e) {
+            responseFuture.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for response from " + uri);
+        } catch (ExecutionException e) {
+            throw toIoException(e.getCause());
+        }
+        return toResult(message, address, port, httpResponse);
+    }
+
+    @Override
+    public MiniDnsFuture<DnsQueryResult, IOException> queryAsync(final DnsMessage message, final InetAddress address,
+                    final int port, final OnResponseCallback onResponseCallback) {
+        final CompletableFuture<HttpResponse<byte[]>> responseFuture = send(message, timeout);
+        final InternalMiniDnsFuture<DnsQueryResult, IOException> future = new InternalMiniDnsFuture<DnsQueryResult, IOException>() {
+            @Override
+            public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+                responseFuture.cancel(mayInterruptIfRunning);
+                return super.cancel(mayInterruptIfRunning);
+            }
+        };
+        responseFuture.whenComplete(new BiConsumer<HttpResponse<byte[]>, Throwable>() {
+            @Override
+            public void accept(HttpResponse<byte[]> httpResponse, Throwable throwable) {
+                if (throwable != null) {
+                    future.setException(toIoException(throwable));
+                    return;
+                }
+                DnsQueryResult result;
+                try {
+                    result = toResult(message, address, port, httpResponse);
+                } catch (IOException e) {
+                    future.setException(e);
+                    return;
+                }
+                if (onResponseCallback != null) {
+                    onResponseCallback.onResponse(message, result);
+                }
+                future.setResult(result);
+            }
+        });
+        return future;
+    }
+
+    private CompletableFuture<HttpResponse<byte[]>> send(DnsMessage message, int timeout) {
+        byte[] query = message.asBuilder().setId(0).build().toArray();
+        HttpRequest.Builder request;
+        switch (method) {
+        case GET:
+            String dns = Base64.getUrlEncoder().withoutPadding().encodeToString(query);
+            String separator = uri.getRawQuery() == null ? "?" : "&";
+            request = HttpRequest.newBuilder(URI.create(uri.toString() + separator + "dns=" + dns)).GET();
+            break;
+        case POST:
+            request = HttpRequest.newBuilder(uri)
+                    .header("Content-Type", DNS_MESSAGE_MEDIA_TYPE)
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(query));
+            break;
+        default:
+            throw new AssertionError();
+        }
+        request.header("Accept", DNS_MESSAGE_MEDIA_TYPE).timeout(Duration.ofMillis(timeout));
+        return httpClient.sendAsync(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    private DnsQueryResult toResult(DnsMessage query, InetAddress address, int port, HttpResponse<byte[]> httpResponse)
+                    throws IOException {
+        if (httpResponse.statusCode() != 200) {
+            throw new IOException("DoH server " + uri + " responded with HTTP status " + httpResponse.statusCode());
+        }
+        Optional<String> contentType = httpResponse.headers().firstValue("Content-Type");
+        if (!contentType.isPresent() || !contentType.get().toLowerCase(Locale.ROOT).startsWith(DNS_MESSAGE_MEDIA_TYPE)) {
+            throw new IOException("DoH server " + uri + " responded with unexpected content type " + contentType.orElse(null));
+        }
+
+        DnsMessage response = new DnsMessage(httpResponse.body(), System.currentTimeMillis());
+        DnsMessage.Builder builder = response.asBuilder().setId(query.id);
+        long freshnessLifetime = getFreshnessLifetime(httpResponse.headers());
+        if (freshnessLifetime >= 0) {
+            builder.setAnswers(capTtls(response.answerSection, freshnessLifetime))
+                    .setNameserverRecords(capTtls(response.authoritySection, freshnessLifetime))
+                    .setAdditionalResourceRecords(capTtls(response.additionalSection, freshnessLifetime));
+        }
+        return new StandardDnsQueryResult(address, port, QueryMethod.https, query, builder.build());
+    }
+
+    /**
+     * Get the remaining freshness lifetime of an HTTP response, that is the <code>max-age</code> directive of the
+     * Cache-Control header minus the Age header, as described in RFC 9111 § 4.2.
+     *
+     * @param headers the HTTP headers.
+     * @return the remaining freshness lifetime in seconds, or -1 if the response has no explicit freshness lifetime.
+     */
+    static long getFreshnessLifetime(HttpHeaders headers) {
+        long maxAge = -1;
+        for (String cacheControl : headers.allValues("Cache-Control")) {
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase(Locale.ROOT);
+                if (directive.equals("no-store") || directive.equals("no-cache")) {
+                    return 0;
+                }
+                if (directive.startsWith("max-age=")) {
+                    try {
+                        maxAge = Long.parseLong(directive.substring("max-age=".length()).replace("\"", ""));
+                    } catch (NumberFormatException e) {
+                        // RFC 9111 § 4.2.1: An invalid max-age makes the response stale.
+                        return 0;
+                    }
+                }
+            }
+        }
+        if (maxAge < 0) {
+            return -1;
+        }
+
+        long age = 0;
+        Optional<String> ageHeader = headers.firstValue("Age");
+        if (ageHeader.isPresent()) {
+            try {
+                age = Long.parseLong(ageHeader.get().trim());
+            } catch (NumberFormatException e) {
+                age = 0;
+            }
+        }
+        return Math.max(0, maxAge - age);
+    }
+
+    private static List<Record<? extends Data>> capTtls(List<Record<? extends Data>> records, long maxTtl) {
+        List<Record<? extends Data>> res = new ArrayList<>(records.size());
+        for (Record<? extends Data> record : records) {
+            // The TTL field of the OPT record carries flags instead of a TTL.
+            if (record.type == TYPE.OPT || record.ttl <= maxTtl) {
+                res.add(record);
+            } else {
+                res.add(record.withTtl(maxTtl));
+            }
+        }
+        return res;
+    }
+
+    private IOException toIoException(Throwable throwable) {
+        if (throwable instanceof CompletionException && throwable.getCause() != null) {
+            throwable = throwable.getCause();
+        }
+        if (throwable instanceof IOException) {
+            return (IOException) throwable;
+        }
+        return new IOException("DoH query to " + uri + " failed", throwable);
+    }
+
+    /**
+     * Set the HTTP method used to send queries.
+     *
+     * @param method the HTTP method.
+     */
+    public void setMethod(Method method) {
+        if (method == null) {
+            throw new IllegalArgumentException();
+        }
+        this.method = method;
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    public URI getUri() {
+        return uri;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2015-2024 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.doh;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsmessage.DnsMessage.RESPONSE_CODE;
+import org.minidns.dnsmessage.Question;
+import org.minidns.dnsqueryresult.DnsQueryResult;
+import org.minidns.dnsqueryresult.DnsQueryResult.QueryMethod;
+import org.minidns.record.A;
+import org.minidns.record.Record;
+import org.minidns.record.Record.CLASS;
+import org.minidns.record.Record.TYPE;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class DohDataSourceTest {
+
+    /**
+     * A plain HTTP stand-in for a DoH server on the loopback interface. It answers every query with an A record with a
+     * TTL of one hour and the configured Cache-Control and Age headers.
+     */
+    private static final class LoopbackDohServer implements HttpHandler {
+        final HttpServer httpServer;
+        final List<String> methods = Collections.synchronizedList(new ArrayList<String>());
+        final List<DnsMessage> queries = Collections.synchronizedList(new ArrayList<DnsMessage>());
+        String cacheControl;
+        String age;
+
+        LoopbackDohServer() throws IOException {
+            httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+            httpServer.createContext("/dns-query", this);
+            httpServer.start();
+        }
+
+        URI getUri() {
+            return URI.create("http://127.0.0.1:" + httpServer.getAddress().getPort() + "/dns-query");
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            methods.add(exchange.getRequestMethod());
+            byte[] data;
+            if (exchange.getRequestMethod().equals("GET")) {
+                String query = exchange.getRequestURI().getRawQuery();
+                data = Base64.getUrlDecoder().decode(query.substring(query.indexOf("dns=") + 4));
+            } else {
+                data = readAll(exchange.getRequestBody());
+            }
+            DnsMessage query = new DnsMessage(data);
+            queries.add(query);
+
+            Record<A> answer = new Record<>(query.getQuestion().name, TYPE.A, CLASS.IN, 3600, new A(192, 0, 2, 1), false);
+            byte[] response = query.getResponseBuilder(RESPONSE_CODE.NO_ERROR).addAnswer(answer).build().toArray();
+            exchange.getResponseHeaders().set("Content-Type", DohDataSource.DNS_MESSAGE_MEDIA_TYPE);
+            if (cacheControl != null) {
+                exchange.getResponseHeaders().set("Cache-Control", cacheControl);
+            }
+            if (age != null) {
+                exchange.getResponseHeaders().set("Age", age);
+            }
+            exchange.sendResponseHeaders(200, response.length);
+            OutputStream outputStream = exchange.getResponseBody();
+            outputStream.write(response);
+            outputStream.close();
+        }
+
+        private static byte[] readAll(InputStream inputStream) throws IOException {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            byte[] chunk = new byte[512];
+            int read;
+            while ((read = inputStream.read(chunk)) > 0) {
+                buffer.write(chunk, 0, read);
+            }
+            return buffer.toByteArray();
+        }
+    }
+
+    private static DnsMessage query(int id) {
+        return new Question("example.org", TYPE.A).asMessageBuilder().setId(id).build();
+    }
+
+    @Test
+    public void postAndGetTest() throws IOException {
+        LoopbackDohServer server = new LoopbackDohServer();
+        try {
+            DohDataSource dataSource = new DohDataSource(server.getUri());
+            DnsQueryResult result = dataSource.query(query(42), InetAddress.getLoopbackAddress(), 443);
+            assertEquals(42, result.response.id);
+            assertEquals(QueryMethod.https, result.queryMethod);
+            assertEquals(3600, result.response.answerSection.get(0).ttl);
+
+            dataSource.setMethod(DohDataSource.Method.GET);
+            result = dataSource.query(query(43), InetAddress.getLoopbackAddress(), 443);
+            assertEquals(43, result.response.id);
+
+            assertEquals(2, server.methods.size());
+            assertEquals("POST", server.methods.get(0));
+            assertEquals("GET", server.methods.get(1));
+            // The queries are sent with the ID zero, so that they are cacheable.
+            for (DnsMessage query : server.queries) {
+                assertEquals(0, query.id);
+            }
+        } finally {
+            server.httpServer.stop(0);
+        }
+    }
+
+    @Test
+    public void httpFreshnessLifetimeCapsTtlTest() throws IOException {
+        LoopbackDohServer server = new LoopbackDohServer();
+        server.cacheControl = "public, max-age=60";
+        server.age = "10";
+        try {
+            DohDataSource dataSource = new DohDataSource(server.getUri());
+            DnsQueryResult result = dataSource.queryAsync(query(7), InetAddress.getLoopbackAddress(), 443, null)
+                            .getOrThrow();
+            assertEquals(7, result.response.id);
+            assertEquals(50, result.response.answerSection.get(0).ttl);
+        } finally {
+            server.httpServer.stop(0);
+        }
+    }
+
+    @Test
+    public void httpErrorTest() throws IOException {
+        LoopbackDohServer server = new LoopbackDohServer();
+        try {
+            final DohDataSource dataSource = new DohDataSource(server.getUri().resolve("/unknown"));
+            assertThrows(IOException.class, () -> dataSource.query(query(1), InetAddress.getLoopbackAddress(), 443));
+        } finally {
+            server.httpServer.stop(0);
+        }
+    }
+}
@@ -20,6 +20,7 @@ import org.minidns.DnsCache;
 import org.minidns.dnsmessage.DnsMessage;
 import org.minidns.dnsmessage.Question;
 import org.minidns.dnsname.DnsName;
+import org.minidns.dnsqueryresult.CachedDnsQueryResult;
 import org.minidns.dnsqueryresult.DnsQueryResult;
 import org.minidns.iterative.IterativeClientException.LoopDetected;
 import org.minidns.iterative.IterativeClientException.NotAuthoritativeNorGlueRrFound;
@@ -118,6 +119,13 @@ public class IterativeDnsClient extends AbstractDnsClient {
 
         Question question = q.getQuestion();
         DnsName parent = question.name.getParent();
+        if (cache != null) {
+            // Start at the deepest delegation known to the cache, instead of only considering the parent of the name.
+            CachedDnsQueryResult closestEnclosingNs = cache.findClosestEnclosingNs(parent);
+            if (closestEnclosingNs != null) {
+                parent = closestEnclosingNs.query.getQuestion().name;
+            }
+        }
 
         switch (ipVersionSetting) {
         case v4only: